@@ -1,23 +1,52 @@
 package hadoop.fs.cache;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.util.MBeans;
 import org.ehcache.Cache;
 import org.ehcache.PersistentCacheManager;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
 import org.ehcache.config.builders.CacheManagerBuilder;
 import org.ehcache.config.builders.ResourcePoolsBuilder;
 import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.core.statistics.CacheStatistics;
+import org.ehcache.core.statistics.DefaultStatisticsService;
+import org.ehcache.core.statistics.TierStatistics;
 import org.ehcache.spi.serialization.Serializer;
 import org.ehcache.spi.serialization.SerializerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -28,6 +57,8 @@ import lombok.Value;
 
 public class FSCache {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(FSCache.class);
+
   public static final String CACHE_ON_DISK_SIZE_GB_KEY = "cache.on.disk.size.gb";
   public static final long CACHE_ON_DISK_SIZE_GB_DEFAULT = 10;
 
@@ -37,36 +68,175 @@ public class FSCache {
   public static final String CACHE_ON_DISK_PATH_KEY = "cache.on.disk.path";
   public static final String CACHE_ON_DISK_PATH_DEFAULT = "/tmp/fscache";
 
+  public static final String CACHE_SEQUENTIAL_BYPASS_THRESHOLD_MB_KEY = "cache.sequential.bypass.threshold.mb";
+  public static final long CACHE_SEQUENTIAL_BYPASS_THRESHOLD_MB_DEFAULT = 64;
+
+  public static final String CACHE_SEQUENTIAL_BYPASS_HINT_KB_KEY = "cache.sequential.bypass.hint.kb";
+  public static final long CACHE_SEQUENTIAL_BYPASS_HINT_KB_DEFAULT = 1024;
+
+  public static final String CACHE_SEQUENTIAL_BYPASS_READAHEAD_KB_KEY = "cache.sequential.bypass.readahead.kb";
+  public static final long CACHE_SEQUENTIAL_BYPASS_READAHEAD_KB_DEFAULT = 4096;
+
+  public static final String CACHE_VECTORED_READ_THREADS_KEY = "cache.vectored.read.threads";
+  public static final int CACHE_VECTORED_READ_THREADS_DEFAULT = 16;
+
+  public static final String CACHE_VECTORED_MAX_MERGED_BLOCKS_KEY = "cache.vectored.max.merged.blocks";
+  public static final int CACHE_VECTORED_MAX_MERGED_BLOCKS_DEFAULT = 8;
+
+  static final int BLOCK_SIZE = 5 * 1024 * 1024;
+
   private static final String CACHE_NAME = "fs-cache";
   private static FSCache FS_CACHE;
 
   public synchronized static FSCache getInstance(Configuration configuration) {
     if (FS_CACHE == null) {
-      FS_CACHE = new FSCache(configuration);
+      FS_CACHE = new FSCache(configuration, "FSCache");
     }
     return FS_CACHE;
   }
 
-  private final Cache<FileBlockCacheKey, byte[]> _cache;
-  private final int _blockSize = 5 * 1024 * 1024;
+  private volatile Cache<FileBlockCacheKey, byte[]> _cache;
+  private volatile long _initializationTime = -1L;
+  private final int _blockSize = BLOCK_SIZE;
+  private final long _sequentialBypassThreshold;
+  private final long _sequentialBypassHint;
+  private final long _sequentialBypassReadahead;
+  private final FSCachePinnedRegions _pinnedRegions;
+  private final ExecutorService _vectoredReadExecutor;
+  private final int _vectoredMaxMergedBlocks;
+  private final Configuration _configuration;
+  private final Map<FileBlockCacheKey, CompletableFuture<byte[]>> _peerLoads = new ConcurrentHashMap<>();
+  private final List<URI> _loadRoots = new ArrayList<>();
+  private final FSCacheCluster _cluster;
+  private final FSCacheMetrics _metrics;
+  private final DefaultStatisticsService _statisticsService = new DefaultStatisticsService();
+
+  FSCache(Configuration configuration, String name) {
+    this(configuration, name, runnable -> {
+      Thread initThread = new Thread(runnable, "fscache-init");
+      initThread.setDaemon(true);
+      initThread.start();
+    });
+  }
 
-  private FSCache(Configuration configuration) {
-    File cacheDir = getCacheDir(configuration);
-    ResourcePoolsBuilder resourcePoolsBuilder = getResourcePoolsBuilder(configuration);
+  /**
+   * The initialization of the cache tiers is handed to the given executor, so
+   * tests can hold it back and observe the pass through mode.
+   */
+  FSCache(Configuration configuration, String name, Executor initExecutor) {
+    _configuration = new Configuration(configuration);
+    _metrics = new FSCacheMetrics(this);
+    _pinnedRegions = new FSCachePinnedRegions(configuration, _metrics);
+    _vectoredReadExecutor = Executors.newFixedThreadPool(
+        configuration.getInt(CACHE_VECTORED_READ_THREADS_KEY, CACHE_VECTORED_READ_THREADS_DEFAULT),
+        new ThreadFactoryBuilder().setDaemon(true)
+                                  .setNameFormat("fscache-vectored-read-%d")
+                                  .build());
+    _vectoredMaxMergedBlocks = Math.max(1,
+        configuration.getInt(CACHE_VECTORED_MAX_MERGED_BLOCKS_KEY, CACHE_VECTORED_MAX_MERGED_BLOCKS_DEFAULT));
+    _sequentialBypassThreshold = configuration.getLong(CACHE_SEQUENTIAL_BYPASS_THRESHOLD_MB_KEY,
+        CACHE_SEQUENTIAL_BYPASS_THRESHOLD_MB_DEFAULT) * 1024 * 1024;
+    _sequentialBypassHint = configuration.getLong(CACHE_SEQUENTIAL_BYPASS_HINT_KB_KEY,
+        CACHE_SEQUENTIAL_BYPASS_HINT_KB_DEFAULT) * 1024;
+    _sequentialBypassReadahead = configuration.getLong(CACHE_SEQUENTIAL_BYPASS_READAHEAD_KB_KEY,
+        CACHE_SEQUENTIAL_BYPASS_READAHEAD_KB_DEFAULT) * 1024;
+
+    for (String loadRoot : configuration.getTrimmedStrings(FSCacheCluster.CACHE_CLUSTER_LOAD_ROOTS_KEY)) {
+      _loadRoots.add(new Path(loadRoot).toUri());
+    }
+    _cluster = createCluster(_configuration);
+    if (_cluster != null) {
+      Runtime.getRuntime()
+             .addShutdownHook(new Thread(() -> close()));
+    }
 
-    CacheConfigurationBuilder<FileBlockCacheKey, byte[]> cacheConfigurationBuilder = CacheConfigurationBuilder.newCacheConfigurationBuilder(
-        FileBlockCacheKey.class, byte[].class, resourcePoolsBuilder);
+    initExecutor.execute(() -> initialize(_configuration));
+    DefaultMetricsSystem.instance()
+                        .register(name, "FSCache block cache", _metrics);
+    MBeans.register("FSCache", name, _metrics);
+  }
 
-    PersistentCacheManager cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
-                                                             .with(CacheManagerBuilder.persistence(cacheDir))
-                                                             .withCache(CACHE_NAME, cacheConfigurationBuilder)
-                                                             .withSerializer(FileBlockCacheKey.class,
-                                                                 FileBlockCacheKeySerializer.class)
-                                                             .build(true);
+  /**
+   * Stops serving peers, reads keep working standalone.
+   */
+  void close() {
+    if (_cluster != null) {
+      try {
+        _cluster.close();
+      } catch (IOException e) {
+        LOGGER.error("Could not close FSCache cluster", e);
+      }
+    }
+  }
 
-    _cache = cacheManager.getCache(CACHE_NAME, FileBlockCacheKey.class, byte[].class);
-    Runtime.getRuntime()
-           .addShutdownHook(new Thread(() -> cacheManager.close()));
+  private FSCacheCluster createCluster(Configuration configuration) {
+    try {
+      return FSCacheCluster.create(configuration, key -> loadForPeer(key));
+    } catch (IOException e) {
+      LOGGER.error("FSCache cluster mode could not be started, running standalone", e);
+      return null;
+    }
+  }
+
+  /**
+   * Opening the persistent disk tier can take a long time, so the cache manager
+   * is built in the background. Until it is ready all reads pass through to
+   * the underlying streams.
+   */
+  private void initialize(Configuration configuration) {
+    long start = System.nanoTime();
+    try {
+      File cacheDir = getCacheDir(configuration);
+      ResourcePoolsBuilder resourcePoolsBuilder = getResourcePoolsBuilder(configuration);
+
+      CacheConfigurationBuilder<FileBlockCacheKey, byte[]> cacheConfigurationBuilder = CacheConfigurationBuilder.newCacheConfigurationBuilder(
+          FileBlockCacheKey.class, byte[].class, resourcePoolsBuilder);
+
+      PersistentCacheManager cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+                                                               .with(CacheManagerBuilder.persistence(cacheDir))
+                                                               .using(_statisticsService)
+                                                               .withCache(CACHE_NAME, cacheConfigurationBuilder)
+                                                               .withSerializer(FileBlockCacheKey.class,
+                                                                   FileBlockCacheKeySerializer.class)
+                                                               .build(true);
+
+      Runtime.getRuntime()
+             .addShutdownHook(new Thread(() -> cacheManager.close()));
+      _cache = cacheManager.getCache(CACHE_NAME, FileBlockCacheKey.class, byte[].class);
+      _initializationTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      LOGGER.info("FSCache ready after {} ms", _initializationTime);
+    } catch (Throwable t) {
+      LOGGER.error("FSCache could not be initialized, all reads will pass through", t);
+    }
+  }
+
+  public boolean isReady() {
+    return _cache != null;
+  }
+
+  public long getInitializationTime() {
+    return _initializationTime;
+  }
+
+  public FSCacheMetrics getMetrics() {
+    return _metrics;
+  }
+
+  public FSCachePinnedRegions getPinnedRegions() {
+    return _pinnedRegions;
+  }
+
+  /**
+   * Returns the statistics of the given ehcache tier ("OnHeap" or "Disk"), or
+   * null if the cache is not ready or the tier is not configured.
+   */
+  public TierStatistics getTierStatistics(String tier) {
+    if (!isReady()) {
+      return null;
+    }
+    CacheStatistics cacheStatistics = _statisticsService.getCacheStatistics(CACHE_NAME);
+    return cacheStatistics.getTierStatistics()
+                          .get(tier);
   }
 
   private ResourcePoolsBuilder getResourcePoolsBuilder(Configuration configuration) {
@@ -98,6 +268,16 @@ public class FSCache {
   }
 
   public int read(FileStatus fileStatus, FSDataInputStream input, byte[] b, int off, int len) throws IOException {
+    return read(fileStatus, input, null, b, off, len);
+  }
+
+  /**
+   * Reads through the cache, a block fetched from a peer is kept in the given
+   * {@link PeerBlock} so the following reads of the same stream don't fetch it
+   * again.
+   */
+  public int read(FileStatus fileStatus, FSDataInputStream input, PeerBlock peerBlock, byte[] b, int off, int len)
+      throws IOException {
     long pos = input.getPos();
     if (pos >= fileStatus.getLen()) {
       return -1;
@@ -105,29 +285,426 @@ public class FSCache {
     int blockOffset = (int) (pos % _blockSize);
     long blockId = pos / _blockSize;
 
-    FileBlockCacheKey key = FileBlockCacheKey.builder()
-                                             .length(fileStatus.getLen())
-                                             .modificationTime(fileStatus.getModificationTime())
-                                             .path(fileStatus.getPath()
-                                                             .toString())
-                                             .blockId(blockId)
-                                             .build();
-    byte[] data = _cache.get(key);
+    Cache<FileBlockCacheKey, byte[]> cache = _cache;
+    if (cache == null) {
+      int read = input.read(b, off, len);
+      _metrics.backendRead(read);
+      return read;
+    }
+    FileBlockCacheKey key = getKey(fileStatus, blockId);
+    byte[] data = cache.get(key);
+    if (data == null && peerBlock != null && peerBlock._blockId == blockId) {
+      data = peerBlock._data;
+    }
+    int length = getReadLength(fileStatus, pos, len);
+    if (data != null) {
+      _metrics.cacheRead(length);
+    } else {
+      data = fetchFromPeer(key);
+      if (data != null && peerBlock != null) {
+        peerBlock._blockId = blockId;
+        peerBlock._data = data;
+      }
+    }
     if (data == null) {
       long position = blockId * _blockSize;
       int l = (int) Math.min(_blockSize, fileStatus.getLen() - position);
       data = new byte[_blockSize];
-      input.readFully(position, data, 0, l);
-      _cache.put(key, data);
+      readFromBackend(input, position, data, l);
+      cache.put(key, data);
+      _metrics.admission();
     }
-    int remainingDataInBlock = _blockSize - blockOffset;
-    long remainingDataInFile = fileStatus.getLen() - pos;
-    int length = (int) Math.min(Math.min(remainingDataInBlock, len), remainingDataInFile);
     System.arraycopy(data, blockOffset, b, off, length);
     input.seek(pos + length);
     return length;
   }
 
+  /**
+   * Reads without admitting any new blocks into the cache. Blocks that are
+   * already cached are still served from the cache, everything else is read
+   * directly from the underlying stream.
+   */
+  public int readBypass(FileStatus fileStatus, FSDataInputStream input, byte[] b, int off, int len)
+      throws IOException {
+    long pos = input.getPos();
+    if (pos >= fileStatus.getLen()) {
+      return -1;
+    }
+    int blockOffset = (int) (pos % _blockSize);
+    long blockId = pos / _blockSize;
+    int length = getReadLength(fileStatus, pos, len);
+
+    byte[] data = getCachedBlock(fileStatus, blockId);
+    if (data == null) {
+      int read = input.read(b, off, length);
+      _metrics.backendRead(read);
+      return read;
+    }
+    _metrics.cacheRead(length);
+    System.arraycopy(data, blockOffset, b, off, length);
+    input.seek(pos + length);
+    return length;
+  }
+
+  /**
+   * Reads all of the given ranges asynchronously, each range's data future is
+   * completed once all of the blocks it covers are available. Blocks already in
+   * the cache are served from the cache, missing blocks that are next to each
+   * other are fetched from the underlying stream with a single ranged read.
+   */
+  public void readVectored(FileStatus fileStatus, FSDataInputStream input, List<? extends FileRange> ranges,
+      IntFunction<ByteBuffer> allocate) {
+    _vectoredReadExecutor.execute(() -> {
+      try {
+        planVectoredRead(fileStatus, input, ranges, allocate);
+      } catch (Throwable t) {
+        for (FileRange range : ranges) {
+          range.getData()
+               .completeExceptionally(t);
+        }
+      }
+    });
+  }
+
+  private void planVectoredRead(FileStatus fileStatus, FSDataInputStream input, List<? extends FileRange> ranges,
+      IntFunction<ByteBuffer> allocate) {
+    long fileLength = fileStatus.getLen();
+    Map<Long, CompletableFuture<byte[]>> blocks = new TreeMap<>();
+    Set<Long> cachedBlocks = new HashSet<>();
+    List<FileRange> validRanges = new ArrayList<>();
+    List<Long> misses = new ArrayList<>();
+    List<Long> peerMisses = new ArrayList<>();
+    for (FileRange range : ranges) {
+      if (range.getOffset() < 0 || range.getLength() < 0 || range.getOffset() + range.getLength() > fileLength) {
+        range.getData()
+             .completeExceptionally(new EOFException(
+                 range + " is outside of " + fileStatus.getPath() + " with length " + fileLength));
+        continue;
+      }
+      if (range.getLength() == 0) {
+        range.getData()
+             .complete(allocate.apply(0));
+        continue;
+      }
+      validRanges.add(range);
+      long lastBlockId = (range.getOffset() + range.getLength() - 1) / _blockSize;
+      for (long blockId = range.getOffset() / _blockSize; blockId <= lastBlockId; blockId++) {
+        if (!blocks.containsKey(blockId)) {
+          CompletableFuture<byte[]> block = new CompletableFuture<>();
+          blocks.put(blockId, block);
+          byte[] data = getCachedBlock(fileStatus, blockId);
+          if (data != null) {
+            cachedBlocks.add(blockId);
+            block.complete(data);
+          } else if (_cluster != null && !_cluster.isLocallyOwned(getKey(fileStatus, blockId))) {
+            peerMisses.add(blockId);
+          } else {
+            misses.add(blockId);
+          }
+        }
+      }
+    }
+
+    for (FileRange range : validRanges) {
+      completeRange(range, blocks, cachedBlocks, allocate);
+    }
+
+    for (long blockId : peerMisses) {
+      _vectoredReadExecutor.execute(() -> fetchBlockFromPeer(fileStatus, input, blockId, blocks));
+    }
+
+    Collections.sort(misses);
+    int start = 0;
+    for (int i = 1; i <= misses.size(); i++) {
+      if (i == misses.size() || misses.get(i) != misses.get(i - 1) + 1 || i - start >= _vectoredMaxMergedBlocks) {
+        long firstBlockId = misses.get(start);
+        int blockCount = i - start;
+        _vectoredReadExecutor.execute(() -> fetchBlocks(fileStatus, input, firstBlockId, blockCount, blocks));
+        start = i;
+      }
+    }
+  }
+
+  /**
+   * Completes the range once its blocks are available, only the bytes taken
+   * from blocks that were already cached count as read from the cache.
+   */
+  private void completeRange(FileRange range, Map<Long, CompletableFuture<byte[]>> blocks, Set<Long> cachedBlocks,
+      IntFunction<ByteBuffer> allocate) {
+    long lastBlockId = (range.getOffset() + range.getLength() - 1) / _blockSize;
+    List<CompletableFuture<byte[]>> rangeBlocks = new ArrayList<>();
+    for (long blockId = range.getOffset() / _blockSize; blockId <= lastBlockId; blockId++) {
+      rangeBlocks.add(blocks.get(blockId));
+    }
+    CompletableFuture.allOf(rangeBlocks.toArray(new CompletableFuture<?>[] {}))
+                     .whenComplete((v, t) -> {
+                       if (t != null) {
+                         range.getData()
+                              .completeExceptionally(
+                                  t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                         return;
+                       }
+                       ByteBuffer buffer = allocate.apply(range.getLength());
+                       long pos = range.getOffset();
+                       int remaining = range.getLength();
+                       while (remaining > 0) {
+                         int blockOffset = (int) (pos % _blockSize);
+                         int length = Math.min(remaining, _blockSize - blockOffset);
+                         long blockId = pos / _blockSize;
+                         buffer.put(blocks.get(blockId)
+                                          .join(),
+                             blockOffset, length);
+                         if (cachedBlocks.contains(blockId)) {
+                           _metrics.cacheRead(length);
+                         }
+                         pos += length;
+                         remaining -= length;
+                       }
+                       buffer.flip();
+                       range.getData()
+                            .complete(buffer);
+                     });
+  }
+
+  private void fetchBlockFromPeer(FileStatus fileStatus, FSDataInputStream input, long blockId,
+      Map<Long, CompletableFuture<byte[]>> blocks) {
+    byte[] data = fetchFromPeer(getKey(fileStatus, blockId));
+    if (data == null) {
+      fetchBlocks(fileStatus, input, blockId, 1, blocks);
+    } else {
+      blocks.get(blockId)
+            .complete(data);
+    }
+  }
+
+  private void fetchBlocks(FileStatus fileStatus, FSDataInputStream input, long firstBlockId, int blockCount,
+      Map<Long, CompletableFuture<byte[]>> blocks) {
+    try {
+      long position = firstBlockId * _blockSize;
+      int length = (int) Math.min((long) blockCount * _blockSize, fileStatus.getLen() - position);
+      byte[] buffer = new byte[length];
+      readFromBackend(input, position, buffer, length);
+      for (int i = 0; i < blockCount; i++) {
+        long blockId = firstBlockId + i;
+        int offset = i * _blockSize;
+        byte[] data = new byte[_blockSize];
+        System.arraycopy(buffer, offset, data, 0, Math.min(_blockSize, length - offset));
+        putCachedBlock(fileStatus, blockId, data);
+        blocks.get(blockId)
+              .complete(data);
+      }
+    } catch (Throwable t) {
+      for (int i = 0; i < blockCount; i++) {
+        blocks.get(firstBlockId + i)
+              .completeExceptionally(t);
+      }
+    }
+  }
+
+  /**
+   * Reads from the pinned head or tail region of the file. Returns -1 if the
+   * current position is outside of the pinned regions.
+   */
+  public int readPinned(FileStatus fileStatus, FSDataInputStream input, byte[] b, int off, int len)
+      throws IOException {
+    long pos = input.getPos();
+    int length = _pinnedRegions.read(fileStatus, input, pos, b, off, len);
+    if (length > 0) {
+      input.seek(pos + length);
+    }
+    return length;
+  }
+
+  public boolean isPinned(FileStatus fileStatus) {
+    return _pinnedRegions.isPinned(fileStatus);
+  }
+
+  /**
+   * Returns true if the total number of sequentially read bytes on a single
+   * stream is large enough to switch that stream into bypass mode.
+   */
+  public boolean isSequentialScan(long sequentialBytes) {
+    return _sequentialBypassThreshold > 0 && sequentialBytes >= _sequentialBypassThreshold;
+  }
+
+  /**
+   * Returns true if the buffer size or readahead given by the caller signals a
+   * large one pass read.
+   */
+  public boolean isBypassHint(long size) {
+    return _sequentialBypassHint > 0 && size >= _sequentialBypassHint;
+  }
+
+  public long getSequentialBypassReadahead() {
+    return _sequentialBypassReadahead;
+  }
+
+  /**
+   * Fetches the block from the peer that owns it. Returns null when running
+   * standalone, when this node owns the block or when the owner could not
+   * serve it. Blocks fetched from peers are not stored locally, and a response
+   * that is not a full block is treated like a miss.
+   */
+  private byte[] fetchFromPeer(FileBlockCacheKey key) {
+    FSCacheCluster cluster = _cluster;
+    if (cluster == null || cluster.isLocallyOwned(key)) {
+      return null;
+    }
+    long start = System.nanoTime();
+    _metrics.fetchStarted();
+    byte[] data;
+    try {
+      data = cluster.fetchFromOwner(key);
+    } finally {
+      _metrics.fetchFinished();
+    }
+    if (data != null && data.length != _blockSize) {
+      LOGGER.warn("Peer returned {} bytes instead of a {} byte block for {}", data.length, _blockSize, key);
+      data = null;
+    }
+    if (data == null) {
+      _metrics.peerMiss();
+    } else {
+      _metrics.peerHit(data.length, System.nanoTime() - start);
+    }
+    return data;
+  }
+
+  private void readFromBackend(FSDataInputStream input, long position, byte[] buffer, int length)
+      throws IOException {
+    long start = System.nanoTime();
+    _metrics.fetchStarted();
+    try {
+      input.readFully(position, buffer, 0, length);
+    } finally {
+      _metrics.fetchFinished();
+    }
+    _metrics.backendLoad(length, System.nanoTime() - start);
+  }
+
+  /**
+   * Serves a block to a peer that considers this node the owner, on a miss the
+   * block is loaded from the backend and cached if it is below one of the load
+   * roots. Concurrent requests for the same block share a single backend read.
+   */
+  private byte[] loadForPeer(FileBlockCacheKey key) throws IOException {
+    Cache<FileBlockCacheKey, byte[]> cache = _cache;
+    if (cache == null) {
+      return null;
+    }
+    byte[] data = cache.get(key);
+    if (data != null) {
+      return data;
+    }
+    if (!isLoadable(key)) {
+      return null;
+    }
+    CompletableFuture<byte[]> load = new CompletableFuture<>();
+    CompletableFuture<byte[]> existingLoad = _peerLoads.putIfAbsent(key, load);
+    if (existingLoad != null) {
+      try {
+        return existingLoad.get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+    }
+    try {
+      data = loadFromBackend(key);
+      if (data != null) {
+        cache.put(key, data);
+        _metrics.admission();
+      }
+      load.complete(data);
+      return data;
+    } catch (Throwable t) {
+      load.completeExceptionally(t);
+      throw t;
+    } finally {
+      _peerLoads.remove(key);
+    }
+  }
+
+  private boolean isLoadable(FileBlockCacheKey key) {
+    URI uri = new Path(key.getPath()).toUri()
+                                     .normalize();
+    for (URI loadRoot : _loadRoots) {
+      if (!Objects.equals(loadRoot.getScheme(), uri.getScheme())
+          || !Objects.equals(loadRoot.getAuthority(), uri.getAuthority())) {
+        continue;
+      }
+      String rootPath = loadRoot.getPath();
+      String path = uri.getPath();
+      if (rootPath.equals(path) || path.startsWith(rootPath.endsWith("/") ? rootPath : rootPath + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private byte[] loadFromBackend(FileBlockCacheKey key) throws IOException {
+    Path path = new Path(key.getPath());
+    FileSystem fileSystem = path.getFileSystem(_configuration);
+    FileStatus fileStatus = fileSystem.getFileStatus(path);
+    if (fileStatus.getLen() != key.getLength() || fileStatus.getModificationTime() != key.getModificationTime()) {
+      return null;
+    }
+    long position = key.getBlockId() * _blockSize;
+    int length = (int) Math.min(_blockSize, key.getLength() - position);
+    if (length <= 0) {
+      return null;
+    }
+    byte[] data = new byte[_blockSize];
+    try (FSDataInputStream input = fileSystem.open(path)) {
+      readFromBackend(input, position, data, length);
+    }
+    return data;
+  }
+
+  private byte[] getCachedBlock(FileStatus fileStatus, long blockId) {
+    Cache<FileBlockCacheKey, byte[]> cache = _cache;
+    if (cache == null) {
+      return null;
+    }
+    return cache.get(getKey(fileStatus, blockId));
+  }
+
+  private void putCachedBlock(FileStatus fileStatus, long blockId, byte[] data) {
+    Cache<FileBlockCacheKey, byte[]> cache = _cache;
+    if (cache != null) {
+      cache.put(getKey(fileStatus, blockId), data);
+      _metrics.admission();
+    }
+  }
+
+  private int getReadLength(FileStatus fileStatus, long pos, int len) {
+    int remainingDataInBlock = _blockSize - (int) (pos % _blockSize);
+    long remainingDataInFile = fileStatus.getLen() - pos;
+    return (int) Math.min(Math.min(remainingDataInBlock, len), remainingDataInFile);
+  }
+
+  private FileBlockCacheKey getKey(FileStatus fileStatus, long blockId) {
+    return FileBlockCacheKey.builder()
+                            .length(fileStatus.getLen())
+                            .modificationTime(fileStatus.getModificationTime())
+                            .path(fileStatus.getPath()
+                                            .toString())
+                            .blockId(blockId)
+                            .build();
+  }
+
+  /**
+   * The last block a stream fetched from a peer.
+   */
+  public static class PeerBlock {
+
+    private long _blockId = -1L;
+
+    private byte[] _data;
+
+  }
+
   @Value
   @NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
   @AllArgsConstructor
@@ -0,0 +1,161 @@
+package hadoop.fs.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hadoop.fs.cache.FSCache.FileBlockCacheKey;
+import hadoop.fs.cache.FSCachePeerServer.BlockLoader;
+
+/**
+ * Optional cluster mode where every block has an owning peer picked from a
+ * consistent hash ring over a static list of peers. On a local miss the
+ * block is fetched from its owner before falling back to the backend, so the
+ * effective cache capacity grows with the number of peers. Peers
+ * authenticate each other with a shared secret and only serve blocks that
+ * are cached or below {@link #CACHE_CLUSTER_LOAD_ROOTS_KEY}.
+ */
+public class FSCacheCluster implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FSCacheCluster.class);
+
+  public static final String CACHE_CLUSTER_PEERS_KEY = "cache.cluster.peers";
+
+  public static final String CACHE_CLUSTER_LOCAL_PEER_KEY = "cache.cluster.local.peer";
+
+  public static final String CACHE_CLUSTER_VIRTUAL_NODES_KEY = "cache.cluster.virtual.nodes";
+  public static final int CACHE_CLUSTER_VIRTUAL_NODES_DEFAULT = 128;
+
+  /**
+   * Host the peer server binds to, defaults to the host of the local peer.
+   */
+  public static final String CACHE_CLUSTER_BIND_HOST_KEY = "cache.cluster.bind.host";
+
+  /**
+   * Shared secret of all peers, resolved through the credential providers of
+   * the configuration.
+   */
+  public static final String CACHE_CLUSTER_SECRET_KEY = "cache.cluster.secret";
+
+  /**
+   * Roots below which a peer request may load a block from the backend,
+   * requests for anything else are only served from the cache.
+   */
+  public static final String CACHE_CLUSTER_LOAD_ROOTS_KEY = "cache.cluster.load.roots";
+
+  /**
+   * Connect and handshake timeout for peers.
+   */
+  public static final String CACHE_CLUSTER_TIMEOUT_MS_KEY = "cache.cluster.timeout.ms";
+  public static final int CACHE_CLUSTER_TIMEOUT_MS_DEFAULT = 2000;
+
+  /**
+   * Read timeout for peer responses, long enough for the owner to load a
+   * block from the backend so a slow load is not fetched a second time by
+   * the requesting node.
+   */
+  public static final String CACHE_CLUSTER_READ_TIMEOUT_MS_KEY = "cache.cluster.read.timeout.ms";
+  public static final int CACHE_CLUSTER_READ_TIMEOUT_MS_DEFAULT = 60000;
+
+  /**
+   * Connections the peer server serves at once, including those still in the
+   * handshake. Connections over the limit are closed.
+   */
+  public static final String CACHE_CLUSTER_MAX_CONNECTIONS_KEY = "cache.cluster.max.connections";
+  public static final int CACHE_CLUSTER_MAX_CONNECTIONS_DEFAULT = 256;
+
+  /**
+   * Time an authenticated peer connection may stay idle before the server
+   * closes it.
+   */
+  public static final String CACHE_CLUSTER_IDLE_TIMEOUT_MS_KEY = "cache.cluster.idle.timeout.ms";
+  public static final int CACHE_CLUSTER_IDLE_TIMEOUT_MS_DEFAULT = 300000;
+
+  /**
+   * Creates the cluster if peers are configured, otherwise returns null.
+   */
+  public static FSCacheCluster create(Configuration configuration, BlockLoader loader) throws IOException {
+    String[] peers = configuration.getTrimmedStrings(CACHE_CLUSTER_PEERS_KEY);
+    if (peers.length == 0) {
+      return null;
+    }
+    String localPeer = configuration.getTrimmed(CACHE_CLUSTER_LOCAL_PEER_KEY);
+    if (localPeer == null) {
+      throw new IOException("Property missing " + CACHE_CLUSTER_LOCAL_PEER_KEY);
+    }
+    List<String> peerList = Arrays.asList(peers);
+    if (!peerList.contains(localPeer)) {
+      throw new IOException("Local peer " + localPeer + " is not in " + CACHE_CLUSTER_PEERS_KEY + " " + peerList);
+    }
+    int virtualNodes = configuration.getInt(CACHE_CLUSTER_VIRTUAL_NODES_KEY, CACHE_CLUSTER_VIRTUAL_NODES_DEFAULT);
+    char[] secret = configuration.getPassword(CACHE_CLUSTER_SECRET_KEY);
+    if (secret == null || secret.length == 0) {
+      throw new IOException("Property missing " + CACHE_CLUSTER_SECRET_KEY);
+    }
+    byte[] secretBytes = new String(secret).getBytes(StandardCharsets.UTF_8);
+    int timeout = configuration.getInt(CACHE_CLUSTER_TIMEOUT_MS_KEY, CACHE_CLUSTER_TIMEOUT_MS_DEFAULT);
+    int readTimeout = configuration.getInt(CACHE_CLUSTER_READ_TIMEOUT_MS_KEY, CACHE_CLUSTER_READ_TIMEOUT_MS_DEFAULT);
+    int index = localPeer.lastIndexOf(':');
+    String bindHost = configuration.getTrimmed(CACHE_CLUSTER_BIND_HOST_KEY, localPeer.substring(0, index));
+    int port = Integer.parseInt(localPeer.substring(index + 1));
+    int maxConnections = configuration.getInt(CACHE_CLUSTER_MAX_CONNECTIONS_KEY,
+        CACHE_CLUSTER_MAX_CONNECTIONS_DEFAULT);
+    int idleTimeout = configuration.getInt(CACHE_CLUSTER_IDLE_TIMEOUT_MS_KEY, CACHE_CLUSTER_IDLE_TIMEOUT_MS_DEFAULT);
+    FSCachePeerServer server = new FSCachePeerServer(new InetSocketAddress(bindHost, port), secretBytes, loader,
+        maxConnections, idleTimeout);
+    LOGGER.info("FSCache cluster mode started as {} on {} with peers {}", localPeer, bindHost, peerList);
+    return new FSCacheCluster(new FSCacheHashRing(peerList, virtualNodes), localPeer,
+        new FSCachePeerClient(timeout, readTimeout, secretBytes), server);
+  }
+
+  private final FSCacheHashRing _ring;
+  private final String _localPeer;
+  private final FSCachePeerClient _client;
+  private final FSCachePeerServer _server;
+
+  private FSCacheCluster(FSCacheHashRing ring, String localPeer, FSCachePeerClient client, FSCachePeerServer server) {
+    _ring = ring;
+    _localPeer = localPeer;
+    _client = client;
+    _server = server;
+  }
+
+  public boolean isLocallyOwned(FileBlockCacheKey key) {
+    return _localPeer.equals(getOwner(key));
+  }
+
+  /**
+   * Fetches the block from its owning peer. Returns null if this node is the
+   * owner or if the owner could not serve the block.
+   */
+  public byte[] fetchFromOwner(FileBlockCacheKey key) {
+    String owner = getOwner(key);
+    if (_localPeer.equals(owner)) {
+      return null;
+    }
+    try {
+      return _client.fetch(owner, key);
+    } catch (IOException e) {
+      LOGGER.debug("Could not fetch block {} from peer {}", key, owner, e);
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    _client.close();
+    _server.close();
+  }
+
+  private String getOwner(FileBlockCacheKey key) {
+    return _ring.getOwner(key.getPath() + "#" + key.getBlockId());
+  }
+
+}
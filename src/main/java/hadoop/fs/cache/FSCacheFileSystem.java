@@ -40,9 +40,9 @@ public class FSCacheFileSystem extends ContextFileSystem {
   public FSDataInputStream open(Path f, int bufferSize) throws IOException {
     Path contextPath = getContextPath(f);
     FileSystem contextFileSystem = contextPath.getFileSystem(getConf());
-    FSDataInputStream inputStream = contextFileSystem.open(f, bufferSize);
-    return new FSDataInputStream(
-        new FSCachedInputStream(_fsCache, contextFileSystem.getFileStatus(contextPath), inputStream));
+    FSDataInputStream inputStream = contextFileSystem.open(contextPath, bufferSize);
+    return new FSDataInputStream(new FSCachedInputStream(_fsCache, contextFileSystem.getFileStatus(contextPath),
+        inputStream, _fsCache.isBypassHint(bufferSize)));
   }
 
   @Override
@@ -0,0 +1,46 @@
+package hadoop.fs.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Consistent hash ring of cache peers. Each peer is placed on the ring a
+ * number of times (virtual nodes) so blocks spread evenly and only a small
+ * fraction of blocks move when a peer is added or removed.
+ */
+public class FSCacheHashRing {
+
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private final TreeMap<Long, String> _ring = new TreeMap<>();
+
+  public FSCacheHashRing(Collection<String> peers, int virtualNodes) {
+    if (peers.isEmpty()) {
+      throw new IllegalArgumentException("At least one peer is required");
+    }
+    for (String peer : peers) {
+      for (int i = 0; i < virtualNodes; i++) {
+        _ring.put(hash(peer + "#" + i), peer);
+      }
+    }
+  }
+
+  public String getOwner(String key) {
+    Entry<Long, String> entry = _ring.ceilingEntry(hash(key));
+    if (entry == null) {
+      entry = _ring.firstEntry();
+    }
+    return entry.getValue();
+  }
+
+  private static long hash(String s) {
+    return HASH_FUNCTION.hashBytes(s.getBytes(StandardCharsets.UTF_8))
+                        .asLong();
+  }
+
+}
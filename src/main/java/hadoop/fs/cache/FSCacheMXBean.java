@@ -0,0 +1,60 @@
+package hadoop.fs.cache;
+
+public interface FSCacheMXBean {
+
+  /**
+   * Returns true once the cache tiers are open, until then all reads pass
+   * through to the underlying filesystem.
+   */
+  boolean isReady();
+
+  /**
+   * Time in ms it took to open the cache tiers, -1 while not ready.
+   */
+  long getInitializationTime();
+
+  long getPinnedHits();
+
+  long getPinnedMisses();
+
+  long getPinnedEvictions();
+
+  long getPinnedOccupiedBytes();
+
+  long getHeapHits();
+
+  long getHeapMisses();
+
+  long getHeapEvictions();
+
+  long getHeapOccupiedBytes();
+
+  long getDiskHits();
+
+  long getDiskMisses();
+
+  long getDiskEvictions();
+
+  long getDiskOccupiedBytes();
+
+  long getPeerHits();
+
+  long getPeerMisses();
+
+  long getBytesFromCache();
+
+  long getBytesFromPeer();
+
+  long getBytesFromBackend();
+
+  /**
+   * Number of reads issued to the backend to load blocks and pinned regions,
+   * adjacent blocks merged by a vectored read count as one.
+   */
+  long getBackendLoads();
+
+  long getAdmissions();
+
+  int getInFlightFetches();
+
+}
@@ -0,0 +1,245 @@
+package hadoop.fs.cache;
+
+import static org.apache.hadoop.metrics2.lib.Interns.info;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+import org.ehcache.core.statistics.TierStatistics;
+
+/**
+ * Metrics for {@link FSCache}, published through metrics2 as the FSCache
+ * record and through JMX as Hadoop:service=FSCache,name=FSCache.
+ */
+public class FSCacheMetrics implements MetricsSource, FSCacheMXBean {
+
+  static final String HEAP_TIER = "OnHeap";
+  static final String DISK_TIER = "Disk";
+
+  private static final String RECORD_NAME = "FSCache";
+  private static final String CONTEXT = "fscache";
+  private static final int QUANTILE_INTERVAL = 60;
+
+  private final MetricsRegistry _registry = new MetricsRegistry(RECORD_NAME).setContext(CONTEXT);
+  private final MutableCounterLong _pinnedHits = _registry.newCounter("PinnedHits",
+      "Reads served from pinned regions", 0L);
+  private final MutableCounterLong _pinnedMisses = _registry.newCounter("PinnedMisses",
+      "Pinned regions loaded from the backend", 0L);
+  private final MutableCounterLong _peerHits = _registry.newCounter("PeerHits", "Blocks fetched from peers", 0L);
+  private final MutableCounterLong _peerMisses = _registry.newCounter("PeerMisses",
+      "Blocks the owning peer could not serve", 0L);
+  private final MutableCounterLong _bytesFromCache = _registry.newCounter("BytesFromCache",
+      "Bytes served from local cache tiers", 0L);
+  private final MutableCounterLong _bytesFromPeer = _registry.newCounter("BytesFromPeer",
+      "Bytes fetched from peers", 0L);
+  private final MutableCounterLong _bytesFromBackend = _registry.newCounter("BytesFromBackend",
+      "Bytes read from the backend", 0L);
+  private final MutableCounterLong _backendLoads = _registry.newCounter("BackendLoads",
+      "Reads issued to the backend to load blocks and regions", 0L);
+  private final MutableCounterLong _admissions = _registry.newCounter("Admissions",
+      "Blocks and regions admitted into the cache", 0L);
+  private final MutableQuantiles _backendLoadTime = _registry.newQuantiles("BackendLoadTime",
+      "Block load latency from the backend", "loads", "latencyMs", QUANTILE_INTERVAL);
+  private final MutableQuantiles _peerLoadTime = _registry.newQuantiles("PeerLoadTime",
+      "Block load latency from peers", "loads", "latencyMs", QUANTILE_INTERVAL);
+  private final AtomicInteger _inFlightFetches = new AtomicInteger();
+  private final FSCache _fsCache;
+
+  public FSCacheMetrics(FSCache fsCache) {
+    _fsCache = fsCache;
+  }
+
+  @Override
+  public void getMetrics(MetricsCollector collector, boolean all) {
+    MetricsRecordBuilder builder = collector.addRecord(RECORD_NAME)
+                                            .setContext(CONTEXT);
+    _registry.snapshot(builder, all);
+    builder.addGauge(info("Ready", "1 once the cache tiers are open"), isReady() ? 1 : 0)
+           .addGauge(info("InitializationTime", "Time in ms to open the cache tiers"), getInitializationTime())
+           .addGauge(info("InFlightFetches", "Block fetches in progress"), getInFlightFetches())
+           .addCounter(info("PinnedEvictions", "Pinned regions evicted"), getPinnedEvictions())
+           .addGauge(info("PinnedOccupiedBytes", "Bytes held by pinned regions"), getPinnedOccupiedBytes())
+           .addCounter(info("HeapHits", "Heap tier hits"), getHeapHits())
+           .addCounter(info("HeapMisses", "Heap tier misses"), getHeapMisses())
+           .addCounter(info("HeapEvictions", "Heap tier evictions"), getHeapEvictions())
+           .addGauge(info("HeapOccupiedBytes", "Bytes held by the heap tier"), getHeapOccupiedBytes())
+           .addCounter(info("DiskHits", "Disk tier hits"), getDiskHits())
+           .addCounter(info("DiskMisses", "Disk tier misses"), getDiskMisses())
+           .addCounter(info("DiskEvictions", "Disk tier evictions"), getDiskEvictions())
+           .addGauge(info("DiskOccupiedBytes", "Bytes held by the disk tier"), getDiskOccupiedBytes());
+  }
+
+  public void pinnedHit() {
+    _pinnedHits.incr();
+  }
+
+  public void pinnedMiss() {
+    _pinnedMisses.incr();
+    _admissions.incr();
+  }
+
+  public void peerHit(int length, long nanos) {
+    _peerHits.incr();
+    _bytesFromPeer.incr(length);
+    _peerLoadTime.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+  public void peerMiss() {
+    _peerMisses.incr();
+  }
+
+  public void backendLoad(int length, long nanos) {
+    _backendLoads.incr();
+    _bytesFromBackend.incr(length);
+    _backendLoadTime.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+  public void backendRead(int length) {
+    if (length > 0) {
+      _bytesFromBackend.incr(length);
+    }
+  }
+
+  public void cacheRead(int length) {
+    _bytesFromCache.incr(length);
+  }
+
+  public void admission() {
+    _admissions.incr();
+  }
+
+  public void fetchStarted() {
+    _inFlightFetches.incrementAndGet();
+  }
+
+  public void fetchFinished() {
+    _inFlightFetches.decrementAndGet();
+  }
+
+  @Override
+  public boolean isReady() {
+    return _fsCache.isReady();
+  }
+
+  @Override
+  public long getInitializationTime() {
+    return _fsCache.getInitializationTime();
+  }
+
+  @Override
+  public long getPinnedHits() {
+    return _pinnedHits.value();
+  }
+
+  @Override
+  public long getPinnedMisses() {
+    return _pinnedMisses.value();
+  }
+
+  @Override
+  public long getPinnedEvictions() {
+    return _fsCache.getPinnedRegions()
+                   .getEvictionCount();
+  }
+
+  @Override
+  public long getPinnedOccupiedBytes() {
+    return _fsCache.getPinnedRegions()
+                   .getOccupiedBytes();
+  }
+
+  @Override
+  public long getHeapHits() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(HEAP_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getHits();
+  }
+
+  @Override
+  public long getHeapMisses() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(HEAP_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getMisses();
+  }
+
+  @Override
+  public long getHeapEvictions() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(HEAP_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getEvictions();
+  }
+
+  @Override
+  public long getHeapOccupiedBytes() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(HEAP_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getOccupiedByteSize();
+  }
+
+  @Override
+  public long getDiskHits() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(DISK_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getHits();
+  }
+
+  @Override
+  public long getDiskMisses() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(DISK_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getMisses();
+  }
+
+  @Override
+  public long getDiskEvictions() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(DISK_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getEvictions();
+  }
+
+  @Override
+  public long getDiskOccupiedBytes() {
+    TierStatistics tierStatistics = _fsCache.getTierStatistics(DISK_TIER);
+    return tierStatistics == null ? 0L : tierStatistics.getOccupiedByteSize();
+  }
+
+  @Override
+  public long getPeerHits() {
+    return _peerHits.value();
+  }
+
+  @Override
+  public long getPeerMisses() {
+    return _peerMisses.value();
+  }
+
+  @Override
+  public long getBytesFromCache() {
+    return _bytesFromCache.value();
+  }
+
+  @Override
+  public long getBytesFromPeer() {
+    return _bytesFromPeer.value();
+  }
+
+  @Override
+  public long getBytesFromBackend() {
+    return _bytesFromBackend.value();
+  }
+
+  @Override
+  public long getBackendLoads() {
+    return _backendLoads.value();
+  }
+
+  @Override
+  public long getAdmissions() {
+    return _admissions.value();
+  }
+
+  @Override
+  public int getInFlightFetches() {
+    return _inFlightFetches.get();
+  }
+
+}
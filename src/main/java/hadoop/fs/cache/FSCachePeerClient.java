@@ -0,0 +1,157 @@
+package hadoop.fs.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.hadoop.io.IOUtils;
+
+import hadoop.fs.cache.FSCache.FileBlockCacheKey;
+import hadoop.fs.cache.FSCache.FileBlockCacheKeySerializer;
+
+/**
+ * Fetches blocks from {@link FSCachePeerServer}s, idle connections are kept
+ * per peer and reused. A reused connection the peer has closed in the
+ * meantime is replaced by a new one.
+ */
+public class FSCachePeerClient implements Closeable {
+
+  private static final int MAX_IDLE_CONNECTIONS_PER_PEER = 16;
+  private static final int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+  private final FileBlockCacheKeySerializer _serializer = new FileBlockCacheKeySerializer();
+  private final Map<String, Queue<PeerConnection>> _idleConnections = new ConcurrentHashMap<>();
+  private final int _connectTimeout;
+  private final int _readTimeout;
+  private final byte[] _secret;
+
+  public FSCachePeerClient(int connectTimeout, int readTimeout, byte[] secret) {
+    _connectTimeout = connectTimeout;
+    _readTimeout = readTimeout;
+    _secret = secret;
+  }
+
+  /**
+   * Returns the block from the peer or null if the peer does not have it.
+   */
+  public byte[] fetch(String peer, FileBlockCacheKey key) throws IOException {
+    ByteBuffer keyBuffer = _serializer.serialize(key);
+    byte[] keyBytes = new byte[keyBuffer.remaining()];
+    keyBuffer.get(keyBytes);
+
+    PeerConnection connection = pollIdleConnection(peer);
+    if (connection != null) {
+      try {
+        byte[] data = connection.fetch(keyBytes);
+        releaseConnection(peer, connection);
+        return data;
+      } catch (EOFException | SocketException e) {
+        connection.close();
+      } catch (IOException e) {
+        connection.close();
+        throw e;
+      }
+    }
+    connection = new PeerConnection(peer, _connectTimeout, _readTimeout, _secret);
+    byte[] data;
+    try {
+      data = connection.fetch(keyBytes);
+    } catch (IOException e) {
+      connection.close();
+      throw e;
+    }
+    releaseConnection(peer, connection);
+    return data;
+  }
+
+  @Override
+  public void close() {
+    for (Queue<PeerConnection> connections : _idleConnections.values()) {
+      PeerConnection connection;
+      while ((connection = connections.poll()) != null) {
+        connection.close();
+      }
+    }
+  }
+
+  private PeerConnection pollIdleConnection(String peer) {
+    Queue<PeerConnection> connections = _idleConnections.get(peer);
+    if (connections == null) {
+      return null;
+    }
+    return connections.poll();
+  }
+
+  private void releaseConnection(String peer, PeerConnection connection) {
+    Queue<PeerConnection> connections = _idleConnections.computeIfAbsent(peer, p -> new ConcurrentLinkedQueue<>());
+    if (connections.size() >= MAX_IDLE_CONNECTIONS_PER_PEER) {
+      connection.close();
+    } else {
+      connections.offer(connection);
+    }
+  }
+
+  private static class PeerConnection {
+
+    private final Socket _socket;
+    private final DataInputStream _input;
+    private final DataOutputStream _output;
+
+    PeerConnection(String peer, int connectTimeout, int readTimeout, byte[] secret) throws IOException {
+      int index = peer.lastIndexOf(':');
+      if (index < 0) {
+        throw new IOException("Peer " + peer + " is not in host:port form");
+      }
+      String host = peer.substring(0, index);
+      int port = Integer.parseInt(peer.substring(index + 1));
+      _socket = new Socket();
+      try {
+        _socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        _socket.setSoTimeout(connectTimeout);
+        _socket.setTcpNoDelay(true);
+        _input = new DataInputStream(new BufferedInputStream(_socket.getInputStream()));
+        _output = new DataOutputStream(new BufferedOutputStream(_socket.getOutputStream()));
+        FSCachePeerServer.authenticate(secret, _input, _output);
+        _socket.setSoTimeout(readTimeout);
+      } catch (IOException e) {
+        IOUtils.closeSocket(_socket);
+        throw e;
+      }
+    }
+
+    byte[] fetch(byte[] keyBytes) throws IOException {
+      _output.writeInt(keyBytes.length);
+      _output.write(keyBytes);
+      _output.flush();
+      int status = _input.readInt();
+      if (status != FSCachePeerServer.FOUND) {
+        return null;
+      }
+      int length = _input.readInt();
+      if (length < 0 || length > MAX_BLOCK_LENGTH) {
+        throw new IOException("Invalid block length " + length);
+      }
+      byte[] data = new byte[length];
+      _input.readFully(data);
+      return data;
+    }
+
+    void close() {
+      IOUtils.closeSocket(_socket);
+    }
+
+  }
+
+}
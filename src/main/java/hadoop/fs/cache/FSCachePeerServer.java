@@ -0,0 +1,241 @@
+package hadoop.fs.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hadoop.fs.cache.FSCache.FileBlockCacheKey;
+import hadoop.fs.cache.FSCache.FileBlockCacheKeySerializer;
+
+/**
+ * Serves cached blocks to peers. Every connection starts with a mutual
+ * challenge response handshake over a shared secret, after that each request
+ * is a length prefixed serialized {@link FileBlockCacheKey} and each response
+ * is a status followed by the length prefixed block when the status is
+ * {@link #FOUND}. The blocks themselves are not encrypted.
+ *
+ * Each connection holds a thread from the handshake on, connections over the
+ * maximum are closed right away and authenticated connections that stay idle
+ * longer than the idle timeout are closed, so peers reconnect on demand.
+ */
+public class FSCachePeerServer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FSCachePeerServer.class);
+
+  static final int FOUND = 0;
+  static final int NOT_FOUND = 1;
+  static final int MAX_KEY_LENGTH = 64 * 1024;
+  static final int NONCE_LENGTH = 16;
+  static final int HANDSHAKE_TIMEOUT_MS = 10000;
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+  private static final String CLIENT_ROLE = "client";
+  private static final String SERVER_ROLE = "server";
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  public interface BlockLoader {
+
+    /**
+     * Returns the block for the key or null if it can not be served.
+     */
+    byte[] load(FileBlockCacheKey key) throws IOException;
+
+  }
+
+  private final FileBlockCacheKeySerializer _serializer = new FileBlockCacheKeySerializer();
+  private final ServerSocket _serverSocket;
+  private final ThreadPoolExecutor _executor;
+  private final BlockLoader _loader;
+  private final byte[] _secret;
+  private final int _idleTimeout;
+  private volatile boolean _running = true;
+
+  public FSCachePeerServer(InetSocketAddress bindAddress, byte[] secret, BlockLoader loader) throws IOException {
+    this(bindAddress, secret, loader, FSCacheCluster.CACHE_CLUSTER_MAX_CONNECTIONS_DEFAULT,
+        FSCacheCluster.CACHE_CLUSTER_IDLE_TIMEOUT_MS_DEFAULT);
+  }
+
+  public FSCachePeerServer(InetSocketAddress bindAddress, byte[] secret, BlockLoader loader, int maxConnections,
+      int idleTimeout) throws IOException {
+    if (maxConnections < 1) {
+      throw new IOException("Max connections " + maxConnections + " has to be at least 1");
+    }
+    _loader = loader;
+    _secret = secret;
+    _idleTimeout = idleTimeout;
+    _serverSocket = new ServerSocket();
+    _serverSocket.bind(bindAddress);
+    _executor = new ThreadPoolExecutor(0, maxConnections, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+                                  .setNameFormat("fscache-peer-server-%d")
+                                  .build());
+    Thread acceptThread = new Thread(() -> acceptConnections(), "fscache-peer-accept-" + getPort());
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  public int getPort() {
+    return _serverSocket.getLocalPort();
+  }
+
+  @Override
+  public void close() throws IOException {
+    _running = false;
+    _serverSocket.close();
+    _executor.shutdownNow();
+  }
+
+  private void acceptConnections() {
+    while (_running) {
+      try {
+        Socket socket = _serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        try {
+          _executor.execute(() -> handleConnection(socket));
+        } catch (RejectedExecutionException e) {
+          LOGGER.warn("Peer {} rejected, all {} connections are in use", socket.getRemoteSocketAddress(),
+              _executor.getMaximumPoolSize());
+          socket.close();
+        }
+      } catch (IOException e) {
+        if (_running) {
+          LOGGER.error("Unknown error", e);
+        }
+      }
+    }
+  }
+
+  private void handleConnection(Socket socket) {
+    try (Socket s = socket;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+      s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+      if (!authenticate(input, output)) {
+        LOGGER.warn("Peer {} failed authentication", s.getRemoteSocketAddress());
+        return;
+      }
+      s.setSoTimeout(_idleTimeout);
+      while (_running) {
+        int keyLength;
+        try {
+          keyLength = input.readInt();
+        } catch (EOFException e) {
+          return;
+        }
+        if (keyLength < 0 || keyLength > MAX_KEY_LENGTH) {
+          throw new IOException("Invalid key length " + keyLength);
+        }
+        byte[] keyBytes = new byte[keyLength];
+        input.readFully(keyBytes);
+        byte[] data = loadBlock(keyBytes);
+        if (data == null) {
+          output.writeInt(NOT_FOUND);
+        } else {
+          output.writeInt(FOUND);
+          output.writeInt(data.length);
+          output.write(data);
+        }
+        output.flush();
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Peer connection closed", e);
+    }
+  }
+
+  private boolean authenticate(DataInputStream input, DataOutputStream output) throws IOException {
+    byte[] serverNonce = newNonce();
+    output.write(serverNonce);
+    output.flush();
+    byte[] clientNonce = new byte[NONCE_LENGTH];
+    input.readFully(clientNonce);
+    byte[] clientProof = new byte[getProofLength()];
+    input.readFully(clientProof);
+    if (!MessageDigest.isEqual(clientProof, getProof(_secret, CLIENT_ROLE, serverNonce, clientNonce))) {
+      return false;
+    }
+    output.write(getProof(_secret, SERVER_ROLE, serverNonce, clientNonce));
+    output.flush();
+    return true;
+  }
+
+  /**
+   * Client side of the handshake, fails if the server does not know the
+   * secret.
+   */
+  static void authenticate(byte[] secret, DataInputStream input, DataOutputStream output) throws IOException {
+    byte[] serverNonce = new byte[NONCE_LENGTH];
+    input.readFully(serverNonce);
+    byte[] clientNonce = newNonce();
+    output.write(clientNonce);
+    output.write(getProof(secret, CLIENT_ROLE, serverNonce, clientNonce));
+    output.flush();
+    byte[] serverProof = new byte[getProofLength()];
+    input.readFully(serverProof);
+    if (!MessageDigest.isEqual(serverProof, getProof(secret, SERVER_ROLE, serverNonce, clientNonce))) {
+      throw new IOException("Peer failed authentication");
+    }
+  }
+
+  private static byte[] newNonce() {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    RANDOM.nextBytes(nonce);
+    return nonce;
+  }
+
+  private static int getProofLength() throws IOException {
+    return newMac(new byte[] { 0 }).getMacLength();
+  }
+
+  private static byte[] getProof(byte[] secret, String role, byte[] serverNonce, byte[] clientNonce)
+      throws IOException {
+    Mac mac = newMac(secret);
+    mac.update(role.getBytes(StandardCharsets.UTF_8));
+    mac.update(serverNonce);
+    mac.update(clientNonce);
+    return mac.doFinal();
+  }
+
+  private static Mac newMac(byte[] secret) throws IOException {
+    try {
+      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+      mac.init(new SecretKeySpec(secret, HMAC_ALGORITHM));
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private byte[] loadBlock(byte[] keyBytes) {
+    try {
+      return _loader.load(_serializer.read(ByteBuffer.wrap(keyBytes)));
+    } catch (Exception e) {
+      LOGGER.error("Could not load block for peer", e);
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,179 @@
+package hadoop.fs.cache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.util.StringUtils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+/**
+ * Keeps the head and tail regions (e.g. Parquet and ORC footers) of matching
+ * files in a dedicated on heap pool. Regions in this pool only compete with
+ * other pinned regions and are never evicted by bulk block reads. The pool
+ * holds cache.pin.size.mb / (cache.pin.head.kb + cache.pin.tail.kb) files at
+ * once, about 4096 with the defaults (a 64 KB footer tail in a 256 MB pool),
+ * so size it for the working set of files.
+ */
+public class FSCachePinnedRegions {
+
+  public static final String CACHE_PIN_PATH_PATTERNS_KEY = "cache.pin.path.patterns";
+  public static final String CACHE_PIN_PATH_PATTERNS_DEFAULT = ".*\\.parquet,.*\\.orc";
+
+  public static final String CACHE_PIN_TAIL_KB_KEY = "cache.pin.tail.kb";
+  public static final long CACHE_PIN_TAIL_KB_DEFAULT = 64;
+
+  public static final String CACHE_PIN_HEAD_KB_KEY = "cache.pin.head.kb";
+  public static final long CACHE_PIN_HEAD_KB_DEFAULT = 0;
+
+  public static final String CACHE_PIN_SIZE_MB_KEY = "cache.pin.size.mb";
+  public static final long CACHE_PIN_SIZE_MB_DEFAULT = 256;
+
+  private final List<Pattern> _patterns = new ArrayList<>();
+  private final long _headSize;
+  private final long _tailSize;
+  private final Cache<PinnedRegionKey, byte[]> _regions;
+  private final FSCacheMetrics _metrics;
+
+  public FSCachePinnedRegions(Configuration configuration, FSCacheMetrics metrics) {
+    _metrics = metrics;
+    for (String pattern : StringUtils.getTrimmedStrings(
+        configuration.get(CACHE_PIN_PATH_PATTERNS_KEY, CACHE_PIN_PATH_PATTERNS_DEFAULT))) {
+      _patterns.add(Pattern.compile(pattern));
+    }
+    _headSize = configuration.getLong(CACHE_PIN_HEAD_KB_KEY, CACHE_PIN_HEAD_KB_DEFAULT) * 1024;
+    _tailSize = configuration.getLong(CACHE_PIN_TAIL_KB_KEY, CACHE_PIN_TAIL_KB_DEFAULT) * 1024;
+    long maxSize = configuration.getLong(CACHE_PIN_SIZE_MB_KEY, CACHE_PIN_SIZE_MB_DEFAULT) * 1024 * 1024;
+    _regions = Caffeine.newBuilder()
+                       .maximumWeight(maxSize)
+                       .weigher((PinnedRegionKey key, byte[] value) -> value.length)
+                       .recordStats()
+                       .build();
+  }
+
+  /**
+   * Returns true if the file matches the pin policy.
+   */
+  public boolean isPinned(FileStatus fileStatus) {
+    if (_headSize <= 0 && _tailSize <= 0) {
+      return false;
+    }
+    String path = fileStatus.getPath()
+                            .toString();
+    for (Pattern pattern : _patterns) {
+      if (pattern.matcher(path)
+                 .matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads from the pinned region that contains the given position. Returns -1
+   * if the position is not inside of a pinned region.
+   */
+  public int read(FileStatus fileStatus, FSDataInputStream input, long pos, byte[] b, int off, int len)
+      throws IOException {
+    long fileLength = fileStatus.getLen();
+    if (pos >= fileLength) {
+      return -1;
+    }
+    long regionStart;
+    long regionEnd;
+    boolean tail;
+    if (pos < _headSize) {
+      regionStart = 0;
+      regionEnd = Math.min(_headSize, fileLength);
+      tail = false;
+    } else if (_tailSize > 0 && pos >= fileLength - _tailSize) {
+      regionStart = Math.max(0, fileLength - _tailSize);
+      regionEnd = fileLength;
+      tail = true;
+    } else {
+      return -1;
+    }
+    PinnedRegionKey key = PinnedRegionKey.builder()
+                                         .length(fileLength)
+                                         .modificationTime(fileStatus.getModificationTime())
+                                         .path(fileStatus.getPath()
+                                                         .toString())
+                                         .tail(tail)
+                                         .build();
+    byte[] region = _regions.getIfPresent(key);
+    if (region == null) {
+      _metrics.pinnedMiss();
+      try {
+        region = _regions.get(key, k -> loadRegion(input, regionStart, (int) (regionEnd - regionStart)));
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    } else {
+      _metrics.pinnedHit();
+    }
+    int regionOffset = (int) (pos - regionStart);
+    int length = Math.min(len, region.length - regionOffset);
+    System.arraycopy(region, regionOffset, b, off, length);
+    return length;
+  }
+
+  public long getEvictionCount() {
+    return _regions.stats()
+                   .evictionCount();
+  }
+
+  public long getOccupiedBytes() {
+    return _regions.policy()
+                   .eviction()
+                   .map(eviction -> eviction.weightedSize()
+                                            .orElse(0L))
+                   .orElse(0L);
+  }
+
+  private byte[] loadRegion(FSDataInputStream input, long position, int length) {
+    byte[] region = new byte[length];
+    long start = System.nanoTime();
+    _metrics.fetchStarted();
+    try {
+      input.readFully(position, region, 0, length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      _metrics.fetchFinished();
+    }
+    _metrics.backendLoad(length, System.nanoTime() - start);
+    return region;
+  }
+
+  @Value
+  @NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+  @AllArgsConstructor
+  @Builder(toBuilder = true)
+  @EqualsAndHashCode
+  public static class PinnedRegionKey {
+
+    long length;
+
+    long modificationTime;
+
+    String path;
+
+    boolean tail;
+
+  }
+
+}
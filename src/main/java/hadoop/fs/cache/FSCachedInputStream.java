@@ -1,26 +1,52 @@
 package hadoop.fs.cache;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.IntFunction;
 
 import org.apache.hadoop.fs.CanSetReadahead;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FileStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hadoop.fs.cache.FSCache.PeerBlock;
 
 public class FSCachedInputStream extends FSInputStream implements CanSetReadahead {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(FSCachedInputStream.class);
+
   private final FSDataInputStream _input;
   private final FSCache _fsCache;
   private final FileStatus _fileStatus;
+  private final boolean _pinned;
+  private final PeerBlock _peerBlock = new PeerBlock();
+  private boolean _bypass;
+  private long _sequentialBytes;
+  private long _lastReadEnd = -1L;
 
   public FSCachedInputStream(FSCache fsCache, FileStatus fileStatus, FSDataInputStream fsDataInputStream) {
+    this(fsCache, fileStatus, fsDataInputStream, false);
+  }
+
+  public FSCachedInputStream(FSCache fsCache, FileStatus fileStatus, FSDataInputStream fsDataInputStream,
+      boolean bypass) {
     _fileStatus = fileStatus;
     _fsCache = fsCache;
     _input = fsDataInputStream;
+    _pinned = fsCache.isPinned(fileStatus);
+    if (bypass) {
+      enableBypass();
+    }
   }
 
   @Override
   public void setReadahead(Long readahead) throws IOException, UnsupportedOperationException {
+    if (readahead != null && !_bypass && _fsCache.isBypassHint(readahead)) {
+      enableBypass();
+    }
     _input.setReadahead(readahead);
   }
 
@@ -46,7 +72,56 @@ public class FSCachedInputStream extends FSInputStream implements CanSetReadahea
 
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
-    return _fsCache.read(_fileStatus, _input, b, off, len);
+    if (_pinned) {
+      int read = _fsCache.readPinned(_fileStatus, _input, b, off, len);
+      if (read >= 0) {
+        return read;
+      }
+    }
+    if (_bypass) {
+      return _fsCache.readBypass(_fileStatus, _input, b, off, len);
+    }
+    long pos = _input.getPos();
+    int read = _fsCache.read(_fileStatus, _input, _peerBlock, b, off, len);
+    trackSequentialRead(pos, read);
+    return read;
+  }
+
+  /**
+   * Reads the given ranges asynchronously, see
+   * {@link FSCache#readVectored(FileStatus, FSDataInputStream, List, IntFunction)}.
+   */
+  public void readVectored(List<? extends FileRange> ranges, IntFunction<ByteBuffer> allocate) {
+    _fsCache.readVectored(_fileStatus, _input, ranges, allocate);
+  }
+
+  public boolean isBypass() {
+    return _bypass;
+  }
+
+  private void trackSequentialRead(long pos, int read) {
+    if (read <= 0) {
+      return;
+    }
+    if (pos == _lastReadEnd) {
+      _sequentialBytes += read;
+    } else {
+      _sequentialBytes = read;
+    }
+    _lastReadEnd = pos + read;
+    if (_fsCache.isSequentialScan(_sequentialBytes)) {
+      LOGGER.debug("Sequential scan detected on {} after {} bytes", _fileStatus.getPath(), _sequentialBytes);
+      enableBypass();
+    }
+  }
+
+  private void enableBypass() {
+    _bypass = true;
+    try {
+      _input.setReadahead(_fsCache.getSequentialBypassReadahead());
+    } catch (IOException | UnsupportedOperationException e) {
+      LOGGER.debug("Could not set readahead on {}", _fileStatus.getPath());
+    }
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package hadoop.fs.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A range of a file for a vectored read, the data future is completed once
+ * the range has been read.
+ */
+public class FileRange {
+
+  private final long _offset;
+  private final int _length;
+  private final CompletableFuture<ByteBuffer> _data = new CompletableFuture<>();
+
+  public FileRange(long offset, int length) {
+    _offset = offset;
+    _length = length;
+  }
+
+  public static FileRange createFileRange(long offset, int length) {
+    return new FileRange(offset, length);
+  }
+
+  public long getOffset() {
+    return _offset;
+  }
+
+  public int getLength() {
+    return _length;
+  }
+
+  public CompletableFuture<ByteBuffer> getData() {
+    return _data;
+  }
+
+  @Override
+  public String toString() {
+    return "FileRange [offset=" + _offset + ", length=" + _length + "]";
+  }
+
+}
@@ -1,8 +1,14 @@
 package hadoop.fs.metadata;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.hadoop.fs.Path;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -14,6 +20,8 @@ import lombok.Value;
 @NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
 @AllArgsConstructor
 @Builder(toBuilder = true)
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class DataEntry {
 
   String managementId;
@@ -22,9 +30,106 @@ public class DataEntry {
 
   boolean managed;
 
+  /**
+   * Length of the data, null for entries written before the length was
+   * recorded at close.
+   */
+  Long length;
+
+  Long modificationTime;
+
+  /**
+   * Checksum of the data as "algorithm:hex", null if not enabled. Appends and
+   * concats clear it: a finished digest can not be continued and recomputing
+   * it would read all data back, so only data written in one stream has a
+   * checksum.
+   */
+  String checksum;
+
+  /**
+   * Offset of the data in the pack object at the data path, null if the data
+   * object holds only this entry.
+   */
+  Long packOffset;
+
+  /**
+   * Content of tiny files stored in the entry itself, base64 encoded in the
+   * JSON. The data path of inline entries is never written. With the xattr
+   * layout the content lives in NameNode heap, which bounds the inline
+   * threshold.
+   */
+  byte[] content;
+
+  /**
+   * Data appended after the data described above, null for single segment
+   * entries. The length of the entry covers all segments.
+   */
+  List<DataSegment> segments;
+
+  /**
+   * True for copies and entries that took over data of copies, their data
+   * objects are reference counted and only reclaimed when the last reference
+   * is released. The owner of copied data is not marked, see
+   * {@link DataReferences}.
+   */
+  boolean shared;
+
   @JsonIgnore
   public Path getDataPath() {
     return new Path(dataPathUri);
   }
 
+  @JsonIgnore
+  public boolean isPacked() {
+    return packOffset != null;
+  }
+
+  @JsonIgnore
+  public boolean isInline() {
+    return content != null;
+  }
+
+  @JsonIgnore
+  public boolean hasSegments() {
+    return segments != null && !segments.isEmpty();
+  }
+
+  /**
+   * Returns all segments of the data in order, starting with the one
+   * described by the entry itself.
+   */
+  @JsonIgnore
+  public List<DataSegment> getAllSegments() {
+    List<DataSegment> allSegments = new ArrayList<>();
+    long firstLength = length == null ? 0 : length;
+    if (segments != null) {
+      for (DataSegment segment : segments) {
+        firstLength -= segment.getLength();
+      }
+    }
+    allSegments.add(new DataSegment(dataPathUri, packOffset, content, firstLength));
+    if (segments != null) {
+      allSegments.addAll(segments);
+    }
+    return allSegments;
+  }
+
+  /**
+   * Returns the data objects that belong to this entry alone and have to be
+   * removed with it.
+   */
+  @JsonIgnore
+  public List<Path> getReclaimablePaths() {
+    List<Path> reclaimablePaths = new ArrayList<>();
+    if (!managed) {
+      return reclaimablePaths;
+    }
+    for (DataSegment segment : getAllSegments()) {
+      if (segment.isReclaimable()) {
+        reclaimablePaths.add(segment.getDataPath());
+      }
+    }
+    return reclaimablePaths;
+  }
+
 }
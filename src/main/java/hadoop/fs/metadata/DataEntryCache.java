@@ -0,0 +1,76 @@
+package hadoop.fs.metadata;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import lombok.Value;
+
+/**
+ * Caches parsed data entries by meta path. An entry is only returned if the
+ * modification time and length of the meta file still match the meta file
+ * status given by the caller. Entries also expire after a while, because
+ * rewrites that keep the modification time of the meta file (relocations,
+ * in place xattr updates) are only invalidated on the gateway doing them.
+ */
+public class DataEntryCache {
+
+  private final Cache<Path, CachedDataEntry> _cache;
+
+  public DataEntryCache(long maxSize, long expireSeconds) {
+    _cache = Caffeine.newBuilder()
+                     .maximumSize(maxSize)
+                     .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                     .build();
+  }
+
+  public DataEntry get(FileStatus metaFileStatus) {
+    CachedDataEntry cachedDataEntry = _cache.getIfPresent(metaFileStatus.getPath());
+    if (cachedDataEntry == null) {
+      return null;
+    }
+    if (cachedDataEntry.getModificationTime() != metaFileStatus.getModificationTime()
+        || cachedDataEntry.getLength() != metaFileStatus.getLen()) {
+      _cache.invalidate(metaFileStatus.getPath());
+      return null;
+    }
+    return cachedDataEntry.getDataEntry();
+  }
+
+  public void put(FileStatus metaFileStatus, DataEntry dataEntry) {
+    _cache.put(metaFileStatus.getPath(), new CachedDataEntry(metaFileStatus.getModificationTime(),
+        metaFileStatus.getLen(), dataEntry));
+  }
+
+  public void invalidate(Path metaPath) {
+    _cache.invalidate(metaPath);
+  }
+
+  /**
+   * Invalidates the given meta path and everything below it.
+   */
+  public void invalidateRecursive(Path metaPath) {
+    String prefix = metaPath.toString() + Path.SEPARATOR;
+    _cache.invalidate(metaPath);
+    _cache.asMap()
+          .keySet()
+          .removeIf(path -> path.toString()
+                                .startsWith(prefix));
+  }
+
+  @Value
+  private static class CachedDataEntry {
+
+    long modificationTime;
+
+    long length;
+
+    DataEntry dataEntry;
+
+  }
+
+}
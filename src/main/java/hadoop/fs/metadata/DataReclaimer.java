@@ -0,0 +1,355 @@
+package hadoop.fs.metadata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.Value;
+
+/**
+ * Deletes data objects in the background. Data paths are collected into
+ * batches per data filesystem, S3A batches are removed with a single
+ * multi-object delete through the client of the S3A filesystem and all other
+ * filesystems delete the batch one path at a time. The number of batches and
+ * of data paths reclaimed or failed are counted. Data paths that are queued
+ * after close or are still queued when it stops waiting count as failed, the
+ * {@link OrphanDataCollector} removes them later.
+ */
+public class DataReclaimer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataReclaimer.class);
+
+  /**
+   * Most keys a single S3 multi-object delete accepts.
+   */
+  public static final int MAX_BATCH_SIZE = 1000;
+
+  private static final String S3A_FILE_SYSTEM_CLASS = "org.apache.hadoop.fs.s3a.S3AFileSystem";
+  private static final String S3A_CLIENT_FIELD = "s3";
+  private static final Field S3A_CLIENT = getS3AClientField();
+
+  private final Configuration _conf;
+  private final int _batchSize;
+  private final BlockingQueue<ReclaimEntry> _queue = new LinkedBlockingQueue<>();
+  private final ExecutorService _deleteExecutor;
+  private final Thread _batchThread;
+  private final ScheduledExecutorService _delayExecutor;
+  private final Object _lock = new Object();
+  private final AtomicLong _batches = new AtomicLong();
+  private final AtomicLong _reclaimed = new AtomicLong();
+  private final AtomicLong _failed = new AtomicLong();
+  private long _pending;
+  private volatile boolean _running = true;
+
+  public DataReclaimer(Configuration conf, int threads, int batchSize) {
+    _conf = conf;
+    _batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+    _deleteExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                                                                                      .setNameFormat(
+                                                                                          "metadata-reclaim-%d")
+                                                                                      .build());
+    _batchThread = new Thread(() -> runBatches(), "metadata-reclaim-batch");
+    _batchThread.setDaemon(true);
+    _batchThread.start();
+    _delayExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                                                                                          .setNameFormat(
+                                                                                              "metadata-reclaim-delay")
+                                                                                          .build());
+  }
+
+  /**
+   * Queues the data path to be deleted as the given user.
+   */
+  public void reclaim(UserGroupInformation ugi, Path dataPath) {
+    synchronized (_lock) {
+      if (!_running) {
+        LOGGER.warn("Data reclaimer is closed, {} is not removed", dataPath);
+        _failed.incrementAndGet();
+        return;
+      }
+      _pending++;
+      _queue.add(new ReclaimEntry(ugi, dataPath));
+    }
+  }
+
+  /**
+   * Queues the data path to be deleted as the given user once the delay has
+   * passed. Delayed paths are not waited for and are dropped on close, the
+   * {@link OrphanDataCollector} removes them later.
+   */
+  public void reclaim(UserGroupInformation ugi, Path dataPath, long delayMillis) {
+    if (delayMillis <= 0) {
+      reclaim(ugi, dataPath);
+      return;
+    }
+    _delayExecutor.schedule(() -> reclaim(ugi, dataPath), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Waits until every queued data path has been deleted (or failed to be).
+   */
+  public void waitForReclamation() throws InterruptedException {
+    synchronized (_lock) {
+      while (_pending > 0) {
+        _lock.wait();
+      }
+    }
+  }
+
+  /**
+   * Number of batches deleted so far.
+   */
+  public long getBatchCount() {
+    return _batches.get();
+  }
+
+  /**
+   * Number of data paths deleted so far.
+   */
+  public long getReclaimedCount() {
+    return _reclaimed.get();
+  }
+
+  /**
+   * Number of data paths that could not be deleted so far.
+   */
+  public long getFailedCount() {
+    return _failed.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      waitForReclamation();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } finally {
+      synchronized (_lock) {
+        _running = false;
+      }
+      _batchThread.interrupt();
+      _delayExecutor.shutdownNow();
+      for (Runnable task : _deleteExecutor.shutdownNow()) {
+        abandon(((BatchTask) task).getDataPaths());
+      }
+      List<ReclaimEntry> entries = new ArrayList<>();
+      _queue.drainTo(entries);
+      List<Path> dataPaths = new ArrayList<>();
+      for (ReclaimEntry entry : entries) {
+        dataPaths.add(entry.getDataPath());
+      }
+      abandon(dataPaths);
+    }
+  }
+
+  /**
+   * Counts data paths that will not be deleted as failed, so nothing waits
+   * for them.
+   */
+  private void abandon(List<Path> dataPaths) {
+    if (dataPaths.isEmpty()) {
+      return;
+    }
+    LOGGER.warn("Data reclaimer is closed, {} data paths starting with {} are not removed", dataPaths.size(),
+        dataPaths.get(0));
+    _failed.addAndGet(dataPaths.size());
+    synchronized (_lock) {
+      _pending -= dataPaths.size();
+      _lock.notifyAll();
+    }
+  }
+
+  private void runBatches() {
+    while (_running) {
+      List<ReclaimEntry> entries = new ArrayList<>();
+      try {
+        ReclaimEntry entry = _queue.poll(1, TimeUnit.SECONDS);
+        if (entry == null) {
+          continue;
+        }
+        entries.add(entry);
+      } catch (InterruptedException e) {
+        return;
+      }
+      _queue.drainTo(entries, _batchSize - 1);
+
+      Map<BatchKey, List<Path>> batches = new LinkedHashMap<>();
+      for (ReclaimEntry entry : entries) {
+        URI uri = entry.getDataPath()
+                       .toUri();
+        BatchKey key = new BatchKey(entry.getUgi(), uri.getScheme(), uri.getAuthority());
+        batches.computeIfAbsent(key, k -> new ArrayList<>())
+               .add(entry.getDataPath());
+      }
+      for (Map.Entry<BatchKey, List<Path>> batch : batches.entrySet()) {
+        try {
+          _deleteExecutor.execute(new BatchTask(batch.getKey(), batch.getValue()));
+        } catch (RejectedExecutionException e) {
+          abandon(batch.getValue());
+        }
+      }
+    }
+  }
+
+  private void deleteBatch(BatchKey key, List<Path> dataPaths) {
+    _batches.incrementAndGet();
+    try {
+      key.getUgi()
+         .doAs((PrivilegedExceptionAction<Void>) () -> {
+           FileSystem dataFs = dataPaths.get(0)
+                                        .getFileSystem(_conf);
+           AmazonS3 s3 = getS3Client(dataFs);
+           if (s3 == null) {
+             delete(dataFs, dataPaths);
+           } else {
+             deleteS3(s3, key.getScheme(), key.getAuthority(), dataPaths);
+           }
+           return null;
+         });
+    } catch (Throwable t) {
+      LOGGER.error("Could not remove batch of " + dataPaths.size() + " data paths starting with " + dataPaths.get(0),
+          t);
+      _failed.addAndGet(dataPaths.size());
+    } finally {
+      synchronized (_lock) {
+        _pending -= dataPaths.size();
+        _lock.notifyAll();
+      }
+    }
+  }
+
+  private void delete(FileSystem dataFs, List<Path> dataPaths) {
+    for (Path dataPath : dataPaths) {
+      try {
+        if (dataFs.delete(dataPath, false)) {
+          _reclaimed.incrementAndGet();
+          continue;
+        }
+        LOGGER.warn("Could not remove {}", dataPath);
+      } catch (IOException e) {
+        LOGGER.error("Could not remove " + dataPath, e);
+      }
+      _failed.incrementAndGet();
+    }
+  }
+
+  private void deleteS3(AmazonS3 s3, String scheme, String bucket, List<Path> dataPaths) {
+    String[] keys = new String[dataPaths.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = dataPaths.get(i)
+                         .toUri()
+                         .getPath()
+                         .substring(1);
+    }
+    DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(keys)
+                                                                   .withQuiet(true);
+    try {
+      s3.deleteObjects(request);
+      _reclaimed.addAndGet(keys.length);
+    } catch (MultiObjectDeleteException e) {
+      for (DeleteError error : e.getErrors()) {
+        LOGGER.warn("Could not remove {}://{}/{} {}", scheme, bucket, error.getKey(), error.getMessage());
+      }
+      _reclaimed.addAndGet(keys.length - e.getErrors()
+                                          .size());
+      _failed.addAndGet(e.getErrors()
+                         .size());
+    }
+  }
+
+  /**
+   * Returns the client of an S3A filesystem, so deletes use its credentials,
+   * endpoint and retry settings. Returns null for other filesystems or if the
+   * client can not be reached, the batch is then deleted through the
+   * filesystem.
+   */
+  private AmazonS3 getS3Client(FileSystem dataFs) throws IllegalAccessException {
+    if (S3A_CLIENT == null || !S3A_CLIENT.getDeclaringClass()
+                                         .isInstance(dataFs)) {
+      return null;
+    }
+    Object s3 = S3A_CLIENT.get(dataFs);
+    return s3 instanceof AmazonS3 ? (AmazonS3) s3 : null;
+  }
+
+  private static Field getS3AClientField() {
+    try {
+      Field field = Class.forName(S3A_FILE_SYSTEM_CLASS)
+                         .getDeclaredField(S3A_CLIENT_FIELD);
+      field.setAccessible(true);
+      return field;
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+      LOGGER.info("S3A client not available, S3A data paths are deleted one at a time");
+      return null;
+    }
+  }
+
+  private class BatchTask implements Runnable {
+
+    private final BatchKey _key;
+    private final List<Path> _dataPaths;
+
+    BatchTask(BatchKey key, List<Path> dataPaths) {
+      _key = key;
+      _dataPaths = dataPaths;
+    }
+
+    List<Path> getDataPaths() {
+      return _dataPaths;
+    }
+
+    @Override
+    public void run() {
+      deleteBatch(_key, _dataPaths);
+    }
+
+  }
+
+  @Value
+  private static class ReclaimEntry {
+
+    UserGroupInformation ugi;
+
+    Path dataPath;
+
+  }
+
+  @Value
+  private static class BatchKey {
+
+    UserGroupInformation ugi;
+
+    String scheme;
+
+    String authority;
+
+  }
+
+}
@@ -0,0 +1,123 @@
+package hadoop.fs.metadata;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Reference counts of data objects shared by copied data entries. Every
+ * reference is an empty marker file named after the management id of the
+ * data entry, in a directory derived from the data path, so references are
+ * added and removed atomically on any filesystem and the count is the number
+ * of markers. A data object without markers has no other owner and is
+ * reclaimed once the entry that references it is removed.
+ *
+ * The entry that wrote a data object owns it without a marker, so copying a
+ * file adds a single marker and leaves the source untouched. When the owner
+ * is removed while copies remain a released marker takes its place, and the
+ * data object is reclaimed with the last copy. Once the copies are gone
+ * while the owner remains the directory is removed and the object is
+ * unshared again.
+ */
+public class DataReferences {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataReferences.class);
+
+  private static final String RELEASED_MARKER = "_released";
+
+  private final Configuration _conf;
+  private final Path _referencesPath;
+
+  public DataReferences(Configuration conf, Path referencesPath) {
+    _conf = conf;
+    _referencesPath = referencesPath;
+  }
+
+  /**
+   * Records the reference of the data entry, adding a reference twice has no
+   * effect.
+   */
+  public void acquire(Path dataPath, String managementId) throws IOException {
+    Path markerPath = new Path(getReferencesPath(dataPath), managementId);
+    FileSystem fileSystem = markerPath.getFileSystem(_conf);
+    fileSystem.create(markerPath, true)
+              .close();
+  }
+
+  /**
+   * Removes the reference of the data entry and returns true if no
+   * references to the data object remain. An entry without a marker is the
+   * owner of the data object.
+   */
+  public boolean release(Path dataPath, String managementId) throws IOException {
+    Path referencesPath = getReferencesPath(dataPath);
+    FileSystem fileSystem = referencesPath.getFileSystem(_conf);
+    if (!fileSystem.exists(referencesPath)) {
+      // never shared
+      return true;
+    }
+    if (!fileSystem.delete(new Path(referencesPath, managementId), false)) {
+      fileSystem.create(new Path(referencesPath, RELEASED_MARKER), true)
+                .close();
+    }
+    if (getCount(dataPath) > 0) {
+      return false;
+    }
+    if (fileSystem.exists(new Path(referencesPath, RELEASED_MARKER))) {
+      fileSystem.delete(referencesPath, true);
+      return true;
+    }
+    // the owner remains, fails if a copy added a marker meanwhile
+    try {
+      fileSystem.delete(referencesPath, false);
+    } catch (IOException e) {
+      LOGGER.debug("References {} of {} are in use again", referencesPath, dataPath);
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of copies referencing the data object, the owner is
+   * not counted.
+   */
+  public int getCount(Path dataPath) throws IOException {
+    Path referencesPath = getReferencesPath(dataPath);
+    FileSystem fileSystem = referencesPath.getFileSystem(_conf);
+    try {
+      FileStatus[] listStatus = fileSystem.listStatus(referencesPath);
+      if (listStatus == null) {
+        return 0;
+      }
+      int count = 0;
+      for (FileStatus fileStatus : listStatus) {
+        if (!fileStatus.getPath()
+                       .getName()
+                       .equals(RELEASED_MARKER)) {
+          count++;
+        }
+      }
+      return count;
+    } catch (FileNotFoundException e) {
+      return 0;
+    }
+  }
+
+  private Path getReferencesPath(Path dataPath) {
+    String hash = Hashing.murmur3_128()
+                         .hashString(dataPath.toUri()
+                                             .getPath(),
+                             StandardCharsets.UTF_8)
+                         .toString();
+    return new Path(new Path(_referencesPath, hash.substring(0, 2)), hash);
+  }
+
+}
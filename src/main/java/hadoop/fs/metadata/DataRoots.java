@@ -0,0 +1,183 @@
+package hadoop.fs.metadata;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.apache.hadoop.fs.Path;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * The data roots new data objects are placed under. A root is picked per data
+ * object by weighted rendezvous hashing of the object name, so each root gets
+ * a share of new objects proportional to its weight and adding, removing or
+ * draining a root only moves the share of that root. Drained roots (or roots
+ * with a weight of 0) receive no new objects but remain readable since data
+ * entries record the full data path.
+ *
+ * Draining is an operator decision, health is tracked automatically: a root
+ * that fails to create a data object is marked unhealthy and skipped for the
+ * unhealthy period, after which it is tried again. If every available root is
+ * unhealthy new objects are placed as if all were healthy, so a failure of
+ * the whole store surfaces as write errors instead of no root at all.
+ */
+public class DataRoots {
+
+  private final List<DataRoot> _roots;
+  private final long _unhealthyMillis;
+
+  public DataRoots(List<DataRoot> roots) {
+    this(roots, 0);
+  }
+
+  public DataRoots(List<DataRoot> roots, long unhealthyMillis) {
+    _roots = Collections.unmodifiableList(new ArrayList<>(roots));
+    _unhealthyMillis = unhealthyMillis;
+  }
+
+  /**
+   * Parses "path" or "path=weight", the weight defaults to 1.
+   */
+  public static DataRoot parse(String value, boolean drained) throws IOException {
+    value = value.trim();
+    int index = value.lastIndexOf('=');
+    if (index < 0) {
+      return new DataRoot(new Path(value), 1, drained);
+    }
+    try {
+      return new DataRoot(new Path(value.substring(0, index)), Integer.parseInt(value.substring(index + 1)), drained);
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid weight in data root " + value, e);
+    }
+  }
+
+  public List<DataRoot> getRoots() {
+    return _roots;
+  }
+
+  /**
+   * Returns the root for a new data object with the given name.
+   */
+  public Path select(String name) throws IOException {
+    long now = System.currentTimeMillis();
+    DataRoot selected = select(name, root -> root.isHealthy(now));
+    if (selected == null) {
+      selected = select(name, root -> true);
+    }
+    if (selected == null) {
+      throw new IOException("No data root available, all of " + _roots.size() + " data roots are drained.");
+    }
+    return selected.getPath();
+  }
+
+  private DataRoot select(String name, Predicate<DataRoot> filter) {
+    DataRoot selected = null;
+    double selectedScore = 0;
+    for (DataRoot root : _roots) {
+      if (root.isDrained() || root.getWeight() <= 0 || !filter.test(root)) {
+        continue;
+      }
+      long hash = Hashing.murmur3_128()
+                         .newHasher()
+                         .putString(root.getPath()
+                                        .toString(),
+                             StandardCharsets.UTF_8)
+                         .putString(name, StandardCharsets.UTF_8)
+                         .hash()
+                         .asLong();
+      // uniform in (0, 1)
+      double unit = ((hash >>> 11) + 0.5) / (1L << 53);
+      double score = -root.getWeight() / Math.log(unit);
+      if (selected == null || score > selectedScore) {
+        selected = root;
+        selectedScore = score;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Marks the root holding the data path unhealthy after a failed create.
+   */
+  public void markFailed(Path dataPath) {
+    if (_unhealthyMillis <= 0) {
+      return;
+    }
+    String pathStr = dataPath.toString();
+    for (DataRoot root : _roots) {
+      String rootStr = root.getPath()
+                           .toString();
+      if (pathStr.startsWith(rootStr.endsWith("/") ? rootStr : rootStr + "/")) {
+        root.setUnhealthyUntil(System.currentTimeMillis() + _unhealthyMillis);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops (or resumes) placing new data objects under the root.
+   */
+  public void setDrained(Path path, boolean drained) throws IOException {
+    for (DataRoot root : _roots) {
+      if (root.getPath()
+              .equals(path)) {
+        root.setDrained(drained);
+        return;
+      }
+    }
+    throw new IOException("Unknown data root " + path);
+  }
+
+  public static class DataRoot {
+
+    private final Path _path;
+    private final int _weight;
+    private volatile boolean _drained;
+    private volatile long _unhealthyUntil;
+
+    public DataRoot(Path path, int weight, boolean drained) {
+      _path = path;
+      _weight = weight;
+      _drained = drained;
+    }
+
+    public Path getPath() {
+      return _path;
+    }
+
+    public int getWeight() {
+      return _weight;
+    }
+
+    public boolean isDrained() {
+      return _drained;
+    }
+
+    void setDrained(boolean drained) {
+      _drained = drained;
+    }
+
+    public boolean isHealthy() {
+      return isHealthy(System.currentTimeMillis());
+    }
+
+    boolean isHealthy(long now) {
+      return now >= _unhealthyUntil;
+    }
+
+    void setUnhealthyUntil(long unhealthyUntil) {
+      _unhealthyUntil = unhealthyUntil;
+    }
+
+    @Override
+    public String toString() {
+      return _path + "=" + _weight + (_drained ? " (drained)" : "") + (isHealthy() ? "" : " (unhealthy)");
+    }
+
+  }
+
+}
@@ -0,0 +1,57 @@
+package hadoop.fs.metadata;
+
+import org.apache.hadoop.fs.Path;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+/**
+ * A contiguous piece of the data of a file, added by append or concat. The
+ * data is either a whole data object, a range of a pack object or inline
+ * content, like the first segment described by the data entry itself.
+ */
+@Value
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+@AllArgsConstructor
+@Builder(toBuilder = true)
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DataSegment {
+
+  String dataPathUri;
+
+  Long packOffset;
+
+  byte[] content;
+
+  long length;
+
+  @JsonIgnore
+  public Path getDataPath() {
+    return new Path(dataPathUri);
+  }
+
+  @JsonIgnore
+  public boolean isPacked() {
+    return packOffset != null;
+  }
+
+  @JsonIgnore
+  public boolean isInline() {
+    return content != null;
+  }
+
+  @JsonIgnore
+  public boolean isReclaimable() {
+    return !isPacked() && !isInline();
+  }
+
+}
@@ -0,0 +1,39 @@
+package hadoop.fs.metadata;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+/**
+ * Totals of everything below a meta directory, the directory itself is not
+ * counted.
+ */
+@Value
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+@AllArgsConstructor
+@Builder(toBuilder = true)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DirectoryAggregate {
+
+  public static final DirectoryAggregate EMPTY = new DirectoryAggregate(0, 0, 0);
+
+  long fileCount;
+
+  long directoryCount;
+
+  long length;
+
+  public DirectoryAggregate plus(DirectoryAggregate aggregate) {
+    return new DirectoryAggregate(fileCount + aggregate.fileCount, directoryCount + aggregate.directoryCount,
+        length + aggregate.length);
+  }
+
+  public DirectoryAggregate negate() {
+    return new DirectoryAggregate(-fileCount, -directoryCount, -length);
+  }
+
+}
@@ -0,0 +1,109 @@
+package hadoop.fs.metadata;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hadoop.fs.metadata.DirectoryAggregates.Tracking;
+
+/**
+ * Recomputes the directory aggregates of a tree bottom up from the listings
+ * of the filesystem and records every aggregate that is missing or has
+ * drifted. Changes made during the walk are tracked, so the tree does not
+ * have to be idle for its aggregates to be reconciled.
+ */
+public class DirectoryAggregateVerifier {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryAggregateVerifier.class);
+
+  private final MetaDataFileSystem _fileSystem;
+  private final DirectoryAggregates _aggregates;
+
+  public DirectoryAggregateVerifier(MetaDataFileSystem fileSystem, DirectoryAggregates aggregates) {
+    _fileSystem = fileSystem;
+    _aggregates = aggregates;
+  }
+
+  /**
+   * Verifies the tree below the given directory and returns the number of
+   * aggregates that had to be reconciled.
+   */
+  public long verify(Path path) throws IOException {
+    long start = System.currentTimeMillis();
+    AtomicLong reconciled = new AtomicLong();
+    Path qualifiedPath = _fileSystem.makeQualified(path);
+    Path metaDir = _fileSystem.getMetaEntry(qualifiedPath)
+                              .getMetaPath();
+    Tracking tracking = _aggregates.startTracking(metaDir);
+    DirectoryAggregate aggregate;
+    try {
+      aggregate = verifyDirectory(qualifiedPath, tracking, reconciled);
+    } finally {
+      _aggregates.stopTracking(tracking);
+    }
+    LOGGER.info("Verified aggregates below {} {} reconciled {} in {} ms", path, aggregate, reconciled,
+        System.currentTimeMillis() - start);
+    return reconciled.get();
+  }
+
+  /**
+   * Returns the aggregate of the directory at the start of its tracking, null
+   * if an unknown delta was applied below it. The subdirectories are tracked
+   * from the listing of the directory, their aggregates at that point plus the
+   * files of the listing minus the deltas tracked until the listing give the
+   * aggregate at the start of the tracking. Recording it adds the deltas
+   * tracked until then.
+   */
+  private DirectoryAggregate verifyDirectory(Path path, Tracking tracking, AtomicLong reconciled) throws IOException {
+    FileStatus[] listing = _fileSystem.listStatus(path);
+    DirectoryAggregate seen = tracking.getDelta();
+    Map<FileStatus, Tracking> subdirectories = new LinkedHashMap<>();
+    try {
+      DirectoryAggregate aggregate = DirectoryAggregate.EMPTY;
+      for (FileStatus fileStatus : listing) {
+        if (fileStatus.isDirectory()) {
+          Path subdirectory = _fileSystem.getMetaEntry(fileStatus.getPath())
+                                         .getMetaPath();
+          subdirectories.put(fileStatus, _aggregates.startTracking(subdirectory));
+        } else {
+          aggregate = aggregate.plus(new DirectoryAggregate(1, 0, fileStatus.getLen()));
+        }
+      }
+      for (Entry<FileStatus, Tracking> entry : subdirectories.entrySet()) {
+        DirectoryAggregate subdirectoryAggregate = verifyDirectory(entry.getKey()
+                                                                        .getPath(),
+            entry.getValue(), reconciled);
+        _aggregates.stopTracking(entry.getValue());
+        if (aggregate != null && subdirectoryAggregate != null) {
+          aggregate = aggregate.plus(subdirectoryAggregate)
+                               .plus(new DirectoryAggregate(0, 1, 0));
+        } else {
+          aggregate = null;
+        }
+      }
+      if (aggregate == null || seen == null) {
+        return null;
+      }
+      aggregate = aggregate.plus(seen.negate());
+      Path metaDir = tracking.getMetaDir();
+      FileSystem metaFs = metaDir.getFileSystem(_fileSystem.getConf());
+      if (_aggregates.reconcile(metaFs, metaDir, aggregate, tracking)) {
+        reconciled.incrementAndGet();
+      }
+      return aggregate;
+    } finally {
+      for (Tracking subdirectoryTracking : subdirectories.values()) {
+        _aggregates.stopTracking(subdirectoryTracking);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,372 @@
+package hadoop.fs.metadata;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Value;
+
+/**
+ * Keeps a {@link DirectoryAggregate} in an xattr of every meta directory.
+ * Changes are applied as deltas to all aggregated ancestors of the changed
+ * path. Deltas are collected in memory per directory and written by one
+ * thread at a time per directory, deltas that arrive while a directory is
+ * being written are coalesced into its next write. A directory without an
+ * aggregate is unknown and is left alone until the verifier (or a content
+ * summary walk) records one, a change whose delta is unknown drops the
+ * aggregates of all ancestors.
+ *
+ * Walks that record aggregates track the deltas applied below the walked
+ * directory while they run, and record the walked aggregate plus those deltas.
+ *
+ * The read, add and write of an update is only atomic within this JVM, the
+ * meta filesystem offers no compare and swap on xattrs. Aggregates are only
+ * exact while a single process (gateway) writes the meta tree, updates by
+ * several processes can be lost until the next verification.
+ */
+public class DirectoryAggregates {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryAggregates.class);
+
+  public static final String AGGREGATE_XATTR_NAME = "user.metadata.aggregate";
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final Path _metaRoot;
+  private final ConcurrentMap<Path, Slot> _slots = new ConcurrentHashMap<>();
+
+  public DirectoryAggregates(Path metaRoot) {
+    _metaRoot = metaRoot;
+  }
+
+  /**
+   * Returns the aggregate of the meta directory, null if it is unknown or the
+   * meta filesystem does not support xattrs.
+   */
+  public DirectoryAggregate get(FileSystem metaFs, Path metaDir) throws IOException {
+    Map<String, byte[]> xattrs;
+    try {
+      xattrs = metaFs.getXAttrs(metaDir);
+    } catch (UnsupportedOperationException | FileNotFoundException e) {
+      return null;
+    }
+    if (xattrs == null) {
+      return null;
+    }
+    byte[] value = xattrs.get(AGGREGATE_XATTR_NAME);
+    if (value == null) {
+      return null;
+    }
+    return OBJECT_MAPPER.readValue(value, DirectoryAggregate.class);
+  }
+
+  /**
+   * Records the aggregate of a directory that was just created, deltas applied
+   * below it in the meantime are added.
+   */
+  public void put(FileSystem metaFs, Path metaDir, DirectoryAggregate aggregate) throws IOException {
+    Slot slot = acquire(metaDir);
+    try {
+      Pending pending = slot.lock();
+      try {
+        if (!pending.isDrop()) {
+          write(metaFs, metaDir, aggregate.plus(pending.getDelta()));
+        }
+      } finally {
+        slot.unlock();
+      }
+      flush(metaFs, slot);
+    } finally {
+      release(slot);
+    }
+  }
+
+  /**
+   * Starts tracking the deltas applied below the meta directory, the tracking
+   * has to be stopped with {@link #stopTracking(Tracking)}.
+   */
+  public Tracking startTracking(Path metaDir) {
+    Slot slot = acquire(metaDir);
+    Tracking tracking = new Tracking(slot);
+    slot.addTracking(tracking);
+    return tracking;
+  }
+
+  public void stopTracking(Tracking tracking) {
+    if (tracking._slot.removeTracking(tracking)) {
+      release(tracking._slot);
+    }
+  }
+
+  /**
+   * Records the aggregate of a walk plus the deltas tracked since it started,
+   * the walked aggregate is the one of the directory at the start of the
+   * tracking. Returns true if the recorded aggregate was missing or had
+   * drifted, nothing is recorded if an unknown delta was applied below the
+   * directory.
+   */
+  public boolean reconcile(FileSystem metaFs, Path metaDir, DirectoryAggregate walked, Tracking tracking)
+      throws IOException {
+    Slot slot = tracking._slot;
+    DirectoryAggregate delta;
+    Pending pending;
+    synchronized (slot) {
+      pending = slot.lock();
+      delta = tracking.getDelta();
+    }
+    try {
+      if (delta == null) {
+        writePending(metaFs, metaDir, pending);
+        return false;
+      }
+      DirectoryAggregate verified = walked.plus(delta);
+      DirectoryAggregate current = get(metaFs, metaDir);
+      DirectoryAggregate expected = current == null || pending.isDrop() ? null : current.plus(pending.getDelta());
+      if (verified.equals(expected)) {
+        if (!pending.isEmpty()) {
+          write(metaFs, metaDir, verified);
+        }
+        return false;
+      }
+      if (expected != null) {
+        LOGGER.warn("Aggregate of {} drifted, recorded {} verified {}", metaDir, expected, verified);
+      }
+      write(metaFs, metaDir, verified);
+      return true;
+    } finally {
+      slot.unlock();
+      flush(metaFs, slot);
+    }
+  }
+
+  /**
+   * Applies the delta of a change to the given meta path to every ancestor
+   * directory up to the meta root, a null delta drops their aggregates.
+   */
+  public void apply(FileSystem metaFs, Path metaPath, DirectoryAggregate delta) throws IOException {
+    int rootDepth = _metaRoot.depth();
+    IOException exception = null;
+    for (Path dir = metaPath.getParent(); dir != null && dir.depth() >= rootDepth; dir = dir.getParent()) {
+      Slot slot = acquire(dir);
+      try {
+        slot.add(delta);
+        flush(metaFs, slot);
+      } catch (IOException e) {
+        if (exception == null) {
+          exception = e;
+        }
+      } finally {
+        release(slot);
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  /**
+   * Writes the collected deltas of the directory unless another thread is
+   * writing it, that thread picks up the deltas once its write is done.
+   */
+  private void flush(FileSystem metaFs, Slot slot) throws IOException {
+    while (true) {
+      Pending pending = slot.tryLock();
+      if (pending == null) {
+        return;
+      }
+      try {
+        writePending(metaFs, slot._metaDir, pending);
+      } finally {
+        slot.unlock();
+      }
+    }
+  }
+
+  private void writePending(FileSystem metaFs, Path metaDir, Pending pending) throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    DirectoryAggregate current = get(metaFs, metaDir);
+    if (current == null) {
+      return;
+    }
+    if (pending.isDrop()) {
+      metaFs.removeXAttr(metaDir, AGGREGATE_XATTR_NAME);
+    } else {
+      write(metaFs, metaDir, current.plus(pending.getDelta()));
+    }
+  }
+
+  private void write(FileSystem metaFs, Path metaDir, DirectoryAggregate aggregate) throws IOException {
+    try {
+      metaFs.setXAttr(metaDir, AGGREGATE_XATTR_NAME, OBJECT_MAPPER.writeValueAsBytes(aggregate));
+    } catch (UnsupportedOperationException e) {
+      LOGGER.debug("Meta filesystem {} does not support xattrs", metaFs.getUri());
+    }
+  }
+
+  private Slot acquire(Path metaDir) {
+    while (true) {
+      Slot slot = _slots.computeIfAbsent(metaDir, Slot::new);
+      synchronized (slot) {
+        if (!slot._removed) {
+          slot._users++;
+          return slot;
+        }
+      }
+    }
+  }
+
+  private void release(Slot slot) {
+    synchronized (slot) {
+      slot._users--;
+      if (slot.isIdle()) {
+        slot._removed = true;
+        _slots.remove(slot._metaDir, slot);
+      }
+    }
+  }
+
+  /**
+   * Deltas tracked below a directory since the tracking started.
+   */
+  public static class Tracking {
+
+    private final Slot _slot;
+    private DirectoryAggregate _delta = DirectoryAggregate.EMPTY;
+
+    private Tracking(Slot slot) {
+      _slot = slot;
+    }
+
+    public Path getMetaDir() {
+      return _slot._metaDir;
+    }
+
+    /**
+     * Returns the sum of the tracked deltas, null if one of them was unknown.
+     */
+    public DirectoryAggregate getDelta() {
+      synchronized (_slot) {
+        return _delta;
+      }
+    }
+
+  }
+
+  @Value
+  private static class Pending {
+
+    static final Pending EMPTY = new Pending(DirectoryAggregate.EMPTY, false);
+
+    DirectoryAggregate delta;
+
+    boolean drop;
+
+    Pending plus(DirectoryAggregate other) {
+      if (drop || other == null) {
+        return new Pending(DirectoryAggregate.EMPTY, true);
+      }
+      return new Pending(delta.plus(other), false);
+    }
+
+    boolean isEmpty() {
+      return !drop && delta.equals(DirectoryAggregate.EMPTY);
+    }
+
+  }
+
+  /**
+   * The in memory state of a directory, exists while deltas are pending, the
+   * directory is written or tracked.
+   */
+  private static class Slot {
+
+    private final Path _metaDir;
+    private final List<Tracking> _trackings = new ArrayList<>();
+    private Pending _pending = Pending.EMPTY;
+    private boolean _writing;
+    private boolean _removed;
+    private int _users;
+
+    Slot(Path metaDir) {
+      _metaDir = metaDir;
+    }
+
+    synchronized void add(DirectoryAggregate delta) {
+      _pending = _pending.plus(delta);
+      for (Tracking tracking : _trackings) {
+        tracking._delta = tracking._delta == null || delta == null ? null : tracking._delta.plus(delta);
+      }
+    }
+
+    synchronized void addTracking(Tracking tracking) {
+      _trackings.add(tracking);
+    }
+
+    /**
+     * Returns true if the tracking was still registered.
+     */
+    synchronized boolean removeTracking(Tracking tracking) {
+      return _trackings.remove(tracking);
+    }
+
+    /**
+     * Takes the pending deltas for writing, null if there are none or the
+     * directory is being written by another thread.
+     */
+    synchronized Pending tryLock() {
+      if (_writing || _pending.isEmpty()) {
+        return null;
+      }
+      return take();
+    }
+
+    /**
+     * Waits until no other thread writes the directory and takes the pending
+     * deltas for writing.
+     */
+    synchronized Pending lock() throws InterruptedIOException {
+      while (_writing) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread()
+                .interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to write aggregate of " + _metaDir);
+        }
+      }
+      return take();
+    }
+
+    synchronized void unlock() {
+      _writing = false;
+      notifyAll();
+    }
+
+    boolean isIdle() {
+      return _users == 0 && _trackings.isEmpty() && _pending.isEmpty() && !_writing;
+    }
+
+    private Pending take() {
+      Pending pending = _pending;
+      _pending = Pending.EMPTY;
+      _writing = true;
+      return pending;
+    }
+
+  }
+
+}
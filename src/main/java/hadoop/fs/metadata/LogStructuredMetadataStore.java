@@ -0,0 +1,716 @@
+package hadoop.fs.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.ParentNotDirectoryException;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Value;
+
+/**
+ * Embedded single node metadata store. Records are kept in a sorted key value
+ * log: changes are appended to a write ahead log and applied to an in memory
+ * table, which is flushed to an immutable sorted segment file once it is full.
+ * Segments are merged into one when there are too many of them. Keys are the
+ * parent path and the name separated by a zero byte, so the children of a
+ * directory are a contiguous, name ordered range of keys.
+ *
+ * The live segments are listed in a segments file that is replaced
+ * atomically, segment files not listed there are leftovers of an interrupted
+ * flush or merge and are removed on open. The write ahead log is synced on
+ * every change unless .sync is set to false.
+ */
+public class LogStructuredMetadataStore implements MetadataStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LogStructuredMetadataStore.class);
+
+  private static final String DIR_SUFFIX = ".dir";
+  private static final String MEMTABLE_ENTRIES_SUFFIX = ".memtable.entries";
+  private static final int MEMTABLE_ENTRIES_DEFAULT = 100000;
+  private static final String MAX_SEGMENTS_SUFFIX = ".max.segments";
+  private static final int MAX_SEGMENTS_DEFAULT = 8;
+  private static final String SYNC_SUFFIX = ".sync";
+  private static final boolean SYNC_DEFAULT = true;
+
+  private static final String WAL_NAME = "wal.log";
+  private static final String SEGMENTS_NAME = "segments";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte[] TOMBSTONE = new byte[0];
+  private static final char SEPARATOR = '\0';
+  private static final String ROOT = "/";
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+  private final List<Segment> _segments = new ArrayList<>();
+  private NavigableMap<String, byte[]> _memtable = new TreeMap<>();
+  private File _dir;
+  private int _memtableEntries;
+  private int _maxSegments;
+  private boolean _sync;
+  private FileOutputStream _walOutput;
+  private long _nextSegmentId;
+
+  @Override
+  public void initialize(Configuration conf, String configPrefix) throws IOException {
+    String dir = conf.get(configPrefix + DIR_SUFFIX);
+    if (dir == null) {
+      throw new IOException("Property missing " + configPrefix + DIR_SUFFIX);
+    }
+    open(new File(dir), conf.getInt(configPrefix + MEMTABLE_ENTRIES_SUFFIX, MEMTABLE_ENTRIES_DEFAULT),
+        conf.getInt(configPrefix + MAX_SEGMENTS_SUFFIX, MAX_SEGMENTS_DEFAULT),
+        conf.getBoolean(configPrefix + SYNC_SUFFIX, SYNC_DEFAULT));
+  }
+
+  void open(File dir, int memtableEntries, int maxSegments, boolean sync) throws IOException {
+    _dir = dir;
+    _memtableEntries = Math.max(1, memtableEntries);
+    _maxSegments = Math.max(1, maxSegments);
+    _sync = sync;
+    if (!_dir.isDirectory() && !_dir.mkdirs()) {
+      throw new IOException("Could not create " + _dir);
+    }
+    File segmentsFile = new File(_dir, SEGMENTS_NAME);
+    List<String> live = segmentsFile.exists() ? Files.readAllLines(segmentsFile.toPath(), StandardCharsets.UTF_8)
+        : null;
+    File[] files = _dir.listFiles();
+    List<Long> ids = new ArrayList<>();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(TMP_SUFFIX)) {
+        Files.delete(file.toPath());
+      } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        _nextSegmentId = Math.max(_nextSegmentId, id + 1);
+        if (live == null || live.contains(name)) {
+          ids.add(id);
+        } else {
+          LOGGER.info("Removing segment {} of {} left by an interrupted flush or merge", name, _dir);
+          Files.delete(file.toPath());
+        }
+      }
+    }
+    ids.sort(null);
+    for (Long id : ids) {
+      _segments.add(new Segment(getSegmentFile(id)));
+    }
+    if (live == null) {
+      writeSegments();
+    }
+    File wal = new File(_dir, WAL_NAME);
+    if (wal.exists()) {
+      long validLength = replay(wal);
+      if (wal.length() > validLength) {
+        truncate(wal, validLength);
+      }
+    }
+    _walOutput = new FileOutputStream(wal, true);
+    if (!_memtable.isEmpty()) {
+      flush();
+    }
+    LOGGER.info("Opened metadata store {} with {} segments", _dir, _segments.size());
+  }
+
+  @Override
+  public MetadataRecord get(String path) throws IOException {
+    _lock.readLock()
+         .lock();
+    try {
+      return getRecord(normalize(path));
+    } finally {
+      _lock.readLock()
+           .unlock();
+    }
+  }
+
+  @Override
+  public List<MetadataRecord> list(String path) throws IOException {
+    path = normalize(path);
+    _lock.readLock()
+         .lock();
+    try {
+      MetadataRecord record = getRecord(path);
+      if (record == null) {
+        throw new FileNotFoundException(path);
+      }
+      if (!record.isDirectory()) {
+        throw new IOException("Path " + path + " is not a directory.");
+      }
+      return getChildren(path);
+    } finally {
+      _lock.readLock()
+           .unlock();
+    }
+  }
+
+  @Override
+  public void put(MetadataRecord record, boolean overwrite) throws IOException {
+    String path = normalize(record.getPath());
+    if (path.equals(ROOT)) {
+      throw new IOException("Root cannot be replaced.");
+    }
+    _lock.writeLock()
+         .lock();
+    try {
+      checkParent(path);
+      MetadataRecord existing = getRecord(path);
+      if (existing != null) {
+        if (!overwrite || existing.isDirectory()) {
+          throw new FileAlreadyExistsException("Path " + path + " already exists.");
+        }
+        if (record.isDirectory()) {
+          throw new IOException("Path " + path + " is a file.");
+        }
+      }
+      write(Arrays.asList(new Mutation(getKey(path), toBytes(record))));
+    } finally {
+      _lock.writeLock()
+           .unlock();
+    }
+  }
+
+  @Override
+  public MetadataRecord update(String path, UnaryOperator<MetadataRecord> update) throws IOException {
+    path = normalize(path);
+    _lock.writeLock()
+         .lock();
+    try {
+      MetadataRecord existing = getRecord(path);
+      if (existing == null) {
+        throw new FileNotFoundException(path);
+      }
+      MetadataRecord updated = update.apply(existing)
+                                     .toBuilder()
+                                     .path(path)
+                                     .directory(existing.isDirectory())
+                                     .build();
+      write(Arrays.asList(new Mutation(getKey(path), toBytes(updated))));
+      return updated;
+    } finally {
+      _lock.writeLock()
+           .unlock();
+    }
+  }
+
+  @Override
+  public boolean delete(String path, boolean recursive) throws IOException {
+    path = normalize(path);
+    _lock.writeLock()
+         .lock();
+    try {
+      MetadataRecord record = getRecord(path);
+      if (record == null) {
+        return false;
+      }
+      List<Mutation> mutations = new ArrayList<>();
+      if (record.isDirectory()) {
+        List<MetadataRecord> children = getChildren(path);
+        if (!children.isEmpty() && !recursive) {
+          throw new IOException("Directory " + path + " is not empty.");
+        }
+        for (MetadataRecord child : children) {
+          collectSubtree(child, mutations, null);
+        }
+      }
+      if (path.equals(ROOT)) {
+        // the root itself always exists
+        write(mutations);
+        return true;
+      }
+      mutations.add(new Mutation(getKey(path), TOMBSTONE));
+      write(mutations);
+      return true;
+    } finally {
+      _lock.writeLock()
+           .unlock();
+    }
+  }
+
+  @Override
+  public boolean rename(String src, String dst) throws IOException {
+    src = normalize(src);
+    dst = normalize(dst);
+    if (src.equals(ROOT) || dst.equals(src) || dst.startsWith(src + "/")) {
+      return false;
+    }
+    _lock.writeLock()
+         .lock();
+    try {
+      MetadataRecord record = getRecord(src);
+      if (record == null || getRecord(dst) != null) {
+        return false;
+      }
+      MetadataRecord dstParent = getRecord(getParent(dst));
+      if (dstParent == null || !dstParent.isDirectory()) {
+        return false;
+      }
+      List<Mutation> mutations = new ArrayList<>();
+      collectSubtree(record, mutations, new String[] { src, dst });
+      write(mutations);
+      return true;
+    } finally {
+      _lock.writeLock()
+           .unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    _lock.writeLock()
+         .lock();
+    try {
+      if (_walOutput != null) {
+        _walOutput.close();
+        _walOutput = null;
+      }
+      for (Segment segment : _segments) {
+        segment.close();
+      }
+      _segments.clear();
+    } finally {
+      _lock.writeLock()
+           .unlock();
+    }
+  }
+
+  /**
+   * Number of segment files, visible for testing.
+   */
+  int getSegmentCount() {
+    return _segments.size();
+  }
+
+  /**
+   * Adds a tombstone for every record of the subtree or, when moving, a
+   * tombstone for the old and a copy under the new path.
+   */
+  private void collectSubtree(MetadataRecord record, List<Mutation> mutations, String[] move) throws IOException {
+    String path = record.getPath();
+    if (record.isDirectory()) {
+      for (MetadataRecord child : getChildren(path)) {
+        collectSubtree(child, mutations, move);
+      }
+    }
+    mutations.add(new Mutation(getKey(path), TOMBSTONE));
+    if (move != null) {
+      String newPath = move[1] + path.substring(move[0].length());
+      mutations.add(new Mutation(getKey(newPath), toBytes(record)));
+    }
+  }
+
+  private void checkParent(String path) throws IOException {
+    String parent = getParent(path);
+    MetadataRecord parentRecord = getRecord(parent);
+    if (parentRecord == null) {
+      throw new FileNotFoundException("Parent " + parent + " does not exist.");
+    }
+    if (!parentRecord.isDirectory()) {
+      throw new ParentNotDirectoryException("Parent " + parent + " is not a directory.");
+    }
+  }
+
+  private MetadataRecord getRecord(String path) throws IOException {
+    byte[] value = lookup(getKey(path));
+    if (value == null || value == TOMBSTONE) {
+      if (path.equals(ROOT)) {
+        return MetadataRecord.builder()
+                             .path(ROOT)
+                             .directory(true)
+                             .permission(FsPermission.getDirDefault()
+                                                     .toShort())
+                             .build();
+      }
+      return null;
+    }
+    return toRecord(path, value);
+  }
+
+  private byte[] lookup(String key) throws IOException {
+    byte[] value = _memtable.get(key);
+    if (value != null) {
+      return value;
+    }
+    for (int i = _segments.size() - 1; i >= 0; i--) {
+      value = _segments.get(i)
+                       .get(key);
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  private List<MetadataRecord> getChildren(String path) throws IOException {
+    String from = getChildPrefix(path);
+    String to = from.substring(0, from.length() - 1) + (char) (SEPARATOR + 1);
+    NavigableMap<String, byte[]> merged = new TreeMap<>();
+    for (Segment segment : _segments) {
+      segment.scan(from, to, merged);
+    }
+    merged.putAll(_memtable.subMap(from, true, to, false));
+    List<MetadataRecord> children = new ArrayList<>();
+    for (Map.Entry<String, byte[]> entry : merged.entrySet()) {
+      if (entry.getValue() != TOMBSTONE) {
+        children.add(toRecord(getPath(entry.getKey()), entry.getValue()));
+      }
+    }
+    return children;
+  }
+
+  private void write(List<Mutation> mutations) throws IOException {
+    if (mutations.isEmpty()) {
+      return;
+    }
+    if (_walOutput == null) {
+      throw new IOException("Metadata store " + _dir + " is closed.");
+    }
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(batch);
+    output.writeInt(mutations.size());
+    for (Mutation mutation : mutations) {
+      writeEntry(output, mutation.getKey(), mutation.getValue());
+    }
+    output.flush();
+    byte[] bytes = batch.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    DataOutputStream wal = new DataOutputStream(new BufferedOutputStream(_walOutput, bytes.length + 12));
+    wal.writeInt(bytes.length);
+    wal.write(bytes);
+    wal.writeLong(crc.getValue());
+    wal.flush();
+    if (_sync) {
+      _walOutput.getFD()
+                .sync();
+    }
+    for (Mutation mutation : mutations) {
+      _memtable.put(mutation.getKey(), mutation.getValue());
+    }
+    if (_memtable.size() >= _memtableEntries) {
+      flush();
+    }
+  }
+
+  /**
+   * Replays every complete batch of the write ahead log, a torn batch at the
+   * end is dropped. Returns the length of the complete batches.
+   */
+  private long replay(File wal) throws IOException {
+    long validLength = 0;
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(wal)))) {
+      while (true) {
+        byte[] bytes;
+        long checksum;
+        try {
+          bytes = new byte[input.readInt()];
+          input.readFully(bytes);
+          checksum = input.readLong();
+        } catch (EOFException e) {
+          return validLength;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (crc.getValue() != checksum) {
+          LOGGER.warn("Dropping corrupt tail of {}", wal);
+          return validLength;
+        }
+        DataInputStream batch = new DataInputStream(new ByteArrayInputStream(bytes));
+        int count = batch.readInt();
+        for (int i = 0; i < count; i++) {
+          String key = readKey(batch);
+          _memtable.put(key, readValue(batch));
+        }
+        validLength += 4 + bytes.length + 8;
+      }
+    } catch (NegativeArraySizeException | OutOfMemoryError e) {
+      LOGGER.warn("Dropping corrupt tail of {}", wal);
+    }
+    return validLength;
+  }
+
+  /**
+   * Cuts a torn batch off the write ahead log, batches appended after it
+   * would never be replayed.
+   */
+  private void truncate(File wal, long validLength) throws IOException {
+    LOGGER.warn("Truncating {} from {} to {} bytes", wal, wal.length(), validLength);
+    try (RandomAccessFile file = new RandomAccessFile(wal, "rw")) {
+      file.setLength(validLength);
+      file.getFD()
+          .sync();
+    }
+  }
+
+  /**
+   * Writes the memtable to a new segment and starts a new write ahead log.
+   */
+  private void flush() throws IOException {
+    File segmentFile = getSegmentFile(_nextSegmentId++);
+    writeSegment(segmentFile, _memtable);
+    _segments.add(new Segment(segmentFile));
+    writeSegments();
+    _memtable = new TreeMap<>();
+    _walOutput.close();
+    _walOutput = new FileOutputStream(new File(_dir, WAL_NAME), false);
+    if (_segments.size() > _maxSegments) {
+      compact();
+    }
+  }
+
+  /**
+   * Merges all segments into one, tombstones are dropped since no older
+   * segment remains once the segments file lists only the merged segment.
+   */
+  private void compact() throws IOException {
+    NavigableMap<String, byte[]> merged = new TreeMap<>();
+    for (Segment segment : _segments) {
+      segment.scan("", null, merged);
+    }
+    merged.values()
+          .removeIf(value -> value == TOMBSTONE);
+    File segmentFile = getSegmentFile(_nextSegmentId++);
+    writeSegment(segmentFile, merged);
+    List<Segment> old = new ArrayList<>(_segments);
+    _segments.clear();
+    _segments.add(new Segment(segmentFile));
+    writeSegments();
+    for (Segment segment : old) {
+      segment.close();
+      Files.delete(segment.getFile()
+                          .toPath());
+    }
+    LOGGER.info("Compacted {} segments of {} into {} with {} records", old.size(), _dir, segmentFile.getName(),
+        merged.size());
+  }
+
+  private void writeSegment(File segmentFile, NavigableMap<String, byte[]> entries) throws IOException {
+    File tmp = new File(_dir, segmentFile.getName() + TMP_SUFFIX);
+    try (FileOutputStream fileOutput = new FileOutputStream(tmp)) {
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        writeEntry(output, entry.getKey(), entry.getValue());
+      }
+      output.flush();
+      fileOutput.getFD()
+                .sync();
+    }
+    Files.move(tmp.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Atomically replaces the list of live segments.
+   */
+  private void writeSegments() throws IOException {
+    StringBuilder names = new StringBuilder();
+    for (Segment segment : _segments) {
+      names.append(segment.getFile()
+                          .getName())
+           .append('\n');
+    }
+    File tmp = new File(_dir, SEGMENTS_NAME + TMP_SUFFIX);
+    try (FileOutputStream fileOutput = new FileOutputStream(tmp)) {
+      fileOutput.write(names.toString()
+                            .getBytes(StandardCharsets.UTF_8));
+      fileOutput.getFD()
+                .sync();
+    }
+    Files.move(tmp.toPath(), new File(_dir, SEGMENTS_NAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private File getSegmentFile(long id) {
+    return new File(_dir, SEGMENT_PREFIX + String.format("%020d", id) + SEGMENT_SUFFIX);
+  }
+
+  private static void writeEntry(DataOutputStream output, String key, byte[] value) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(keyBytes.length);
+    output.write(keyBytes);
+    if (value == TOMBSTONE) {
+      output.writeByte(DELETE);
+    } else {
+      output.writeByte(PUT);
+      output.writeInt(value.length);
+      output.write(value);
+    }
+  }
+
+  private static String readKey(DataInputStream input) throws IOException {
+    byte[] keyBytes = new byte[input.readInt()];
+    input.readFully(keyBytes);
+    return new String(keyBytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readValue(DataInputStream input) throws IOException {
+    if (input.readByte() == DELETE) {
+      return TOMBSTONE;
+    }
+    byte[] value = new byte[input.readInt()];
+    input.readFully(value);
+    return value;
+  }
+
+  private static String normalize(String path) {
+    if (path == null || path.isEmpty()) {
+      return ROOT;
+    }
+    if (path.length() > 1 && path.endsWith("/")) {
+      return path.substring(0, path.length() - 1);
+    }
+    return path;
+  }
+
+  private static String getParent(String path) {
+    int index = path.lastIndexOf('/');
+    return index == 0 ? ROOT : path.substring(0, index);
+  }
+
+  /**
+   * /a/b => "/a\0b", /a => "\0a", / => ""
+   */
+  private static String getKey(String path) {
+    if (path.equals(ROOT)) {
+      return "";
+    }
+    int index = path.lastIndexOf('/');
+    return path.substring(0, index) + SEPARATOR + path.substring(index + 1);
+  }
+
+  private static String getChildPrefix(String path) {
+    return (path.equals(ROOT) ? "" : path) + SEPARATOR;
+  }
+
+  private static String getPath(String key) {
+    int index = key.lastIndexOf(SEPARATOR);
+    return key.substring(0, index) + '/' + key.substring(index + 1);
+  }
+
+  private static byte[] toBytes(MetadataRecord record) throws IOException {
+    return OBJECT_MAPPER.writeValueAsBytes(record);
+  }
+
+  private static MetadataRecord toRecord(String path, byte[] value) throws IOException {
+    return OBJECT_MAPPER.readValue(value, MetadataRecord.class)
+                        .toBuilder()
+                        .path(path)
+                        .build();
+  }
+
+  @Value
+  private static class Mutation {
+
+    String key;
+
+    byte[] value;
+
+  }
+
+  /**
+   * An immutable sorted segment file, the keys and value offsets are held in
+   * memory and values are read from disk.
+   */
+  private static class Segment {
+
+    private final File _file;
+    private final RandomAccessFile _input;
+    private final NavigableMap<String, Long> _index = new TreeMap<>();
+
+    Segment(File file) throws IOException {
+      _file = file;
+      try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        long position = 0;
+        while (true) {
+          int keyLength;
+          try {
+            keyLength = input.readInt();
+          } catch (EOFException e) {
+            break;
+          }
+          byte[] keyBytes = new byte[keyLength];
+          input.readFully(keyBytes);
+          position += 4 + keyLength;
+          _index.put(new String(keyBytes, StandardCharsets.UTF_8), position);
+          if (input.readByte() == PUT) {
+            int valueLength = input.readInt();
+            input.skipBytes(valueLength);
+            position += 1 + 4 + valueLength;
+          } else {
+            position += 1;
+          }
+        }
+      }
+      _input = new RandomAccessFile(file, "r");
+    }
+
+    File getFile() {
+      return _file;
+    }
+
+    byte[] get(String key) throws IOException {
+      Long position = _index.get(key);
+      if (position == null) {
+        return null;
+      }
+      return read(position);
+    }
+
+    /**
+     * Adds the entries in [from, to) to the given map, a null upper bound
+     * scans to the end.
+     */
+    void scan(String from, String to, NavigableMap<String, byte[]> result) throws IOException {
+      NavigableMap<String, Long> range = to == null ? _index.tailMap(from, true) : _index.subMap(from, true, to, false);
+      for (Map.Entry<String, Long> entry : range.entrySet()) {
+        result.put(entry.getKey(), read(entry.getValue()));
+      }
+    }
+
+    private synchronized byte[] read(long position) throws IOException {
+      _input.seek(position);
+      if (_input.readByte() == DELETE) {
+        return TOMBSTONE;
+      }
+      byte[] value = new byte[_input.readInt()];
+      _input.readFully(value);
+      return value;
+    }
+
+    void close() throws IOException {
+      _input.close();
+    }
+
+  }
+
+}
@@ -0,0 +1,40 @@
+package hadoop.fs.metadata;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+/**
+ * A data entry folded into a directory manifest together with the attributes
+ * of the meta file it replaced.
+ */
+@Value
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+@AllArgsConstructor
+@Builder(toBuilder = true)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ManifestEntry {
+
+  String name;
+
+  DataEntry dataEntry;
+
+  long modificationTime;
+
+  long accessTime;
+
+  short permission;
+
+  String owner;
+
+  String group;
+
+  short replication;
+
+  long blockSize;
+
+}
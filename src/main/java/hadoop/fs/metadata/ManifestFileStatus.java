@@ -0,0 +1,30 @@
+package hadoop.fs.metadata;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * Meta file status of an entry that only exists in its directory manifest.
+ */
+public class ManifestFileStatus extends FileStatus {
+
+  private final ManifestEntry _manifestEntry;
+
+  public ManifestFileStatus(Path metaDir, ManifestEntry manifestEntry) {
+    super(0, false, manifestEntry.getReplication(), manifestEntry.getBlockSize(),
+        manifestEntry.getModificationTime(), manifestEntry.getAccessTime(),
+        new FsPermission(manifestEntry.getPermission()), manifestEntry.getOwner(), manifestEntry.getGroup(),
+        new Path(metaDir, manifestEntry.getName()));
+    _manifestEntry = manifestEntry;
+  }
+
+  public ManifestEntry getManifestEntry() {
+    return _manifestEntry;
+  }
+
+  public DataEntry getDataEntry() {
+    return _manifestEntry.getDataEntry();
+  }
+
+}
@@ -0,0 +1,259 @@
+package hadoop.fs.metadata;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import lombok.Value;
+
+/**
+ * Reads the manifest of a meta directory and its log of recent changes. The
+ * manifest holds the data entries folded from the meta files of the directory,
+ * the log is kept in an xattr of the directory and lists the manifest entries
+ * that have been removed since the manifest was written. A meta file always
+ * takes precedence over a manifest entry of the same name. Parsed manifests are
+ * cached by directory as long as the manifest file has not changed. The log
+ * is limited to the bytes an xattr can hold.
+ *
+ * Folding a directory and recording removals in the log are read, modify and
+ * write sequences that are only serialized within this JVM. Manifests can
+ * only be enabled together with the single writer setting, a fold by one
+ * gateway could delete a meta file another gateway just overwrote and
+ * concurrent removals could lose log entries.
+ */
+public class Manifests {
+
+  public static final String MANIFEST_NAME = ".metadata.manifest";
+  public static final String LOG_XATTR_NAME = "user.metadata.manifest.log";
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final TypeReference<Set<String>> LOG_TYPE = new TypeReference<Set<String>>() {
+  };
+  private static final int LOCK_STRIPES = 256;
+
+  private final Cache<Path, CachedManifest> _cache;
+  private final Object[] _locks = new Object[LOCK_STRIPES];
+  private final int _logMaxEntries;
+  private final int _logMaxBytes;
+
+  /**
+   * The state of the log after a removal.
+   */
+  public enum LogState {
+    /** The removal was recorded. */
+    RECORDED,
+    /** The removal was recorded and the log nears its maximum size. */
+    NEARLY_FULL,
+    /** The removal was not recorded, the log would not fit into its xattr. */
+    FULL
+  }
+
+  public Manifests(long cacheSize, int logMaxEntries, int logMaxBytes) {
+    _logMaxEntries = logMaxEntries;
+    _logMaxBytes = logMaxBytes;
+    _cache = Caffeine.newBuilder()
+                     .maximumSize(cacheSize)
+                     .build();
+    for (int i = 0; i < _locks.length; i++) {
+      _locks[i] = new Object();
+    }
+  }
+
+  public static boolean isManifest(Path metaPath) {
+    return metaPath.getName()
+                   .equals(MANIFEST_NAME);
+  }
+
+  public static Path getManifestPath(Path metaDir) {
+    return new Path(metaDir, MANIFEST_NAME);
+  }
+
+  /**
+   * Returns the manifest entry for the meta path as a meta file status, null if
+   * the directory has no manifest or the entry is missing or removed.
+   */
+  public ManifestFileStatus lookup(FileSystem metaFs, Path metaPath) throws IOException {
+    Path metaDir = metaPath.getParent();
+    if (metaDir == null) {
+      return null;
+    }
+    FileStatus manifestStatus;
+    try {
+      manifestStatus = metaFs.getFileStatus(getManifestPath(metaDir));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    ManifestEntry manifestEntry = getIndex(metaFs, manifestStatus).get(metaPath.getName());
+    if (manifestEntry == null || getLog(metaFs, metaDir).contains(manifestEntry.getName())) {
+      return null;
+    }
+    return new ManifestFileStatus(metaDir, manifestEntry);
+  }
+
+  /**
+   * Returns the entries of the manifest that have not been removed.
+   */
+  public List<ManifestFileStatus> getLiveEntries(FileSystem metaFs, FileStatus manifestStatus) throws IOException {
+    Path metaDir = manifestStatus.getPath()
+                                 .getParent();
+    Set<String> log = getLog(metaFs, metaDir);
+    List<ManifestFileStatus> result = new ArrayList<>();
+    for (ManifestEntry manifestEntry : getIndex(metaFs, manifestStatus).values()) {
+      if (!log.contains(manifestEntry.getName())) {
+        result.add(new ManifestFileStatus(metaDir, manifestEntry));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns every entry of the manifest, including removed ones, by name.
+   */
+  public Map<String, ManifestEntry> getIndex(FileSystem metaFs, FileStatus manifestStatus) throws IOException {
+    Path manifestPath = manifestStatus.getPath();
+    CachedManifest cachedManifest = _cache.getIfPresent(manifestPath);
+    if (cachedManifest != null && cachedManifest.getModificationTime() == manifestStatus.getModificationTime()
+        && cachedManifest.getLength() == manifestStatus.getLen()) {
+      return cachedManifest.getIndex();
+    }
+    Manifest manifest;
+    try (FSDataInputStream input = metaFs.open(manifestPath)) {
+      manifest = OBJECT_MAPPER.readValue(input, Manifest.class);
+    }
+    Map<String, ManifestEntry> index = new TreeMap<>();
+    if (manifest.getEntries() != null) {
+      for (ManifestEntry manifestEntry : manifest.getEntries()) {
+        index.put(manifestEntry.getName(), manifestEntry);
+      }
+    }
+    index = Collections.unmodifiableMap(index);
+    _cache.put(manifestPath,
+        new CachedManifest(manifestStatus.getModificationTime(), manifestStatus.getLen(), index));
+    return index;
+  }
+
+  public void invalidate(Path metaDir) {
+    _cache.invalidate(getManifestPath(metaDir));
+  }
+
+  /**
+   * Returns the names removed from the manifest since it was written.
+   */
+  public Set<String> getLog(FileSystem metaFs, Path metaDir) throws IOException {
+    Map<String, byte[]> xattrs;
+    try {
+      xattrs = metaFs.getXAttrs(metaDir);
+    } catch (UnsupportedOperationException e) {
+      return Collections.emptySet();
+    }
+    byte[] value = xattrs == null ? null : xattrs.get(LOG_XATTR_NAME);
+    if (value == null) {
+      return Collections.emptySet();
+    }
+    return OBJECT_MAPPER.readValue(value, LOG_TYPE);
+  }
+
+  /**
+   * Records the removal of a manifest entry. The log nears its maximum size
+   * once it holds the maximum number of entries or three quarters of the
+   * maximum bytes.
+   */
+  public LogState remove(FileSystem metaFs, Path metaPath) throws IOException {
+    Path metaDir = metaPath.getParent();
+    synchronized (getLock(metaDir)) {
+      Set<String> log = new TreeSet<>(getLog(metaFs, metaDir));
+      log.add(metaPath.getName());
+      byte[] value = OBJECT_MAPPER.writeValueAsBytes(log);
+      if (value.length > _logMaxBytes) {
+        return LogState.FULL;
+      }
+      writeLog(metaFs, metaDir, value);
+      if (log.size() >= _logMaxEntries || value.length >= _logMaxBytes / 4 * 3) {
+        return LogState.NEARLY_FULL;
+      }
+      return LogState.RECORDED;
+    }
+  }
+
+  /**
+   * Drops the given names from the log once a new manifest without them has
+   * been written.
+   */
+  public void truncateLog(FileSystem metaFs, Path metaDir, Collection<String> names) throws IOException {
+    synchronized (getLock(metaDir)) {
+      Set<String> log = new TreeSet<>(getLog(metaFs, metaDir));
+      if (!log.removeAll(names)) {
+        return;
+      }
+      if (log.isEmpty()) {
+        metaFs.removeXAttr(metaDir, LOG_XATTR_NAME);
+      } else {
+        writeLog(metaFs, metaDir, OBJECT_MAPPER.writeValueAsBytes(log));
+      }
+    }
+  }
+
+  public Object getLock(Path metaDir) {
+    return _locks[(metaDir.toUri()
+                          .getPath()
+                          .hashCode()
+        & Integer.MAX_VALUE) % _locks.length];
+  }
+
+  public static ManifestEntry toManifestEntry(FileStatus metaFileStatus, DataEntry dataEntry) {
+    return ManifestEntry.builder()
+                        .name(metaFileStatus.getPath()
+                                            .getName())
+                        .dataEntry(dataEntry)
+                        .modificationTime(metaFileStatus.getModificationTime())
+                        .accessTime(metaFileStatus.getAccessTime())
+                        .permission(metaFileStatus.getPermission()
+                                                  .toShort())
+                        .owner(metaFileStatus.getOwner())
+                        .group(metaFileStatus.getGroup())
+                        .replication(metaFileStatus.getReplication())
+                        .blockSize(metaFileStatus.getBlockSize())
+                        .build();
+  }
+
+  public static byte[] toBytes(Manifest manifest) throws IOException {
+    return OBJECT_MAPPER.writeValueAsBytes(manifest);
+  }
+
+  private void writeLog(FileSystem metaFs, Path metaDir, byte[] value) throws IOException {
+    try {
+      metaFs.setXAttr(metaDir, LOG_XATTR_NAME, value);
+    } catch (UnsupportedOperationException e) {
+      throw new IOException("Meta filesystem " + metaFs.getUri() + " does not support xattrs needed by manifests.");
+    }
+  }
+
+  @Value
+  private static class CachedManifest {
+
+    long modificationTime;
+
+    long length;
+
+    Map<String, ManifestEntry> index;
+
+  }
+
+}
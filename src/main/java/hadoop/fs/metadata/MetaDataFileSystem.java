@@ -3,32 +3,74 @@ package hadoop.fs.metadata;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Options.ChecksumOpt;
+import org.apache.hadoop.fs.Options.Rename;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.XAttrSetFlag;
 import org.apache.hadoop.fs.permission.AclEntry;
 import org.apache.hadoop.fs.permission.AclStatus;
+import org.apache.hadoop.fs.permission.FsAction;
 import org.apache.hadoop.fs.permission.FsCreateModes;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +79,14 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
-
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hadoop.fs.metadata.DataRoots.DataRoot;
+import hadoop.fs.metadata.DirectoryAggregates.Tracking;
+import hadoop.fs.metadata.Manifests.LogState;
+import hadoop.fs.metadata.PackWriter.PackLocation;
+import hadoop.fs.metadata.PackWriter.PackTarget;
 import hadoop.fs.util.TimerCloseable;
 import hadoop.fs.util.TimerUtil;
 
@@ -50,6 +99,89 @@ public class MetaDataFileSystem extends FileSystem {
   private static final String USER_HOME_DIR_PREFIX = "/user/";
   private static final String DATA_PATH_SUFFIX = ".data.path";
   private static final String META_PATH_SUFFIX = ".meta.path";
+  private static final String DATA_ROOTS_SUFFIX = ".data.roots";
+  private static final String DATA_ROOTS_DRAINED_SUFFIX = ".data.roots.drained";
+  private static final String DATA_ROOTS_UNHEALTHY_SECONDS_SUFFIX = ".data.roots.unhealthy.seconds";
+  private static final long DATA_ROOTS_UNHEALTHY_SECONDS_DEFAULT = 60;
+  private static final String DATA_PATH_PREFIX_LENGTH_SUFFIX = ".data.path.prefix.length";
+  private static final int DATA_PATH_PREFIX_LENGTH_MAX = 8;
+  private static final String LIST_THREADS_SUFFIX = ".list.threads";
+  private static final int LIST_THREADS_DEFAULT = 32;
+  private static final String CHECKSUM_ALGORITHM_SUFFIX = ".data.entry.checksum.algorithm";
+  private static final String DATA_ENTRY_CACHE_SIZE_SUFFIX = ".data.entry.cache.size";
+  private static final long DATA_ENTRY_CACHE_SIZE_DEFAULT = 100000;
+  private static final String DATA_ENTRY_CACHE_EXPIRE_SECONDS_SUFFIX = ".data.entry.cache.expire.seconds";
+  private static final long DATA_ENTRY_CACHE_EXPIRE_SECONDS_DEFAULT = 60;
+  private static final String DATA_ENTRY_LAYOUT_SUFFIX = ".data.entry.layout";
+  private static final String DATA_ENTRY_LAYOUT_FILE = "file";
+  private static final String DATA_ENTRY_LAYOUT_XATTR = "xattr";
+  private static final String DATA_ENTRY_XATTR_NAME = "user.metadata.data.entry";
+  private static final String DELETE_THREADS_SUFFIX = ".delete.threads";
+  private static final int DELETE_THREADS_DEFAULT = 32;
+  private static final String RECLAIM_THREADS_SUFFIX = ".reclaim.threads";
+  private static final int RECLAIM_THREADS_DEFAULT = 8;
+  private static final String RECLAIM_BATCH_SIZE_SUFFIX = ".reclaim.batch.size";
+  private static final int RECLAIM_BATCH_SIZE_DEFAULT = 1000;
+  private static final String ORPHAN_GRACE_PERIOD_MINUTES_SUFFIX = ".orphan.grace.period.minutes";
+  private static final long ORPHAN_GRACE_PERIOD_MINUTES_DEFAULT = TimeUnit.DAYS.toMinutes(1);
+  private static final String ORPHAN_EXPECTED_ENTRIES_SUFFIX = ".orphan.expected.entries";
+  private static final int ORPHAN_EXPECTED_ENTRIES_DEFAULT = 10000000;
+  private static final String ORPHAN_COLLECT_INTERVAL_MINUTES_SUFFIX = ".orphan.collect.interval.minutes";
+  private static final String AGGREGATES_ENABLED_SUFFIX = ".aggregates.enabled";
+  private static final String AGGREGATES_VERIFY_INTERVAL_MINUTES_SUFFIX = ".aggregates.verify.interval.minutes";
+  private static final String MANIFEST_ENABLED_SUFFIX = ".manifest.enabled";
+  private static final String MANIFEST_SINGLE_WRITER_SUFFIX = ".manifest.single.writer";
+  private static final String MANIFEST_CACHE_SIZE_SUFFIX = ".manifest.cache.size";
+  private static final long MANIFEST_CACHE_SIZE_DEFAULT = 1000;
+  private static final String MANIFEST_MIN_ENTRIES_SUFFIX = ".manifest.min.entries";
+  private static final int MANIFEST_MIN_ENTRIES_DEFAULT = 100;
+  private static final String MANIFEST_MIN_AGE_MINUTES_SUFFIX = ".manifest.min.age.minutes";
+  private static final long MANIFEST_MIN_AGE_MINUTES_DEFAULT = 10;
+  private static final String MANIFEST_LOG_MAX_ENTRIES_SUFFIX = ".manifest.log.max.entries";
+  private static final int MANIFEST_LOG_MAX_ENTRIES_DEFAULT = 1000;
+  private static final String MANIFEST_COMPACT_INTERVAL_MINUTES_SUFFIX = ".manifest.compact.interval.minutes";
+  private static final String LIST_BATCH_SIZE_SUFFIX = ".list.batch.size";
+  private static final int LIST_BATCH_SIZE_DEFAULT = 1000;
+  private static final String COPY_THREADS_SUFFIX = ".copy.threads";
+  private static final int COPY_THREADS_DEFAULT = 32;
+  private static final String REFERENCES_PATH_SUFFIX = ".references.path";
+  private static final String SNAPSHOT_PATH_SUFFIX = ".snapshot.path";
+  private static final String SNAPSHOT_DIR_NAME = ".snapshot";
+  private static final String WALK_THREADS_SUFFIX = ".walk.threads";
+  private static final int WALK_THREADS_DEFAULT = 32;
+  private static final String WALK_QUEUE_SIZE_SUFFIX = ".walk.queue.size";
+  private static final int WALK_QUEUE_SIZE_DEFAULT = 10000;
+  private static final String WALK_TIMEOUT_SECONDS_SUFFIX = ".walk.timeout.seconds";
+  private static final long WALK_TIMEOUT_SECONDS_DEFAULT = TimeUnit.MINUTES.toSeconds(10);
+  private static final LocatedFileStatus END_OF_WALK = new LocatedFileStatus();
+  private static final long WALK_POLL_INTERVAL_MS = 100;
+  private static final String INLINE_THRESHOLD_SUFFIX = ".inline.threshold";
+  private static final String MAX_XATTR_SIZE_KEY = "dfs.namenode.fs-limits.max-xattr-size";
+  private static final int MAX_XATTR_SIZE_DEFAULT = 16384;
+  /**
+   * Room left in the xattr for the name and the JSON fields of the entry
+   * besides the content (data path, ids, checksum).
+   */
+  private static final int XATTR_ENTRY_OVERHEAD = 2048;
+  private static final String PACK_THRESHOLD_SUFFIX = ".pack.threshold";
+  private static final String PACK_SIZE_SUFFIX = ".pack.size";
+  private static final long PACK_SIZE_DEFAULT = 64L * 1024 * 1024;
+  private static final String PACK_LINGER_MS_SUFFIX = ".pack.linger.ms";
+  private static final long PACK_LINGER_MS_DEFAULT = 50;
+  private static final String PACK_THREADS_SUFFIX = ".pack.threads";
+  private static final int PACK_THREADS_DEFAULT = 4;
+  private static final String PACK_COMPACT_MIN_LIVE_RATIO_SUFFIX = ".pack.compact.min.live.ratio";
+  private static final float PACK_COMPACT_MIN_LIVE_RATIO_DEFAULT = 0.5f;
+  private static final String PACK_COMPACT_MIN_AGE_MINUTES_SUFFIX = ".pack.compact.min.age.minutes";
+  private static final long PACK_COMPACT_MIN_AGE_MINUTES_DEFAULT = 60;
+  private static final String PACK_COMPACT_RECLAIM_DELAY_MINUTES_SUFFIX = ".pack.compact.reclaim.delay.minutes";
+  private static final long PACK_COMPACT_RECLAIM_DELAY_MINUTES_DEFAULT = 10;
+  private static final String PACK_COMPACT_INTERVAL_MINUTES_SUFFIX = ".pack.compact.interval.minutes";
+  private static final String PACK_PREFIX = "pack-";
+  private static final String SEGMENTS_COMPACT_THRESHOLD_SUFFIX = ".segments.compact.threshold";
+  private static final int SEGMENTS_COMPACT_THRESHOLD_DEFAULT = 16;
+  private static final String TEMP_DATA_ENTRY_PREFIX = ".metadata.tmp.";
+  private static final long DATA_ENTRY_INITIAL_DELAY = 10;
   private static final Joiner PATH_JOINER = Joiner.on('/');
   private static final Splitter PATH_SPLITTER = Splitter.on('/');
 
@@ -58,7 +190,8 @@ public class MetaDataFileSystem extends FileSystem {
   private URI _fsUri;
   private Path _workingDir;
   private Path _metaPath;
-  private Path _dataPath;
+  private DataRoots _dataRoots;
+  private int _dataPathPrefixLength;
   private String _authority;
   private String _rootMetaPath;
   private List<String> _rootMetaPathParts;
@@ -68,6 +201,34 @@ public class MetaDataFileSystem extends FileSystem {
   private String _configPrefix;
   private int _dataEntryRetries = 10;
   private long _dataEntryDelay = 250;
+  private ExecutorService _listExecutor;
+  private int _listBatchSize;
+  private String _checksumAlgorithm;
+  private DataEntryCache _dataEntryCache;
+  private boolean _xattrLayout;
+  private ForkJoinPool _deletePool;
+  private ForkJoinPool _walkPool;
+  private ForkJoinPool _copyPool;
+  private DataReferences _dataReferences;
+  private Path _snapshotPath;
+  private int _walkQueueSize;
+  private long _walkTimeout;
+  private DataReclaimer _dataReclaimer;
+  private ScheduledExecutorService _orphanCollectorExecutor;
+  private DirectoryAggregates _aggregates;
+  private ScheduledExecutorService _aggregateVerifierExecutor;
+  private Manifests _manifests;
+  private boolean _manifestsEnabled;
+  private int _manifestMinEntries;
+  private long _manifestMinAge;
+  private ScheduledExecutorService _manifestCompactorExecutor;
+  private int _inlineThreshold;
+  private int _packThreshold;
+  private PackWriter _packWriter;
+  private ScheduledExecutorService _packCompactorExecutor;
+  private int _segmentsCompactThreshold;
+  private ExecutorService _segmentCompactorExecutor;
+  private ReferenceTracker _referenceTracker;
 
   @Override
   public void initialize(URI uri, Configuration conf) throws IOException {
@@ -80,7 +241,13 @@ public class MetaDataFileSystem extends FileSystem {
     _configPrefix = _fsUri.getScheme() + "." + _fsUri.getAuthority();
     _authority = uri.getAuthority();
     _metaPath = getQualifiedPathFromConf(conf, getConfigPrefix() + META_PATH_SUFFIX);
-    _dataPath = getQualifiedPathFromConf(conf, getConfigPrefix() + DATA_PATH_SUFFIX);
+    _referenceTracker = ReferenceTracker.get(_metaPath);
+    _dataRoots = createDataRoots(conf);
+    _dataPathPrefixLength = conf.getInt(getConfigPrefix() + DATA_PATH_PREFIX_LENGTH_SUFFIX, 0);
+    if (_dataPathPrefixLength < 0 || _dataPathPrefixLength > DATA_PATH_PREFIX_LENGTH_MAX) {
+      throw new IOException("Property " + getConfigPrefix() + DATA_PATH_PREFIX_LENGTH_SUFFIX + " has to be between 0 and "
+          + DATA_PATH_PREFIX_LENGTH_MAX);
+    }
     _rootMetaPath = _metaPath.toUri()
                              .getPath();
     _rootMetaPathParts = split(_rootMetaPath);
@@ -94,629 +261,3286 @@ public class MetaDataFileSystem extends FileSystem {
       String keytab = conf.get(getConfigPrefix() + DATA_KEYTAB_SUFFIX);
       _dataUgi = UserGroupInformation.loginUserFromKeytabAndReturnUGI(principal, keytab);
     }
-  }
 
-  private String getConfigPrefix() {
-    return _configPrefix;
-  }
+    _checksumAlgorithm = conf.get(getConfigPrefix() + CHECKSUM_ALGORITHM_SUFFIX);
+    if (_checksumAlgorithm != null) {
+      createMessageDigest();
+    }
 
-  /**
-   * Gets data entry for given meta path;
-   */
-  protected DataEntry getDataEntry(Path metaPath, boolean waitForDataEntry) throws IOException {
-    FileSystem metaFs = metaPath.getFileSystem(getConf());
-    if (waitForDataEntry) {
-      if (!waitForDataEntryToBeReadable(metaFs, metaPath)) {
-        return null;
-      }
+    String layout = conf.get(getConfigPrefix() + DATA_ENTRY_LAYOUT_SUFFIX, DATA_ENTRY_LAYOUT_FILE);
+    if (layout.equals(DATA_ENTRY_LAYOUT_XATTR)) {
+      _xattrLayout = true;
+    } else if (!layout.equals(DATA_ENTRY_LAYOUT_FILE)) {
+      throw new IOException("Unknown data entry layout " + layout + " for " + getConfigPrefix()
+          + DATA_ENTRY_LAYOUT_SUFFIX);
     }
 
-    for (int i = 0; i < _dataEntryRetries; i++) {
-      try (FSDataInputStream input = metaFs.open(metaPath)) {
-        return OBJECT_MAPPER.readValue(input, DataEntry.class);
-      } catch (IOException e) {
-        if (!isCannotObtainBlockLength(e)) {
-          throw e;
-        }
-      }
-      try {
-        Thread.sleep(_dataEntryDelay);
-      } catch (InterruptedException e) {
-        throw new IOException(e);
-      }
+    long dataEntryCacheSize = conf.getLong(getConfigPrefix() + DATA_ENTRY_CACHE_SIZE_SUFFIX,
+        DATA_ENTRY_CACHE_SIZE_DEFAULT);
+    if (dataEntryCacheSize > 0) {
+      _dataEntryCache = new DataEntryCache(dataEntryCacheSize, conf.getLong(
+          getConfigPrefix() + DATA_ENTRY_CACHE_EXPIRE_SECONDS_SUFFIX, DATA_ENTRY_CACHE_EXPIRE_SECONDS_DEFAULT));
     }
-    return null;
-  }
 
-  private boolean isCannotObtainBlockLength(IOException e) {
-    String message = e.getMessage();
-    if (message == null) {
-      return false;
+    _listBatchSize = Math.max(1, conf.getInt(getConfigPrefix() + LIST_BATCH_SIZE_SUFFIX, LIST_BATCH_SIZE_DEFAULT));
+    int listThreads = conf.getInt(getConfigPrefix() + LIST_THREADS_SUFFIX, LIST_THREADS_DEFAULT);
+    if (listThreads > 1) {
+      _listExecutor = Executors.newFixedThreadPool(listThreads, new ThreadFactoryBuilder().setDaemon(true)
+                                                                                         .setNameFormat(
+                                                                                             "metadata-list-%d")
+                                                                                         .build());
     }
-    return message.toLowerCase()
-                  .contains("Cannot obtain block length".toLowerCase());
-  }
 
-  private boolean waitForDataEntryToBeReadable(FileSystem metaFs, Path metaPath) throws IOException {
-    FileStatus fileStatus = metaFs.getFileStatus(metaPath);
-    for (int i = 0; i < _dataEntryRetries; i++) {
-      if (fileStatus.getLen() > 0) {
-        return true;
-      }
-      try {
-        Thread.sleep(_dataEntryDelay);
-      } catch (InterruptedException e) {
-        throw new IOException(e);
+    _deletePool = new ForkJoinPool(conf.getInt(getConfigPrefix() + DELETE_THREADS_SUFFIX, DELETE_THREADS_DEFAULT));
+    _walkPool = new ForkJoinPool(conf.getInt(getConfigPrefix() + WALK_THREADS_SUFFIX, WALK_THREADS_DEFAULT));
+    _copyPool = new ForkJoinPool(conf.getInt(getConfigPrefix() + COPY_THREADS_SUFFIX, COPY_THREADS_DEFAULT));
+    if (conf.get(getConfigPrefix() + REFERENCES_PATH_SUFFIX) != null) {
+      Path referencesPath = getQualifiedPathFromConf(conf, getConfigPrefix() + REFERENCES_PATH_SUFFIX);
+      checkNoOverlap(REFERENCES_PATH_SUFFIX, referencesPath);
+      _dataReferences = new DataReferences(conf, referencesPath);
+    }
+    if (conf.get(getConfigPrefix() + SNAPSHOT_PATH_SUFFIX) != null) {
+      _snapshotPath = getQualifiedPathFromConf(conf, getConfigPrefix() + SNAPSHOT_PATH_SUFFIX);
+      checkNoOverlap(SNAPSHOT_PATH_SUFFIX, _snapshotPath);
+    }
+    _walkQueueSize = Math.max(1, conf.getInt(getConfigPrefix() + WALK_QUEUE_SIZE_SUFFIX, WALK_QUEUE_SIZE_DEFAULT));
+    _walkTimeout = TimeUnit.SECONDS.toMillis(
+        conf.getLong(getConfigPrefix() + WALK_TIMEOUT_SECONDS_SUFFIX, WALK_TIMEOUT_SECONDS_DEFAULT));
+    _dataReclaimer = new DataReclaimer(conf,
+        conf.getInt(getConfigPrefix() + RECLAIM_THREADS_SUFFIX, RECLAIM_THREADS_DEFAULT),
+        conf.getInt(getConfigPrefix() + RECLAIM_BATCH_SIZE_SUFFIX, RECLAIM_BATCH_SIZE_DEFAULT));
+
+    long orphanCollectInterval = conf.getLong(getConfigPrefix() + ORPHAN_COLLECT_INTERVAL_MINUTES_SUFFIX, 0);
+    if (orphanCollectInterval > 0) {
+      UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+      _orphanCollectorExecutor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true)
+                                    .setNameFormat("metadata-orphan-collector-%d")
+                                    .build());
+      _orphanCollectorExecutor.scheduleWithFixedDelay(() -> collectOrphanedData(ugi), orphanCollectInterval,
+          orphanCollectInterval, TimeUnit.MINUTES);
+    }
+
+    _manifests = new Manifests(
+        conf.getLong(getConfigPrefix() + MANIFEST_CACHE_SIZE_SUFFIX, MANIFEST_CACHE_SIZE_DEFAULT),
+        conf.getInt(getConfigPrefix() + MANIFEST_LOG_MAX_ENTRIES_SUFFIX, MANIFEST_LOG_MAX_ENTRIES_DEFAULT),
+        getMaxManifestLogBytes(conf));
+    _manifestsEnabled = conf.getBoolean(getConfigPrefix() + MANIFEST_ENABLED_SUFFIX, false);
+    if (_manifestsEnabled && !conf.getBoolean(getConfigPrefix() + MANIFEST_SINGLE_WRITER_SUFFIX, false)) {
+      throw new IOException("Property " + getConfigPrefix() + MANIFEST_SINGLE_WRITER_SUFFIX
+          + " has to be true to enable manifests, folds and manifest logs are only safe with a single process "
+          + "writing the meta tree");
+    }
+    _manifestMinEntries = conf.getInt(getConfigPrefix() + MANIFEST_MIN_ENTRIES_SUFFIX, MANIFEST_MIN_ENTRIES_DEFAULT);
+    _manifestMinAge = TimeUnit.MINUTES.toMillis(
+        conf.getLong(getConfigPrefix() + MANIFEST_MIN_AGE_MINUTES_SUFFIX, MANIFEST_MIN_AGE_MINUTES_DEFAULT));
+    long compactInterval = conf.getLong(getConfigPrefix() + MANIFEST_COMPACT_INTERVAL_MINUTES_SUFFIX, 0);
+    if (_manifestsEnabled && compactInterval > 0) {
+      UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+      _manifestCompactorExecutor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true)
+                                    .setNameFormat("metadata-manifest-compactor-%d")
+                                    .build());
+      _manifestCompactorExecutor.scheduleWithFixedDelay(() -> compactManifests(ugi), compactInterval,
+          compactInterval, TimeUnit.MINUTES);
+    }
+
+    _inlineThreshold = conf.getInt(getConfigPrefix() + INLINE_THRESHOLD_SUFFIX, 0);
+    int maxInlineThreshold = getMaxXAttrInlineThreshold(conf);
+    if (_xattrLayout && _inlineThreshold > maxInlineThreshold) {
+      throw new IOException("Property " + getConfigPrefix() + INLINE_THRESHOLD_SUFFIX + " has to be at most "
+          + maxInlineThreshold + " with the " + DATA_ENTRY_LAYOUT_XATTR + " layout, entries are limited by "
+          + MAX_XATTR_SIZE_KEY);
+    }
+    _packThreshold = conf.getInt(getConfigPrefix() + PACK_THRESHOLD_SUFFIX, 0);
+    if (_packThreshold > 0) {
+      _packWriter = createPackWriter(conf);
+      long packCompactInterval = conf.getLong(getConfigPrefix() + PACK_COMPACT_INTERVAL_MINUTES_SUFFIX, 0);
+      if (packCompactInterval > 0) {
+        UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+        _packCompactorExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true)
+                                      .setNameFormat("metadata-pack-compactor-%d")
+                                      .build());
+        _packCompactorExecutor.scheduleWithFixedDelay(() -> compactPacks(ugi), packCompactInterval,
+            packCompactInterval, TimeUnit.MINUTES);
       }
-      fileStatus = metaFs.getFileStatus(metaPath);
     }
-    if (fileStatus.getLen() > 0) {
-      return true;
+
+    _segmentsCompactThreshold = conf.getInt(getConfigPrefix() + SEGMENTS_COMPACT_THRESHOLD_SUFFIX,
+        SEGMENTS_COMPACT_THRESHOLD_DEFAULT);
+    if (_segmentsCompactThreshold > 0) {
+      _segmentCompactorExecutor = Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setDaemon(true)
+                                    .setNameFormat("metadata-segment-compactor-%d")
+                                    .build());
     }
-    return false;
-  }
 
-  /**
-   * hdfs://something/meta/dir1/test1 => remote://auth/dir1/test1
-   */
-  protected Path getVirtualPath(Path metaPath) throws IOException {
-    metaPath = makeQualifiedPath(metaPath);
-    String fullMetaPath = metaPath.toUri()
-                                  .getPath();
-    String path = getVirtualPathStr(_rootMetaPath, fullMetaPath);
-    return new Path(getScheme(), _authority, path);
+    if (conf.getBoolean(getConfigPrefix() + AGGREGATES_ENABLED_SUFFIX, false)) {
+      _aggregates = new DirectoryAggregates(_metaPath);
+      long verifyInterval = conf.getLong(getConfigPrefix() + AGGREGATES_VERIFY_INTERVAL_MINUTES_SUFFIX, 0);
+      if (verifyInterval > 0) {
+        UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+        _aggregateVerifierExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true)
+                                      .setNameFormat("metadata-aggregate-verifier-%d")
+                                      .build());
+        _aggregateVerifierExecutor.scheduleWithFixedDelay(() -> verifyAggregates(ugi), verifyInterval,
+            verifyInterval, TimeUnit.MINUTES);
+      }
+    }
   }
 
   /**
-   * remote://auth/dir1/test1 => hdfs://something/meta/dir1/test1
+   * Paths this filesystem keeps its own files in must not overlap the meta
+   * path or a data root. Files under a data root would be reclaimed as orphaned
+   * data objects, files under the meta path would show up as files.
    */
-  protected MetaEntry getMetaEntry(Path virtualPath) throws IOException {
-    virtualPath = makeQualifiedPath(virtualPath);
-    URI virtualUri = virtualPath.toUri();
-    if (!virtualUri.getScheme()
-                   .equals(_fsUri.getScheme())) {
-      throw new IOException("Wrong scheme for path " + virtualPath + " should be scheme " + _fsUri.getScheme());
+  private void checkNoOverlap(String suffix, Path path) throws IOException {
+    if (isAncestor(_metaPath, path) || isAncestor(path, _metaPath)) {
+      throw new IOException("Property " + getConfigPrefix() + suffix + " " + path + " overlaps the meta path "
+          + _metaPath);
     }
-    if (!virtualUri.getAuthority()
-                   .equals(_fsUri.getAuthority())) {
-      throw new IOException(
-          "Wrong authority for path " + virtualPath + " should be authority " + _fsUri.getAuthority());
+    for (DataRoot dataRoot : _dataRoots.getRoots()) {
+      Path rootPath = dataRoot.getPath();
+      if (isAncestor(rootPath, path) || isAncestor(path, rootPath)) {
+        throw new IOException("Property " + getConfigPrefix() + suffix + " " + path + " overlaps the data root "
+            + rootPath);
+      }
     }
-    String fullVirtualPath = virtualUri.getPath();
-    List<String> fullVirtualPathParts = split(fullVirtualPath);
-    Builder<String> builder = ImmutableList.builder();
-    ImmutableList<String> list = builder.addAll(_rootMetaPathParts)
-                                        .addAll(fullVirtualPathParts.subList(1, fullVirtualPathParts.size()))
-                                        .build();
-    String path = PATH_JOINER.join(list);
-    Path metaPath = new Path(_metaPathScheme, _metaPathAuthority, path);
-    return MetaEntry.builder()
-                    .metaPath(metaPath)
-                    .build();
   }
 
-  @Override
-  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
-
-    LOGGER.info("open {} {}", f, bufferSize);
-    try (TimerCloseable time = TimerUtil.time(LOGGER, "open", f.toString())) {
-      MetaEntry metaEntry = getMetaEntry(f);
-      DataEntry dataEntry = getDataEntry(metaEntry.getMetaPath(), true);
-      if (dataEntry == null) {
-        throw new FileNotFoundException(f.toString());
-      }
-      Path dataPath = dataEntry.getDataPath();
-      FileSystem dataFs = dataPath.getFileSystem(getConf());
-      FileStatus fileStatus = dataFs.getFileStatus(dataPath);
-      if (fileStatus.getLen() == 0) {
-        return new FSDataInputStream(new ReadNothing());
-      }
-      return dataFs.open(dataPath);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
-      }
-      throw t;
-    }
+  /**
+   * Creates a collector for data objects that are no longer referenced by any
+   * data entry of this filesystem.
+   */
+  public OrphanDataCollector createOrphanDataCollector(boolean dryRun) {
+    long gracePeriod = TimeUnit.MINUTES.toMillis(getConf().getLong(
+        getConfigPrefix() + ORPHAN_GRACE_PERIOD_MINUTES_SUFFIX, ORPHAN_GRACE_PERIOD_MINUTES_DEFAULT));
+    int expectedEntries = getConf().getInt(getConfigPrefix() + ORPHAN_EXPECTED_ENTRIES_SUFFIX,
+        ORPHAN_EXPECTED_ENTRIES_DEFAULT);
+    return new OrphanDataCollector(this, gracePeriod, expectedEntries, dryRun);
   }
 
-  @Override
-  public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
-      short replication, long blockSize, Progressable progress) throws IOException {
-    try (TimerCloseable time = TimerUtil.time(LOGGER, "create", f.toString())) {
-      MetaEntry metaEntry = getMetaEntry(f);
-      Path metaPath = metaEntry.getMetaPath();
-      Path dataPath = createDataPath(metaPath);
-      storeDataPath(metaPath, dataPath, permission, overwrite);
-      return createDataOutputStream(dataPath, bufferSize, progress);
+  private void collectOrphanedData(UserGroupInformation ugi) {
+    try {
+      ugi.doAs((PrivilegedExceptionAction<Long>) () -> createOrphanDataCollector(false).collect());
     } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
-      }
-      throw t;
+      LOGGER.error("Orphaned data collection failed for " + _fsUri, t);
     }
   }
 
-  @Override
-  public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
-    throw new IOException("Not supported.");
+  /**
+   * Creates a compactor that rewrites pack objects whose live data has fallen
+   * below the configured ratio.
+   */
+  public PackCompactor createPackCompactor() throws IOException {
+    if (_packWriter == null) {
+      throw new IOException("Packing is not enabled for " + _fsUri);
+    }
+    float minLiveRatio = getConf().getFloat(getConfigPrefix() + PACK_COMPACT_MIN_LIVE_RATIO_SUFFIX,
+        PACK_COMPACT_MIN_LIVE_RATIO_DEFAULT);
+    long minAge = TimeUnit.MINUTES.toMillis(getConf().getLong(getConfigPrefix() + PACK_COMPACT_MIN_AGE_MINUTES_SUFFIX,
+        PACK_COMPACT_MIN_AGE_MINUTES_DEFAULT));
+    long reclaimDelay = TimeUnit.MINUTES.toMillis(getConf().getLong(
+        getConfigPrefix() + PACK_COMPACT_RECLAIM_DELAY_MINUTES_SUFFIX, PACK_COMPACT_RECLAIM_DELAY_MINUTES_DEFAULT));
+    return new PackCompactor(this, _packWriter, minLiveRatio, minAge, reclaimDelay);
   }
 
-  @Override
-  public boolean rename(Path src, Path dst) throws IOException {
+  private void compactPacks(UserGroupInformation ugi) {
     try {
-      MetaEntry metaSrcEntry = getMetaEntry(src);
-      Path metaSrcPath = metaSrcEntry.getMetaPath();
-      MetaEntry metaDstEntry = getMetaEntry(dst);
-      Path metaDstPath = metaDstEntry.getMetaPath();
+      ugi.doAs((PrivilegedExceptionAction<Long>) () -> createPackCompactor().compact());
+    } catch (Throwable t) {
+      LOGGER.error("Pack compaction failed for " + _fsUri, t);
+    }
+  }
 
-      FileSystem srcmetaFs = metaSrcPath.getFileSystem(getConf());
-      FileSystem dstmetaFs = metaDstPath.getFileSystem(getConf());
-      if (!srcmetaFs.getUri()
-                    .equals(dstmetaFs.getUri())) {
-        return false;
+  /**
+   * Packs are written by background threads as the data user, or the user
+   * that created this filesystem.
+   */
+  private PackWriter createPackWriter(Configuration conf) throws IOException {
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    int bufferSize = conf.getInt(IO_FILE_BUFFER_SIZE, 4096);
+    PackTarget target = new PackTarget() {
+
+      @Override
+      public Path createPackPath() throws IOException {
+        return placeDataPath(PACK_PREFIX + createDataName());
       }
-      return srcmetaFs.rename(metaSrcPath, metaDstPath);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+
+      @Override
+      public OutputStream createPackOutputStream(Path packPath) throws IOException {
+        try {
+          return ugi.doAs(
+              (PrivilegedExceptionAction<OutputStream>) () -> createDataOutputStream(packPath, bufferSize, null));
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
       }
-      throw t;
+    };
+    return new PackWriter(target, conf.getLong(getConfigPrefix() + PACK_SIZE_SUFFIX, PACK_SIZE_DEFAULT),
+        conf.getLong(getConfigPrefix() + PACK_LINGER_MS_SUFFIX, PACK_LINGER_MS_DEFAULT),
+        conf.getInt(getConfigPrefix() + PACK_THREADS_SUFFIX, PACK_THREADS_DEFAULT));
+  }
+
+  /**
+   * Creates a verifier that reconciles the directory aggregates with the
+   * actual contents of the tree.
+   */
+  public DirectoryAggregateVerifier createDirectoryAggregateVerifier() throws IOException {
+    if (_aggregates == null) {
+      throw new IOException("Directory aggregates are not enabled for " + _fsUri);
     }
+    return new DirectoryAggregateVerifier(this, _aggregates);
   }
 
-  @Override
-  public boolean delete(Path f, boolean recursive) throws IOException {
+  private void verifyAggregates(UserGroupInformation ugi) {
     try {
-      MetaEntry metaEntry = getMetaEntry(f);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      if (recursive) {
-        return deleteRecursive(metaFs.getFileStatus(metaPath));
-      } else {
-        return deleteFile(metaFs, metaPath);
-      }
+      ugi.doAs((PrivilegedExceptionAction<Long>) () -> createDirectoryAggregateVerifier().verify(new Path("/")));
     } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
-      }
-      throw t;
+      LOGGER.error("Aggregate verification failed for " + _fsUri, t);
     }
   }
 
-  @Override
-  public FileStatus[] listStatus(Path f) throws FileNotFoundException, IOException {
-    try (TimerCloseable time = TimerUtil.time(LOGGER, "listStatus", f.toString())) {
-      MetaEntry metaEntry = getMetaEntry(f);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      FileStatus[] listStatus = metaFs.listStatus(metaPath);
-      return fixFileStatusList(listStatus);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
-      }
-      throw t;
+  /**
+   * Folds the meta files of every directory below the given path that has at
+   * least the minimum number of meta files old enough into the directory
+   * manifest and returns the number of meta files folded. Paths without a
+   * scheme are qualified against this filesystem, not the default filesystem.
+   */
+  public long compactManifests(Path path) throws IOException {
+    if (!_manifestsEnabled) {
+      throw new IOException("Manifests are not enabled for " + _fsUri);
     }
+    Path metaDir = getMetaEntry(makeQualified(path)).getMetaPath();
+    return compactManifests(metaDir.getFileSystem(getConf()), metaDir);
   }
 
-  @Override
-  public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+  private void compactManifests(UserGroupInformation ugi) {
     try {
-      MetaEntry metaEntry = getMetaEntry(f);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      return metaFs.mkdirs(metaPath, permission);
+      ugi.doAs((PrivilegedExceptionAction<Long>) () -> compactManifests(new Path("/")));
     } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      LOGGER.error("Manifest compaction failed for " + _fsUri, t);
+    }
+  }
+
+  private long compactManifests(FileSystem metaFs, Path metaDir) throws IOException {
+    long folded = compactDirectory(metaFs, metaDir, false, null);
+    for (FileStatus status : metaFs.listStatus(metaDir)) {
+      if (status.isDirectory()) {
+        folded += compactManifests(metaFs, status.getPath());
       }
-      throw t;
     }
+    return folded;
   }
 
-  @Override
-  public FileStatus getFileStatus(Path f) throws IOException {
-    LOGGER.info("getFileStatus {}", f);
-    boolean logError = true;
-    try (TimerCloseable time = TimerUtil.time(LOGGER, "getFileStatus", f.toString())) {
-      MetaEntry metaEntry = getMetaEntry(f);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      FileStatus fileStatus;
-      try {
-        LOGGER.info("getFileStatus from metafs {}", metaPath);
-        fileStatus = metaFs.getFileStatus(metaPath);
-      } catch (FileNotFoundException e) {
-        LOGGER.info("getFileStatus FileNotFoundException {}", metaPath);
-        logError = false;
-        throw e;
+  /**
+   * Writes a new manifest from the current manifest, the removals in its log
+   * and the meta files of the directory, then drops the folded meta files
+   * unless they have changed in the meantime. Changes to data entries hold
+   * the same lock, only attribute changes can race with the fold. Meta files
+   * with ACLs or xattrs are not folded, the manifest cannot hold them, neither
+   * is the meta file with the given name to keep. Entries without a length are
+   * skipped, their output stream is still open.
+   */
+  private long compactDirectory(FileSystem metaFs, Path metaDir, boolean force, String keepName)
+      throws IOException {
+    synchronized (_manifests.getLock(metaDir)) {
+      Map<String, ManifestEntry> entries = new TreeMap<>();
+      FileStatus manifestStatus = getRawMetaFileStatus(metaFs, Manifests.getManifestPath(metaDir));
+      if (manifestStatus != null) {
+        entries.putAll(_manifests.getIndex(metaFs, manifestStatus));
       }
-      fileStatus = fixFileStatus(fileStatus);
-      if (fileStatus == null) {
-        logError = false;
-        throw new FileNotFoundException(f.toString());
+      Set<String> log = _manifests.getLog(metaFs, metaDir);
+      entries.keySet()
+             .removeAll(log);
+      long cutoff = System.currentTimeMillis() - _manifestMinAge;
+      List<FileStatus> folded = new ArrayList<>();
+      for (FileStatus status : metaFs.listStatus(metaDir)) {
+        Path path = status.getPath();
+        if (status.isDirectory() || isTempDataEntry(path) || Manifests.isManifest(path)
+            || status.getModificationTime() > cutoff || isKept(path, keepName)) {
+          continue;
+        }
+        if (status.getPermission()
+                  .getAclBit() || hasUserXAttrs(metaFs, path)) {
+          continue;
+        }
+        DataEntry dataEntry = getDataEntry(status);
+        if (dataEntry != null && dataEntry.getLength() != null) {
+          entries.put(path.getName(), Manifests.toManifestEntry(status, dataEntry));
+          folded.add(status);
+        }
       }
-      return fileStatus;
-    } catch (Throwable t) {
-      if (logError) {
-        if (LOGGER.isDebugEnabled()) {
-          LOGGER.error(t.getMessage(), t);
+      if (folded.isEmpty() && log.isEmpty()) {
+        return 0;
+      }
+      if (!force && log.isEmpty() && folded.size() < _manifestMinEntries) {
+        return 0;
+      }
+      writeManifest(metaFs, metaDir, Manifest.builder()
+                                             .entries(new ArrayList<>(entries.values()))
+                                             .build());
+      _manifests.truncateLog(metaFs, metaDir, log);
+      // a collection may have walked the meta files before the manifest
+      recordReferences(metaDir);
+      for (FileStatus status : folded) {
+        FileStatus current = getRawMetaFileStatus(metaFs, status.getPath());
+        ManifestEntry foldedEntry = entries.get(status.getPath()
+                                                      .getName());
+        if (current != null && foldedEntry.equals(Manifests.toManifestEntry(current, getDataEntry(current)))) {
+          metaFs.delete(status.getPath(), false);
+          invalidateDataEntry(status.getPath());
         }
       }
-      throw t;
+      LOGGER.info("Folded {} meta files into manifest of {} with {} entries", folded.size(), metaDir,
+          entries.size());
+      return folded.size();
     }
   }
 
-  @Override
-  public AclStatus getAclStatus(Path path) throws IOException {
+  private static boolean isKept(Path path, String keepName) {
+    return keepName != null && keepName.equals(path.getName());
+  }
+
+  private void writeManifest(FileSystem metaFs, Path metaDir, Manifest manifest) throws IOException {
+    Path tempPath = new Path(metaDir, TEMP_DATA_ENTRY_PREFIX + UUID.randomUUID()
+                                                                  .toString());
+    boolean renamed = false;
     try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      return metaFs.getAclStatus(metaPath);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      try (FSDataOutputStream output = metaFs.create(tempPath, false)) {
+        output.write(Manifests.toBytes(manifest));
+      }
+      renamed = renameDataEntry(metaFs, tempPath, Manifests.getManifestPath(metaDir), true);
+    } finally {
+      _manifests.invalidate(metaDir);
+      if (!renamed) {
+        metaFs.delete(tempPath, false);
       }
-      throw t;
     }
   }
 
-  @Override
-  public void modifyAclEntries(Path path, List<AclEntry> aclSpec) throws IOException {
+  private boolean hasUserXAttrs(FileSystem metaFs, Path metaPath) throws IOException {
+    Map<String, byte[]> xattrs;
     try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      metaFs.modifyAclEntries(metaPath, aclSpec);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      xattrs = metaFs.getXAttrs(metaPath);
+    } catch (UnsupportedOperationException e) {
+      return false;
+    }
+    if (xattrs == null) {
+      return false;
+    }
+    for (String name : xattrs.keySet()) {
+      if (!name.equals(DATA_ENTRY_XATTR_NAME)) {
+        return true;
       }
-      throw t;
     }
+    return false;
   }
 
-  @Override
-  public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+  /**
+   * Returns the meta file status, or the manifest entry if the meta file has
+   * been folded into the directory manifest, null if neither exists.
+   */
+  private FileStatus lookupManifest(FileSystem metaFs, Path metaPath) throws IOException {
+    if (!_manifestsEnabled) {
+      return null;
+    }
+    return _manifests.lookup(metaFs, metaPath);
+  }
+
+  /**
+   * Records the removal of a manifest entry, a log that nears its maximum
+   * size or number of entries compacts the directory. If the log is already
+   * full the directory is compacted first, without folding the meta file of
+   * the removed entry.
+   */
+  private void removeManifestEntry(FileSystem metaFs, Path metaPath) throws IOException {
+    Path metaDir = metaPath.getParent();
+    synchronized (_manifests.getLock(metaDir)) {
+      LogState logState = _manifests.remove(metaFs, metaPath);
+      if (logState == LogState.FULL) {
+        compactDirectory(metaFs, metaDir, true, metaPath.getName());
+        logState = _manifests.remove(metaFs, metaPath);
+        if (logState == LogState.FULL) {
+          throw new IOException("Manifest log of " + metaDir + " cannot hold the removal of " + metaPath);
+        }
+      }
+      if (logState == LogState.NEARLY_FULL) {
+        compactDirectory(metaFs, metaDir, true, null);
+      }
+    }
+  }
+
+  /**
+   * A meta file that is removed must not uncover an older manifest entry of the
+   * same name.
+   */
+  private void removeShadowedManifestEntry(FileSystem metaFs, Path metaPath) throws IOException {
+    if (lookupManifest(metaFs, metaPath) != null) {
+      removeManifestEntry(metaFs, metaPath);
+    }
+  }
+
+  /**
+   * Writes a manifest entry back to a meta file so it can be changed like any
+   * other meta file.
+   */
+  private FileStatus materializeManifestEntry(FileSystem metaFs, ManifestFileStatus manifestFileStatus)
+      throws IOException {
+    synchronized (getMetaDirLock(manifestFileStatus.getPath())) {
+      ManifestEntry manifestEntry = manifestFileStatus.getManifestEntry();
+      Path metaPath = manifestFileStatus.getPath();
+      writeDataEntry(metaFs, metaPath, manifestEntry.getDataEntry(), new FsPermission(manifestEntry.getPermission()),
+          false, manifestEntry.getReplication(), manifestEntry.getBlockSize());
+      setMetaOwner(metaFs, metaFs.getFileStatus(metaPath), manifestEntry.getOwner(), manifestEntry.getGroup());
+      metaFs.setTimes(metaPath, manifestEntry.getModificationTime(), manifestEntry.getAccessTime());
+      removeManifestEntry(metaFs, metaPath);
+      recordReferences(metaPath);
+      return metaFs.getFileStatus(metaPath);
+    }
+  }
+
+  /**
+   * Returns the manifest entry of a meta file that was not found, the given
+   * exception is thrown if there is none. Folded files have neither ACLs nor
+   * xattrs, compactions skip meta files that carry them.
+   */
+  private ManifestFileStatus getFoldedStatus(FileSystem metaFs, Path metaPath, FileNotFoundException e)
+      throws IOException {
+    FileStatus status = lookupManifest(metaFs, metaPath);
+    if (status instanceof ManifestFileStatus) {
+      return (ManifestFileStatus) status;
+    }
+    throw e;
+  }
+
+  private void materializeIfCompacted(FileSystem metaFs, Path metaPath) throws IOException {
+    FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+    if (metaFileStatus instanceof ManifestFileStatus) {
+      materializeManifestEntry(metaFs, (ManifestFileStatus) metaFileStatus);
+    }
+  }
+
+  /**
+   * Writes back the manifest entry of a file whose stream is being closed.
+   * Compactions skip entries without a length, but an append stream is opened
+   * on a finished entry that can be folded while the stream is open.
+   */
+  private void materializeOpenEntry(FileSystem metaFs, Path metaPath) throws IOException {
+    if (_manifestsEnabled) {
+      materializeIfCompacted(metaFs, metaPath);
+    }
+  }
+
+  /**
+   * A manifest entry is written back to a meta file before it is renamed and a
+   * manifest entry at the destination blocks the rename like a meta file.
+   */
+  private boolean prepareManifestRename(FileSystem metaFs, Path metaSrcPath, Path metaDstPath) throws IOException {
+    FileStatus dstStatus = getMetaFileStatus(metaFs, metaDstPath);
+    if (dstStatus instanceof ManifestFileStatus) {
+      return false;
+    }
+    if (dstStatus != null && dstStatus.isDirectory() && getMetaFileStatus(metaFs,
+        new Path(metaDstPath, metaSrcPath.getName())) instanceof ManifestFileStatus) {
+      return false;
+    }
+    FileStatus srcStatus = getMetaFileStatus(metaFs, metaSrcPath);
+    if (srcStatus instanceof ManifestFileStatus) {
+      materializeManifestEntry(metaFs, (ManifestFileStatus) srcStatus);
+    } else if (srcStatus != null && srcStatus.isFile()) {
+      removeShadowedManifestEntry(metaFs, metaSrcPath);
+    }
+    return true;
+  }
+
+  private boolean deleteManifestEntry(FileSystem metaFs, ManifestFileStatus manifestFileStatus, boolean async)
+      throws IOException {
+    removeManifestEntry(metaFs, manifestFileStatus.getPath());
+    DataEntry dataEntry = manifestFileStatus.getDataEntry();
+    for (Path dataPath : releaseDataPaths(dataEntry)) {
+      if (async) {
+        _dataReclaimer.reclaim(UserGroupInformation.getCurrentUser(), dataPath);
+      } else if (!dataPath.getFileSystem(getConf())
+                          .delete(dataPath, false)) {
+        LOGGER.warn("Could not remove {}", dataPath);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reclaims the data of the live manifest entries of a directory that is
+   * being deleted, entries shadowed by a meta file are handled with the meta
+   * file.
+   */
+  private void reclaimManifest(FileSystem metaFs, FileStatus manifestStatus, FileStatus[] listStatus)
+      throws IOException {
+    Set<String> names = new HashSet<>();
+    for (FileStatus status : listStatus) {
+      names.add(status.getPath()
+                      .getName());
+    }
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    for (ManifestFileStatus manifestFileStatus : _manifests.getLiveEntries(metaFs, manifestStatus)) {
+      DataEntry dataEntry = manifestFileStatus.getDataEntry();
+      if (!names.contains(manifestFileStatus.getPath()
+                                            .getName())) {
+        for (Path dataPath : releaseDataPaths(dataEntry)) {
+          _dataReclaimer.reclaim(ugi, dataPath);
+        }
+      }
+    }
+  }
+
+  Manifests getManifests() {
+    return _manifests;
+  }
+
+  /**
+   * Changes to a meta file hold the manifest lock of its directory while
+   * manifests are enabled, so a compaction of the directory never folds a
+   * meta file that is being changed.
+   */
+  private Object getMetaDirLock(Path metaPath) {
+    if (!_manifestsEnabled || metaPath.getParent() == null) {
+      return new Object();
+    }
+    return _manifests.getLock(metaPath.getParent());
+  }
+
+  Path getMetaRoot() {
+    return _metaPath;
+  }
+
+  /**
+   * Returns the root of the snapshots, null if snapshots are not configured.
+   */
+  Path getSnapshotRoot() {
+    return _snapshotPath;
+  }
+
+  /**
+   * Returns the meta roots whose data entries reference data objects.
+   */
+  List<Path> getMetaRoots() {
+    List<Path> metaRoots = new ArrayList<>();
+    metaRoots.add(_metaPath);
+    if (_snapshotPath != null) {
+      metaRoots.add(_snapshotPath);
+    }
+    return metaRoots;
+  }
+
+  List<Path> getDataRoots() {
+    List<Path> dataRoots = new ArrayList<>();
+    for (DataRoot dataRoot : _dataRoots.getRoots()) {
+      dataRoots.add(dataRoot.getPath());
+    }
+    return dataRoots;
+  }
+
+  /**
+   * Returns true if the data object is a pack of small files.
+   */
+  static boolean isPack(Path dataPath) {
+    return dataPath.getName()
+                   .startsWith(PACK_PREFIX);
+  }
+
+  /**
+   * Stops (or resumes) placing new data objects under the data root, e.g. to
+   * take a bucket or cluster out for maintenance. Existing data objects under
+   * the root stay readable.
+   */
+  public void setDataRootDrained(Path dataRoot, boolean drained) throws IOException {
+    _dataRoots.setDrained(makeQualifiedPath(dataRoot), drained);
+  }
+
+  DataReclaimer getDataReclaimer() {
+    return _dataReclaimer;
+  }
+
+  ReferenceTracker getReferenceTracker() {
+    return _referenceTracker;
+  }
+
+  private void recordReferences(Path metaPath) {
+    if (_referenceTracker.isRecording()) {
+      _referenceTracker.record(metaPath);
+    }
+  }
+
+  /**
+   * Returns the authorities of this scheme whose configured data roots
+   * overlap the data roots of this filesystem. Their data objects are not
+   * referenced by this meta tree, so the data roots cannot be collected.
+   */
+  List<String> getAuthoritiesSharingDataRoots() throws IOException {
+    List<String> authorities = new ArrayList<>();
+    for (Map.Entry<String, String> entry : getConf()) {
+      String key = entry.getKey();
+      String suffix = key.endsWith(DATA_PATH_SUFFIX) ? DATA_PATH_SUFFIX
+          : key.endsWith(DATA_ROOTS_SUFFIX) ? DATA_ROOTS_SUFFIX : null;
+      if (suffix == null || !key.startsWith(getScheme() + ".")) {
+        continue;
+      }
+      String configPrefix = key.substring(0, key.length() - suffix.length());
+      if (configPrefix.equals(getConfigPrefix()) || configPrefix.equals(getScheme())) {
+        continue;
+      }
+      for (String root : getConf().getTrimmedStrings(key)) {
+        Path otherRoot = makeQualifiedPath(DataRoots.parse(root, false)
+                                                    .getPath());
+        for (Path dataRoot : getDataRoots()) {
+          String authority = configPrefix.substring(getScheme().length() + 1);
+          if ((isAncestor(dataRoot, otherRoot) || isAncestor(otherRoot, dataRoot))
+              && !authorities.contains(authority)) {
+            authorities.add(authority);
+          }
+        }
+      }
+    }
+    return authorities;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (_listExecutor != null) {
+      _listExecutor.shutdownNow();
+    }
+    if (_deletePool != null) {
+      _deletePool.shutdownNow();
+    }
+    if (_walkPool != null) {
+      _walkPool.shutdownNow();
+    }
+    if (_copyPool != null) {
+      _copyPool.shutdownNow();
+    }
+    if (_orphanCollectorExecutor != null) {
+      _orphanCollectorExecutor.shutdownNow();
+    }
+    if (_packCompactorExecutor != null) {
+      _packCompactorExecutor.shutdownNow();
+    }
+    if (_segmentCompactorExecutor != null) {
+      _segmentCompactorExecutor.shutdownNow();
+    }
+    if (_packWriter != null) {
+      _packWriter.close();
+    }
+    if (_aggregateVerifierExecutor != null) {
+      _aggregateVerifierExecutor.shutdownNow();
+    }
+    if (_manifestCompactorExecutor != null) {
+      _manifestCompactorExecutor.shutdownNow();
+    }
+    if (_dataReclaimer != null) {
+      _dataReclaimer.close();
+    }
+    super.close();
+  }
+
+  /**
+   * Waits until the data of every recursively deleted file has been removed.
+   */
+  void waitForDataReclamation() throws InterruptedException {
+    _dataReclaimer.waitForReclamation();
+  }
+
+  private String getConfigPrefix() {
+    return _configPrefix;
+  }
+
+  /**
+   * Gets data entry for given meta path;
+   */
+  protected DataEntry getDataEntry(Path metaPath, boolean waitForDataEntry) throws IOException {
+    FileSystem metaFs = metaPath.getFileSystem(getConf());
+    FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+    if (metaFileStatus == null) {
+      throw new FileNotFoundException(metaPath.toString());
+    }
+    DataEntry dataEntry = getDataEntry(metaFileStatus);
+    if (dataEntry != null || !waitForDataEntry) {
+      return dataEntry;
+    }
+    return waitForDataEntryToBeReadable(metaFs, metaPath);
+  }
+
+  /**
+   * Gets data entry for given meta file status, served from the data entry
+   * cache if the meta file has not changed.
+   */
+  protected DataEntry getDataEntry(FileStatus metaFileStatus) throws IOException {
+    if (metaFileStatus instanceof ManifestFileStatus) {
+      return ((ManifestFileStatus) metaFileStatus).getDataEntry();
+    }
+    if (_dataEntryCache != null) {
+      DataEntry dataEntry = _dataEntryCache.get(metaFileStatus);
+      if (dataEntry != null) {
+        return dataEntry;
+      }
+    }
+    Path metaPath = metaFileStatus.getPath();
+    FileSystem metaFs = metaPath.getFileSystem(getConf());
+    DataEntry dataEntry;
+    if (metaFileStatus.getLen() > 0) {
+      dataEntry = readDataEntry(metaFs, metaPath);
+    } else {
+      dataEntry = readDataEntryXAttr(metaFs, metaPath);
+    }
+    if (dataEntry != null && _dataEntryCache != null) {
+      _dataEntryCache.put(metaFileStatus, dataEntry);
+    }
+    return dataEntry;
+  }
+
+  private DataEntry readDataEntry(FileSystem metaFs, Path metaPath) throws IOException {
+    long delay = DATA_ENTRY_INITIAL_DELAY;
+    for (int i = 0; i < _dataEntryRetries; i++) {
+      try (FSDataInputStream input = metaFs.open(metaPath)) {
+        return OBJECT_MAPPER.readValue(input, DataEntry.class);
+      } catch (IOException e) {
+        if (!isCannotObtainBlockLength(e)) {
+          throw e;
+        }
+      }
+      delay = backoff(delay);
+    }
+    return null;
+  }
+
+  /**
+   * Sleeps for the given delay and returns the next delay, capped at the data
+   * entry delay.
+   */
+  private long backoff(long delay) throws IOException {
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    return Math.min(delay * 2, _dataEntryDelay);
+  }
+
+  /**
+   * Reads the data entry stored in the xattr layout, returns null if the meta
+   * file has no data entry xattr (yet) or the meta filesystem does not support
+   * xattrs.
+   */
+  private DataEntry readDataEntryXAttr(FileSystem metaFs, Path metaPath) throws IOException {
+    Map<String, byte[]> xattrs;
+    try {
+      xattrs = metaFs.getXAttrs(metaPath);
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+    if (xattrs == null) {
+      return null;
+    }
+    byte[] value = xattrs.get(DATA_ENTRY_XATTR_NAME);
+    if (value == null) {
+      return null;
+    }
+    return OBJECT_MAPPER.readValue(value, DataEntry.class);
+  }
+
+  /**
+   * Writes the data entry in the configured layout to a temporary meta file
+   * next to the meta path and renames it into place, so readers never see a
+   * meta file without a complete data entry.
+   */
+  private void writeDataEntry(FileSystem metaFs, Path metaPath, DataEntry dataEntry, FsPermission permission,
+      boolean overwrite, short replication, long blockSize) throws IOException {
+    writeDataEntry(metaFs, metaPath, dataEntry, permission, overwrite, replication, blockSize, null, 0);
+  }
+
+  /**
+   * Same as above, if a replaced meta file status is given its owner, group,
+   * xattrs, ACLs and access time are copied onto the temporary meta file and
+   * its modification time is set to the given time.
+   */
+  private void writeDataEntry(FileSystem metaFs, Path metaPath, DataEntry dataEntry, FsPermission permission,
+      boolean overwrite, short replication, long blockSize, FileStatus replacedStatus, long modificationTime)
+      throws IOException {
+    int bufferSize = getConf().getInt(IO_FILE_BUFFER_SIZE, 4096);
+    Path tempMetaPath = new Path(metaPath.getParent(), TEMP_DATA_ENTRY_PREFIX + UUID.randomUUID()
+                                                                                    .toString());
+    boolean renamed = false;
+    try {
+      try (FSDataOutputStream output = metaFs.create(tempMetaPath, permission, false, bufferSize, replication,
+          blockSize, null)) {
+        if (_xattrLayout) {
+          metaFs.setXAttr(tempMetaPath, DATA_ENTRY_XATTR_NAME, OBJECT_MAPPER.writeValueAsBytes(dataEntry));
+        } else {
+          storeDataPath(output, dataEntry);
+        }
+      }
+      if (replacedStatus != null) {
+        copyMetaAttributes(metaFs, replacedStatus, tempMetaPath, modificationTime);
+      }
+      renamed = renameDataEntry(metaFs, tempMetaPath, metaPath, overwrite);
+    } finally {
+      invalidateDataEntry(metaPath);
+      if (!renamed) {
+        metaFs.delete(tempMetaPath, false);
+      }
+    }
+  }
+
+  /**
+   * Copies the attributes of a meta file that are not part of the data entry
+   * onto another meta file. Changing the owner needs a superuser on HDFS.
+   */
+  private void copyMetaAttributes(FileSystem metaFs, FileStatus metaFileStatus, Path targetMetaPath,
+      long modificationTime) throws IOException {
+    Path metaPath = metaFileStatus.getPath();
+    setMetaOwner(metaFs, metaFs.getFileStatus(targetMetaPath), metaFileStatus.getOwner(), metaFileStatus.getGroup());
+    Map<String, byte[]> xattrs;
+    try {
+      xattrs = metaFs.getXAttrs(metaPath);
+    } catch (UnsupportedOperationException e) {
+      xattrs = null;
+    }
+    if (xattrs != null) {
+      for (Entry<String, byte[]> xattr : xattrs.entrySet()) {
+        if (!xattr.getKey()
+                  .equals(DATA_ENTRY_XATTR_NAME)) {
+          metaFs.setXAttr(targetMetaPath, xattr.getKey(), xattr.getValue());
+        }
+      }
+    }
+    if (metaFileStatus.getPermission()
+                      .getAclBit()) {
+      metaFs.setAcl(targetMetaPath, metaFs.getAclStatus(metaPath)
+                                          .getEntries());
+    }
+    metaFs.setTimes(targetMetaPath, modificationTime, metaFileStatus.getAccessTime());
+  }
+
+  /**
+   * Sets the owner and group of a meta file, only the parts that differ are
+   * passed on so nothing needs a superuser unless the owner really changes.
+   */
+  private void setMetaOwner(FileSystem metaFs, FileStatus metaFileStatus, String owner, String group)
+      throws IOException {
+    String newOwner = owner == null || owner.equals(metaFileStatus.getOwner()) ? null : owner;
+    String newGroup = group == null || group.equals(metaFileStatus.getGroup()) ? null : group;
+    if (newOwner != null || newGroup != null) {
+      metaFs.setOwner(metaFileStatus.getPath(), newOwner, newGroup);
+    }
+  }
+
+  /**
+   * On HDFS the temporary meta file replaces the meta path atomically, other
+   * filesystems only get an atomic rename if the meta path does not exist.
+   * Rewrites of existing entries in the xattr layout are done in place and
+   * never get here.
+   */
+  private boolean renameDataEntry(FileSystem metaFs, Path tempMetaPath, Path metaPath, boolean overwrite)
+      throws IOException {
+    if (metaFs instanceof DistributedFileSystem) {
+      ((DistributedFileSystem) metaFs).rename(tempMetaPath, metaPath, overwrite ? Rename.OVERWRITE : Rename.NONE);
+      return true;
+    }
+    FileStatus metaFileStatus;
+    try {
+      metaFileStatus = metaFs.getFileStatus(metaPath);
+    } catch (FileNotFoundException e) {
+      metaFileStatus = null;
+    }
+    if (metaFileStatus != null) {
+      if (!overwrite) {
+        throw new FileAlreadyExistsException("Meta path " + metaPath + " already exists.");
+      }
+      if (metaFileStatus.isDirectory()) {
+        throw new IOException("Meta path " + metaPath + " is a directory.");
+      }
+      metaFs.delete(metaPath, false);
+    }
+    if (!metaFs.rename(tempMetaPath, metaPath)) {
+      throw new IOException("Could not rename " + tempMetaPath + " to " + metaPath);
+    }
+    return true;
+  }
+
+  private boolean isTempDataEntry(Path metaPath) {
+    return metaPath.getName()
+                   .startsWith(TEMP_DATA_ENTRY_PREFIX);
+  }
+
+  private boolean isReservedXAttrName(String name) {
+    return name.equals(DATA_ENTRY_XATTR_NAME) || name.equals(DirectoryAggregates.AGGREGATE_XATTR_NAME)
+        || name.equals(Manifests.LOG_XATTR_NAME);
+  }
+
+  private Map<String, byte[]> removeReservedXAttrs(Map<String, byte[]> xattrs) {
+    if (xattrs == null || xattrs.keySet()
+                                .stream()
+                                .noneMatch(this::isReservedXAttrName)) {
+      return xattrs;
+    }
+    Map<String, byte[]> result = new HashMap<>(xattrs);
+    result.keySet()
+          .removeIf(this::isReservedXAttrName);
+    return result;
+  }
+
+  private boolean isCannotObtainBlockLength(IOException e) {
+    String message = e.getMessage();
+    if (message == null) {
+      return false;
+    }
+    return message.toLowerCase()
+                  .contains("Cannot obtain block length".toLowerCase());
+  }
+
+  /**
+   * Meta files written by this filesystem are renamed into place with a
+   * complete data entry, only meta files written by older versions can be
+   * visible without one.
+   */
+  private DataEntry waitForDataEntryToBeReadable(FileSystem metaFs, Path metaPath) throws IOException {
+    long delay = DATA_ENTRY_INITIAL_DELAY;
+    for (int i = 0; i < _dataEntryRetries; i++) {
+      delay = backoff(delay);
+      DataEntry dataEntry = getDataEntry(metaFs.getFileStatus(metaPath));
+      if (dataEntry != null) {
+        return dataEntry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * hdfs://something/meta/dir1/test1 => remote://auth/dir1/test1
+   */
+  protected Path getVirtualPath(Path metaPath) throws IOException {
+    metaPath = makeQualifiedPath(metaPath);
+    String fullMetaPath = metaPath.toUri()
+                                  .getPath();
+    String path = getVirtualPathStr(_rootMetaPath, fullMetaPath);
+    return new Path(getScheme(), _authority, path);
+  }
+
+  /**
+   * remote://auth/dir1/test1 => hdfs://something/meta/dir1/test1
+   */
+  protected MetaEntry getMetaEntry(Path virtualPath) throws IOException {
+    virtualPath = makeQualifiedPath(virtualPath);
+    URI virtualUri = virtualPath.toUri();
+    if (!virtualUri.getScheme()
+                   .equals(_fsUri.getScheme())) {
+      throw new IOException("Wrong scheme for path " + virtualPath + " should be scheme " + _fsUri.getScheme());
+    }
+    if (!virtualUri.getAuthority()
+                   .equals(_fsUri.getAuthority())) {
+      throw new IOException(
+          "Wrong authority for path " + virtualPath + " should be authority " + _fsUri.getAuthority());
+    }
+    String fullVirtualPath = virtualUri.getPath();
+    List<String> fullVirtualPathParts = split(fullVirtualPath);
+    Builder<String> builder = ImmutableList.builder();
+    ImmutableList<String> list = builder.addAll(_rootMetaPathParts)
+                                        .addAll(fullVirtualPathParts.subList(1, fullVirtualPathParts.size()))
+                                        .build();
+    String path = PATH_JOINER.join(list);
+    Path metaPath = new Path(_metaPathScheme, _metaPathAuthority, path);
+    return MetaEntry.builder()
+                    .metaPath(metaPath)
+                    .build();
+  }
+
+  @Override
+  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+
+    LOGGER.info("open {} {}", f, bufferSize);
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "open", f.toString())) {
+      MetaEntry metaEntry = getMetaEntry(f);
+      DataEntry dataEntry = getDataEntry(metaEntry.getMetaPath(), true);
+      if (dataEntry == null) {
+        throw new FileNotFoundException(f.toString());
+      }
+      if (dataEntry.hasSegments()) {
+        return new FSDataInputStream(new SegmentedInputStream(getConf(), dataEntry.getAllSegments()));
+      }
+      if (dataEntry.isInline()) {
+        return new FSDataInputStream(new SeekableByteArrayInputStream(dataEntry.getContent()));
+      }
+      Path dataPath = dataEntry.getDataPath();
+      FileSystem dataFs = dataPath.getFileSystem(getConf());
+      long length;
+      if (dataEntry.getLength() != null) {
+        length = dataEntry.getLength();
+      } else {
+        length = dataFs.getFileStatus(dataPath)
+                       .getLen();
+      }
+      if (length == 0) {
+        return new FSDataInputStream(new ReadNothing());
+      }
+      if (dataEntry.isPacked()) {
+        // a single ranged read of the pack object
+        byte[] data = new byte[(int) length];
+        try (FSDataInputStream input = dataFs.open(dataPath)) {
+          input.readFully(dataEntry.getPackOffset(), data);
+        }
+        return new FSDataInputStream(new SeekableByteArrayInputStream(data));
+      }
+      return dataFs.open(dataPath);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+      short replication, long blockSize, Progressable progress) throws IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "create", f.toString())) {
+      MetaEntry metaEntry = getMetaEntry(f);
+      Path metaPath = metaEntry.getMetaPath();
+      Path dataPath = createDataPath(metaPath);
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      if (!overwrite && lookupManifest(metaFs, metaPath) != null) {
+        throw new FileAlreadyExistsException("Meta path " + metaPath + " already exists.");
+      }
+      DirectoryAggregate delta = null;
+      if (_aggregates != null) {
+        mkdirsWithAggregates(metaFs, metaPath.getParent(), FsPermission.getDirDefault());
+        FileStatus previous = getMetaFileStatus(metaFs, metaPath);
+        delta = previous == null ? null : negate(getSubtreeAggregate(metaFs, previous));
+      }
+      DataEntry dataEntry = storeDataPath(metaPath, dataPath, permission, overwrite);
+      if (_aggregates != null) {
+        applyAggregate(metaPath, delta == null ? new DirectoryAggregate(1, 0, 0) : delta.plus(
+            new DirectoryAggregate(1, 0, 0)));
+      }
+      if (_inlineThreshold > 0 || _packWriter != null) {
+        PackingOutputStream output = new PackingOutputStream(Math.max(_inlineThreshold, _packThreshold),
+            () -> createDataOutputStream(dataPath, bufferSize, progress));
+        return new RemoteFSDataOutputStream(output, statistics, createMessageDigest(), (length, checksum) -> {
+          byte[] bufferedData = output.getBufferedData();
+          if (bufferedData == null) {
+            finishDataEntry(metaPath, dataEntry, length, checksum, null, null);
+          } else if (bufferedData.length <= _inlineThreshold) {
+            finishDataEntry(metaPath, dataEntry, length, checksum, null, bufferedData);
+          } else {
+            finishDataEntry(metaPath, dataEntry, length, checksum, _packWriter.write(bufferedData), null);
+          }
+        });
+      }
+      FSDataOutputStream output = createDataOutputStream(dataPath, bufferSize, progress);
+      return new RemoteFSDataOutputStream(output, statistics, createMessageDigest(),
+          (length, checksum) -> finishDataEntry(metaPath, dataEntry, length, checksum, null, null));
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "append", f.toString())) {
+      MetaEntry metaEntry = getMetaEntry(f);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      materializeIfCompacted(metaFs, metaPath);
+      DataEntry dataEntry = getSegmentableDataEntry(metaPath);
+      long start = getDataLength(dataEntry);
+      Path segmentPath = createDataPath(metaPath);
+      FSDataOutputStream output = createDataOutputStream(segmentPath, bufferSize, progress);
+      return new RemoteFSDataOutputStream(output, statistics, null, start,
+          (length, checksum) -> appendSegment(metaPath, dataEntry, start, DataSegment.builder()
+                                                                                     .dataPathUri(segmentPath.toUri()
+                                                                                                             .toString())
+                                                                                     .length(length - start)
+                                                                                     .build()));
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Moves the data of the sources to the end of the target by appending their
+   * segments to the target's data entry, no data is copied. The sources are
+   * removed. The sources give up ownership of their data (they become
+   * unmanaged) before the target is published, so a crash in between leaves
+   * unmanaged sources that leak their data on removal rather than two owners
+   * that reclaim it. The checksum of the target is cleared, see
+   * {@link DataEntry#getChecksum()}.
+   */
+  @Override
+  public void concat(Path trg, Path[] psrcs) throws IOException {
+    try {
+      Path metaTrgPath = getMetaEntry(trg).getMetaPath();
+      FileSystem metaFs = metaTrgPath.getFileSystem(getConf());
+      materializeIfCompacted(metaFs, metaTrgPath);
+      DataEntry trgEntry = getSegmentableDataEntry(metaTrgPath);
+      List<DataSegment> segments = trgEntry.getSegments() == null ? new ArrayList<>()
+          : new ArrayList<>(trgEntry.getSegments());
+      long srcLength = 0;
+      List<DataEntry> sharedSrcEntries = new ArrayList<>();
+      Map<Path, DataEntry> srcEntries = new LinkedHashMap<>();
+      Map<Path, Long> metaSrcPaths = new LinkedHashMap<>();
+      for (Path src : psrcs) {
+        Path metaSrcPath = getMetaEntry(src).getMetaPath();
+        if (metaSrcPath.equals(metaTrgPath) || metaSrcPaths.containsKey(metaSrcPath)) {
+          throw new IOException("Cannot concat " + src + " more than once into " + trg);
+        }
+        materializeIfCompacted(metaFs, metaSrcPath);
+        DataEntry srcEntry = getSegmentableDataEntry(metaSrcPath);
+        long length = getDataLength(srcEntry);
+        segments.addAll(srcEntry.toBuilder()
+                                .length(length)
+                                .build()
+                                .getAllSegments());
+        srcLength += length;
+        srcEntries.put(metaSrcPath, srcEntry);
+        metaSrcPaths.put(metaSrcPath, length);
+      }
+      Map<Path, DataEntry> unmanagedSrcEntries = new LinkedHashMap<>();
+      try {
+        for (Map.Entry<Path, DataEntry> srcEntry : srcEntries.entrySet()) {
+          DataEntry unmanaged = srcEntry.getValue()
+                                        .toBuilder()
+                                        .managed(false)
+                                        .build();
+          if (!relocateDataEntry(srcEntry.getKey(), srcEntry.getValue(), unmanaged)) {
+            throw new IOException("File " + getVirtualPath(srcEntry.getKey()) + " changed during concat.");
+          }
+          unmanagedSrcEntries.put(srcEntry.getKey(), unmanaged);
+          // copies can not be taken of unmanaged sources, the references are settled
+          if (isReferenced(srcEntry.getValue())) {
+            sharedSrcEntries.add(srcEntry.getValue());
+          }
+        }
+        // the target takes over the references of shared sources
+        for (DataEntry srcEntry : sharedSrcEntries) {
+          for (Path dataPath : srcEntry.getReclaimablePaths()) {
+            getDataReferences().acquire(dataPath, trgEntry.getManagementId());
+          }
+        }
+        DataEntry concatenated = trgEntry.toBuilder()
+                                         .length(getDataLength(trgEntry) + srcLength)
+                                         .modificationTime(System.currentTimeMillis())
+                                         .checksum(null)
+                                         .segments(segments)
+                                         .shared(trgEntry.isShared() || !sharedSrcEntries.isEmpty())
+                                         .build();
+        if (!relocateDataEntry(metaTrgPath, trgEntry, concatenated)) {
+          throw new IOException("File " + trg + " changed during concat.");
+        }
+      } catch (Throwable t) {
+        // nothing was published, the sources keep their data
+        for (Map.Entry<Path, DataEntry> unmanaged : unmanagedSrcEntries.entrySet()) {
+          relocateDataEntry(unmanaged.getKey(), unmanaged.getValue(), srcEntries.get(unmanaged.getKey()));
+        }
+        for (DataEntry srcEntry : sharedSrcEntries) {
+          for (Path dataPath : srcEntry.getReclaimablePaths()) {
+            getDataReferences().release(dataPath, trgEntry.getManagementId());
+          }
+        }
+        throw t;
+      }
+      recordReferences(metaTrgPath);
+      for (DataEntry srcEntry : sharedSrcEntries) {
+        for (Path dataPath : srcEntry.getReclaimablePaths()) {
+          getDataReferences().release(dataPath, srcEntry.getManagementId());
+        }
+      }
+      // the data of the sources belongs to the target now
+      for (Map.Entry<Path, Long> metaSrcPath : metaSrcPaths.entrySet()) {
+        metaFs.delete(metaSrcPath.getKey(), false);
+        invalidateDataEntry(metaSrcPath.getKey());
+        if (_aggregates != null) {
+          applyAggregate(metaSrcPath.getKey(), new DirectoryAggregate(-1, 0, -metaSrcPath.getValue()));
+        }
+      }
+      if (_aggregates != null) {
+        applyAggregate(metaTrgPath, new DirectoryAggregate(0, 0, srcLength));
+      }
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Copies the file or directory tree without copying any data, the data
+   * entries of the copies share the data objects of the source. Shared data
+   * objects are reference counted under the .references.path and reclaimed
+   * when the last referencing file is removed. Directories are copied in
+   * parallel.
+   */
+  public void copy(Path src, Path dst) throws IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "copy", src.toString())) {
+      getDataReferences();
+      Path metaSrcPath = getMetaEntry(src).getMetaPath();
+      Path metaDstPath = getMetaEntry(dst).getMetaPath();
+      FileSystem metaFs = metaSrcPath.getFileSystem(getConf());
+      FileStatus metaSrcStatus = getMetaFileStatus(metaFs, metaSrcPath);
+      if (metaSrcStatus == null) {
+        throw new FileNotFoundException("Path " + src + " does not exist.");
+      }
+      if (getMetaFileStatus(metaFs, metaDstPath) != null) {
+        throw new FileAlreadyExistsException("Path " + dst + " already exists.");
+      }
+      if (isAncestor(metaSrcPath, metaDstPath)) {
+        throw new IOException("Cannot copy " + src + " into itself.");
+      }
+      if (metaSrcStatus.isFile()) {
+        mkdirs(dst.getParent());
+      }
+      copyTree(metaSrcStatus, metaDstPath, true, false);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Creates a copy of the directory under the .snapshot.path. Only the meta
+   * tree is copied, in parallel, and the snapshot takes a reference to every
+   * data object so deleting or overwriting the live files keeps its data.
+   * The live files are not touched. The copy is not atomic, files changed
+   * while the snapshot is taken may be captured before or after the change,
+   * so writers have to be paused for a consistent snapshot. The snapshot is
+   * built under a temporary name and renamed into place once complete.
+   * Returns the meta path of the snapshot under the .snapshot.path, which
+   * identifies the snapshot but is not served by this filesystem, use
+   * {@link #restoreSnapshot(Path, String, Path)} to read it.
+   */
+  @Override
+  public Path createSnapshot(Path path, String snapshotName) throws IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "createSnapshot", path.toString())) {
+      Path metaPath = getMetaEntry(path).getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+      if (metaFileStatus == null || !metaFileStatus.isDirectory()) {
+        throw new FileNotFoundException("Directory " + path + " does not exist.");
+      }
+      checkSnapshotAccess(metaFs, metaFileStatus);
+      Path snapshotPath = getSnapshotPath(metaPath, snapshotName);
+      FileSystem snapshotFs = snapshotPath.getFileSystem(getConf());
+      if (snapshotFs.exists(snapshotPath)) {
+        throw new FileAlreadyExistsException("Snapshot " + snapshotName + " of " + path + " already exists.");
+      }
+      Path tempSnapshotPath = new Path(snapshotPath.getParent(), TEMP_DATA_ENTRY_PREFIX + UUID.randomUUID()
+                                                                                              .toString());
+      boolean created = false;
+      try {
+        copyTree(metaFileStatus, tempSnapshotPath, false, true);
+        if (!snapshotFs.rename(tempSnapshotPath, snapshotPath)) {
+          throw new IOException("Could not rename " + tempSnapshotPath + " to " + snapshotPath);
+        }
+        recordReferences(snapshotPath);
+        created = true;
+      } finally {
+        if (!created) {
+          deleteRecursive(getRawMetaFileStatus(snapshotFs, tempSnapshotPath));
+        }
+      }
+      return snapshotPath;
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Removes the snapshot and releases its references, data objects no longer
+   * referenced by live files or other snapshots are reclaimed.
+   */
+  @Override
+  public void deleteSnapshot(Path path, String snapshotName) throws IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "deleteSnapshot", path.toString())) {
+      Path metaPath = getMetaEntry(path).getMetaPath();
+      Path snapshotPath = getSnapshotPath(metaPath, snapshotName);
+      FileStatus snapshotStatus = getRawMetaFileStatus(snapshotPath.getFileSystem(getConf()), snapshotPath);
+      if (snapshotStatus == null) {
+        throw new FileNotFoundException("Snapshot " + snapshotName + " of " + path + " does not exist.");
+      }
+      checkSnapshotAccess(metaPath, snapshotStatus);
+      deleteRecursive(snapshotStatus);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public void renameSnapshot(Path path, String snapshotOldName, String snapshotNewName) throws IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "renameSnapshot", path.toString())) {
+      Path metaPath = getMetaEntry(path).getMetaPath();
+      Path snapshotOldPath = getSnapshotPath(metaPath, snapshotOldName);
+      Path snapshotNewPath = getSnapshotPath(metaPath, snapshotNewName);
+      FileSystem snapshotFs = snapshotOldPath.getFileSystem(getConf());
+      FileStatus snapshotStatus = getRawMetaFileStatus(snapshotFs, snapshotOldPath);
+      if (snapshotStatus == null) {
+        throw new FileNotFoundException("Snapshot " + snapshotOldName + " of " + path + " does not exist.");
+      }
+      checkSnapshotAccess(metaPath, snapshotStatus);
+      if (snapshotFs.exists(snapshotNewPath)) {
+        throw new FileAlreadyExistsException("Snapshot " + snapshotNewName + " of " + path + " already exists.");
+      }
+      if (!snapshotFs.rename(snapshotOldPath, snapshotNewPath)) {
+        throw new IOException("Could not rename " + snapshotOldPath + " to " + snapshotNewPath);
+      }
+      recordReferences(snapshotNewPath);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Restores the snapshot of the directory to the destination, which must not
+   * exist. Like creating the snapshot only the meta tree is copied, owners and
+   * groups are kept as far as the meta filesystem allows. To roll a directory
+   * back, delete or rename it and restore the snapshot to its path.
+   */
+  public void restoreSnapshot(Path path, String snapshotName, Path dst) throws IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "restoreSnapshot", path.toString())) {
+      Path metaPath = getMetaEntry(path).getMetaPath();
+      Path snapshotPath = getSnapshotPath(metaPath, snapshotName);
+      FileStatus snapshotStatus = getRawMetaFileStatus(snapshotPath.getFileSystem(getConf()), snapshotPath);
+      if (snapshotStatus == null) {
+        throw new FileNotFoundException("Snapshot " + snapshotName + " of " + path + " does not exist.");
+      }
+      checkSnapshotAccess(metaPath, snapshotStatus);
+      Path metaDstPath = getMetaEntry(dst).getMetaPath();
+      if (getMetaFileStatus(metaDstPath.getFileSystem(getConf()), metaDstPath) != null) {
+        throw new FileAlreadyExistsException("Path " + dst + " already exists.");
+      }
+      copyTree(snapshotStatus, metaDstPath, true, true);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Snapshots of a directory are managed by its owner and users that may
+   * write to it, once the directory is gone by the owner of the snapshot.
+   */
+  private void checkSnapshotAccess(Path metaPath, FileStatus snapshotStatus) throws IOException {
+    FileSystem metaFs = metaPath.getFileSystem(getConf());
+    FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+    if (metaFileStatus != null && metaFileStatus.isDirectory()) {
+      checkSnapshotAccess(metaFs, metaFileStatus);
+    } else {
+      checkSnapshotAccess(snapshotStatus.getPath()
+                                        .getFileSystem(getConf()),
+          snapshotStatus);
+    }
+  }
+
+  private void checkSnapshotAccess(FileSystem fs, FileStatus status) throws IOException {
+    if (UserGroupInformation.getCurrentUser()
+                            .getShortUserName()
+                            .equals(status.getOwner())) {
+      return;
+    }
+    fs.access(status.getPath(), FsAction.WRITE);
+  }
+
+  /**
+   * Snapshots of a directory are kept at the directory's path relative to
+   * the meta root under the snapshot root, in a .snapshot directory.
+   */
+  private Path getSnapshotPath(Path metaPath, String snapshotName) throws IOException {
+    if (_snapshotPath == null) {
+      throw new IOException("Property missing " + getConfigPrefix() + SNAPSHOT_PATH_SUFFIX);
+    }
+    if (snapshotName == null || snapshotName.isEmpty() || snapshotName.startsWith(".")
+        || snapshotName.contains(Path.SEPARATOR)) {
+      throw new IOException("Invalid snapshot name " + snapshotName);
+    }
+    String relativePath = metaPath.toUri()
+                                  .getPath()
+                                  .substring(_metaPath.toUri()
+                                                      .getPath()
+                                                      .length());
+    Path snapshotDir = _snapshotPath;
+    for (String name : relativePath.split(Path.SEPARATOR)) {
+      if (!name.isEmpty()) {
+        snapshotDir = new Path(snapshotDir, name);
+      }
+    }
+    return new Path(new Path(snapshotDir, SNAPSHOT_DIR_NAME), snapshotName);
+  }
+
+  /**
+   * Rewrites the segments of the file into a single data object. Returns
+   * false if the file has a single segment or changed during the rewrite.
+   */
+  public boolean compactSegments(Path f) throws IOException {
+    Path metaPath = getMetaEntry(f).getMetaPath();
+    FileSystem metaFs = metaPath.getFileSystem(getConf());
+    materializeIfCompacted(metaFs, metaPath);
+    DataEntry dataEntry = getDataEntry(metaPath, false);
+    if (dataEntry == null || !dataEntry.hasSegments()) {
+      return false;
+    }
+    Path dataPath = createDataPath(metaPath);
+    int bufferSize = getConf().getInt(IO_FILE_BUFFER_SIZE, 4096);
+    try (SegmentedInputStream input = new SegmentedInputStream(getConf(), dataEntry.getAllSegments());
+        FSDataOutputStream output = createDataOutputStream(dataPath, bufferSize, null)) {
+      IOUtils.copyBytes(input, output, bufferSize);
+    }
+    DataEntry compacted = dataEntry.toBuilder()
+                                   .dataPathUri(dataPath.toUri()
+                                                        .toString())
+                                   .packOffset(null)
+                                   .content(null)
+                                   .segments(null)
+                                   .build();
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    if (!relocateDataEntry(metaPath, dataEntry, compacted)) {
+      _dataReclaimer.reclaim(ugi, dataPath);
+      return false;
+    }
+    for (Path reclaimablePath : releaseDataPaths(dataEntry)) {
+      _dataReclaimer.reclaim(ugi, reclaimablePath);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the data entry of a file that segments can be added to, linked
+   * files reference data this filesystem does not own.
+   */
+  private DataEntry getSegmentableDataEntry(Path metaPath) throws IOException {
+    DataEntry dataEntry = getDataEntry(metaPath, false);
+    if (dataEntry == null) {
+      throw new FileNotFoundException("Meta path " + metaPath + " does not exist.");
+    }
+    if (!dataEntry.isManaged()) {
+      throw new IOException("Meta path " + metaPath + " is linked to " + dataEntry.getDataPath());
+    }
+    return dataEntry;
+  }
+
+  /**
+   * Entries written before the length was recorded get the length of their
+   * data object.
+   */
+  private long getDataLength(DataEntry dataEntry) throws IOException {
+    if (dataEntry.getLength() != null) {
+      return dataEntry.getLength();
+    }
+    Path dataPath = dataEntry.getDataPath();
+    return dataPath.getFileSystem(getConf())
+                   .getFileStatus(dataPath)
+                   .getLen();
+  }
+
+  /**
+   * Adds the appended segment to the data entry and clears the checksum, see
+   * {@link DataEntry#getChecksum()}. The segment is reclaimed if the file has
+   * been overwritten or deleted while the stream was open. A file folded into
+   * the manifest while the stream was open is written back first.
+   */
+  private void appendSegment(Path metaPath, DataEntry dataEntry, long start, DataSegment segment)
+      throws IOException {
+    synchronized (getMetaDirLock(metaPath)) {
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+      FileStatus metaFileStatus;
+      DataEntry currentDataEntry;
+      try {
+        materializeOpenEntry(metaFs, metaPath);
+        metaFileStatus = metaFs.getFileStatus(metaPath);
+        currentDataEntry = getDataEntry(metaFileStatus);
+      } catch (FileNotFoundException e) {
+        metaFileStatus = null;
+        currentDataEntry = null;
+      }
+      if (currentDataEntry == null || !dataEntry.getManagementId()
+                                                .equals(currentDataEntry.getManagementId())) {
+        LOGGER.info("Meta path {} replaced before segment {} could be appended", metaPath, segment.getDataPathUri());
+        _dataReclaimer.reclaim(ugi, segment.getDataPath());
+        return;
+      }
+      if (segment.getLength() == 0) {
+        _dataReclaimer.reclaim(ugi, segment.getDataPath());
+        return;
+      }
+      List<DataSegment> segments = currentDataEntry.getSegments() == null ? new ArrayList<>()
+          : new ArrayList<>(currentDataEntry.getSegments());
+      segments.add(segment);
+      long length = currentDataEntry.getLength() == null ? start : currentDataEntry.getLength();
+      long modificationTime = System.currentTimeMillis();
+      replaceDataEntry(metaFs, metaFileStatus, currentDataEntry.toBuilder()
+                                                               .length(length + segment.getLength())
+                                                               .modificationTime(modificationTime)
+                                                               .checksum(null)
+                                                               .segments(segments)
+                                                               .build(),
+          modificationTime);
+      if (_aggregates != null) {
+        applyAggregate(metaPath, new DirectoryAggregate(0, 0, segment.getLength()));
+      }
+      if (_segmentCompactorExecutor != null && segments.size() + 1 >= _segmentsCompactThreshold) {
+        Path path = getVirtualPath(metaPath);
+        _segmentCompactorExecutor.execute(() -> {
+          try {
+            ugi.doAs((PrivilegedExceptionAction<Boolean>) () -> compactSegments(path));
+          } catch (Throwable t) {
+            LOGGER.error("Could not compact the segments of " + path, t);
+          }
+        });
+      }
+    }
+  }
+
+  @Override
+  public boolean rename(Path src, Path dst) throws IOException {
+    try {
+      MetaEntry metaSrcEntry = getMetaEntry(src);
+      Path metaSrcPath = metaSrcEntry.getMetaPath();
+      MetaEntry metaDstEntry = getMetaEntry(dst);
+      Path metaDstPath = metaDstEntry.getMetaPath();
+
+      FileSystem srcmetaFs = metaSrcPath.getFileSystem(getConf());
+      FileSystem dstmetaFs = metaDstPath.getFileSystem(getConf());
+      if (!srcmetaFs.getUri()
+                    .equals(dstmetaFs.getUri())) {
+        return false;
+      }
+      invalidateDataEntries(metaSrcPath);
+      invalidateDataEntries(metaDstPath);
+      synchronized (getMetaDirLock(metaSrcPath)) {
+        if (_manifestsEnabled && !prepareManifestRename(srcmetaFs, metaSrcPath, metaDstPath)) {
+          return false;
+        }
+        if (_aggregates == null && !_referenceTracker.isRecording()) {
+          return srcmetaFs.rename(metaSrcPath, metaDstPath);
+        }
+        DirectoryAggregate aggregate = null;
+        if (_aggregates != null) {
+          FileStatus srcStatus = getMetaFileStatus(srcmetaFs, metaSrcPath);
+          if (srcStatus == null) {
+            return false;
+          }
+          aggregate = getSubtreeAggregate(srcmetaFs, srcStatus);
+        }
+        FileStatus dstStatus = getMetaFileStatus(dstmetaFs, metaDstPath);
+        Path movedPath = metaDstPath;
+        if (dstStatus != null && dstStatus.isDirectory()) {
+          movedPath = new Path(metaDstPath, metaSrcPath.getName());
+        }
+        if (!srcmetaFs.rename(metaSrcPath, metaDstPath)) {
+          return false;
+        }
+        // a collection walking the meta tree may have passed the destination
+        // before the source
+        recordReferences(movedPath);
+        if (aggregate != null) {
+          applyAggregate(metaSrcPath, negate(aggregate));
+          applyAggregate(movedPath, aggregate);
+        }
+        return true;
+      }
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public boolean delete(Path f, boolean recursive) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(f);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      if (_aggregates == null && !_manifestsEnabled) {
+        if (recursive) {
+          return deleteRecursive(metaFs.getFileStatus(metaPath));
+        } else {
+          return deleteFile(metaFs, metaPath);
+        }
+      }
+      FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+      if (metaFileStatus == null) {
+        return false;
+      }
+      if (recursive && _manifestsEnabled && metaFileStatus.isFile()
+          && !(metaFileStatus instanceof ManifestFileStatus)) {
+        removeShadowedManifestEntry(metaFs, metaPath);
+      }
+      if (_aggregates == null) {
+        if (recursive) {
+          return deleteRecursive(metaFileStatus);
+        } else {
+          return deleteFile(metaFs, metaPath);
+        }
+      }
+      DirectoryAggregate aggregate = getSubtreeAggregate(metaFs, metaFileStatus);
+      boolean result;
+      if (recursive) {
+        result = deleteRecursive(metaFileStatus);
+      } else {
+        result = deleteFile(metaFs, metaPath);
+      }
+      if (result) {
+        applyAggregate(metaPath, negate(aggregate));
+      }
+      return result;
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public FileStatus[] listStatus(Path f) throws FileNotFoundException, IOException {
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "listStatus", f.toString())) {
+      MetaEntry metaEntry = getMetaEntry(f);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      FileStatus metaFileStatus = getListedMetaFileStatus(metaFs, metaPath, f);
+      if (!metaFileStatus.isDirectory()) {
+        return listFile(metaFileStatus).toArray(new FileStatus[] {});
+      }
+      FileStatus[] listStatus = metaFs.listStatus(metaPath);
+      return fixFileStatusList(listStatus);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public RemoteIterator<FileStatus> listStatusIterator(Path p) throws FileNotFoundException, IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(p);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      FileStatus metaFileStatus = getListedMetaFileStatus(metaFs, metaPath, p);
+      if (!metaFileStatus.isDirectory()) {
+        return toRemoteIterator(listFile(metaFileStatus).iterator());
+      }
+      return new MetaStatusIterator(metaFs, metaPath, listMetaStatusIterator(metaFs, metaPath));
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public RemoteIterator<LocatedFileStatus> listFiles(Path f, boolean recursive)
+      throws FileNotFoundException, IOException {
+    if (!recursive || getFileStatus(f).isFile()) {
+      return super.listFiles(f, recursive);
+    }
+    return new FileWalk(f);
+  }
+
+  /**
+   * Resolves the listed path first, a folded file has no meta file of its own
+   * so the meta filesystem cannot list it.
+   */
+  private FileStatus getListedMetaFileStatus(FileSystem metaFs, Path metaPath, Path path) throws IOException {
+    FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+    if (metaFileStatus == null) {
+      throw new FileNotFoundException("Path " + path + " does not exist.");
+    }
+    return metaFileStatus;
+  }
+
+  /**
+   * Like HDFS the listing of a file is the file itself.
+   */
+  private List<FileStatus> listFile(FileStatus metaFileStatus) throws IOException {
+    FileStatus fileStatus = fixFileStatus(metaFileStatus);
+    if (fileStatus == null) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(fileStatus);
+  }
+
+  /**
+   * Only HDFS pages its listing, checksummed filesystems pass the iterator
+   * through to the raw filesystem which exposes the checksum files.
+   */
+  private RemoteIterator<FileStatus> listMetaStatusIterator(FileSystem metaFs, Path metaPath) throws IOException {
+    if (metaFs instanceof DistributedFileSystem) {
+      return metaFs.listStatusIterator(metaPath);
+    }
+    return toRemoteIterator(Arrays.asList(metaFs.listStatus(metaPath))
+                                  .iterator());
+  }
+
+  private static RemoteIterator<FileStatus> toRemoteIterator(Iterator<FileStatus> iterator) {
+    return new RemoteIterator<FileStatus>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public FileStatus next() {
+        return iterator.next();
+      }
+    };
+  }
+
+  @Override
+  protected RemoteIterator<LocatedFileStatus> listLocatedStatus(Path f, PathFilter filter)
+      throws FileNotFoundException, IOException {
+    RemoteIterator<FileStatus> iterator = listStatusIterator(f);
+    return new RemoteIterator<LocatedFileStatus>() {
+
+      private LocatedFileStatus _next;
+
+      @Override
+      public boolean hasNext() throws IOException {
+        while (_next == null && iterator.hasNext()) {
+          FileStatus fileStatus = iterator.next();
+          if (filter.accept(fileStatus.getPath())) {
+            _next = toLocatedFileStatus(fileStatus);
+          }
+        }
+        return _next != null;
+      }
+
+      @Override
+      public LocatedFileStatus next() throws IOException {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        LocatedFileStatus locatedFileStatus = _next;
+        _next = null;
+        return locatedFileStatus;
+      }
+    };
+  }
+
+  private LocatedFileStatus toLocatedFileStatus(FileStatus fileStatus) throws IOException {
+    BlockLocation[] locations = null;
+    if (fileStatus.isFile()) {
+      locations = getFileBlockLocations(fileStatus, 0, fileStatus.getLen());
+    }
+    return new LocatedFileStatus(fileStatus, locations);
+  }
+
+  @Override
+  public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(f);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      if (_aggregates != null) {
+        return mkdirsWithAggregates(metaFs, metaPath, permission);
+      }
+      return metaFs.mkdirs(metaPath, permission);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public FileStatus getFileStatus(Path f) throws IOException {
+    LOGGER.info("getFileStatus {}", f);
+    boolean logError = true;
+    try (TimerCloseable time = TimerUtil.time(LOGGER, "getFileStatus", f.toString())) {
+      MetaEntry metaEntry = getMetaEntry(f);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      FileStatus fileStatus;
+      try {
+        LOGGER.info("getFileStatus from metafs {}", metaPath);
+        fileStatus = metaFs.getFileStatus(metaPath);
+      } catch (FileNotFoundException e) {
+        fileStatus = lookupManifest(metaFs, metaPath);
+        if (fileStatus == null) {
+          LOGGER.info("getFileStatus FileNotFoundException {}", metaPath);
+          logError = false;
+          throw e;
+        }
+      }
+      fileStatus = fixFileStatus(fileStatus);
+      if (fileStatus == null) {
+        logError = false;
+        throw new FileNotFoundException(f.toString());
+      }
+      return fileStatus;
+    } catch (Throwable t) {
+      if (logError) {
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.error(t.getMessage(), t);
+        }
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public AclStatus getAclStatus(Path path) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      try {
+        return metaFs.getAclStatus(metaPath);
+      } catch (FileNotFoundException e) {
+        ManifestFileStatus folded = getFoldedStatus(metaFs, metaPath, e);
+        return new AclStatus.Builder().owner(folded.getOwner())
+                                      .group(folded.getGroup())
+                                      .stickyBit(folded.getPermission()
+                                                       .getStickyBit())
+                                      .build();
+      }
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public void modifyAclEntries(Path path, List<AclEntry> aclSpec) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      if (_manifestsEnabled) {
+        materializeIfCompacted(metaFs, metaPath);
+      }
+      metaFs.modifyAclEntries(metaPath, aclSpec);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+    try {
+      if (isFileCopyXAttrName(name)) {
+        copy(path, new Path(new String(value, StandardCharsets.UTF_8)));
+        return;
+      }
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      if (_manifestsEnabled) {
+        materializeIfCompacted(metaPath.getFileSystem(getConf()), metaPath);
+      }
+      if (isFileLinkXAttrName(name)) {
+        createLink(metaPath, value);
+      } else if (isReservedXAttrName(name)) {
+        throw new IOException("XAttr " + name + " is reserved.");
+      } else {
+        FileSystem metaFs = metaPath.getFileSystem(getConf());
+        metaFs.setXAttr(metaPath, name, value, flag);
+      }
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public byte[] getXAttr(Path path, String name) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      if (isReservedXAttrName(name)) {
+        throw new IOException("XAttr " + name + " is reserved.");
+      }
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      try {
+        return metaFs.getXAttr(metaPath, name);
+      } catch (FileNotFoundException e) {
+        getFoldedStatus(metaFs, metaPath, e);
+        throw new IOException("XAttr " + name + " does not exist on " + path + ".");
+      }
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      try {
+        return removeReservedXAttrs(metaFs.getXAttrs(metaPath));
+      } catch (FileNotFoundException e) {
+        getFoldedStatus(metaFs, metaPath, e);
+        return new HashMap<>();
+      }
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public Map<String, byte[]> getXAttrs(Path path, List<String> names) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      for (String name : names) {
+        if (isReservedXAttrName(name)) {
+          throw new IOException("XAttr " + name + " is reserved.");
+        }
+      }
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      try {
+        return metaFs.getXAttrs(metaPath, names);
+      } catch (FileNotFoundException e) {
+        getFoldedStatus(metaFs, metaPath, e);
+        if (!names.isEmpty()) {
+          throw new IOException("XAttrs " + names + " do not exist on " + path + ".");
+        }
+        return new HashMap<>();
+      }
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public List<String> listXAttrs(Path path) throws IOException {
     try {
       MetaEntry metaEntry = getMetaEntry(path);
       Path metaPath = metaEntry.getMetaPath();
-      if (isFileLinkXAttrName(name)) {
-        createLink(metaPath, value);
-      } else {
-        FileSystem metaFs = metaPath.getFileSystem(getConf());
-        metaFs.setXAttr(metaPath, name, value, flag);
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      List<String> names;
+      try {
+        names = metaFs.listXAttrs(metaPath);
+      } catch (FileNotFoundException e) {
+        getFoldedStatus(metaFs, metaPath, e);
+        return new ArrayList<>();
+      }
+      if (names == null) {
+        return null;
+      }
+      List<String> result = new ArrayList<>(names);
+      result.removeIf(this::isReservedXAttrName);
+      return result;
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public void removeXAttr(Path path, String name) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      if (isReservedXAttrName(name)) {
+        throw new IOException("XAttr " + name + " is reserved.");
+      }
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      if (_manifestsEnabled) {
+        materializeIfCompacted(metaFs, metaPath);
+      }
+      metaFs.removeXAttr(metaPath, name);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public Path getHomeDirectory() {
+    try {
+      return makeQualified(new Path(USER_HOME_DIR_PREFIX + UserGroupInformation.getCurrentUser()
+                                                                               .getShortUserName()));
+    } catch (IllegalArgumentException | IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void setPermission(Path p, FsPermission permission) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(p);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      materializeIfCompacted(metaFs, metaPath);
+      metaFs.setPermission(metaPath, permission);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public void setOwner(Path p, String username, String groupname) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(p);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      materializeIfCompacted(metaFs, metaPath);
+      metaFs.setOwner(metaPath, username, groupname);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public void setAcl(Path path, List<AclEntry> aclSpec) throws IOException {
+    try {
+      MetaEntry metaEntry = getMetaEntry(path);
+      Path metaPath = metaEntry.getMetaPath();
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      if (_manifestsEnabled) {
+        materializeIfCompacted(metaFs, metaPath);
+      }
+      metaFs.setAcl(metaPath, aclSpec);
+    } catch (Throwable t) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.error(t.getMessage(), t);
+      }
+      throw t;
+    }
+  }
+
+  @Override
+  public void setWorkingDirectory(Path new_dir) {
+    _workingDir = new_dir;
+  }
+
+  @Override
+  public Path getWorkingDirectory() {
+    return _workingDir;
+  }
+
+  @Override
+  public String getScheme() {
+    return "metadata";
+  }
+
+  @Override
+  public URI getUri() {
+    return _fsUri;
+  }
+
+  /**
+   * Protected methods
+   */
+
+  /**
+   * Create a new data path under one of the data roots.
+   */
+  protected Path createDataPath(Path metaPath) throws IOException {
+    return placeDataPath(createDataName());
+  }
+
+  private String createDataName() {
+    UUID uuid = UUID.randomUUID();
+    long mostSigBits = uuid.getMostSignificantBits();
+    long leastSigBits = uuid.getLeastSignificantBits();
+    return digits(mostSigBits >> 32, 8) + "-" + digits(mostSigBits >> 16, 4) + "-" + digits(mostSigBits, 4) + "-"
+        + digits(leastSigBits >> 48, 4) + "-" + digits(leastSigBits, 12);
+  }
+
+  /**
+   * Places the data object name under a data root. With a data path prefix
+   * length of N the name is placed below a directory of N hex characters
+   * taken from the hash of the name, which spreads the requests of object
+   * stores over 16^N prefixes. Data entries record the full data path so
+   * existing data stays readable when the prefix length changes.
+   */
+  private Path placeDataPath(String name) throws IOException {
+    Path dataRoot = _dataRoots.select(name);
+    if (_dataPathPrefixLength == 0) {
+      return new Path(dataRoot, name);
+    }
+    int hash = Hashing.murmur3_32()
+                      .hashString(name, StandardCharsets.UTF_8)
+                      .asInt();
+    return new Path(new Path(dataRoot, digits(hash, _dataPathPrefixLength)), name);
+  }
+
+  /**
+   * Store the data path for the given meta path.
+   */
+  protected void storeDataPath(FSDataOutputStream output, DataEntry storageEntry) throws IOException {
+    OBJECT_MAPPER.writeValue(output, storageEntry);
+  }
+
+  /**
+   * Private methods
+   */
+
+  private FSDataOutputStream createDataOutputStream(Path dataPath, int bufferSize, Progressable progress)
+      throws IOException {
+    UserGroupInformation dataUgi = getDataUgi();
+    try {
+      return dataUgi.doAs((PrivilegedExceptionAction<FSDataOutputStream>) () -> {
+        FileSystem dataFs = dataPath.getFileSystem(getConf());
+
+        FsPermission dataPermission = FsCreateModes.applyUMask(FsPermission.getFileDefault(),
+            FsPermission.getUMask(getConf()));
+        short dataReplication = dataFs.getDefaultReplication(dataPath);
+        long dataBlockSize = dataFs.getDefaultBlockSize(dataPath);
+        return dataFs.create(dataPath, dataPermission, false, bufferSize, dataReplication, dataBlockSize, progress);
+      });
+    } catch (FileAlreadyExistsException e) {
+      throw e;
+    } catch (IOException e) {
+      _dataRoots.markFailed(dataPath);
+      throw e;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private UserGroupInformation getDataUgi() throws IOException {
+    if (_dataUgi == null) {
+      return UserGroupInformation.getCurrentUser();
+    }
+    _dataUgi.checkTGTAndReloginFromKeytab();
+    return _dataUgi;
+  }
+
+  /**
+   * Called once the data stream has been closed with the number of bytes
+   * written and the checksum of the data (null if not enabled).
+   */
+  interface CloseTrigger {
+    void close(long length, String checksum) throws IOException;
+  }
+
+  /**
+   * The digest wraps the underlying stream so it also sees the bytes of the
+   * DataOutputStream methods, which bypass the write methods of this class.
+   */
+  class RemoteFSDataOutputStream extends FSDataOutputStream {
+
+    private final CloseTrigger _trigger;
+    private final MessageDigest _digest;
+    private boolean _closed;
+
+    public RemoteFSDataOutputStream(OutputStream out, Statistics stats, MessageDigest digest, CloseTrigger trigger)
+        throws IOException {
+      this(out, stats, digest, 0, trigger);
+    }
+
+    public RemoteFSDataOutputStream(OutputStream out, Statistics stats, MessageDigest digest, long startPosition,
+        CloseTrigger trigger) throws IOException {
+      super(digest == null ? out : new DigestOutputStream(out, digest), stats, startPosition);
+      _digest = digest;
+      _trigger = trigger;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      long length = getPos();
+      super.close();
+      String checksum = null;
+      if (_digest != null) {
+        checksum = _digest.getAlgorithm() + ":" + StringUtils.byteToHexString(_digest.digest());
+      }
+      _trigger.close(length, checksum);
+    }
+
+  }
+
+  private MessageDigest createMessageDigest() throws IOException {
+    if (_checksumAlgorithm == null) {
+      return null;
+    }
+    try {
+      return MessageDigest.getInstance(_checksumAlgorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Rewrites the data entry with the final length, modification time and
+   * checksum of the data, and the pack location or the content if the data
+   * was packed or inlined. The entry is left alone if the file has been
+   * overwritten or deleted while the stream was open. A file folded into the
+   * manifest while the stream was open is written back first.
+   */
+  private void finishDataEntry(Path metaPath, DataEntry dataEntry, long length, String checksum,
+      PackLocation packLocation, byte[] content) throws IOException {
+    synchronized (getMetaDirLock(metaPath)) {
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      FileStatus metaFileStatus;
+      DataEntry currentDataEntry;
+      try {
+        materializeOpenEntry(metaFs, metaPath);
+        metaFileStatus = metaFs.getFileStatus(metaPath);
+        currentDataEntry = getDataEntry(metaFileStatus);
+      } catch (FileNotFoundException e) {
+        LOGGER.info("Meta path {} removed before data entry could be finished", metaPath);
+        return;
+      }
+      if (currentDataEntry == null || !dataEntry.getManagementId()
+                                                .equals(currentDataEntry.getManagementId())) {
+        LOGGER.info("Meta path {} replaced before data entry could be finished", metaPath);
+        return;
+      }
+      long modificationTime = System.currentTimeMillis();
+      DataEntry.DataEntryBuilder builder = currentDataEntry.toBuilder()
+                                                           .length(length)
+                                                           .modificationTime(modificationTime)
+                                                           .checksum(checksum);
+      if (packLocation != null) {
+        builder.dataPathUri(packLocation.getPackPath()
+                                        .toUri()
+                                        .toString())
+               .packOffset(packLocation.getOffset());
+      }
+      builder.content(content);
+      replaceDataEntry(metaFs, metaFileStatus, builder.build(), modificationTime);
+      if (_aggregates != null) {
+        applyAggregate(metaPath, new DirectoryAggregate(0, 0, length));
+      }
+    }
+  }
+
+  /**
+   * Points the data entry of the meta path at a rewritten pack, if the meta
+   * path still has the given data entry. Returns false if the entry has been
+   * removed, moved or replaced.
+   */
+  boolean relocateDataEntry(Path metaPath, DataEntry dataEntry, DataEntry relocatedDataEntry) throws IOException {
+    synchronized (getMetaDirLock(metaPath)) {
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      FileStatus metaFileStatus;
+      try {
+        metaFileStatus = metaFs.getFileStatus(metaPath);
+      } catch (FileNotFoundException e) {
+        return false;
+      }
+      if (!dataEntry.equals(getDataEntry(metaFileStatus))) {
+        return false;
+      }
+      replaceDataEntry(metaFs, metaFileStatus, relocatedDataEntry, metaFileStatus.getModificationTime());
+      return true;
+    }
+  }
+
+  /**
+   * Replaces the data entry of an existing meta file. Everything else about
+   * the meta file is kept, only the modification time is set to the given
+   * time. Meta files in the xattr layout are updated in place.
+   */
+  private void replaceDataEntry(FileSystem metaFs, FileStatus metaFileStatus, DataEntry dataEntry,
+      long modificationTime) throws IOException {
+    Path metaPath = metaFileStatus.getPath();
+    if (metaFileStatus.getLen() == 0) {
+      metaFs.setXAttr(metaPath, DATA_ENTRY_XATTR_NAME, OBJECT_MAPPER.writeValueAsBytes(dataEntry));
+      if (modificationTime != metaFileStatus.getModificationTime()) {
+        metaFs.setTimes(metaPath, modificationTime, -1);
+      }
+      invalidateDataEntry(metaPath);
+    } else {
+      writeDataEntry(metaFs, metaPath, dataEntry, metaFileStatus.getPermission(), true,
+          metaFileStatus.getReplication(), metaFileStatus.getBlockSize(), metaFileStatus, modificationTime);
+    }
+  }
+
+  private void createLink(Path metaPath, byte[] value) throws IOException {
+    synchronized (getMetaDirLock(metaPath)) {
+      String pathStr = new String(value);
+      Path dataPath = new Path(pathStr);
+      FileSystem dataFs = dataPath.getFileSystem(getConf());
+      dataPath = dataFs.makeQualified(dataPath);
+      FileStatus fileStatus = dataFs.getFileStatus(dataPath);
+      if (fileStatus == null) {
+        throw new IOException("Data path " + dataPath + " does not exist.");
+      }
+      if (!fileStatus.isFile()) {
+        throw new IOException("Data path " + dataPath + " is not a file.");
+      }
+      FileSystem metaFs = metaPath.getFileSystem(getConf());
+      FileStatus metaFileStatus = metaFs.getFileStatus(metaPath);
+      if (metaFileStatus == null) {
+        throw new IOException("Meta path " + metaPath + " does not exist.");
       }
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      if (!metaFileStatus.isFile()) {
+        throw new IOException("Meta path " + metaPath + " is not a file.");
+      }
+      DirectoryAggregate previous = null;
+      if (_aggregates != null) {
+        previous = getSubtreeAggregate(metaFs, metaFileStatus);
+      }
+      String dataUri = dataPath.toUri()
+                               .toString();
+      DataEntry dataEntry = DataEntry.builder()
+                                     .dataPathUri(dataUri)
+                                     .managed(false)
+                                     .length(fileStatus.getLen())
+                                     .modificationTime(fileStatus.getModificationTime())
+                                     .build();
+      replaceDataEntry(metaFs, metaFileStatus, dataEntry, System.currentTimeMillis());
+      if (_aggregates != null) {
+        applyAggregate(metaPath, negate(previous).plus(new DirectoryAggregate(1, 0, fileStatus.getLen())));
       }
-      throw t;
     }
   }
 
-  @Override
-  public byte[] getXAttr(Path path, String name) throws IOException {
-    try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      return metaFs.getXAttr(metaPath, name);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+  /**
+   * Creates the meta directory and records an aggregate on every directory
+   * created below the meta root. Concurrent creation of the same directory can
+   * be counted twice until the next verification.
+   */
+  private boolean mkdirsWithAggregates(FileSystem metaFs, Path metaPath, FsPermission permission)
+      throws IOException {
+    List<Path> created = new ArrayList<>();
+    for (Path dir = metaPath; dir != null && isAncestor(_metaPath, dir) && getMetaFileStatus(metaFs, dir) == null;
+        dir = dir.getParent()) {
+      created.add(dir);
+    }
+    if (!metaFs.mkdirs(metaPath, permission)) {
+      return false;
+    }
+    if (!created.isEmpty()) {
+      for (int i = 0; i < created.size(); i++) {
+        _aggregates.put(metaFs, created.get(i), new DirectoryAggregate(0, i, 0));
       }
-      throw t;
+      applyAggregate(created.get(created.size() - 1), new DirectoryAggregate(0, created.size(), 0));
     }
+    return true;
   }
 
-  @Override
-  public Map<String, byte[]> getXAttrs(Path path) throws IOException {
-    try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      return metaFs.getXAttrs(metaPath);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+  /**
+   * Returns the aggregate of the meta path including the path itself, null if
+   * the path is a directory without a known aggregate.
+   */
+  private DirectoryAggregate getSubtreeAggregate(FileSystem metaFs, FileStatus metaFileStatus) throws IOException {
+    if (metaFileStatus.isDirectory()) {
+      DirectoryAggregate aggregate = _aggregates.get(metaFs, metaFileStatus.getPath());
+      if (aggregate == null) {
+        return null;
       }
-      throw t;
+      return aggregate.plus(new DirectoryAggregate(0, 1, 0));
     }
+    FileStatus fileStatus = fixFileStatus(metaFileStatus);
+    return new DirectoryAggregate(1, 0, fileStatus == null ? 0 : fileStatus.getLen());
   }
 
-  @Override
-  public Map<String, byte[]> getXAttrs(Path path, List<String> names) throws IOException {
+  private DirectoryAggregate negate(DirectoryAggregate aggregate) {
+    if (aggregate == null) {
+      return null;
+    }
+    return aggregate.negate();
+  }
+
+  /**
+   * Aggregate updates never fail the change itself, the verifier reconciles
+   * any aggregate that could not be updated.
+   */
+  private void applyAggregate(Path metaPath, DirectoryAggregate delta) {
     try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
       FileSystem metaFs = metaPath.getFileSystem(getConf());
-      return metaFs.getXAttrs(metaPath, names);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      _aggregates.apply(metaFs, metaPath, delta);
+    } catch (IOException e) {
+      LOGGER.warn("Could not update aggregates for " + metaPath, e);
+    }
+  }
+
+  private FileStatus getMetaFileStatus(FileSystem metaFs, Path metaPath) throws IOException {
+    try {
+      return metaFs.getFileStatus(metaPath);
+    } catch (FileNotFoundException e) {
+      return lookupManifest(metaFs, metaPath);
+    }
+  }
+
+  private FileStatus getRawMetaFileStatus(FileSystem metaFs, Path metaPath) throws IOException {
+    try {
+      return metaFs.getFileStatus(metaPath);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  private void invalidateDataEntry(Path metaPath) {
+    if (_dataEntryCache != null) {
+      _dataEntryCache.invalidate(metaPath);
+    }
+  }
+
+  private void invalidateDataEntries(Path metaPath) {
+    if (_dataEntryCache != null) {
+      _dataEntryCache.invalidateRecursive(metaPath);
+    }
+  }
+
+  private boolean isFileLinkXAttrName(String name) {
+    return name.equals("trusted.file.link");
+  }
+
+  private static boolean isAncestor(Path ancestor, Path path) {
+    for (Path p = path; p != null; p = p.getParent()) {
+      if (p.equals(ancestor)) {
+        return true;
       }
-      throw t;
     }
+    return false;
   }
 
-  @Override
-  public List<String> listXAttrs(Path path) throws IOException {
+  private boolean isFileCopyXAttrName(String name) {
+    return name.equals("trusted.file.copy");
+  }
+
+  /**
+   * Returns the data objects of a removed data entry that can be reclaimed,
+   * shared data objects only once the last reference is released. With a
+   * .references.path every data object is checked since the owner of copied
+   * data is not marked, which costs a lookup per removed data object.
+   */
+  private List<Path> releaseDataPaths(DataEntry dataEntry) throws IOException {
+    if (_dataReferences == null && !dataEntry.isShared()) {
+      return dataEntry.getReclaimablePaths();
+    }
+    List<Path> dataPaths = new ArrayList<>();
+    for (Path dataPath : dataEntry.getReclaimablePaths()) {
+      if (getDataReferences().release(dataPath, dataEntry.getManagementId())) {
+        dataPaths.add(dataPath);
+      }
+    }
+    return dataPaths;
+  }
+
+  /**
+   * Returns true if copies reference any data object of the entry.
+   */
+  private boolean isReferenced(DataEntry dataEntry) throws IOException {
+    if (_dataReferences == null) {
+      return dataEntry.isShared();
+    }
+    for (Path dataPath : dataEntry.getReclaimablePaths()) {
+      if (_dataReferences.getCount(dataPath) > 0) {
+        return true;
+      }
+    }
+    return dataEntry.isShared();
+  }
+
+  private DataReferences getDataReferences() throws IOException {
+    if (_dataReferences == null) {
+      throw new IOException("Property missing " + getConfigPrefix() + REFERENCES_PATH_SUFFIX);
+    }
+    return _dataReferences;
+  }
+
+  private static String digits(long val, int digits) {
+    long hi = 1L << (digits * 4);
+    return Long.toHexString(hi | (val & (hi - 1)))
+               .substring(1);
+  }
+
+  /**
+   * Deletes the meta tree in parallel, the data of the deleted files is
+   * removed asynchronously by the data reclaimer.
+   */
+  private boolean deleteRecursive(FileStatus metaFileStatus) throws IOException {
+    if (metaFileStatus == null) {
+      return false;
+    }
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
     try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
+      return _deletePool.invoke(new DeleteTask(ugi, metaFileStatus));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private class DeleteTask extends RecursiveTask<Boolean> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final UserGroupInformation _ugi;
+    private final FileStatus _metaFileStatus;
+
+    DeleteTask(UserGroupInformation ugi, FileStatus metaFileStatus) {
+      _ugi = ugi;
+      _metaFileStatus = metaFileStatus;
+    }
+
+    @Override
+    protected Boolean compute() {
+      try {
+        return _ugi.doAs((PrivilegedExceptionAction<Boolean>) () -> delete());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (InterruptedException e) {
+        throw new UncheckedIOException(new InterruptedIOException(e.getMessage()));
+      }
+    }
+
+    private boolean delete() throws IOException {
+      Path metaPath = _metaFileStatus.getPath();
       FileSystem metaFs = metaPath.getFileSystem(getConf());
-      return metaFs.listXAttrs(metaPath);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      if (!_metaFileStatus.isDirectory()) {
+        return deleteFile(metaFs, _metaFileStatus);
       }
-      throw t;
+      FileStatus[] listStatus = metaFs.listStatus(metaPath);
+      if (listStatus == null) {
+        return false;
+      }
+      List<DeleteTask> tasks = new ArrayList<>();
+      for (FileStatus status : listStatus) {
+        if (isTempDataEntry(status.getPath())) {
+          metaFs.delete(status.getPath(), false);
+        } else if (Manifests.isManifest(status.getPath())) {
+          reclaimManifest(metaFs, status, listStatus);
+          metaFs.delete(status.getPath(), false);
+        } else {
+          tasks.add(new DeleteTask(_ugi, status));
+        }
+      }
+      boolean result = true;
+      for (DeleteTask task : invokeAll(tasks)) {
+        if (!task.join()) {
+          result = false;
+        }
+      }
+      if (result) {
+        return metaFs.delete(metaPath, false);
+      }
+      return result;
     }
+
   }
 
-  @Override
-  public void removeXAttr(Path path, String name) throws IOException {
+  /**
+   * Copies the meta tree in parallel, live destinations are counted in the
+   * directory aggregates. Snapshots and restores keep the owners and groups
+   * of the source.
+   */
+  private void copyTree(FileStatus metaSrcStatus, Path metaDstPath, boolean live, boolean preserveOwner)
+      throws IOException {
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
     try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      metaFs.removeXAttr(metaPath, name);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      _copyPool.invoke(new CopyTask(ugi, metaSrcStatus, metaDstPath, live, preserveOwner));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private class CopyTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final UserGroupInformation _ugi;
+    private final FileStatus _metaSrcStatus;
+    private final Path _metaDstPath;
+    private final boolean _live;
+    private final boolean _preserveOwner;
+
+    CopyTask(UserGroupInformation ugi, FileStatus metaSrcStatus, Path metaDstPath, boolean live,
+        boolean preserveOwner) {
+      _ugi = ugi;
+      _metaSrcStatus = metaSrcStatus;
+      _metaDstPath = metaDstPath;
+      _live = live;
+      _preserveOwner = preserveOwner;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        _ugi.doAs((PrivilegedExceptionAction<Void>) () -> {
+          copy();
+          return null;
+        });
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (InterruptedException e) {
+        throw new UncheckedIOException(new InterruptedIOException(e.getMessage()));
       }
-      throw t;
     }
+
+    private void copy() throws IOException {
+      FileSystem metaDstFs = _metaDstPath.getFileSystem(getConf());
+      if (!_metaSrcStatus.isDirectory()) {
+        copyFile(_metaSrcStatus, _metaDstPath, _live);
+        if (_preserveOwner) {
+          preserveOwner(metaDstFs, _metaSrcStatus, _metaDstPath);
+        }
+        return;
+      }
+      if (_live && _aggregates != null) {
+        mkdirsWithAggregates(metaDstFs, _metaDstPath, _metaSrcStatus.getPermission());
+      } else {
+        metaDstFs.mkdirs(_metaDstPath, _metaSrcStatus.getPermission());
+      }
+      if (_preserveOwner) {
+        preserveOwner(metaDstFs, _metaSrcStatus, _metaDstPath);
+      }
+      Path metaSrcPath = _metaSrcStatus.getPath();
+      FileStatus[] listStatus = metaSrcPath.getFileSystem(getConf())
+                                           .listStatus(metaSrcPath);
+      List<CopyTask> tasks = new ArrayList<>();
+      for (FileStatus status : getVisibleMetaStatus(listStatus)) {
+        tasks.add(new CopyTask(_ugi, status, new Path(_metaDstPath, status.getPath()
+                                                                          .getName()), _live, _preserveOwner));
+      }
+      invokeAll(tasks);
+    }
+
   }
 
-  @Override
-  public Path getHomeDirectory() {
+  /**
+   * Gives the copy the owner and group of the source. Changing the owner
+   * usually takes a superuser, if the meta filesystem refuses the copy keeps
+   * the current user.
+   */
+  private void preserveOwner(FileSystem metaDstFs, FileStatus metaSrcStatus, Path metaDstPath) throws IOException {
+    FileStatus metaDstStatus = metaDstFs.getFileStatus(metaDstPath);
+    if (metaDstStatus.getOwner()
+                     .equals(metaSrcStatus.getOwner())
+        && metaDstStatus.getGroup()
+                        .equals(metaSrcStatus.getGroup())) {
+      return;
+    }
     try {
-      return makeQualified(new Path(USER_HOME_DIR_PREFIX + UserGroupInformation.getCurrentUser()
-                                                                               .getShortUserName()));
-    } catch (IllegalArgumentException | IOException e) {
-      throw new RuntimeException(e);
+      metaDstFs.setOwner(metaDstPath, metaSrcStatus.getOwner(), metaSrcStatus.getGroup());
+    } catch (AccessControlException e) {
+      LOGGER.warn("Could not keep owner {} and group {} of {} for {}", metaSrcStatus.getOwner(),
+          metaSrcStatus.getGroup(), metaSrcStatus.getPath(), metaDstPath);
     }
   }
 
-  @Override
-  public void setPermission(Path p, FsPermission permission) throws IOException {
+  /**
+   * Writes a copy of the data entry of the source to the destination. The
+   * copy takes a reference to every data object, the source stays as it is
+   * since it owns the data without a reference. The source is checked again
+   * after that, a source removed (or concatenated) in between may already
+   * have reclaimed the data, the reference of the copy is then released. A
+   * source removed after the reference was taken left the data to the copy,
+   * which reclaims it with its last reference.
+   */
+  private void copyFile(FileStatus metaSrcStatus, Path metaDstPath, boolean live) throws IOException {
+    Path metaSrcPath = metaSrcStatus.getPath();
+    FileSystem metaFs = metaSrcPath.getFileSystem(getConf());
+    FileSystem metaDstFs = metaDstPath.getFileSystem(getConf());
+    if (live && lookupManifest(metaDstFs, metaDstPath) != null) {
+      throw new FileAlreadyExistsException("Meta path " + metaDstPath + " already exists.");
+    }
+    DataEntry dataEntry = getDataEntry(metaSrcStatus);
+    if (dataEntry == null) {
+      dataEntry = getDataEntry(metaSrcPath, true);
+    }
+    List<Path> dataPaths = dataEntry.getReclaimablePaths();
+    DataEntry copiedDataEntry = dataEntry.toBuilder()
+                                         .managementId(UUID.randomUUID()
+                                                           .toString())
+                                         .modificationTime(System.currentTimeMillis())
+                                         .shared(dataEntry.isShared() || !dataPaths.isEmpty())
+                                         .build();
+    boolean written = false;
     try {
-      MetaEntry metaEntry = getMetaEntry(p);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      metaFs.setPermission(metaPath, permission);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+      for (Path dataPath : dataPaths) {
+        getDataReferences().acquire(dataPath, copiedDataEntry.getManagementId());
       }
-      throw t;
+      DataEntry currentDataEntry = getMetaFileStatus(metaFs, metaSrcPath) == null ? null
+          : getDataEntry(metaSrcPath, false);
+      if (currentDataEntry == null || !currentDataEntry.isManaged() || !Objects.equals(dataEntry.getManagementId(),
+          currentDataEntry.getManagementId())) {
+        throw new FileNotFoundException("Meta path " + metaSrcPath + " was removed during copy.");
+      }
+      writeDataEntry(metaDstFs, metaDstPath, copiedDataEntry, metaSrcStatus.getPermission(), false,
+          metaSrcStatus.getReplication(), metaSrcStatus.getBlockSize());
+      recordReferences(metaDstPath);
+      written = true;
+    } finally {
+      if (!written) {
+        UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+        for (Path dataPath : dataPaths) {
+          if (getDataReferences().release(dataPath, copiedDataEntry.getManagementId())) {
+            _dataReclaimer.reclaim(ugi, dataPath);
+          }
+        }
+      }
+    }
+    if (live && _aggregates != null) {
+      applyAggregate(metaDstPath, new DirectoryAggregate(1, 0, copiedDataEntry.getLength() == null ? 0
+          : copiedDataEntry.getLength()));
     }
   }
 
-  @Override
-  public void setOwner(Path p, String username, String groupname) throws IOException {
-    try {
-      MetaEntry metaEntry = getMetaEntry(p);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      metaFs.setOwner(metaPath, username, groupname);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+  private boolean deleteFile(FileSystem metaFs, Path metaPath) throws IOException {
+    synchronized (getMetaDirLock(metaPath)) {
+      if (_manifestsEnabled) {
+        FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+        if (metaFileStatus instanceof ManifestFileStatus) {
+          return deleteManifestEntry(metaFs, (ManifestFileStatus) metaFileStatus, false);
+        }
+        if (metaFileStatus != null && metaFileStatus.isFile()) {
+          removeShadowedManifestEntry(metaFs, metaPath);
+        }
+      }
+      DataEntry storageEntry = getDataEntry(metaPath, true);
+      if (storageEntry != null) {
+        boolean result = metaFs.delete(metaPath, false);
+        invalidateDataEntry(metaPath);
+        if (result) {
+          for (Path dataPath : releaseDataPaths(storageEntry)) {
+            if (!dataPath.getFileSystem(getConf())
+                         .delete(dataPath, false)) {
+              LOGGER.warn("Could not remove {}", dataPath);
+            }
+          }
+        }
+        return result;
+      } else {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Deletes the meta file and queues its data for reclamation.
+   */
+  private boolean deleteFile(FileSystem metaFs, FileStatus metaFileStatus) throws IOException {
+    synchronized (getMetaDirLock(metaFileStatus.getPath())) {
+      if (metaFileStatus instanceof ManifestFileStatus) {
+        return deleteManifestEntry(metaFs, (ManifestFileStatus) metaFileStatus, true);
+      }
+      Path metaPath = metaFileStatus.getPath();
+      DataEntry storageEntry = getDataEntry(metaFileStatus);
+      if (storageEntry == null) {
+        storageEntry = getDataEntry(metaPath, true);
+      }
+      if (storageEntry == null) {
+        return false;
+      }
+      boolean result = metaFs.delete(metaPath, false);
+      invalidateDataEntry(metaPath);
+      if (result) {
+        for (Path dataPath : releaseDataPaths(storageEntry)) {
+          _dataReclaimer.reclaim(UserGroupInformation.getCurrentUser(), dataPath);
+        }
+      }
+      return result;
+    }
+  }
+
+  private FileStatus[] fixFileStatusList(FileStatus[] listStatus) throws IOException {
+    if (listStatus == null) {
+      return null;
+    }
+    listStatus = getVisibleMetaStatus(listStatus);
+    if (_listExecutor == null || listStatus.length <= 1) {
+      List<FileStatus> result = new ArrayList<>();
+      for (int i = 0; i < listStatus.length; i++) {
+        FileStatus fileStatus = fixFileStatus(listStatus[i]);
+        if (fileStatus != null) {
+          result.add(fileStatus);
+        }
       }
-      throw t;
+      return result.toArray(new FileStatus[] {});
     }
+    return fixFileStatusListInParallel(listStatus);
   }
 
-  @Override
-  public void setAcl(Path path, List<AclEntry> aclSpec) throws IOException {
-    try {
-      MetaEntry metaEntry = getMetaEntry(path);
-      Path metaPath = metaEntry.getMetaPath();
-      FileSystem metaFs = metaPath.getFileSystem(getConf());
-      metaFs.setAcl(metaPath, aclSpec);
-    } catch (Throwable t) {
-      if (LOGGER.isDebugEnabled()) {
-        LOGGER.error(t.getMessage(), t);
+  /**
+   * Drops temporary meta files from a meta directory listing and adds the
+   * live entries of its manifest.
+   */
+  private FileStatus[] getVisibleMetaStatus(FileStatus[] listStatus) throws IOException {
+    List<FileStatus> visible = new ArrayList<>(listStatus.length);
+    FileStatus manifestStatus = null;
+    for (FileStatus fileStatus : listStatus) {
+      if (Manifests.isManifest(fileStatus.getPath())) {
+        manifestStatus = fileStatus;
+      } else if (!isTempDataEntry(fileStatus.getPath())) {
+        visible.add(fileStatus);
       }
-      throw t;
     }
+    if (manifestStatus != null && _manifestsEnabled) {
+      addManifestEntries(manifestStatus, visible);
+    }
+    if (visible.size() != listStatus.length) {
+      return visible.toArray(new FileStatus[] {});
+    }
+    return listStatus;
   }
 
-  @Override
-  public void setWorkingDirectory(Path new_dir) {
-    _workingDir = new_dir;
+  /**
+   * Resolves the data entries of the children concurrently, the order of the
+   * listing is kept and the first failure (in listing order) is rethrown.
+   */
+  private FileStatus[] fixFileStatusListInParallel(FileStatus[] listStatus) throws IOException {
+    List<Future<FileStatus>> futures = submitFixFileStatus(UserGroupInformation.getCurrentUser(),
+        Arrays.asList(listStatus));
+    try {
+      List<FileStatus> result = new ArrayList<>();
+      for (Future<FileStatus> future : futures) {
+        FileStatus fileStatus = getFixedFileStatus(future);
+        if (fileStatus != null) {
+          result.add(fileStatus);
+        }
+      }
+      return result.toArray(new FileStatus[] {});
+    } finally {
+      cancel(futures);
+    }
   }
 
-  @Override
-  public Path getWorkingDirectory() {
-    return _workingDir;
+  private List<Future<FileStatus>> submitFixFileStatus(UserGroupInformation ugi, List<FileStatus> metaFileStatuses)
+      throws IOException {
+    List<Future<FileStatus>> futures = new ArrayList<>(metaFileStatuses.size());
+    for (FileStatus metaFileStatus : metaFileStatuses) {
+      if (_listExecutor == null) {
+        futures.add(CompletableFuture.completedFuture(fixFileStatus(metaFileStatus)));
+      } else {
+        futures.add(_listExecutor.submit(
+            () -> ugi.doAs((PrivilegedExceptionAction<FileStatus>) () -> fixFileStatus(metaFileStatus))));
+      }
+    }
+    return futures;
   }
 
-  @Override
-  public String getScheme() {
-    return "metadata";
+  private FileStatus getFixedFileStatus(Future<FileStatus> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
   }
 
-  @Override
-  public URI getUri() {
-    return _fsUri;
+  private void cancel(List<Future<FileStatus>> futures) {
+    if (futures != null) {
+      for (Future<FileStatus> future : futures) {
+        future.cancel(true);
+      }
+    }
   }
 
   /**
-   * Protected methods
+   * Walks a directory tree on the walk pool, every directory is listed by its
+   * own task so idle workers steal subtrees from busy ones. Files are handed to
+   * the caller through a bounded queue as they are discovered, a walk that
+   * cannot make progress for the walk timeout is aborted. Closing the iterator
+   * aborts the walk, so does dropping it once it is garbage collected.
    */
+  private class FileWalk implements RemoteIterator<LocatedFileStatus>, Closeable {
+
+    private final WalkState _state;
+    private LocatedFileStatus _next;
+    private boolean _finished;
+
+    FileWalk(Path path) throws IOException {
+      _state = new WalkState(this);
+      // the walk must not reference the iterator
+      WalkState state = _state;
+      WalkTask task = new WalkTask(state, path);
+      _walkPool.execute(() -> {
+        try {
+          task.invoke();
+        } catch (UncheckedIOException e) {
+          state._error = e.getCause();
+        } catch (Throwable t) {
+          state._error = t;
+        } finally {
+          try {
+            state.offer(END_OF_WALK);
+          } catch (IOException e) {
+            LOGGER.debug("Walk of {} abandoned", path);
+          }
+        }
+      });
+    }
 
-  /**
-   * Create a new data path.
-   */
-  protected Path createDataPath(Path metaPath) {
-    UUID uuid = UUID.randomUUID();
-    long mostSigBits = uuid.getMostSignificantBits();
-    long leastSigBits = uuid.getLeastSignificantBits();
-    String path = digits(mostSigBits >> 32, 8) + "-" + digits(mostSigBits >> 16, 4) + "-" + digits(mostSigBits, 4) + "-"
-        + digits(leastSigBits >> 48, 4) + "-" + digits(leastSigBits, 12);
-    return new Path(_dataPath, path);
-  }
+    @Override
+    public boolean hasNext() throws IOException {
+      if (_next != null) {
+        return true;
+      }
+      if (_finished) {
+        return false;
+      }
+      LocatedFileStatus status;
+      try {
+        status = _state._queue.poll(_walkTimeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        close();
+        throw new InterruptedIOException(e.getMessage());
+      }
+      if (status == null) {
+        close();
+        throw new IOException("Timed out waiting on listing after " + _walkTimeout + " ms");
+      }
+      if (status == END_OF_WALK) {
+        _finished = true;
+        Throwable error = _state._error;
+        if (error instanceof IOException) {
+          throw (IOException) error;
+        } else if (error instanceof RuntimeException) {
+          throw (RuntimeException) error;
+        } else if (error != null) {
+          throw new IOException(error);
+        }
+        return false;
+      }
+      _next = status;
+      return true;
+    }
+
+    @Override
+    public LocatedFileStatus next() throws IOException {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      LocatedFileStatus status = _next;
+      _next = null;
+      return status;
+    }
+
+    @Override
+    public void close() {
+      _finished = true;
+      _next = null;
+      _state._aborted = true;
+      _state._queue.clear();
+    }
 
-  /**
-   * Store the data path for the given meta path.
-   */
-  protected void storeDataPath(FSDataOutputStream output, DataEntry storageEntry) throws IOException {
-    OBJECT_MAPPER.writeValue(output, storageEntry);
   }
 
   /**
-   * Private methods
+   * State shared by the tasks of a walk. The tasks only hold a weak reference
+   * to the iterator, so they notice when the caller dropped it.
    */
+  private class WalkState {
 
-  private FSDataOutputStream createDataOutputStream(Path dataPath, int bufferSize, Progressable progress)
-      throws IOException {
-    UserGroupInformation dataUgi = getDataUgi();
-    try {
-      return dataUgi.doAs((PrivilegedExceptionAction<FSDataOutputStream>) () -> {
-        FileSystem dataFs = dataPath.getFileSystem(getConf());
+    private final BlockingQueue<LocatedFileStatus> _queue = new LinkedBlockingQueue<>(_walkQueueSize);
+    private final WeakReference<FileWalk> _iterator;
+    private final UserGroupInformation _ugi;
+    private volatile Throwable _error;
+    private volatile boolean _aborted;
 
-        FsPermission dataPermission = FsCreateModes.applyUMask(FsPermission.getFileDefault(),
-            FsPermission.getUMask(getConf()));
-        short dataReplication = dataFs.getDefaultReplication(dataPath);
-        long dataBlockSize = dataFs.getDefaultBlockSize(dataPath);
-        return dataFs.create(dataPath, dataPermission, false, bufferSize, dataReplication, dataBlockSize, progress);
-      });
-    } catch (IOException e) {
-      throw e;
-    } catch (InterruptedException e) {
-      throw new IOException(e);
+    WalkState(FileWalk iterator) throws IOException {
+      _iterator = new WeakReference<>(iterator);
+      _ugi = UserGroupInformation.getCurrentUser();
     }
-  }
 
-  private UserGroupInformation getDataUgi() throws IOException {
-    if (_dataUgi == null) {
-      return UserGroupInformation.getCurrentUser();
+    boolean isAborted() {
+      if (!_aborted && _iterator.get() == null) {
+        _aborted = true;
+      }
+      return _aborted;
     }
-    _dataUgi.checkTGTAndReloginFromKeytab();
-    return _dataUgi;
+
+    /**
+     * Waits for room in the queue as a managed block, so the pool can run
+     * other walk tasks meanwhile. Gives up once the walk is aborted or the
+     * consumer made no progress for the walk timeout.
+     */
+    void offer(LocatedFileStatus status) throws IOException {
+      long deadline = System.currentTimeMillis() + _walkTimeout;
+      managedBlock(() -> {
+        while (!_queue.offer(status, WALK_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+          if (isAborted()) {
+            throw new InterruptedIOException("Walk aborted");
+          }
+          if (System.currentTimeMillis() >= deadline) {
+            _aborted = true;
+            throw new IOException("Timed out waiting on listing consumer after " + _walkTimeout + " ms");
+          }
+        }
+        return null;
+      });
+    }
+
   }
 
-  class RemoteFSDataOutputStream extends FSDataOutputStream {
+  private class WalkTask extends RecursiveAction {
 
-    private Closeable _trigger;
+    private static final long serialVersionUID = 1L;
 
-    public RemoteFSDataOutputStream(OutputStream out, Statistics stats, Closeable trigger) throws IOException {
-      super(out, stats);
-      _trigger = trigger;
+    private final WalkState _state;
+    private final Path _path;
+
+    WalkTask(WalkState state, Path path) {
+      _state = state;
+      _path = path;
     }
 
     @Override
-    public void close() throws IOException {
-      super.close();
-      _trigger.close();
+    protected void compute() {
+      if (_state.isAborted()) {
+        return;
+      }
+      try {
+        _state._ugi.doAs((PrivilegedExceptionAction<Void>) () -> {
+          walk();
+          return null;
+        });
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (InterruptedException e) {
+        throw new UncheckedIOException(new InterruptedIOException(e.getMessage()));
+      }
+    }
+
+    private void walk() throws IOException {
+      FileStatus[] listing = managedBlock(() -> listStatus(_path));
+      List<WalkTask> tasks = new ArrayList<>();
+      for (FileStatus status : listing) {
+        if (_state.isAborted()) {
+          return;
+        }
+        if (status.isDirectory()) {
+          tasks.add(new WalkTask(_state, status.getPath()));
+        } else {
+          _state.offer(toLocatedFileStatus(status));
+        }
+      }
+      invokeAll(tasks);
     }
 
   }
 
-  private void createLink(Path metaPath, byte[] value) throws IOException {
-    String pathStr = new String(value);
-    Path dataPath = new Path(pathStr);
-    FileSystem dataFs = dataPath.getFileSystem(getConf());
-    dataPath = dataFs.makeQualified(dataPath);
-    FileStatus fileStatus = dataFs.getFileStatus(dataPath);
-    if (fileStatus == null) {
-      throw new IOException("Data path " + dataPath + " does not exist.");
-    }
-    if (!fileStatus.isFile()) {
-      throw new IOException("Data path " + dataPath + " is not a file.");
+  /**
+   * Runs blocking I/O of a fork join task as a managed block, the pool starts
+   * a spare worker while it blocks.
+   */
+  private static <T> T managedBlock(Callable<T> callable) throws IOException {
+    BlockingCall<T> blockingCall = new BlockingCall<>(callable);
+    try {
+      ForkJoinPool.managedBlock(blockingCall);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException(e.getMessage());
     }
-    FileSystem metaFs = metaPath.getFileSystem(getConf());
-    FileStatus metaFileStatus = metaFs.getFileStatus(metaPath);
-    if (metaFileStatus == null) {
-      throw new IOException("Meta path " + metaPath + " does not exist.");
+    if (blockingCall._error instanceof IOException) {
+      throw (IOException) blockingCall._error;
+    } else if (blockingCall._error instanceof RuntimeException) {
+      throw (RuntimeException) blockingCall._error;
+    } else if (blockingCall._error != null) {
+      throw new IOException(blockingCall._error);
     }
-    if (!metaFileStatus.isFile()) {
-      throw new IOException("Meta path " + metaPath + " is not a file.");
+    return blockingCall._result;
+  }
+
+  private static class BlockingCall<T> implements ForkJoinPool.ManagedBlocker {
+
+    private final Callable<T> _callable;
+    private T _result;
+    private Exception _error;
+    private boolean _done;
+
+    BlockingCall(Callable<T> callable) {
+      _callable = callable;
     }
-    try (FSDataOutputStream output = metaFs.create(metaPath)) {
-      String dataUri = dataPath.toUri()
-                               .toString();
-      DataEntry dataEntry = DataEntry.builder()
-                                     .dataPathUri(dataUri)
-                                     .managed(false)
-                                     .build();
-      storeDataPath(output, dataEntry);
+
+    @Override
+    public boolean block() {
+      try {
+        _result = _callable.call();
+      } catch (Exception e) {
+        _error = e;
+      }
+      _done = true;
+      return true;
     }
-  }
 
-  private boolean isFileLinkXAttrName(String name) {
-    return name.equals("trusted.file.link");
-  }
+    @Override
+    public boolean isReleasable() {
+      return _done;
+    }
 
-  private static String digits(long val, int digits) {
-    long hi = 1L << (digits * 4);
-    return Long.toHexString(hi | (val & (hi - 1)))
-               .substring(1);
   }
 
-  private boolean deleteRecursive(FileStatus metaFileStatus) throws IOException {
-    if (metaFileStatus == null) {
-      return false;
+  /**
+   * Adds the live manifest entries that are not shadowed by a meta file to the
+   * listing, keeping it sorted by name.
+   */
+  private void addManifestEntries(FileStatus manifestStatus, List<FileStatus> listing) throws IOException {
+    Set<String> names = new HashSet<>();
+    for (FileStatus fileStatus : listing) {
+      names.add(fileStatus.getPath()
+                          .getName());
     }
-    Path metaPath = metaFileStatus.getPath();
-    FileSystem metaFs = metaPath.getFileSystem(getConf());
-    if (metaFileStatus.isDirectory()) {
-      FileStatus[] listStatus = metaFs.listStatus(metaFileStatus.getPath());
-      if (listStatus == null) {
-        return false;
+    FileSystem metaFs = manifestStatus.getPath()
+                                      .getFileSystem(getConf());
+    for (ManifestFileStatus manifestFileStatus : _manifests.getLiveEntries(metaFs, manifestStatus)) {
+      if (!names.contains(manifestFileStatus.getPath()
+                                            .getName())) {
+        listing.add(manifestFileStatus);
       }
-      boolean result = true;
-      for (FileStatus status : listStatus) {
-        if (!deleteRecursive(status)) {
-          result = false;
+    }
+    listing.sort(Comparator.comparing(fileStatus -> fileStatus.getPath()
+                                                              .getName()));
+  }
+
+  /**
+   * Streams a meta directory listing. Children are read from the meta
+   * filesystem's own iterator in batches, the data entries of the next batch
+   * are resolved while the current batch is consumed so at most two batches
+   * are held in memory. The live entries of the directory's manifest are
+   * loaded up front, meta files shadow them as the listing passes by and the
+   * rest are streamed after it, so memory is bounded by the manifest and not
+   * by the directory.
+   */
+  private class MetaStatusIterator implements RemoteIterator<FileStatus> {
+
+    private final RemoteIterator<FileStatus> _source;
+    private final UserGroupInformation _ugi;
+    private List<Future<FileStatus>> _current = new ArrayList<>();
+    private List<Future<FileStatus>> _next;
+    private int _index;
+    private FileStatus _nextStatus;
+    private final Map<String, FileStatus> _manifestEntries = new LinkedHashMap<>();
+    private Iterator<FileStatus> _manifestIterator;
+
+    MetaStatusIterator(FileSystem metaFs, Path metaPath, RemoteIterator<FileStatus> source) throws IOException {
+      _source = source;
+      _ugi = UserGroupInformation.getCurrentUser();
+      if (_manifestsEnabled) {
+        FileStatus manifestStatus = getRawMetaFileStatus(metaFs, Manifests.getManifestPath(metaPath));
+        if (manifestStatus != null) {
+          for (ManifestFileStatus manifestFileStatus : _manifests.getLiveEntries(metaFs, manifestStatus)) {
+            _manifestEntries.put(manifestFileStatus.getPath()
+                                                   .getName(),
+                manifestFileStatus);
+          }
         }
       }
-      if (result) {
-        return metaFs.delete(metaPath, false);
-      }
-      return result;
-    } else {
-      return deleteFile(metaFs, metaPath);
+      _next = submitNextBatch();
     }
-  }
 
-  private boolean deleteFile(FileSystem metaFs, Path metaPath) throws IOException {
-    DataEntry storageEntry = getDataEntry(metaPath, true);
-    if (storageEntry != null) {
-      Path dataPath = storageEntry.getDataPath();
-      FileSystem dataFs = dataPath.getFileSystem(getConf());
-      boolean result = metaFs.delete(metaPath, false);
-      if (storageEntry.isManaged()) {
-        if (result) {
-          if (!dataFs.delete(dataPath, false)) {
-            LOGGER.warn("Could not remove {}", dataPath);
+    @Override
+    public boolean hasNext() throws IOException {
+      try {
+        while (_nextStatus == null) {
+          if (_index < _current.size()) {
+            _nextStatus = getFixedFileStatus(_current.get(_index++));
+          } else if (_next == null) {
+            return false;
+          } else {
+            _current = _next;
+            _index = 0;
+            _next = null;
+            _next = submitNextBatch();
           }
         }
+        return true;
+      } catch (IOException | RuntimeException e) {
+        cancel(_current);
+        cancel(_next);
+        throw e;
       }
-      return result;
-    } else {
-      return false;
     }
-  }
 
-  private FileStatus[] fixFileStatusList(FileStatus[] listStatus) throws IOException {
-    if (listStatus == null) {
-      return null;
+    @Override
+    public FileStatus next() throws IOException {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      FileStatus fileStatus = _nextStatus;
+      _nextStatus = null;
+      return fileStatus;
     }
-    List<FileStatus> result = new ArrayList<>();
-    for (int i = 0; i < listStatus.length; i++) {
-      FileStatus fileStatus = fixFileStatus(listStatus[i]);
-      if (fileStatus != null) {
-        result.add(fileStatus);
+
+    /**
+     * Manifest entries that are not shadowed by a meta file are only known
+     * once the meta listing is exhausted, they are streamed after it.
+     */
+    private List<Future<FileStatus>> submitNextBatch() throws IOException {
+      List<FileStatus> batch = new ArrayList<>(_listBatchSize);
+      while (batch.size() < _listBatchSize) {
+        if (_manifestIterator == null && _source.hasNext()) {
+          FileStatus metaFileStatus = _source.next();
+          Path metaPath = metaFileStatus.getPath();
+          if (!Manifests.isManifest(metaPath) && !isTempDataEntry(metaPath)) {
+            _manifestEntries.remove(metaPath.getName());
+            batch.add(metaFileStatus);
+          }
+        } else {
+          if (_manifestIterator == null) {
+            _manifestIterator = _manifestEntries.values()
+                                                .iterator();
+          }
+          if (!_manifestIterator.hasNext()) {
+            break;
+          }
+          batch.add(_manifestIterator.next());
+          _manifestIterator.remove();
+        }
+      }
+      if (batch.isEmpty()) {
+        return null;
       }
+      return submitFixFileStatus(_ugi, batch);
     }
-    return result.toArray(new FileStatus[] {});
+
   }
 
   private FileStatus fixFileStatus(FileStatus metaFileStatus) throws IOException {
@@ -726,18 +3550,22 @@ public class MetaDataFileSystem extends FileSystem {
     Path metaPath = metaFileStatus.getPath();
     long length;
     if (!metaFileStatus.isDirectory()) {
-      DataEntry dataEntry = getDataEntry(metaPath, false);
+      DataEntry dataEntry = getDataEntry(metaFileStatus);
       if (dataEntry == null) {
         return null;
       }
-      Path dataPath = dataEntry.getDataPath();
-      FileSystem dataFs = dataPath.getFileSystem(getConf());
-      try {
-        FileStatus dataFileStatus = dataFs.getFileStatus(dataPath);
-        length = dataFileStatus.getLen();
-      } catch (FileNotFoundException e) {
-        LOGGER.warn("DataPath {} not found using 0 length.", dataPath);
-        length = 0;
+      if (dataEntry.getLength() != null) {
+        length = dataEntry.getLength();
+      } else {
+        Path dataPath = dataEntry.getDataPath();
+        FileSystem dataFs = dataPath.getFileSystem(getConf());
+        try {
+          FileStatus dataFileStatus = dataFs.getFileStatus(dataPath);
+          length = dataFileStatus.getLen();
+        } catch (FileNotFoundException e) {
+          LOGGER.warn("DataPath {} not found using 0 length.", dataPath);
+          length = 0;
+        }
       }
     } else {
       length = metaFileStatus.getLen();
@@ -757,26 +3585,85 @@ public class MetaDataFileSystem extends FileSystem {
         owner, group, path);
   }
 
-  private void storeDataPath(Path metaPath, Path dataPath, FsPermission permission, boolean overwrite)
+  private DataEntry storeDataPath(Path metaPath, Path dataPath, FsPermission permission, boolean overwrite)
       throws IOException {
     FileSystem metaFs = metaPath.getFileSystem(getConf());
     short metaReplication = metaFs.getDefaultReplication(dataPath);
     long metaBlockSize = metaFs.getDefaultBlockSize(dataPath);
 
-    int bufferSize = metaFs.getConf()
-                           .getInt(IO_FILE_BUFFER_SIZE, 4096);
-    try (FSDataOutputStream output = metaFs.create(metaPath, permission, overwrite, bufferSize, metaReplication,
-        metaBlockSize, null)) {
-      String dataUri = dataPath.toUri()
-                               .toString();
-      DataEntry dataEntry = DataEntry.builder()
-                                     .managementId(UUID.randomUUID()
-                                                       .toString())
-                                     .dataPathUri(dataUri)
-                                     .managed(true)
-                                     .build();
-      storeDataPath(output, dataEntry);
+    String dataUri = dataPath.toUri()
+                             .toString();
+    DataEntry dataEntry = DataEntry.builder()
+                                   .managementId(UUID.randomUUID()
+                                                     .toString())
+                                   .dataPathUri(dataUri)
+                                   .managed(true)
+                                   .build();
+    synchronized (getMetaDirLock(metaPath)) {
+      FileStatus replacedStatus = overwrite ? getMetaFileStatus(metaFs, metaPath) : null;
+      DataEntry replacedDataEntry = replacedStatus == null || replacedStatus.isDirectory() ? null
+          : getDataEntry(replacedStatus);
+      writeDataEntry(metaFs, metaPath, dataEntry, permission, overwrite, metaReplication, metaBlockSize);
+      if (replacedStatus instanceof ManifestFileStatus) {
+        removeManifestEntry(metaFs, metaPath);
+      }
+      if (replacedDataEntry != null) {
+        UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+        for (Path reclaimablePath : releaseDataPaths(replacedDataEntry)) {
+          _dataReclaimer.reclaim(ugi, reclaimablePath);
+        }
+      }
     }
+    return dataEntry;
+  }
+
+  /**
+   * The data roots are either the single .data.path or the .data.roots list of
+   * "path=weight" entries, roots listed in .data.roots.drained start out
+   * drained. Roots that fail to create a data object are skipped for
+   * .data.roots.unhealthy.seconds.
+   */
+  private DataRoots createDataRoots(Configuration conf) throws IOException {
+    String[] roots = conf.getTrimmedStrings(getConfigPrefix() + DATA_ROOTS_SUFFIX);
+    if (roots.length == 0) {
+      Path dataPath = getQualifiedPathFromConf(conf, getConfigPrefix() + DATA_PATH_SUFFIX);
+      return new DataRoots(Arrays.asList(new DataRoot(dataPath, 1, false)));
+    }
+    Set<Path> drained = new HashSet<>();
+    for (String root : conf.getTrimmedStrings(getConfigPrefix() + DATA_ROOTS_DRAINED_SUFFIX)) {
+      drained.add(makeQualifiedPath(new Path(root)));
+    }
+    List<DataRoot> dataRoots = new ArrayList<>();
+    for (String root : roots) {
+      DataRoot dataRoot = DataRoots.parse(root, false);
+      Path dataPath = makeQualifiedPath(dataRoot.getPath());
+      dataRoots.add(new DataRoot(dataPath, dataRoot.getWeight(), drained.contains(dataPath)));
+    }
+    LOGGER.info("Data roots for {} {}", getConfigPrefix(), dataRoots);
+    return new DataRoots(dataRoots, TimeUnit.SECONDS.toMillis(
+        conf.getLong(getConfigPrefix() + DATA_ROOTS_UNHEALTHY_SECONDS_SUFFIX, DATA_ROOTS_UNHEALTHY_SECONDS_DEFAULT)));
+  }
+
+  /**
+   * Largest inline content that still fits a data entry xattr. The content is
+   * base64 encoded in the JSON (4 bytes per 3) and the NameNode limits the
+   * name plus value of an xattr to dfs.namenode.fs-limits.max-xattr-size.
+   * Inline content is held in NameNode heap with the inode, so a threshold
+   * near this limit costs up to that much heap per tiny file on top of the
+   * inode itself.
+   */
+  static int getMaxXAttrInlineThreshold(Configuration conf) {
+    int maxXAttrSize = conf.getInt(MAX_XATTR_SIZE_KEY, MAX_XATTR_SIZE_DEFAULT);
+    return Math.max(0, (maxXAttrSize - XATTR_ENTRY_OVERHEAD) / 4 * 3);
+  }
+
+  /**
+   * Largest manifest log that still fits its xattr, the log is a JSON array of
+   * the removed names.
+   */
+  static int getMaxManifestLogBytes(Configuration conf) {
+    int maxXAttrSize = conf.getInt(MAX_XATTR_SIZE_KEY, MAX_XATTR_SIZE_DEFAULT);
+    return Math.max(0, maxXAttrSize - Manifests.LOG_XATTR_NAME.length());
   }
 
   private Path getQualifiedPathFromConf(Configuration conf, String propertyName) throws IOException {
@@ -992,7 +3879,33 @@ public class MetaDataFileSystem extends FileSystem {
 
   @Override
   public ContentSummary getContentSummary(Path f) throws IOException {
-    return super.getContentSummary(f);
+    if (_aggregates == null) {
+      return super.getContentSummary(f);
+    }
+    MetaEntry metaEntry = getMetaEntry(f);
+    Path metaPath = metaEntry.getMetaPath();
+    FileSystem metaFs = metaPath.getFileSystem(getConf());
+    FileStatus metaFileStatus = getMetaFileStatus(metaFs, metaPath);
+    if (metaFileStatus == null) {
+      throw new FileNotFoundException("Path " + f + " does not exist.");
+    }
+    if (!metaFileStatus.isDirectory()) {
+      return super.getContentSummary(f);
+    }
+    DirectoryAggregate aggregate = _aggregates.get(metaFs, metaPath);
+    if (aggregate == null) {
+      Tracking tracking = _aggregates.startTracking(metaPath);
+      try {
+        ContentSummary summary = super.getContentSummary(f);
+        _aggregates.reconcile(metaFs, metaPath,
+            new DirectoryAggregate(summary.getFileCount(), summary.getDirectoryCount() - 1, summary.getLength()),
+            tracking);
+        return summary;
+      } finally {
+        _aggregates.stopTracking(tracking);
+      }
+    }
+    return new ContentSummary(aggregate.getLength(), aggregate.getFileCount(), aggregate.getDirectoryCount() + 1);
   }
 
   @Override
@@ -0,0 +1,55 @@
+package hadoop.fs.metadata;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+/**
+ * A file or directory in a {@link MetadataStore}. Files carry their (small)
+ * content, both carry attributes and xattrs.
+ */
+@Value
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+@AllArgsConstructor
+@Builder(toBuilder = true)
+@JsonInclude(Include.NON_NULL)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MetadataRecord {
+
+  /**
+   * Absolute path of the record, not stored since it is the key.
+   */
+  @JsonIgnore
+  String path;
+
+  boolean directory;
+
+  byte[] content;
+
+  short permission;
+
+  String owner;
+
+  String group;
+
+  long modificationTime;
+
+  long accessTime;
+
+  Map<String, byte[]> xattrs;
+
+  @JsonIgnore
+  public long getLength() {
+    return content == null ? 0 : content.length;
+  }
+
+}
@@ -0,0 +1,74 @@
+package hadoop.fs.metadata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Storage for the meta tree of a {@link MetaDataFileSystem}. Paths are
+ * absolute and "/" separated, the root directory always exists.
+ *
+ * The meta data filesystem does not call stores directly. Its boundary to the
+ * meta tree is the Hadoop FileSystem API of its meta path, which the
+ * manifests, directory aggregates, orphan collector and pack compactor share
+ * since they work on the statuses, listings, ACLs and xattrs of the tree. A
+ * store is plugged in below that boundary: {@link MetadataStoreFileSystem}
+ * exposes it as metastore://authority/ and a meta path there sends every
+ * lookup, listing, put, delete, rename and xattr change of the meta data
+ * filesystem to the store. The default meta path on HDFS needs no store.
+ */
+public interface MetadataStore extends Closeable {
+
+  default void initialize(Configuration conf, String configPrefix) throws IOException {
+
+  }
+
+  /**
+   * Returns the record of the path, null if it does not exist.
+   */
+  default MetadataRecord get(String path) throws IOException {
+    throw new IOException("Not implemented");
+  }
+
+  /**
+   * Returns the children of the directory sorted by name.
+   */
+  default List<MetadataRecord> list(String path) throws IOException {
+    throw new IOException("Not implemented");
+  }
+
+  /**
+   * Stores the record, the parent has to be an existing directory.
+   */
+  default void put(MetadataRecord record, boolean overwrite) throws IOException {
+    throw new IOException("Not implemented");
+  }
+
+  /**
+   * Replaces the record of an existing path with the updated record, used for
+   * content and attribute changes.
+   */
+  default MetadataRecord update(String path, UnaryOperator<MetadataRecord> update) throws IOException {
+    throw new IOException("Not implemented");
+  }
+
+  default boolean delete(String path, boolean recursive) throws IOException {
+    throw new IOException("Not implemented");
+  }
+
+  /**
+   * Moves the path and everything below it, the destination must not exist.
+   */
+  default boolean rename(String src, String dst) throws IOException {
+    throw new IOException("Not implemented");
+  }
+
+  @Override
+  default void close() throws IOException {
+
+  }
+
+}
@@ -0,0 +1,490 @@
+package hadoop.fs.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.ParentNotDirectoryException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.XAttrSetFlag;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Exposes a {@link MetadataStore} as a filesystem so it can be used as the
+ * meta path of a {@link MetaDataFileSystem}, e.g. metastore://authority/. The
+ * store class is configured with metastore.&lt;authority&gt;.class and
+ * defaults to {@link LogStructuredMetadataStore}. Instances of the same
+ * authority share one store.
+ *
+ * Access is checked against the owner, group and permission bits of the
+ * records like HDFS does, without ACLs or the sticky bit. The user that
+ * opened the store and members of dfs.permissions.superusergroup are
+ * superusers, metastore.&lt;authority&gt;.permissions.enabled=false turns the
+ * checks off.
+ */
+public class MetadataStoreFileSystem extends FileSystem {
+
+  private static final String CLASS_SUFFIX = ".class";
+  private static final String PERMISSIONS_ENABLED_SUFFIX = ".permissions.enabled";
+  private static final Map<String, SharedStore> STORES = new HashMap<>();
+
+  private URI _uri;
+  private String _configPrefix;
+  private MetadataStore _store;
+  private Path _workingDir;
+  private boolean _permissionsEnabled;
+  private String _superuser;
+  private String _supergroup;
+
+  @Override
+  public void initialize(URI uri, Configuration conf) throws IOException {
+    super.initialize(uri, conf);
+    setConf(conf);
+    _uri = URI.create(uri.getScheme() + "://" + uri.getAuthority());
+    _configPrefix = uri.getScheme() + "." + uri.getAuthority();
+    _store = acquire(_configPrefix, conf);
+    _workingDir = getHomeDirectory();
+    _permissionsEnabled = conf.getBoolean(_configPrefix + PERMISSIONS_ENABLED_SUFFIX, true);
+    _superuser = UserGroupInformation.getLoginUser()
+                                     .getShortUserName();
+    _supergroup = conf.get(DFSConfigKeys.DFS_PERMISSIONS_SUPERUSERGROUP_KEY,
+        DFSConfigKeys.DFS_PERMISSIONS_SUPERUSERGROUP_DEFAULT);
+  }
+
+  @Override
+  public String getScheme() {
+    return "metastore";
+  }
+
+  @Override
+  public URI getUri() {
+    return _uri;
+  }
+
+  public MetadataStore getStore() {
+    return _store;
+  }
+
+  @Override
+  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+    MetadataRecord record = getRecord(f);
+    checkAccess(record, FsAction.READ);
+    if (record.isDirectory()) {
+      throw new FileNotFoundException("Path " + f + " is a directory.");
+    }
+    byte[] content = record.getContent() == null ? new byte[0] : record.getContent();
+    return new FSDataInputStream(new SeekableByteArrayInputStream(content));
+  }
+
+  @Override
+  public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+      short replication, long blockSize, Progressable progress) throws IOException {
+    String path = getPathString(f);
+    Path parent = f.getParent();
+    if (parent != null) {
+      mkdirs(parent);
+      checkAccess(getRecord(parent), FsAction.WRITE_EXECUTE);
+    }
+    MetadataRecord existing = _store.get(path);
+    if (existing != null && overwrite) {
+      checkAccess(existing, FsAction.WRITE);
+    }
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    String[] groups = ugi.getGroupNames();
+    long now = System.currentTimeMillis();
+    _store.put(MetadataRecord.builder()
+                             .path(path)
+                             .permission(getPermission(permission, FsPermission.getFileDefault()))
+                             .owner(ugi.getShortUserName())
+                             .group(groups.length > 0 ? groups[0] : ugi.getShortUserName())
+                             .modificationTime(now)
+                             .accessTime(now)
+                             .build(),
+        overwrite);
+    return new FSDataOutputStream(new ByteArrayOutputStream() {
+      private boolean _closed;
+
+      @Override
+      public void close() throws IOException {
+        if (_closed) {
+          return;
+        }
+        _closed = true;
+        byte[] content = toByteArray();
+        _store.update(path, record -> record.toBuilder()
+                                            .content(content)
+                                            .modificationTime(System.currentTimeMillis())
+                                            .build());
+      }
+    }, statistics);
+  }
+
+  @Override
+  public FSDataOutputStream append(Path f, int bufferSize, Progressable progress) throws IOException {
+    throw new IOException("Not supported");
+  }
+
+  @Override
+  public boolean rename(Path src, Path dst) throws IOException {
+    String srcPath = getPathString(src);
+    String dstPath = getPathString(dst);
+    MetadataRecord dstRecord = _store.get(dstPath);
+    if (dstRecord != null && dstRecord.isDirectory()) {
+      dstPath = getPathString(new Path(makeQualified(dst), makeQualified(src).getName()));
+    }
+    checkParentAccess(srcPath);
+    checkParentAccess(dstPath);
+    return _store.rename(srcPath, dstPath);
+  }
+
+  @Override
+  public boolean delete(Path f, boolean recursive) throws IOException {
+    String path = getPathString(f);
+    checkParentAccess(path);
+    return _store.delete(path, recursive);
+  }
+
+  @Override
+  public FileStatus[] listStatus(Path f) throws FileNotFoundException, IOException {
+    MetadataRecord record = getRecord(f);
+    if (!record.isDirectory()) {
+      return new FileStatus[] { toFileStatus(record) };
+    }
+    checkAccess(record, FsAction.READ_EXECUTE);
+    List<MetadataRecord> children = _store.list(record.getPath());
+    FileStatus[] result = new FileStatus[children.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = toFileStatus(children.get(i));
+    }
+    return result;
+  }
+
+  @Override
+  public void setWorkingDirectory(Path newDir) {
+    _workingDir = makeQualified(newDir);
+  }
+
+  @Override
+  public Path getWorkingDirectory() {
+    return _workingDir;
+  }
+
+  @Override
+  public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+    Path qualified = makeQualified(f);
+    List<Path> missing = new ArrayList<>();
+    for (Path path = qualified; path != null; path = path.getParent()) {
+      MetadataRecord record = _store.get(getPathString(path));
+      if (record != null) {
+        if (!record.isDirectory()) {
+          throw new ParentNotDirectoryException("Path " + path + " is a file.");
+        }
+        break;
+      }
+      missing.add(0, path);
+    }
+    if (!missing.isEmpty()) {
+      checkParentAccess(getPathString(missing.get(0)));
+    }
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    String[] groups = ugi.getGroupNames();
+    long now = System.currentTimeMillis();
+    for (Path path : missing) {
+      try {
+        _store.put(MetadataRecord.builder()
+                                 .path(getPathString(path))
+                                 .directory(true)
+                                 .permission(getPermission(permission, FsPermission.getDirDefault()))
+                                 .owner(ugi.getShortUserName())
+                                 .group(groups.length > 0 ? groups[0] : ugi.getShortUserName())
+                                 .modificationTime(now)
+                                 .accessTime(now)
+                                 .build(),
+            false);
+      } catch (FileAlreadyExistsException e) {
+        if (!getRecord(path).isDirectory()) {
+          throw e;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public FileStatus getFileStatus(Path f) throws IOException {
+    return toFileStatus(getRecord(f));
+  }
+
+  @Override
+  public void setPermission(Path p, FsPermission permission) throws IOException {
+    checkOwner(getRecord(p));
+    _store.update(getPathString(p), record -> record.toBuilder()
+                                                    .permission(permission.toShort())
+                                                    .build());
+  }
+
+  @Override
+  public void setOwner(Path p, String username, String groupname) throws IOException {
+    MetadataRecord existing = getRecord(p);
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    if (_permissionsEnabled && !isSuperuser(ugi)) {
+      if (username != null && !username.equals(existing.getOwner())) {
+        throw new AccessControlException("Non-super user cannot change owner of " + p);
+      }
+      checkOwner(existing);
+      if (groupname != null && !Arrays.asList(ugi.getGroupNames())
+                                      .contains(groupname)) {
+        throw new AccessControlException("User " + ugi.getShortUserName() + " does not belong to " + groupname);
+      }
+    }
+    _store.update(getPathString(p), record -> record.toBuilder()
+                                                    .owner(username == null ? record.getOwner() : username)
+                                                    .group(groupname == null ? record.getGroup() : groupname)
+                                                    .build());
+  }
+
+  @Override
+  public void setTimes(Path p, long mtime, long atime) throws IOException {
+    checkAccess(getRecord(p), FsAction.WRITE);
+    _store.update(getPathString(p), record -> record.toBuilder()
+                                                    .modificationTime(mtime < 0 ? record.getModificationTime() : mtime)
+                                                    .accessTime(atime < 0 ? record.getAccessTime() : atime)
+                                                    .build());
+  }
+
+  @Override
+  public void setXAttr(Path path, String name, byte[] value) throws IOException {
+    setXAttr(path, name, value, EnumSet.of(XAttrSetFlag.CREATE, XAttrSetFlag.REPLACE));
+  }
+
+  @Override
+  public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+    checkAccess(getRecord(path), FsAction.WRITE);
+    try {
+      _store.update(getPathString(path), record -> {
+        Map<String, byte[]> xattrs = record.getXattrs() == null ? new HashMap<>() : new HashMap<>(record.getXattrs());
+        boolean exists = xattrs.containsKey(name);
+        if ((exists && !flag.contains(XAttrSetFlag.REPLACE)) || (!exists && !flag.contains(XAttrSetFlag.CREATE))) {
+          throw new IllegalArgumentException("XAttr " + name + (exists ? " already exists." : " does not exist."));
+        }
+        xattrs.put(name, value);
+        return record.toBuilder()
+                     .xattrs(xattrs)
+                     .build();
+      });
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public byte[] getXAttr(Path path, String name) throws IOException {
+    byte[] value = getXAttrs(path).get(name);
+    if (value == null) {
+      throw new IOException("XAttr " + name + " does not exist on " + path);
+    }
+    return value;
+  }
+
+  @Override
+  public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+    MetadataRecord record = getRecord(path);
+    checkAccess(record, FsAction.READ);
+    return record.getXattrs() == null ? new HashMap<>() : new HashMap<>(record.getXattrs());
+  }
+
+  @Override
+  public Map<String, byte[]> getXAttrs(Path path, List<String> names) throws IOException {
+    Map<String, byte[]> xattrs = getXAttrs(path);
+    xattrs.keySet()
+          .retainAll(names);
+    return xattrs;
+  }
+
+  @Override
+  public List<String> listXAttrs(Path path) throws IOException {
+    return new ArrayList<>(getXAttrs(path).keySet());
+  }
+
+  @Override
+  public void removeXAttr(Path path, String name) throws IOException {
+    checkAccess(getRecord(path), FsAction.WRITE);
+    _store.update(getPathString(path), record -> {
+      if (record.getXattrs() == null || !record.getXattrs()
+                                               .containsKey(name)) {
+        return record;
+      }
+      Map<String, byte[]> xattrs = new HashMap<>(record.getXattrs());
+      xattrs.remove(name);
+      return record.toBuilder()
+                   .xattrs(xattrs)
+                   .build();
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      if (_store != null) {
+        release(_configPrefix);
+        _store = null;
+      }
+    }
+  }
+
+  private MetadataRecord getRecord(Path f) throws IOException {
+    MetadataRecord record = _store.get(getPathString(f));
+    if (record == null) {
+      throw new FileNotFoundException("Path " + f + " does not exist.");
+    }
+    checkTraverse(record.getPath());
+    return record;
+  }
+
+  /**
+   * Every ancestor directory of the path has to be searchable.
+   */
+  private void checkTraverse(String path) throws IOException {
+    if (!_permissionsEnabled) {
+      return;
+    }
+    int index = path.indexOf('/', 1);
+    while (index > 0) {
+      MetadataRecord ancestor = _store.get(path.substring(0, index));
+      if (ancestor != null) {
+        checkAccess(ancestor, FsAction.EXECUTE);
+      }
+      index = path.indexOf('/', index + 1);
+    }
+    if (!path.equals("/")) {
+      checkAccess(_store.get("/"), FsAction.EXECUTE);
+    }
+  }
+
+  /**
+   * Adding or removing a child needs write access to the parent directory.
+   */
+  private void checkParentAccess(String path) throws IOException {
+    int index = path.lastIndexOf('/');
+    String parent = index <= 0 ? "/" : path.substring(0, index);
+    MetadataRecord parentRecord = _store.get(parent);
+    if (parentRecord != null) {
+      checkTraverse(parent);
+      checkAccess(parentRecord, FsAction.WRITE_EXECUTE);
+    }
+  }
+
+  private void checkAccess(MetadataRecord record, FsAction access) throws IOException {
+    if (!_permissionsEnabled) {
+      return;
+    }
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    if (isSuperuser(ugi)) {
+      return;
+    }
+    FsPermission permission = new FsPermission(record.getPermission());
+    FsAction granted;
+    if (ugi.getShortUserName()
+           .equals(record.getOwner())) {
+      granted = permission.getUserAction();
+    } else if (record.getGroup() != null && Arrays.asList(ugi.getGroupNames())
+                                                  .contains(record.getGroup())) {
+      granted = permission.getGroupAction();
+    } else {
+      granted = permission.getOtherAction();
+    }
+    if (!granted.implies(access)) {
+      throw new AccessControlException("Permission denied: user=" + ugi.getShortUserName() + ", access=" + access
+          + ", path=" + record.getPath() + ":" + record.getOwner() + ":" + record.getGroup() + ":" + permission);
+    }
+  }
+
+  private void checkOwner(MetadataRecord record) throws IOException {
+    if (!_permissionsEnabled) {
+      return;
+    }
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    if (!isSuperuser(ugi) && !ugi.getShortUserName()
+                                 .equals(record.getOwner())) {
+      throw new AccessControlException("Permission denied: user=" + ugi.getShortUserName() + " is not the owner of "
+          + record.getPath());
+    }
+  }
+
+  private boolean isSuperuser(UserGroupInformation ugi) {
+    return ugi.getShortUserName()
+              .equals(_superuser) || Arrays.asList(ugi.getGroupNames())
+                                           .contains(_supergroup);
+  }
+
+  private String getPathString(Path f) {
+    return makeQualified(f).toUri()
+                           .getPath();
+  }
+
+  private FileStatus toFileStatus(MetadataRecord record) {
+    return new FileStatus(record.getLength(), record.isDirectory(), 1, getDefaultBlockSize(),
+        record.getModificationTime(), record.getAccessTime(), new FsPermission(record.getPermission()),
+        record.getOwner(), record.getGroup(), makeQualified(new Path(record.getPath())));
+  }
+
+  private short getPermission(FsPermission permission, FsPermission defaultPermission) {
+    return (permission == null ? defaultPermission : permission).applyUMask(FsPermission.getUMask(getConf()))
+                                                                .toShort();
+  }
+
+  private static synchronized MetadataStore acquire(String configPrefix, Configuration conf) throws IOException {
+    SharedStore sharedStore = STORES.get(configPrefix);
+    if (sharedStore == null) {
+      Class<? extends MetadataStore> storeClass = conf.getClass(configPrefix + CLASS_SUFFIX,
+          LogStructuredMetadataStore.class, MetadataStore.class);
+      MetadataStore store = ReflectionUtils.newInstance(storeClass, conf);
+      store.initialize(conf, configPrefix);
+      sharedStore = new SharedStore(store);
+      STORES.put(configPrefix, sharedStore);
+    }
+    sharedStore._references++;
+    return sharedStore._store;
+  }
+
+  private static synchronized void release(String configPrefix) throws IOException {
+    SharedStore sharedStore = STORES.get(configPrefix);
+    if (sharedStore != null && --sharedStore._references == 0) {
+      STORES.remove(configPrefix);
+      sharedStore._store.close();
+    }
+  }
+
+  private static class SharedStore {
+
+    private final MetadataStore _store;
+    private int _references;
+
+    SharedStore(MetadataStore store) {
+      _store = store;
+    }
+
+  }
+
+}
@@ -0,0 +1,216 @@
+package hadoop.fs.metadata;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hadoop.fs.metadata.ReferenceTracker.Recording;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+/**
+ * Removes data objects under the data roots that no data entry references.
+ * The data paths referenced by the meta tree and the snapshots are collected
+ * into a bloom filter, then the data roots are listed and every data object
+ * that is not in the filter and is older than the grace period is reclaimed. A
+ * false positive only keeps an orphan around until a later run.
+ *
+ * Entries that move within the meta tree during the walk, or start sharing
+ * data objects (copies, snapshots), are recorded by the
+ * {@link ReferenceTracker} and walked again once the walk is done and again
+ * right before the orphans found are reclaimed. Only changes made through filesystems
+ * in the same JVM are recorded, the collector has to run in the process that
+ * serves the writes (or while no other process writes). Data roots that are
+ * also configured for another authority are refused, their data objects are
+ * referenced by a meta tree this collector does not walk.
+ */
+public class OrphanDataCollector {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OrphanDataCollector.class);
+
+  private static final double FALSE_POSITIVE_PROBABILITY = 0.001;
+
+  private static final int MAX_REWALKS = 10;
+
+  private final MetaDataFileSystem _fileSystem;
+  private final long _gracePeriod;
+  private final int _expectedEntries;
+  private final boolean _dryRun;
+
+  public OrphanDataCollector(MetaDataFileSystem fileSystem, long gracePeriod, int expectedEntries, boolean dryRun) {
+    _fileSystem = fileSystem;
+    _gracePeriod = gracePeriod;
+    _expectedEntries = expectedEntries;
+    _dryRun = dryRun;
+  }
+
+  /**
+   * Runs a single collection and returns the number of orphaned data objects
+   * found.
+   */
+  public long collect() throws IOException {
+    long start = System.currentTimeMillis();
+    long cutoff = start - _gracePeriod;
+    List<String> sharingAuthorities = _fileSystem.getAuthoritiesSharingDataRoots();
+    if (!sharingAuthorities.isEmpty()) {
+      throw new IOException("Data roots " + _fileSystem.getDataRoots() + " are shared with " + sharingAuthorities);
+    }
+    BloomFilter<CharSequence> referenced = BloomFilter.create(Funnels.stringFunnel(), _expectedEntries,
+        FALSE_POSITIVE_PROBABILITY);
+
+    long entries = 0;
+    List<Path> candidates = new ArrayList<>();
+    try (Recording recording = _fileSystem.getReferenceTracker()
+                                          .start()) {
+      for (Path metaRoot : _fileSystem.getMetaRoots()) {
+        entries += putReferences(referenced, metaRoot, cutoff);
+      }
+      entries += putRecordedReferences(referenced, recording, cutoff);
+
+      for (Path dataRoot : _fileSystem.getDataRoots()) {
+        FileSystem dataFs = dataRoot.getFileSystem(_fileSystem.getConf());
+        if (!dataFs.exists(dataRoot)) {
+          continue;
+        }
+        RemoteIterator<LocatedFileStatus> dataIterator = dataFs.listFiles(dataRoot, true);
+        while (dataIterator.hasNext()) {
+          LocatedFileStatus dataFileStatus = dataIterator.next();
+          if (dataFileStatus.getModificationTime() < cutoff
+              && !referenced.mightContain(getKey(dataFileStatus.getPath()))) {
+            candidates.add(dataFileStatus.getPath());
+          }
+        }
+      }
+      // entries copied or snapshotted while the data roots were listed
+      entries += putRecordedReferences(referenced, recording, cutoff);
+    }
+
+    DataReclaimer dataReclaimer = _fileSystem.getDataReclaimer();
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    long orphans = 0;
+    for (Path dataPath : candidates) {
+      if (referenced.mightContain(getKey(dataPath))) {
+        continue;
+      }
+      orphans++;
+      if (_dryRun) {
+        LOGGER.info("Orphaned data path {}", dataPath);
+      } else {
+        dataReclaimer.reclaim(ugi, dataPath);
+      }
+    }
+    LOGGER.info("Found {} orphaned data paths under {} with {} data entries in {} ms", orphans,
+        _fileSystem.getDataRoots(), entries, System.currentTimeMillis() - start);
+    return orphans;
+  }
+
+  /**
+   * Walks the recorded meta paths again until no more are recorded, the
+   * entries recorded last may still be moving so the collection gives up if
+   * that does not settle.
+   */
+  private long putRecordedReferences(BloomFilter<CharSequence> referenced, Recording recording, long cutoff)
+      throws IOException {
+    long entries = 0;
+    for (int i = 0; i < MAX_REWALKS; i++) {
+      List<Path> metaPaths = recording.drain();
+      if (metaPaths.isEmpty()) {
+        return entries;
+      }
+      for (Path metaPath : metaPaths) {
+        entries += putReferences(referenced, metaPath, cutoff);
+      }
+    }
+    throw new IOException("Meta tree under " + _fileSystem.getMetaRoots() + " kept changing during collection.");
+  }
+
+  /**
+   * Adds the data paths referenced by the meta tree to the bloom filter and
+   * returns the number of data entries found.
+   */
+  private long putReferences(BloomFilter<CharSequence> referenced, Path metaRoot, long cutoff) throws IOException {
+    FileSystem metaFs = metaRoot.getFileSystem(_fileSystem.getConf());
+    if (!metaFs.exists(metaRoot)) {
+      return 0;
+    }
+    long entries = 0;
+    try {
+      RemoteIterator<LocatedFileStatus> metaIterator = metaFs.listFiles(metaRoot, true);
+      while (metaIterator.hasNext()) {
+        entries += putReferences(referenced, metaFs, metaIterator.next(), cutoff);
+      }
+    } catch (FileNotFoundException e) {
+      // moved again or removed, a move is recorded again
+      LOGGER.debug("Meta path {} is gone", metaRoot);
+    }
+    return entries;
+  }
+
+  private long putReferences(BloomFilter<CharSequence> referenced, FileSystem metaFs,
+      LocatedFileStatus metaFileStatus, long cutoff) throws IOException {
+    if (Manifests.isManifest(metaFileStatus.getPath())) {
+      long entries = 0;
+      for (ManifestEntry manifestEntry : _fileSystem.getManifests()
+                                                    .getIndex(metaFs, metaFileStatus)
+                                                    .values()) {
+        putSegments(referenced, manifestEntry.getDataEntry());
+        entries++;
+      }
+      return entries;
+    }
+    DataEntry dataEntry = _fileSystem.getDataEntry(metaFileStatus);
+    if (dataEntry == null) {
+      if (metaFileStatus.getModificationTime() < cutoff) {
+        throw new IOException("Meta path " + metaFileStatus.getPath() + " has no readable data entry.");
+      }
+      return 0;
+    }
+    putSegments(referenced, dataEntry);
+    return 1;
+  }
+
+  private void putSegments(BloomFilter<CharSequence> referenced, DataEntry dataEntry) {
+    for (DataSegment segment : dataEntry.getAllSegments()) {
+      if (segment.getDataPathUri() != null) {
+        referenced.put(getKey(segment.getDataPath()));
+      }
+    }
+  }
+
+  private String getKey(Path path) {
+    return path.toUri()
+               .getPath();
+  }
+
+  /**
+   * Usage: OrphanDataCollector metadata://authority/ [--dry-run]
+   *
+   * Changes made by other processes during the run are not recorded, run it
+   * only while the filesystem is not written to.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: " + OrphanDataCollector.class.getName() + " metadata://authority/ [--dry-run]");
+      System.exit(1);
+    }
+    boolean dryRun = args.length > 1 && args[1].equals("--dry-run");
+    try (MetaDataFileSystem fileSystem = (MetaDataFileSystem) FileSystem.newInstance(new URI(args[0]),
+        new Configuration())) {
+      fileSystem.createOrphanDataCollector(dryRun)
+                .collect();
+    }
+  }
+
+}
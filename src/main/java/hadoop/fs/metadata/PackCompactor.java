@@ -0,0 +1,330 @@
+package hadoop.fs.metadata;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import hadoop.fs.metadata.PackWriter.PackLocation;
+import hadoop.fs.metadata.ReferenceTracker.Recording;
+
+import lombok.Value;
+
+/**
+ * Rewrites pack objects once too much of their data belongs to deleted or
+ * overwritten files. The meta tree is walked to find the live entries of
+ * every pack, the live data of a sparse pack is copied into a new pack, the
+ * data entries are pointed at the new pack and the old pack is reclaimed.
+ * Packs referenced by directory manifests or snapshots are left alone, and a
+ * pack is only reclaimed if all of its live entries could be relocated. Packs
+ * without any live entry are found by listing the data roots and reclaimed
+ * once they are older than the minimum age, which has to exceed the time a
+ * pack takes from being written to its entries being finished. Data roots
+ * shared with another authority are not listed, see
+ * {@link OrphanDataCollector}.
+ *
+ * Entries renamed, copied or restored during the walk are recorded by the
+ * {@link ReferenceTracker} and walked again before anything is reclaimed,
+ * packs they reference are kept. Rewritten packs are reclaimed after a delay
+ * so readers that resolved the old location before the relocation (or hold
+ * it in the data entry cache) can finish.
+ */
+public class PackCompactor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PackCompactor.class);
+
+  private static final int MAX_REWALKS = 10;
+
+  private final MetaDataFileSystem _fileSystem;
+  private final PackWriter _packWriter;
+  private final float _minLiveRatio;
+  private final long _minAge;
+  private final long _reclaimDelay;
+
+  public PackCompactor(MetaDataFileSystem fileSystem, PackWriter packWriter, float minLiveRatio, long minAge,
+      long reclaimDelay) {
+    _fileSystem = fileSystem;
+    _packWriter = packWriter;
+    _minLiveRatio = minLiveRatio;
+    _minAge = minAge;
+    _reclaimDelay = reclaimDelay;
+  }
+
+  /**
+   * Runs a single compaction and returns the number of packs rewritten or
+   * reclaimed.
+   */
+  public long compact() throws IOException {
+    try (Recording recording = _fileSystem.getReferenceTracker()
+                                          .start()) {
+      return compact(recording);
+    }
+  }
+
+  private long compact(Recording recording) throws IOException {
+    long start = System.currentTimeMillis();
+    long cutoff = start - _minAge;
+    Map<Path, List<PackedEntry>> packs = new HashMap<>();
+    Set<Path> pinned = new HashSet<>();
+
+    Path metaRoot = _fileSystem.getMetaRoot();
+    FileSystem metaFs = metaRoot.getFileSystem(_fileSystem.getConf());
+    Path snapshotRoot = _fileSystem.getSnapshotRoot();
+    if (snapshotRoot != null) {
+      pinSnapshots(pinned, snapshotRoot);
+    }
+    RemoteIterator<LocatedFileStatus> metaIterator = metaFs.listFiles(metaRoot, true);
+    while (metaIterator.hasNext()) {
+      LocatedFileStatus metaFileStatus = metaIterator.next();
+      if (Manifests.isManifest(metaFileStatus.getPath())) {
+        pinManifest(pinned, metaFs, metaFileStatus);
+        continue;
+      }
+      DataEntry dataEntry = _fileSystem.getDataEntry(metaFileStatus);
+      if (dataEntry == null) {
+        continue;
+      }
+      List<DataSegment> segments = dataEntry.getAllSegments();
+      // only the first segment is relocated, packs of appended segments stay
+      pinPackedSegments(pinned, segments.subList(1, segments.size()));
+      if (dataEntry.isPacked()) {
+        packs.computeIfAbsent(dataEntry.getDataPath(), p -> new ArrayList<>())
+             .add(new PackedEntry(metaFileStatus.getPath(), dataEntry, segments.get(0)
+                                                                          .getLength()));
+      }
+    }
+    pinRecorded(pinned, recording);
+    List<Path> deadPacks = findDeadPacks(packs.keySet(), pinned, cutoff);
+
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    List<Path> rewritten = new ArrayList<>();
+    for (Map.Entry<Path, List<PackedEntry>> pack : packs.entrySet()) {
+      Path packPath = pack.getKey();
+      if (pinned.contains(packPath)) {
+        continue;
+      }
+      FileSystem dataFs = packPath.getFileSystem(_fileSystem.getConf());
+      FileStatus packStatus;
+      try {
+        packStatus = dataFs.getFileStatus(packPath);
+      } catch (FileNotFoundException e) {
+        LOGGER.warn("Pack {} referenced by {} entries does not exist", packPath, pack.getValue()
+                                                                                   .size());
+        continue;
+      }
+      long live = 0;
+      for (PackedEntry packedEntry : pack.getValue()) {
+        live += packedEntry.getLength();
+      }
+      if (packStatus.getModificationTime() >= cutoff || live >= packStatus.getLen() * _minLiveRatio) {
+        continue;
+      }
+      if (rewrite(dataFs, packPath, pack.getValue())) {
+        rewritten.add(packPath);
+        LOGGER.info("Rewrote pack {} with {} of {} bytes live", packPath, live, packStatus.getLen());
+      }
+    }
+
+    // entries that moved into the walked part of the tree while relocating
+    pinRecorded(pinned, recording);
+    long compacted = 0;
+    for (Path packPath : rewritten) {
+      if (pinned.contains(packPath)) {
+        LOGGER.info("Pack {} is referenced by a moved entry, keeping it", packPath);
+        continue;
+      }
+      _fileSystem.getDataReclaimer()
+                 .reclaim(ugi, packPath, _reclaimDelay);
+      compacted++;
+    }
+    long reclaimed = 0;
+    Set<String> pinnedKeys = getKeys(pinned);
+    for (Path packPath : deadPacks) {
+      if (pinnedKeys.contains(getKey(packPath))) {
+        LOGGER.info("Pack {} is referenced by a moved entry, keeping it", packPath);
+        continue;
+      }
+      _fileSystem.getDataReclaimer()
+                 .reclaim(ugi, packPath, _reclaimDelay);
+      reclaimed++;
+    }
+    LOGGER.info("Rewrote {} of {} packs and reclaimed {} packs without live entries in {} ms", compacted,
+        packs.size(), reclaimed, System.currentTimeMillis() - start);
+    return compacted + reclaimed;
+  }
+
+  /**
+   * Lists the packs under the data roots that no walked entry references and
+   * that are older than the cutoff.
+   */
+  private List<Path> findDeadPacks(Set<Path> livePacks, Set<Path> pinned, long cutoff) throws IOException {
+    List<Path> deadPacks = new ArrayList<>();
+    List<String> sharingAuthorities = _fileSystem.getAuthoritiesSharingDataRoots();
+    if (!sharingAuthorities.isEmpty()) {
+      LOGGER.warn("Data roots {} are shared with {}, packs without live entries are kept",
+          _fileSystem.getDataRoots(), sharingAuthorities);
+      return deadPacks;
+    }
+    Set<String> referenced = getKeys(livePacks);
+    referenced.addAll(getKeys(pinned));
+    for (Path dataRoot : _fileSystem.getDataRoots()) {
+      FileSystem dataFs = dataRoot.getFileSystem(_fileSystem.getConf());
+      if (!dataFs.exists(dataRoot)) {
+        continue;
+      }
+      RemoteIterator<LocatedFileStatus> dataIterator = dataFs.listFiles(dataRoot, true);
+      while (dataIterator.hasNext()) {
+        LocatedFileStatus dataFileStatus = dataIterator.next();
+        Path dataPath = dataFileStatus.getPath();
+        if (MetaDataFileSystem.isPack(dataPath) && dataFileStatus.getModificationTime() < cutoff
+            && !referenced.contains(getKey(dataPath))) {
+          deadPacks.add(dataPath);
+        }
+      }
+    }
+    return deadPacks;
+  }
+
+  private Set<String> getKeys(Set<Path> paths) {
+    Set<String> keys = new HashSet<>();
+    for (Path path : paths) {
+      keys.add(getKey(path));
+    }
+    return keys;
+  }
+
+  private String getKey(Path path) {
+    return path.toUri()
+               .getPath();
+  }
+
+  private boolean rewrite(FileSystem dataFs, Path packPath, List<PackedEntry> packedEntries) throws IOException {
+    List<byte[]> data = new ArrayList<>();
+    try (FSDataInputStream input = dataFs.open(packPath)) {
+      for (PackedEntry packedEntry : packedEntries) {
+        DataEntry dataEntry = packedEntry.getDataEntry();
+        byte[] bytes = new byte[(int) packedEntry.getLength()];
+        input.readFully(dataEntry.getPackOffset(), bytes);
+        data.add(bytes);
+      }
+    }
+    List<PackLocation> locations = _packWriter.writePack(data);
+    boolean relocated = true;
+    for (int i = 0; i < packedEntries.size(); i++) {
+      PackedEntry packedEntry = packedEntries.get(i);
+      PackLocation location = locations.get(i);
+      DataEntry relocatedDataEntry = packedEntry.getDataEntry()
+                                                .toBuilder()
+                                                .dataPathUri(location.getPackPath()
+                                                                     .toUri()
+                                                                     .toString())
+                                                .packOffset(location.getOffset())
+                                                .build();
+      if (!_fileSystem.relocateDataEntry(packedEntry.getMetaPath(), packedEntry.getDataEntry(),
+          relocatedDataEntry)) {
+        // moved or replaced during the walk, the next run picks it up
+        relocated = false;
+      }
+    }
+    return relocated;
+  }
+
+  /**
+   * Walks the recorded meta paths until no more are recorded and pins every
+   * pack they reference, gives up if the tree does not settle.
+   */
+  private void pinRecorded(Set<Path> pinned, Recording recording) throws IOException {
+    for (int i = 0; i < MAX_REWALKS; i++) {
+      List<Path> metaPaths = recording.drain();
+      if (metaPaths.isEmpty()) {
+        return;
+      }
+      for (Path metaPath : metaPaths) {
+        pinAll(pinned, metaPath);
+      }
+    }
+    throw new IOException("Meta tree under " + _fileSystem.getMetaRoots() + " kept changing during compaction.");
+  }
+
+  private void pinAll(Set<Path> pinned, Path metaPath) throws IOException {
+    FileSystem metaFs = metaPath.getFileSystem(_fileSystem.getConf());
+    try {
+      RemoteIterator<LocatedFileStatus> metaIterator = metaFs.listFiles(metaPath, true);
+      while (metaIterator.hasNext()) {
+        LocatedFileStatus metaFileStatus = metaIterator.next();
+        if (Manifests.isManifest(metaFileStatus.getPath())) {
+          pinManifest(pinned, metaFs, metaFileStatus);
+          continue;
+        }
+        DataEntry dataEntry = _fileSystem.getDataEntry(metaFileStatus);
+        if (dataEntry != null) {
+          pinPackedSegments(pinned, dataEntry.getAllSegments());
+        }
+      }
+    } catch (FileNotFoundException e) {
+      // moved again or removed, a move is recorded again
+      LOGGER.debug("Meta path {} is gone", metaPath);
+    }
+  }
+
+  private void pinManifest(Set<Path> pinned, FileSystem metaFs, FileStatus manifestStatus) throws IOException {
+    for (ManifestEntry manifestEntry : _fileSystem.getManifests()
+                                                  .getIndex(metaFs, manifestStatus)
+                                                  .values()) {
+      pinPackedSegments(pinned, manifestEntry.getDataEntry()
+                                             .getAllSegments());
+    }
+  }
+
+  /**
+   * Snapshot entries are never relocated, the packs they reference are kept
+   * as they are.
+   */
+  private void pinSnapshots(Set<Path> pinned, Path snapshotRoot) throws IOException {
+    FileSystem snapshotFs = snapshotRoot.getFileSystem(_fileSystem.getConf());
+    if (!snapshotFs.exists(snapshotRoot)) {
+      return;
+    }
+    RemoteIterator<LocatedFileStatus> snapshotIterator = snapshotFs.listFiles(snapshotRoot, true);
+    while (snapshotIterator.hasNext()) {
+      DataEntry dataEntry = _fileSystem.getDataEntry(snapshotIterator.next());
+      if (dataEntry != null) {
+        pinPackedSegments(pinned, dataEntry.getAllSegments());
+      }
+    }
+  }
+
+  private void pinPackedSegments(Set<Path> pinned, List<DataSegment> segments) {
+    for (DataSegment segment : segments) {
+      if (segment.isPacked()) {
+        pinned.add(segment.getDataPath());
+      }
+    }
+  }
+
+  @Value
+  private static class PackedEntry {
+
+    Path metaPath;
+
+    DataEntry dataEntry;
+
+    long length;
+
+  }
+
+}
@@ -0,0 +1,182 @@
+package hadoop.fs.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.Value;
+
+/**
+ * Writes the data of small files into shared pack objects. Files closed
+ * within the linger time of each other are appended to the same pending pack,
+ * which is written as a single data object once it is full or the linger time
+ * has passed. A file's write returns once its pack object is complete, so
+ * packs work on object stores that cannot append.
+ */
+public class PackWriter implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PackWriter.class);
+
+  public interface PackTarget {
+
+    Path createPackPath() throws IOException;
+
+    OutputStream createPackOutputStream(Path packPath) throws IOException;
+
+  }
+
+  private final PackTarget _target;
+  private final long _maxPackSize;
+  private final long _lingerMs;
+  private final ScheduledExecutorService _executor;
+  private final Object _lock = new Object();
+  private PendingPack _current;
+
+  public PackWriter(PackTarget target, long maxPackSize, long lingerMs, int threads) {
+    _target = target;
+    _maxPackSize = maxPackSize;
+    _lingerMs = lingerMs;
+    _executor = Executors.newScheduledThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                                                                                    .setNameFormat("metadata-pack-%d")
+                                                                                    .build());
+  }
+
+  /**
+   * Adds the data to a pack and waits until the pack object is written.
+   */
+  public PackLocation write(byte[] data) throws IOException {
+    PendingPack pack;
+    long offset;
+    synchronized (_lock) {
+      if (_current == null) {
+        PendingPack pending = new PendingPack();
+        _current = pending;
+        _executor.schedule(() -> flush(pending), _lingerMs, TimeUnit.MILLISECONDS);
+      }
+      pack = _current;
+      offset = pack.append(data);
+      if (pack.size() >= _maxPackSize) {
+        _current = null;
+        _executor.execute(() -> flush(pack));
+      }
+    }
+    return new PackLocation(pack.await(), offset);
+  }
+
+  /**
+   * Writes the data into a new pack object of its own, used when rewriting
+   * packs.
+   */
+  public List<PackLocation> writePack(List<byte[]> data) throws IOException {
+    PendingPack pack = new PendingPack();
+    List<Long> offsets = new ArrayList<>();
+    for (byte[] bytes : data) {
+      offsets.add(pack.append(bytes));
+    }
+    Path packPath = writePackObject(pack);
+    List<PackLocation> locations = new ArrayList<>();
+    for (Long offset : offsets) {
+      locations.add(new PackLocation(packPath, offset));
+    }
+    return locations;
+  }
+
+  @Override
+  public void close() throws IOException {
+    PendingPack pack;
+    synchronized (_lock) {
+      pack = _current;
+      _current = null;
+    }
+    if (pack != null) {
+      flush(pack);
+    }
+    _executor.shutdown();
+  }
+
+  private void flush(PendingPack pack) {
+    synchronized (_lock) {
+      if (_current == pack) {
+        _current = null;
+      }
+      if (pack._flushed) {
+        return;
+      }
+      pack._flushed = true;
+    }
+    try {
+      pack._result.complete(writePackObject(pack));
+    } catch (Throwable t) {
+      LOGGER.error("Could not write pack of " + pack._count + " entries", t);
+      pack._result.completeExceptionally(t);
+    }
+  }
+
+  private Path writePackObject(PendingPack pack) throws IOException {
+    Path packPath = _target.createPackPath();
+    try (OutputStream output = _target.createPackOutputStream(packPath)) {
+      pack._buffer.writeTo(output);
+    }
+    LOGGER.debug("Wrote pack {} with {} entries and {} bytes", packPath, pack._count, pack.size());
+    return packPath;
+  }
+
+  @Value
+  public static class PackLocation {
+
+    Path packPath;
+
+    long offset;
+
+  }
+
+  private static class PendingPack {
+
+    private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+    private final CompletableFuture<Path> _result = new CompletableFuture<>();
+    private int _count;
+    private boolean _flushed;
+
+    long append(byte[] data) {
+      long offset = _buffer.size();
+      _buffer.write(data, 0, data.length);
+      _count++;
+      return offset;
+    }
+
+    long size() {
+      return _buffer.size();
+    }
+
+    Path await() throws IOException {
+      try {
+        return _result.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException(e.getMessage());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,117 @@
+package hadoop.fs.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.fs.Syncable;
+
+/**
+ * Buffers the data of a new file in memory until it grows past the inline
+ * and pack thresholds, then the data object of the file is created and the
+ * data is written through. Data that stays below the threshold is stored in
+ * the data entry or handed to the {@link PackWriter} when the file is closed.
+ * A sync also spills the data to its own data object.
+ */
+public class PackingOutputStream extends OutputStream implements Syncable {
+
+  public interface DataStreamFactory {
+
+    OutputStream create() throws IOException;
+
+  }
+
+  private final int _threshold;
+  private final DataStreamFactory _factory;
+  private ByteArrayOutputStream _buffer = new ByteArrayOutputStream();
+  private OutputStream _output;
+
+  public PackingOutputStream(int threshold, DataStreamFactory factory) {
+    _threshold = threshold;
+    _factory = factory;
+  }
+
+  /**
+   * Returns the buffered data, null if it has been written to its own data
+   * object.
+   */
+  public byte[] getBufferedData() {
+    return _buffer == null ? null : _buffer.toByteArray();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (_output == null && _buffer.size() + 1 > _threshold) {
+      spill();
+    }
+    if (_output != null) {
+      _output.write(b);
+    } else {
+      _buffer.write(b);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (_output == null && _buffer.size() + len > _threshold) {
+      spill();
+    }
+    if (_output != null) {
+      _output.write(b, off, len);
+    } else {
+      _buffer.write(b, off, len);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (_output != null) {
+      _output.flush();
+    }
+  }
+
+  @Override
+  public void hflush() throws IOException {
+    spillIfNeeded();
+    if (_output instanceof Syncable) {
+      ((Syncable) _output).hflush();
+    } else {
+      _output.flush();
+    }
+  }
+
+  @Override
+  public void hsync() throws IOException {
+    spillIfNeeded();
+    if (_output instanceof Syncable) {
+      ((Syncable) _output).hsync();
+    } else {
+      _output.flush();
+    }
+  }
+
+  @Deprecated
+  public void sync() throws IOException {
+    hflush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (_output != null) {
+      _output.close();
+    }
+  }
+
+  private void spillIfNeeded() throws IOException {
+    if (_output == null) {
+      spill();
+    }
+  }
+
+  private void spill() throws IOException {
+    _output = _factory.create();
+    _buffer.writeTo(_output);
+    _buffer = null;
+  }
+
+}
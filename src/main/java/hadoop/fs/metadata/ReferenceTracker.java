@@ -0,0 +1,84 @@
+package hadoop.fs.metadata;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Records the meta paths that start referencing existing data objects
+ * (renames, copies, snapshots, restores, concats, manifest folding) while a
+ * collection walks the meta tree. A walk can miss such an entry if it moves
+ * from a part of the tree not yet walked into a part already walked, so the
+ * walk re-reads the recorded paths before it acts on what it found.
+ *
+ * Trackers are shared by every filesystem instance with the same meta root
+ * in this JVM, changes made by other processes are not recorded.
+ */
+public class ReferenceTracker {
+
+  private static final Map<String, ReferenceTracker> TRACKERS = new ConcurrentHashMap<>();
+
+  public static ReferenceTracker get(Path metaRoot) {
+    return TRACKERS.computeIfAbsent(metaRoot.toString(), k -> new ReferenceTracker());
+  }
+
+  private final Set<Recording> _recordings = ConcurrentHashMap.newKeySet();
+
+  private ReferenceTracker() {
+
+  }
+
+  /**
+   * Starts recording, paths are recorded until the recording is closed.
+   */
+  public Recording start() {
+    Recording recording = new Recording();
+    _recordings.add(recording);
+    return recording;
+  }
+
+  public boolean isRecording() {
+    return !_recordings.isEmpty();
+  }
+
+  /**
+   * Records a meta path, the path and everything below it may reference data
+   * objects it did not reference before. Has to be called after the change
+   * is visible in the meta tree.
+   */
+  public void record(Path metaPath) {
+    for (Recording recording : _recordings) {
+      recording._paths.add(metaPath);
+    }
+  }
+
+  public class Recording implements Closeable {
+
+    private final Set<Path> _paths = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Returns and forgets the paths recorded so far.
+     */
+    public List<Path> drain() {
+      List<Path> paths = new ArrayList<>();
+      for (Path path : _paths) {
+        if (_paths.remove(path)) {
+          paths.add(path);
+        }
+      }
+      return paths;
+    }
+
+    @Override
+    public void close() {
+      _recordings.remove(this);
+    }
+
+  }
+
+}
@@ -0,0 +1,59 @@
+package hadoop.fs.metadata;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * In memory input stream that can back a FSDataInputStream.
+ */
+public class SeekableByteArrayInputStream extends ByteArrayInputStream implements Seekable, PositionedReadable {
+
+  public SeekableByteArrayInputStream(byte[] content) {
+    super(content);
+  }
+
+  @Override
+  public synchronized void seek(long pos) throws IOException {
+    if (pos < 0 || pos > count) {
+      throw new EOFException("Cannot seek to " + pos);
+    }
+    this.pos = (int) pos;
+  }
+
+  @Override
+  public synchronized long getPos() throws IOException {
+    return pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    if (position >= count) {
+      return -1;
+    }
+    int len = (int) Math.min(length, count - position);
+    System.arraycopy(buf, (int) position, buffer, offset, len);
+    return len;
+  }
+
+  @Override
+  public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+    if (read(position, buffer, offset, length) < length) {
+      throw new EOFException("Reached the end of the data at " + position);
+    }
+  }
+
+  @Override
+  public void readFully(long position, byte[] buffer) throws IOException {
+    readFully(position, buffer, 0, buffer.length);
+  }
+
+}
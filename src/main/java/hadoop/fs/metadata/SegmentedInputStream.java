@@ -0,0 +1,171 @@
+package hadoop.fs.metadata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * Reads the segments of a multi segment data entry as one stream. Segments
+ * are opened on first use, positions are mapped to the segment and the
+ * offset within it, and positioned reads that span segments are split.
+ */
+public class SegmentedInputStream extends InputStream implements Seekable, PositionedReadable {
+
+  private final Configuration _conf;
+  private final List<DataSegment> _segments;
+  private final long[] _starts;
+  private final FSDataInputStream[] _inputs;
+  private final long _length;
+  private long _pos;
+
+  public SegmentedInputStream(Configuration conf, List<DataSegment> segments) {
+    _conf = conf;
+    _segments = segments;
+    _starts = new long[segments.size()];
+    _inputs = new FSDataInputStream[segments.size()];
+    long start = 0;
+    for (int i = 0; i < _starts.length; i++) {
+      _starts[i] = start;
+      start += segments.get(i)
+                       .getLength();
+    }
+    _length = start;
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int read = read(_pos, b, off, len);
+    if (read > 0) {
+      _pos += read;
+    }
+    return read;
+  }
+
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    long skipped = Math.max(0, Math.min(n, _length - _pos));
+    _pos += skipped;
+    return skipped;
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    return (int) Math.min(Integer.MAX_VALUE, _length - _pos);
+  }
+
+  @Override
+  public synchronized void seek(long pos) throws IOException {
+    if (pos < 0 || pos > _length) {
+      throw new EOFException("Cannot seek to " + pos + " of " + _length);
+    }
+    _pos = pos;
+  }
+
+  @Override
+  public synchronized long getPos() throws IOException {
+    return _pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override
+  public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    if (position >= _length) {
+      return -1;
+    }
+    int total = 0;
+    while (total < length && position < _length) {
+      int index = getSegmentIndex(position);
+      DataSegment segment = _segments.get(index);
+      long segmentOffset = position - _starts[index];
+      int len = (int) Math.min(length - total, segment.getLength() - segmentOffset);
+      if (len > 0) {
+        readSegment(index, segmentOffset, buffer, offset + total, len);
+        total += len;
+        position += len;
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+    if (read(position, buffer, offset, length) < length) {
+      throw new EOFException("Reached the end of the data at " + position);
+    }
+  }
+
+  @Override
+  public void readFully(long position, byte[] buffer) throws IOException {
+    readFully(position, buffer, 0, buffer.length);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (int i = 0; i < _inputs.length; i++) {
+      if (_inputs[i] != null) {
+        _inputs[i].close();
+        _inputs[i] = null;
+      }
+    }
+  }
+
+  private int getSegmentIndex(long position) {
+    int low = 0;
+    int high = _starts.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (_starts[mid] <= position) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    // skip empty segments
+    while (low < _starts.length - 1 && position - _starts[low] >= _segments.get(low)
+                                                                        .getLength()) {
+      low++;
+    }
+    return low;
+  }
+
+  private void readSegment(int index, long segmentOffset, byte[] buffer, int offset, int length) throws IOException {
+    DataSegment segment = _segments.get(index);
+    if (segment.isInline()) {
+      System.arraycopy(segment.getContent(), (int) segmentOffset, buffer, offset, length);
+      return;
+    }
+    long base = segment.isPacked() ? segment.getPackOffset() : 0;
+    getInput(index).readFully(base + segmentOffset, buffer, offset, length);
+  }
+
+  private synchronized FSDataInputStream getInput(int index) throws IOException {
+    if (_inputs[index] == null) {
+      Path dataPath = _segments.get(index)
+                               .getDataPath();
+      _inputs[index] = dataPath.getFileSystem(_conf)
+                               .open(dataPath);
+    }
+    return _inputs[index];
+  }
+
+}
@@ -8,9 +8,20 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -120,4 +131,198 @@ public class CacheFileSystemTest extends GenericFileSystemTest {
     }
   }
 
+  @Test
+  public void testSequentialBypassHint() throws Exception {
+    Path file = new Path(_cacheFsRoot, UUID.randomUUID()
+                                           .toString());
+    FileSystem fileSystem = file.getFileSystem(_conf);
+    byte[] writeMd5;
+    try (FSDataOutputStream output = fileSystem.create(file)) {
+      writeMd5 = writeData(output);
+    }
+
+    try (FSDataInputStream input = fileSystem.open(file)) {
+      assertFalse(((FSCachedInputStream) input.getWrappedStream()).isBypass());
+      assertTrue(Arrays.equals(writeMd5, readData(input)));
+    }
+
+    try (FSDataInputStream input = fileSystem.open(file, 4 * 1024 * 1024)) {
+      assertTrue(((FSCachedInputStream) input.getWrappedStream()).isBypass());
+      assertTrue(Arrays.equals(writeMd5, readData(input)));
+    }
+  }
+
+  @Test
+  public void testDefaultPinPatterns() throws Exception {
+    FSCachePinnedRegions pinnedRegions = new FSCachePinnedRegions(new Configuration(), null);
+    assertTrue(pinnedRegions.isPinned(new FileStatus(1, false, 1, 1, 0, new Path("/data/part-0.parquet"))));
+    assertTrue(pinnedRegions.isPinned(new FileStatus(1, false, 1, 1, 0, new Path("/data/part-0.orc"))));
+    assertFalse(pinnedRegions.isPinned(new FileStatus(1, false, 1, 1, 0, new Path("/data/part-0.csv"))));
+  }
+
+  @Test
+  public void testPinnedFooterRead() throws Exception {
+    Path file = new Path(_cacheFsRoot, UUID.randomUUID()
+                                           .toString()
+        + ".parquet");
+    FileSystem fileSystem = file.getFileSystem(_conf);
+    int length = 3 * 1024 * 1024;
+    try (FSDataOutputStream output = fileSystem.create(file)) {
+      for (int i = 0; i < length; i++) {
+        output.write(i);
+      }
+    }
+
+    FSCacheMetrics metrics = FSCache.getInstance(_conf)
+                                    .getMetrics();
+    long pinnedHits = metrics.getPinnedHits();
+    long pinnedMisses = metrics.getPinnedMisses();
+    for (int pass = 0; pass < 2; pass++) {
+      try (FSDataInputStream input = fileSystem.open(file)) {
+        long footerPos = length - 100;
+        input.seek(footerPos);
+        byte[] footer = new byte[100];
+        input.readFully(footer);
+        for (int i = 0; i < footer.length; i++) {
+          assertEquals((byte) (footerPos + i), footer[i]);
+        }
+      }
+    }
+    assertEquals(pinnedMisses + 1, metrics.getPinnedMisses());
+    assertTrue(metrics.getPinnedHits() > pinnedHits);
+  }
+
+  @Test
+  public void testPassThroughUntilReady() throws Exception {
+    Path file = new Path(_realPath, UUID.randomUUID()
+                                        .toString());
+    FileSystem fileSystem = file.getFileSystem(_conf);
+    int length = 1024 * 1024;
+    try (FSDataOutputStream output = fileSystem.create(file)) {
+      for (int i = 0; i < length; i++) {
+        output.write(i);
+      }
+    }
+    FileStatus fileStatus = fileSystem.getFileStatus(file);
+
+    Configuration conf = new Configuration(_conf);
+    conf.set(FSCache.CACHE_ON_DISK_PATH_KEY, new File(ROOT, "init-cache").getCanonicalPath());
+    conf.setLong(FSCache.CACHE_ON_DISK_SIZE_GB_KEY, 1);
+    List<Runnable> pending = new ArrayList<>();
+    String name = "FSCache-" + UUID.randomUUID();
+    FSCache fsCache = new FSCache(conf, name, pending::add);
+    FSCacheMetrics metrics = fsCache.getMetrics();
+    ObjectName objectName = new ObjectName("Hadoop:service=FSCache,name=" + name);
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    // until the tiers are open all reads pass through to the stream
+    assertFalse(fsCache.isReady());
+    assertEquals(false, mbeanServer.getAttribute(objectName, "Ready"));
+    assertEquals(-1L, mbeanServer.getAttribute(objectName, "InitializationTime"));
+    assertRead(fsCache, fileSystem, fileStatus, 1000);
+    assertEquals(1000, metrics.getBytesFromBackend());
+    assertEquals(0, metrics.getBackendLoads());
+    assertEquals(0, metrics.getBytesFromCache());
+    assertEquals(0, metrics.getAdmissions());
+
+    assertEquals(1, pending.size());
+    pending.get(0)
+           .run();
+    assertTrue(fsCache.isReady());
+    assertEquals(true, mbeanServer.getAttribute(objectName, "Ready"));
+    assertTrue((Long) mbeanServer.getAttribute(objectName, "InitializationTime") >= 0);
+
+    // once ready the block is loaded and admitted, then served from the cache
+    assertRead(fsCache, fileSystem, fileStatus, 1000);
+    assertRead(fsCache, fileSystem, fileStatus, 1000);
+    assertEquals(1, metrics.getBackendLoads());
+    assertEquals(1, metrics.getAdmissions());
+    assertEquals(1000, metrics.getBytesFromCache());
+  }
+
+  private void assertRead(FSCache fsCache, FileSystem fileSystem, FileStatus fileStatus, int length)
+      throws IOException {
+    byte[] buffer = new byte[length];
+    try (FSDataInputStream input = fileSystem.open(fileStatus.getPath())) {
+      assertEquals(length, fsCache.read(fileStatus, input, buffer, 0, length));
+    }
+    for (int i = 0; i < length; i++) {
+      assertEquals((byte) i, buffer[i]);
+    }
+  }
+
+  @Test
+  public void testVectoredRead() throws Exception {
+    Path file = new Path(_cacheFsRoot, UUID.randomUUID()
+                                           .toString());
+    FileSystem fileSystem = file.getFileSystem(_conf);
+    int length = 12 * 1024 * 1024;
+    try (FSDataOutputStream output = fileSystem.create(file)) {
+      for (int i = 0; i < length; i++) {
+        output.write(i);
+      }
+    }
+
+    FSCache fsCache = FSCache.getInstance(_conf);
+    for (int i = 0; i < 100 && !fsCache.isReady(); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(fsCache.isReady());
+    FSCacheMetrics metrics = fsCache.getMetrics();
+
+    // an empty range is completed without loading any block
+    long backendLoads = metrics.getBackendLoads();
+    long bytesFromCache = metrics.getBytesFromCache();
+    FileRange empty = FileRange.createFileRange(0, 0);
+    try (FSDataInputStream input = fileSystem.open(file)) {
+      ((FSCachedInputStream) input.getWrappedStream()).readVectored(Arrays.asList(empty), ByteBuffer::allocate);
+      assertEquals(0, empty.getData()
+                           .get(30, TimeUnit.SECONDS)
+                           .remaining());
+    }
+    assertEquals(backendLoads, metrics.getBackendLoads());
+
+    // blocks 0, 1 and 2 are all missing and are loaded with one backend read
+    readVectored(fileSystem, file, length);
+    assertEquals(backendLoads + 1, metrics.getBackendLoads());
+    assertEquals(bytesFromCache, metrics.getBytesFromCache());
+
+    // the second pass is served from the cache, counting only the bytes read
+    readVectored(fileSystem, file, length);
+    assertEquals(backendLoads + 1, metrics.getBackendLoads());
+    assertEquals(bytesFromCache + 100 + 20 + 1024 * 1024, metrics.getBytesFromCache());
+  }
+
+  private void readVectored(FileSystem fileSystem, Path file, int length) throws Exception {
+    List<FileRange> ranges = new ArrayList<>();
+    ranges.add(FileRange.createFileRange(0, 100));
+    ranges.add(FileRange.createFileRange(5 * 1024 * 1024 - 10, 20));
+    ranges.add(FileRange.createFileRange(11 * 1024 * 1024, 1024 * 1024));
+    ranges.add(FileRange.createFileRange(length - 10, 20));
+
+    try (FSDataInputStream input = fileSystem.open(file)) {
+      ((FSCachedInputStream) input.getWrappedStream()).readVectored(ranges, ByteBuffer::allocate);
+      for (int r = 0; r < 3; r++) {
+        FileRange range = ranges.get(r);
+        ByteBuffer buffer = range.getData()
+                                 .get(30, TimeUnit.SECONDS);
+        assertEquals(range.getLength(), buffer.remaining());
+        for (int i = 0; i < range.getLength(); i++) {
+          assertEquals((byte) (range.getOffset() + i), buffer.get());
+        }
+      }
+      assertTrue(isFailed(ranges.get(3)));
+    }
+  }
+
+  private boolean isFailed(FileRange range) throws Exception {
+    try {
+      range.getData()
+           .get(30, TimeUnit.SECONDS);
+      return false;
+    } catch (ExecutionException e) {
+      return true;
+    }
+  }
+
 }
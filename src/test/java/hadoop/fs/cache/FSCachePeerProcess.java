@@ -0,0 +1,34 @@
+package hadoop.fs.cache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Runs a peer server in its own JVM for {@link FSCachePeerTest}. The port is
+ * printed on the first line of stdout and the server runs until stdin is
+ * closed. Blocks are filled with their block id, negative block ids are not
+ * found.
+ */
+public class FSCachePeerProcess {
+
+  public static void main(String[] args) throws IOException {
+    byte[] secret = args[0].getBytes(StandardCharsets.UTF_8);
+    try (FSCachePeerServer server = new FSCachePeerServer(new InetSocketAddress("localhost", 0), secret, key -> {
+      if (key.getBlockId() < 0) {
+        return null;
+      }
+      byte[] data = new byte[FSCache.BLOCK_SIZE];
+      Arrays.fill(data, (byte) key.getBlockId());
+      return data;
+    })) {
+      System.out.println(server.getPort());
+      System.out.flush();
+      while (System.in.read() >= 0) {
+        // runs until the test closes stdin
+      }
+    }
+  }
+
+}
@@ -0,0 +1,361 @@
+package hadoop.fs.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hadoop.fs.cache.FSCache.FileBlockCacheKey;
+import hadoop.fs.cache.FSCachePeerServer.BlockLoader;
+
+public class FSCachePeerTest {
+
+  private static final String SECRET = "test-secret";
+  private static final File ROOT = new File("./target/tmp/" + FSCachePeerTest.class.getName());
+
+  private BlockLoader _loader;
+  private FSCachePeerServer _server;
+  private FSCachePeerClient _client;
+  private String _peer;
+
+  @Before
+  public void setup() throws Exception {
+    _loader = key -> {
+      if (key.getBlockId() < 0) {
+        return null;
+      }
+      // a misbehaving peer answers with partial blocks below /short/
+      if (key.getPath()
+             .contains("/short/")) {
+        return new byte[1024];
+      }
+      byte[] data = new byte[FSCache.BLOCK_SIZE];
+      Arrays.fill(data, (byte) key.getBlockId());
+      return data;
+    };
+    _server = new FSCachePeerServer(new InetSocketAddress("localhost", 0), SECRET.getBytes(StandardCharsets.UTF_8),
+        _loader);
+    _peer = "localhost:" + _server.getPort();
+    _client = new FSCachePeerClient(2000, 2000, SECRET.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @After
+  public void after() throws Exception {
+    _client.close();
+    _server.close();
+  }
+
+  @Test
+  public void testFetch() throws Exception {
+    for (long blockId = 0; blockId < 10; blockId++) {
+      byte[] data = _client.fetch(_peer, getKey(blockId));
+      byte[] expected = new byte[FSCache.BLOCK_SIZE];
+      Arrays.fill(expected, (byte) blockId);
+      assertArrayEquals(expected, data);
+    }
+  }
+
+  @Test
+  public void testFetchNotFound() throws Exception {
+    assertNull(_client.fetch(_peer, getKey(-1)));
+    assertEquals(FSCache.BLOCK_SIZE, _client.fetch(_peer, getKey(1)).length);
+  }
+
+  @Test
+  public void testFetchWithWrongSecret() throws Exception {
+    try (FSCachePeerClient client = new FSCachePeerClient(2000, 2000, "wrong".getBytes(StandardCharsets.UTF_8))) {
+      client.fetch(_peer, getKey(1));
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMaxConnections() throws Exception {
+    try (FSCachePeerServer server = new FSCachePeerServer(new InetSocketAddress("localhost", 0),
+        SECRET.getBytes(StandardCharsets.UTF_8), _loader, 2, 2000);
+        FSCachePeerClient client = new FSCachePeerClient(2000, 2000, SECRET.getBytes(StandardCharsets.UTF_8))) {
+      String peer = "localhost:" + server.getPort();
+      // two connections that never finish the handshake hold both threads
+      Socket socket1 = openHandshake(server.getPort());
+      Socket socket2 = openHandshake(server.getPort());
+      try (Socket socket3 = new Socket("localhost", server.getPort())) {
+        socket3.setSoTimeout(2000);
+        assertEquals(-1, socket3.getInputStream()
+                                .read());
+      }
+      socket1.close();
+      socket2.close();
+      byte[] data = null;
+      for (int i = 0; i < 50 && data == null; i++) {
+        try {
+          data = client.fetch(peer, getKey(1));
+        } catch (IOException e) {
+          Thread.sleep(100);
+        }
+      }
+      assertNotNull(data);
+    }
+  }
+
+  @Test
+  public void testIdleConnectionsClosed() throws Exception {
+    byte[] secret = SECRET.getBytes(StandardCharsets.UTF_8);
+    try (FSCachePeerServer server = new FSCachePeerServer(new InetSocketAddress("localhost", 0), secret, _loader, 4,
+        200); FSCachePeerClient client = new FSCachePeerClient(2000, 2000, secret)) {
+      String peer = "localhost:" + server.getPort();
+      try (Socket socket = new Socket("localhost", server.getPort())) {
+        socket.setSoTimeout(2000);
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        FSCachePeerServer.authenticate(secret, input, new DataOutputStream(socket.getOutputStream()));
+        Thread.sleep(1000);
+        assertEquals(-1, input.read());
+      }
+
+      // the pooled connection closed by the server is replaced
+      assertEquals(FSCache.BLOCK_SIZE, client.fetch(peer, getKey(1)).length);
+      Thread.sleep(1000);
+      assertEquals(FSCache.BLOCK_SIZE, client.fetch(peer, getKey(2)).length);
+    }
+  }
+
+  /**
+   * Peers of a cluster run in separate JVMs, the peer server here shares no
+   * state with this one.
+   */
+  @Test
+  public void testForkedPeer() throws Exception {
+    String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getCanonicalPath();
+    Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        FSCachePeerProcess.class.getName(), SECRET).redirectError(Redirect.INHERIT)
+                                                   .start();
+    try {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+      String port = reader.readLine();
+      assertNotNull(port);
+      String forkedPeer = "localhost:" + port.trim();
+      assertArrayEquals(getBlock(3), _client.fetch(forkedPeer, getKey(3)));
+      assertNull(_client.fetch(forkedPeer, getKey(-1)));
+
+      Configuration conf = new Configuration();
+      LocalFileSystem local = FileSystem.getLocal(conf);
+      Path root = local.makeQualified(new Path(ROOT.getCanonicalPath()));
+      local.delete(root, true);
+      String localPeer = "localhost:" + getFreePort();
+      List<String> peers = Arrays.asList(localPeer, forkedPeer);
+      conf.setStrings(FSCacheCluster.CACHE_CLUSTER_PEERS_KEY, localPeer, forkedPeer);
+      conf.set(FSCacheCluster.CACHE_CLUSTER_LOCAL_PEER_KEY, localPeer);
+      conf.set(FSCacheCluster.CACHE_CLUSTER_SECRET_KEY, SECRET);
+      conf.set(FSCache.CACHE_ON_DISK_PATH_KEY, new File(ROOT, "cache").getCanonicalPath());
+      conf.setLong(FSCache.CACHE_ON_DISK_SIZE_GB_KEY, 1);
+      FSCacheHashRing ring = new FSCacheHashRing(peers, FSCacheCluster.CACHE_CLUSTER_VIRTUAL_NODES_DEFAULT);
+
+      FSCache cache = new FSCache(conf, getClass().getSimpleName());
+      try {
+        for (int i = 0; i < 100 && !cache.isReady(); i++) {
+          Thread.sleep(100);
+        }
+        assertTrue(cache.isReady());
+
+        // blocks owned by the forked peer are served by it
+        FileStatus remoteFile = createOwnedFile(local, ring, new Path(root, "remote"), forkedPeer);
+        long peerHits = cache.getMetrics()
+                             .getPeerHits();
+        byte[] buffer = new byte[1000];
+        try (FSDataInputStream input = local.open(remoteFile.getPath())) {
+          assertEquals(1000, cache.read(remoteFile, input, buffer, 0, 1000));
+        }
+        assertArrayEquals(new byte[1000], buffer);
+        assertEquals(peerHits + 1, cache.getMetrics()
+                                        .getPeerHits());
+      } finally {
+        cache.close();
+      }
+    } finally {
+      process.getOutputStream()
+             .close();
+      if (!process.waitFor(10, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  @Test
+  public void testClusterThroughFSCache() throws Exception {
+    Configuration conf = new Configuration();
+    LocalFileSystem local = FileSystem.getLocal(conf);
+    Path root = local.makeQualified(new Path(ROOT.getCanonicalPath()));
+    local.delete(root, true);
+    Path servedDir = new Path(root, "served");
+    Path otherDir = new Path(root, "other");
+    Path shortDir = new Path(root, "short");
+
+    String localPeer = "localhost:" + getFreePort();
+    List<String> peers = Arrays.asList(localPeer, _peer);
+    conf.setStrings(FSCacheCluster.CACHE_CLUSTER_PEERS_KEY, localPeer, _peer);
+    conf.set(FSCacheCluster.CACHE_CLUSTER_LOCAL_PEER_KEY, localPeer);
+    conf.set(FSCacheCluster.CACHE_CLUSTER_SECRET_KEY, SECRET);
+    conf.set(FSCacheCluster.CACHE_CLUSTER_LOAD_ROOTS_KEY, servedDir.toString());
+    conf.set(FSCache.CACHE_ON_DISK_PATH_KEY, new File(ROOT, "cache").getCanonicalPath());
+    conf.setLong(FSCache.CACHE_ON_DISK_SIZE_GB_KEY, 1);
+    FSCacheHashRing ring = new FSCacheHashRing(peers, FSCacheCluster.CACHE_CLUSTER_VIRTUAL_NODES_DEFAULT);
+
+    FSCache cache = new FSCache(conf, getClass().getSimpleName());
+    try {
+      for (int i = 0; i < 100 && !cache.isReady(); i++) {
+        Thread.sleep(100);
+      }
+      assertTrue(cache.isReady());
+
+      // blocks owned by the remote peer are served by it
+      FileStatus remoteFile = createOwnedFile(local, ring, otherDir, _peer);
+      byte[] buffer = new byte[1000];
+      try (FSDataInputStream input = local.open(remoteFile.getPath())) {
+        assertEquals(1000, cache.read(remoteFile, input, buffer, 0, 1000));
+      }
+      assertArrayEquals(new byte[1000], buffer);
+
+      // a stream keeps the last peer block for the reads that follow
+      FSCacheMetrics metrics = cache.getMetrics();
+      long peerHits = metrics.getPeerHits();
+      try (FSDataInputStream input = new FSDataInputStream(
+          new FSCachedInputStream(cache, remoteFile, local.open(remoteFile.getPath())))) {
+        for (int i = 0; i < 10; i++) {
+          assertEquals(100, input.read(buffer, 0, 100));
+          assertArrayEquals(new byte[100], Arrays.copyOf(buffer, 100));
+        }
+      }
+      assertEquals(peerHits + 1, metrics.getPeerHits());
+
+      // partial blocks from the peer are rejected and read from the backend
+      FileStatus shortFile = createOwnedFile(local, ring, shortDir, _peer);
+      long peerMisses = metrics.getPeerMisses();
+      try (FSDataInputStream input = local.open(shortFile.getPath())) {
+        assertEquals(1000, cache.read(shortFile, input, buffer, 0, 1000));
+      }
+      assertArrayEquals(getData(), buffer);
+      assertEquals(peerMisses + 1, metrics.getPeerMisses());
+
+      // local blocks outside of the load roots are only served once cached
+      FileStatus localFile = createOwnedFile(local, ring, otherDir, localPeer);
+      assertNull(_client.fetch(localPeer, getKey(localFile)));
+      try (FSDataInputStream input = local.open(localFile.getPath())) {
+        assertEquals(1000, cache.read(localFile, input, buffer, 0, 1000));
+      }
+      assertArrayEquals(getData(), Arrays.copyOf(_client.fetch(localPeer, getKey(localFile)), 1000));
+
+      // local blocks below the load roots are loaded for peers
+      FileStatus servedFile = createOwnedFile(local, ring, servedDir, localPeer);
+      assertArrayEquals(getData(), Arrays.copyOf(_client.fetch(localPeer, getKey(servedFile)), 1000));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testHashRing() throws Exception {
+    List<String> peers = Arrays.asList("localhost:9001", "localhost:9002", "localhost:9003");
+    FSCacheHashRing ring1 = new FSCacheHashRing(peers, 128);
+    FSCacheHashRing ring2 = new FSCacheHashRing(peers, 128);
+    Map<String, Integer> counts = new HashMap<>();
+    for (int i = 0; i < 3000; i++) {
+      String owner = ring1.getOwner("/file#" + i);
+      assertEquals(owner, ring2.getOwner("/file#" + i));
+      counts.merge(owner, 1, Integer::sum);
+    }
+    assertEquals(3, counts.size());
+    for (int count : counts.values()) {
+      assertTrue(count > 500);
+    }
+  }
+
+  private FileStatus createOwnedFile(FileSystem fileSystem, FSCacheHashRing ring, Path dir, String owner)
+      throws IOException {
+    for (int i = 0;; i++) {
+      Path path = fileSystem.makeQualified(new Path(dir, "file-" + i));
+      if (owner.equals(ring.getOwner(path + "#0"))) {
+        try (FSDataOutputStream output = fileSystem.create(path)) {
+          output.write(getData());
+        }
+        return fileSystem.getFileStatus(path);
+      }
+    }
+  }
+
+  private Socket openHandshake(int port) throws IOException {
+    Socket socket = new Socket("localhost", port);
+    socket.setSoTimeout(2000);
+    new DataInputStream(socket.getInputStream()).readFully(new byte[FSCachePeerServer.NONCE_LENGTH]);
+    return socket;
+  }
+
+  private byte[] getBlock(long blockId) {
+    byte[] data = new byte[FSCache.BLOCK_SIZE];
+    Arrays.fill(data, (byte) blockId);
+    return data;
+  }
+
+  private byte[] getData() {
+    byte[] data = new byte[1000];
+    Arrays.fill(data, (byte) 9);
+    return data;
+  }
+
+  private int getFreePort() throws IOException {
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      return serverSocket.getLocalPort();
+    }
+  }
+
+  private FileBlockCacheKey getKey(FileStatus fileStatus) {
+    return FileBlockCacheKey.builder()
+                            .path(fileStatus.getPath()
+                                            .toString())
+                            .length(fileStatus.getLen())
+                            .modificationTime(fileStatus.getModificationTime())
+                            .blockId(0)
+                            .build();
+  }
+
+  private FileBlockCacheKey getKey(long blockId) {
+    return FileBlockCacheKey.builder()
+                            .path("file:///test")
+                            .length(1024 * 1024)
+                            .modificationTime(1)
+                            .blockId(blockId)
+                            .build();
+  }
+
+}
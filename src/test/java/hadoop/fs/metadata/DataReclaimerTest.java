@@ -0,0 +1,78 @@
+package hadoop.fs.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.Test;
+
+public class DataReclaimerTest {
+
+  private static final File ROOT = new File("./target/tmp/" + DataReclaimerTest.class.getName());
+
+  @Test
+  public void testS3ABatches() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setClass("fs.s3a.impl", RecordingS3AFileSystem.class, FileSystem.class);
+    conf.setBoolean("fs.s3a.impl.disable.cache", true);
+    RecordingS3AFileSystem.getDeletes()
+                          .clear();
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    Set<String> expected = new TreeSet<>();
+    try (DataReclaimer dataReclaimer = new DataReclaimer(conf, 2, 4)) {
+      for (int i = 0; i < 10; i++) {
+        dataReclaimer.reclaim(ugi, new Path("s3a://bucket/data/object" + i));
+        expected.add("bucket/data/object" + i);
+      }
+      dataReclaimer.waitForReclamation();
+      assertEquals(10, dataReclaimer.getReclaimedCount());
+      assertEquals(0, dataReclaimer.getFailedCount());
+      assertEquals(RecordingS3AFileSystem.getDeletes()
+                                         .size(),
+          dataReclaimer.getBatchCount());
+    }
+
+    // every data path in exactly one multi-object delete of at most 4 keys
+    List<List<String>> deletes = RecordingS3AFileSystem.getDeletes();
+    assertTrue(deletes.size() >= 3);
+    Set<String> deleted = new TreeSet<>();
+    int count = 0;
+    for (List<String> keys : deletes) {
+      assertTrue(keys.size() <= 4);
+      deleted.addAll(keys);
+      count += keys.size();
+    }
+    assertEquals(10, count);
+    assertEquals(expected, deleted);
+  }
+
+  @Test
+  public void testReclaimAfterClose() throws Exception {
+    Configuration conf = new Configuration();
+    FileSystem local = FileSystem.getLocal(conf);
+    Path dataPath = local.makeQualified(new Path(ROOT.getCanonicalPath(), "closed"));
+    local.delete(dataPath.getParent(), true);
+    local.create(dataPath)
+         .close();
+    UserGroupInformation ugi = UserGroupInformation.getCurrentUser();
+    DataReclaimer dataReclaimer = new DataReclaimer(conf, 1, 4);
+    dataReclaimer.close();
+
+    // paths queued after close are counted as failed and never waited for
+    dataReclaimer.reclaim(ugi, dataPath);
+    assertEquals(1, dataReclaimer.getFailedCount());
+    assertEquals(0, dataReclaimer.getReclaimedCount());
+    dataReclaimer.waitForReclamation();
+    dataReclaimer.close();
+    assertTrue(local.exists(dataPath));
+  }
+
+}
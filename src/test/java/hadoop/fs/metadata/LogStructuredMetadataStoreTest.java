@@ -0,0 +1,192 @@
+package hadoop.fs.metadata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogStructuredMetadataStoreTest {
+
+  private static final File ROOT = new File("./target/tmp/" + LogStructuredMetadataStoreTest.class.getName());
+  private LogStructuredMetadataStore _store;
+
+  @Before
+  public void setup() throws Exception {
+    FileUtil.fullyDelete(ROOT);
+    _store = open(4, 2);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    _store.close();
+  }
+
+  @Test
+  public void testPutGetList() throws Exception {
+    mkdir("/a");
+    put("/a/c", "c");
+    put("/a/b", "b");
+    mkdir("/ab");
+    put("/ab/x", "x");
+
+    assertArrayEquals("b".getBytes(), _store.get("/a/b")
+                                            .getContent());
+    assertTrue(_store.get("/")
+                     .isDirectory());
+    assertNull(_store.get("/a/d"));
+    assertNames(_store.list("/a"), "/a/b", "/a/c");
+    assertNames(_store.list("/"), "/a", "/ab");
+    try {
+      put("/missing/file", "x");
+      fail();
+    } catch (IOException e) {
+    }
+    try {
+      _store.delete("/a", false);
+      fail();
+    } catch (IOException e) {
+    }
+    assertTrue(_store.delete("/a/b", false));
+    assertNames(_store.list("/a"), "/a/c");
+  }
+
+  @Test
+  public void testRename() throws Exception {
+    mkdir("/a");
+    mkdir("/a/sub");
+    put("/a/sub/file", "f");
+    put("/a/file", "g");
+    mkdir("/b");
+
+    assertFalse(_store.rename("/a", "/a/sub/a"));
+    assertTrue(_store.rename("/a", "/b/a"));
+    assertNull(_store.get("/a"));
+    assertArrayEquals("f".getBytes(), _store.get("/b/a/sub/file")
+                                            .getContent());
+    assertNames(_store.list("/b/a"), "/b/a/file", "/b/a/sub");
+    assertTrue(_store.delete("/b", true));
+    assertNames(_store.list("/"));
+  }
+
+  @Test
+  public void testFlushCompactAndRecover() throws Exception {
+    mkdir("/dir");
+    for (int i = 0; i < 20; i++) {
+      put("/dir/file" + i, Integer.toString(i));
+    }
+    for (int i = 0; i < 20; i += 2) {
+      _store.delete("/dir/file" + i, false);
+    }
+    assertTrue(_store.getSegmentCount() <= 3);
+    _store.update("/dir/file1", record -> record.toBuilder()
+                                                .owner("owner")
+                                                .build());
+
+    _store.close();
+    _store = open(4, 2);
+    List<MetadataRecord> children = _store.list("/dir");
+    assertEquals(10, children.size());
+    assertEquals("owner", _store.get("/dir/file1")
+                                .getOwner());
+    assertArrayEquals("19".getBytes(), _store.get("/dir/file19")
+                                             .getContent());
+    assertNull(_store.get("/dir/file0"));
+  }
+
+  @Test
+  public void testWritesAfterTornTail() throws Exception {
+    _store.close();
+    // a batch torn by a crash, its length announces more bytes than follow
+    Files.write(new File(ROOT, "wal.log").toPath(), new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+
+    _store = open(100, 2);
+    mkdir("/dir");
+    put("/dir/file", "f");
+    _store.close();
+
+    _store = open(100, 2);
+    assertArrayEquals("f".getBytes(), _store.get("/dir/file")
+                                            .getContent());
+    assertNames(_store.list("/dir"), "/dir/file");
+  }
+
+  @Test
+  public void testInterruptedMergeKeepsDeletes() throws Exception {
+    _store.close();
+    _store = open(1, 10);
+    mkdir("/dir");
+    put("/dir/file", "f");
+    assertTrue(_store.delete("/dir/file", false));
+    // every change went into its own segment, keep the ones before the delete
+    TreeMap<File, byte[]> segments = new TreeMap<>();
+    for (File file : ROOT.listFiles()) {
+      if (file.getName()
+              .endsWith(".dat")) {
+        segments.put(file, Files.readAllBytes(file.toPath()));
+      }
+    }
+    assertEquals(3, segments.size());
+    segments.remove(segments.lastKey());
+    _store.close();
+
+    // merge, then put back the older segments as if they had not been removed
+    _store = open(1, 1);
+    mkdir("/other");
+    assertEquals(1, _store.getSegmentCount());
+    _store.close();
+    for (Map.Entry<File, byte[]> segment : segments.entrySet()) {
+      Files.write(segment.getKey()
+                         .toPath(), segment.getValue());
+    }
+
+    _store = open(1, 1);
+    assertEquals(1, _store.getSegmentCount());
+    assertNull(_store.get("/dir/file"));
+    assertNames(_store.list("/dir"));
+  }
+
+  private LogStructuredMetadataStore open(int memtableEntries, int maxSegments) throws IOException {
+    LogStructuredMetadataStore store = new LogStructuredMetadataStore();
+    store.open(ROOT, memtableEntries, maxSegments, false);
+    return store;
+  }
+
+  private void mkdir(String path) throws IOException {
+    _store.put(MetadataRecord.builder()
+                             .path(path)
+                             .directory(true)
+                             .build(),
+        false);
+  }
+
+  private void put(String path, String content) throws IOException {
+    _store.put(MetadataRecord.builder()
+                             .path(path)
+                             .content(content.getBytes())
+                             .build(),
+        false);
+  }
+
+  private void assertNames(List<MetadataRecord> records, String... paths) {
+    assertEquals(paths.length, records.size());
+    for (int i = 0; i < paths.length; i++) {
+      assertEquals(paths[i], records.get(i)
+                                    .getPath());
+    }
+  }
+
+}
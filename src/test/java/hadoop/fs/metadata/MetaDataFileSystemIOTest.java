@@ -1,25 +1,58 @@
 package hadoop.fs.metadata;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.util.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 
+import hadoop.fs.metadata.DataRoots.DataRoot;
+import hadoop.fs.metadata.DirectoryAggregates.Tracking;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 public class MetaDataFileSystemIOTest {
 
   private static final String DATA_PATH = "metadata.test.data.path";
@@ -101,12 +134,37 @@ public class MetaDataFileSystemIOTest {
 
     Path dir = new Path("metadata://test/dir1");
     fileSystem.delete(dir, true);
+    ((MetaDataFileSystem) fileSystem).waitForDataReclamation();
 
     assertNoFiles(new Path("metadata://test/"));
     assertNoFiles(_metaPath);
     assertNoFiles(_dataPath);
   }
 
+  @Test
+  public void testRecursiveDeleteBatches() throws Exception {
+    _conf.setInt("metadata.test.reclaim.batch.size", 4);
+    Path dir = new Path("metadata://test/dir1");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    for (int i = 0; i < 10; i++) {
+      try (FSDataOutputStream output = fileSystem.create(new Path(dir, i % 2 == 0 ? "file" + i : "subdir/file" + i))) {
+        output.writeInt(i);
+      }
+    }
+    assertEquals(10, countFiles(_dataPath));
+    DataReclaimer dataReclaimer = fileSystem.getDataReclaimer();
+    long batches = dataReclaimer.getBatchCount();
+
+    assertTrue(fileSystem.delete(dir, true));
+    fileSystem.waitForDataReclamation();
+    assertNoFiles(_dataPath);
+    assertNoFiles(_metaPath);
+    assertEquals(10, dataReclaimer.getReclaimedCount());
+    assertEquals(0, dataReclaimer.getFailedCount());
+    // at most 4 data paths per batch
+    assertTrue(dataReclaimer.getBatchCount() - batches >= 3);
+  }
+
   @Test
   public void testLink() throws IOException {
     FileSystem fs = _linkPath.getFileSystem(_conf);
@@ -144,6 +202,1227 @@ public class MetaDataFileSystemIOTest {
 
   }
 
+  @Test
+  public void testDataEntryRecordedAtClose() throws Exception {
+    _conf.set("metadata.test.data.entry.checksum.algorithm", "MD5");
+    Path path = new Path("metadata://test/test1");
+    FileSystem fileSystem = path.getFileSystem(_conf);
+    long value = System.currentTimeMillis();
+    try (FSDataOutputStream output = fileSystem.create(path)) {
+      output.writeLong(value);
+    }
+
+    Path metaPath = new Path(_metaPath, "test1");
+    DataEntry dataEntry;
+    try (FSDataInputStream input = metaPath.getFileSystem(_conf)
+                                           .open(metaPath)) {
+      dataEntry = new ObjectMapper().readValue(input, DataEntry.class);
+    }
+    assertEquals(Long.valueOf(8), dataEntry.getLength());
+    assertTrue(dataEntry.getModificationTime() > 0);
+    byte[] md5 = MessageDigest.getInstance("MD5")
+                              .digest(ByteBuffer.allocate(8)
+                                                .putLong(value)
+                                                .array());
+    assertEquals("MD5:" + StringUtils.byteToHexString(md5), dataEntry.getChecksum());
+
+    // lengths come from the data entry, the data is not looked at
+    Path dataPath = dataEntry.getDataPath();
+    dataPath.getFileSystem(_conf)
+            .delete(dataPath, false);
+    assertEquals(8, fileSystem.getFileStatus(path)
+                              .getLen());
+    assertEquals(8, fileSystem.listStatus(new Path("metadata://test/"))[0].getLen());
+  }
+
+  @Test
+  public void testOverwrite() throws Exception {
+    Path path = new Path("metadata://test/test1");
+    FileSystem fileSystem = path.getFileSystem(_conf);
+    for (int length = 1; length <= 3; length++) {
+      try (FSDataOutputStream output = fileSystem.create(path, true)) {
+        output.write(new byte[length]);
+      }
+      assertEquals(length, fileSystem.getFileStatus(path)
+                                     .getLen());
+      assertEquals(length, fileSystem.listStatus(new Path("metadata://test/"))[0].getLen());
+    }
+    // every overwrite renamed its temporary meta file into place
+    assertEquals(1, _metaPath.getFileSystem(_conf)
+                             .listStatus(_metaPath).length);
+    // and released the data it replaced
+    ((MetaDataFileSystem) fileSystem).waitForDataReclamation();
+    assertEquals(1, _dataPath.getFileSystem(_conf)
+                             .listStatus(_dataPath).length);
+  }
+
+  @Test
+  public void testTempDataEntriesHidden() throws Exception {
+    Path path = new Path("metadata://test/test1");
+    FileSystem fileSystem = path.getFileSystem(_conf);
+    touchFile(path);
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    try (FSDataOutputStream output = metaFs.create(new Path(_metaPath, ".metadata.tmp." + UUID.randomUUID()))) {
+      new ObjectMapper().writeValue(output, DataEntry.builder()
+                                                     .dataPathUri(new Path(_dataPath, "temp").toString())
+                                                     .managed(true)
+                                                     .length(0L)
+                                                     .build());
+    }
+
+    FileStatus[] listStatus = fileSystem.listStatus(new Path("metadata://test/"));
+    assertEquals(1, listStatus.length);
+    assertEquals("test1", listStatus[0].getPath()
+                                       .getName());
+    RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(new Path("metadata://test/"), true);
+    assertEquals("test1", iterator.next()
+                                  .getPath()
+                                  .getName());
+    assertFalse(iterator.hasNext());
+  }
+
+  @Test
+  public void testRewriteKeepsMetaAttributes() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    Path path = new Path("metadata://test/test1");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) path.getFileSystem(_conf);
+    try (FSDataOutputStream output = fileSystem.create(path)) {
+      output.writeLong(1);
+    }
+    Path metaPath = new Path(_metaPath, "test1");
+    FileSystem metaFs = metaPath.getFileSystem(_conf);
+    fileSystem.setXAttr(path, "user.test", "value".getBytes());
+    fileSystem.setPermission(path, new FsPermission((short) 0640));
+    metaFs.setTimes(metaPath, 1000000L, 2000000L);
+    FileStatus before = metaFs.getFileStatus(metaPath);
+
+    DataEntry dataEntry = fileSystem.getDataEntry(metaPath, false);
+    assertTrue(fileSystem.relocateDataEntry(metaPath, dataEntry, dataEntry.toBuilder()
+                                                                          .checksum("test:00")
+                                                                          .build()));
+
+    FileStatus after = metaFs.getFileStatus(metaPath);
+    assertEquals("test:00", fileSystem.getDataEntry(metaPath, false)
+                                      .getChecksum());
+    assertEquals(before.getModificationTime(), after.getModificationTime());
+    assertEquals(before.getOwner(), after.getOwner());
+    assertEquals(before.getGroup(), after.getGroup());
+    assertEquals(before.getPermission(), after.getPermission());
+    assertArrayEquals("value".getBytes(), fileSystem.getXAttrs(path)
+                                                    .get("user.test"));
+    assertEquals(1, metaFs.listStatus(_metaPath).length);
+    try (FSDataInputStream input = fileSystem.open(path)) {
+      assertEquals(1, input.readLong());
+    }
+  }
+
+  @Test
+  public void testXAttrLayout() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    _conf.set("metadata.test.data.entry.layout", "xattr");
+    Path path = new Path("metadata://test/test1");
+    FileSystem fileSystem = path.getFileSystem(_conf);
+    long value = System.currentTimeMillis();
+    try (FSDataOutputStream output = fileSystem.create(path)) {
+      output.writeLong(value);
+    }
+
+    assertEquals(0, _metaPath.getFileSystem(_conf)
+                             .getFileStatus(new Path(_metaPath, "test1"))
+                             .getLen());
+    assertEquals(8, fileSystem.getFileStatus(path)
+                              .getLen());
+    try (FSDataInputStream input = fileSystem.open(path)) {
+      assertEquals(value, input.readLong());
+    }
+    assertTrue(fileSystem.listXAttrs(path)
+                         .isEmpty());
+
+    assertTrue(fileSystem.delete(path, false));
+    assertNoFiles(_metaPath);
+    assertNoFiles(_dataPath);
+  }
+
+  @Test
+  public void testXAttrLayoutInlineThreshold() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    _conf.set("metadata.test.data.entry.layout", "xattr");
+    Path path = new Path("metadata://test/inline");
+    int maxInlineThreshold = MetaDataFileSystem.getMaxXAttrInlineThreshold(_conf);
+    assertTrue(maxInlineThreshold * 4 / 3 < 16384);
+    _conf.setInt("metadata.test.inline.threshold", maxInlineThreshold + 1);
+    try {
+      FileSystem.newInstance(path.toUri(), _conf)
+                .close();
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage()
+                                  .contains("has to be at most " + maxInlineThreshold));
+    }
+    _conf.setInt("metadata.test.inline.threshold", maxInlineThreshold);
+    try (FileSystem fileSystem = FileSystem.newInstance(path.toUri(), _conf)) {
+      try (FSDataOutputStream output = fileSystem.create(path)) {
+        output.write(new byte[maxInlineThreshold]);
+      }
+      assertEquals(maxInlineThreshold, fileSystem.getFileStatus(path)
+                                                 .getLen());
+    }
+  }
+
+  @Test
+  public void testOrphanDataCollector() throws Exception {
+    _conf.setLong("metadata.test.orphan.grace.period.minutes", 1);
+    Path path = new Path("metadata://test/test1");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) path.getFileSystem(_conf);
+    try (FSDataOutputStream output = fileSystem.create(path)) {
+      output.writeLong(1);
+    }
+
+    FileSystem dataFs = _dataPath.getFileSystem(_conf);
+    Path oldOrphan = new Path(_dataPath, UUID.randomUUID()
+                                             .toString());
+    Path newOrphan = new Path(_dataPath, UUID.randomUUID()
+                                             .toString());
+    dataFs.create(oldOrphan)
+          .close();
+    dataFs.create(newOrphan)
+          .close();
+    dataFs.setTimes(oldOrphan, System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1), -1);
+
+    assertEquals(1, fileSystem.createOrphanDataCollector(false)
+                              .collect());
+    fileSystem.waitForDataReclamation();
+
+    assertFalse(dataFs.exists(oldOrphan));
+    assertTrue(dataFs.exists(newOrphan));
+    try (FSDataInputStream input = fileSystem.open(path)) {
+      assertEquals(1, input.readLong());
+    }
+  }
+
+  @Test
+  public void testOrphanDataCollectorRecordsRenames() throws Exception {
+    Path dir = new Path("metadata://test/dir1");
+    Path path = new Path(dir, "test1");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) path.getFileSystem(_conf);
+    touchFile(path);
+
+    try (ReferenceTracker.Recording recording = fileSystem.getReferenceTracker()
+                                                          .start()) {
+      Path dst = new Path("metadata://test/dir2");
+      assertTrue(fileSystem.mkdirs(dst));
+      assertTrue(fileSystem.rename(path, dst));
+      List<Path> recorded = recording.drain();
+      assertEquals(1, recorded.size());
+      assertEquals(new Path(fileSystem.getMetaEntry(dst)
+                                      .getMetaPath(), "test1"), recorded.get(0));
+      assertTrue(recording.drain()
+                          .isEmpty());
+    }
+    assertFalse(fileSystem.getReferenceTracker()
+                          .isRecording());
+  }
+
+  @Test
+  public void testOrphanDataCollectorSharedDataRoot() throws Exception {
+    _conf.set("metadata.other.meta.path", new Path(ROOT.getCanonicalPath(), "othermeta").toString());
+    _conf.set("metadata.other.data.path", new Path(_dataPath, "other").toString());
+    Path path = new Path("metadata://test/test1");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) path.getFileSystem(_conf);
+    try {
+      fileSystem.createOrphanDataCollector(true)
+                .collect();
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage()
+                                  .contains("shared with [other]"));
+    }
+  }
+
+  @Test
+  public void testListStatus() throws Exception {
+    _conf.setInt("metadata.test.list.batch.size", 7);
+    Path dir = new Path("metadata://test/list");
+    FileSystem fileSystem = dir.getFileSystem(_conf);
+    fileSystem.mkdirs(dir);
+    int count = 100;
+    for (int i = 0; i < count; i++) {
+      try (FSDataOutputStream output = fileSystem.create(new Path(dir, "file" + i))) {
+        output.write(new byte[i]);
+      }
+    }
+
+    FileStatus[] metaListing = _metaPath.getFileSystem(_conf)
+                                        .listStatus(new Path(_metaPath, "list"));
+    FileStatus[] listing = fileSystem.listStatus(dir);
+    assertEquals(count, listing.length);
+    for (int i = 0; i < count; i++) {
+      String name = listing[i].getPath()
+                              .getName();
+      assertEquals(metaListing[i].getPath()
+                                 .getName(),
+          name);
+      assertEquals(Integer.parseInt(name.substring("file".length())), listing[i].getLen());
+    }
+
+    RemoteIterator<FileStatus> iterator = fileSystem.listStatusIterator(dir);
+    for (int i = 0; i < count; i++) {
+      assertTrue(iterator.hasNext());
+      assertEquals(listing[i], iterator.next());
+    }
+    assertFalse(iterator.hasNext());
+
+    RemoteIterator<LocatedFileStatus> locatedIterator = fileSystem.listLocatedStatus(dir);
+    for (int i = 0; i < count; i++) {
+      assertEquals(listing[i].getLen(), locatedIterator.next()
+                                                       .getLen());
+    }
+    assertFalse(locatedIterator.hasNext());
+  }
+
+  @Test
+  public void testListFilesRecursive() throws Exception {
+    _conf.setInt("metadata.test.walk.queue.size", 3);
+    Path dir = new Path("metadata://test/walk");
+    FileSystem fileSystem = dir.getFileSystem(_conf);
+    Set<Path> expected = new HashSet<>();
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 5; j++) {
+        Path path = new Path(dir, "part" + i + "/sub" + j + "/file");
+        touchFile(path);
+        expected.add(fileSystem.makeQualified(path));
+      }
+      Path path = new Path(dir, "part" + i + "/file");
+      touchFile(path);
+      expected.add(fileSystem.makeQualified(path));
+    }
+
+    Set<Path> actual = new HashSet<>();
+    RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(dir, true);
+    while (iterator.hasNext()) {
+      LocatedFileStatus status = iterator.next();
+      assertTrue(status.isFile());
+      assertTrue(actual.add(status.getPath()));
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testListFilesRecursiveClose() throws Exception {
+    _conf.setInt("metadata.test.walk.threads", 1);
+    _conf.setInt("metadata.test.walk.queue.size", 1);
+    _conf.setLong("metadata.test.walk.timeout.seconds", 600);
+    Path dir = new Path("metadata://test/walk");
+    FileSystem fileSystem = dir.getFileSystem(_conf);
+    for (int i = 0; i < 10; i++) {
+      touchFile(new Path(dir, "part" + i + "/file"));
+    }
+
+    RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(dir, true);
+    assertTrue(iterator.hasNext());
+    iterator.next();
+    ((Closeable) iterator).close();
+    assertFalse(iterator.hasNext());
+
+    // the aborted walk no longer holds the only walk thread
+    int count = 0;
+    iterator = fileSystem.listFiles(dir, true);
+    while (iterator.hasNext()) {
+      iterator.next();
+      count++;
+    }
+    assertEquals(10, count);
+  }
+
+  @Test
+  public void testDirectoryAggregates() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    _conf.setBoolean("metadata.test.aggregates.enabled", true);
+    Path dir = new Path("metadata://test/aggregates");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    fileSystem.mkdirs(dir);
+    for (int i = 0; i < 3; i++) {
+      try (FSDataOutputStream output = fileSystem.create(new Path(dir, "a/file" + i))) {
+        output.write(new byte[10]);
+      }
+    }
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "b/c/file"))) {
+      output.write(new byte[5]);
+    }
+    assertContentSummary(fileSystem.getContentSummary(dir), 35, 4, 4);
+
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "a/file0"), true)) {
+      output.write(new byte[20]);
+    }
+    assertTrue(fileSystem.delete(new Path(dir, "a/file1"), false));
+    assertTrue(fileSystem.rename(new Path(dir, "b/c"), new Path(dir, "a")));
+    assertContentSummary(fileSystem.getContentSummary(dir), 35, 3, 4);
+    assertContentSummary(fileSystem.getContentSummary(new Path(dir, "a")), 35, 3, 2);
+    assertTrue(fileSystem.delete(new Path(dir, "a"), true));
+    assertContentSummary(fileSystem.getContentSummary(dir), 0, 0, 2);
+
+    assertEquals(0, fileSystem.createDirectoryAggregateVerifier()
+                              .verify(dir));
+    assertTrue(fileSystem.listXAttrs(dir)
+                         .isEmpty());
+  }
+
+  @Test
+  public void testDirectoryAggregatesTracking() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    Path dir = new Path(_metaPath, "tracking");
+    Path subdir = new Path(dir, "a");
+    assertTrue(metaFs.mkdirs(subdir));
+    DirectoryAggregates aggregates = new DirectoryAggregates(_metaPath);
+    aggregates.put(metaFs, dir, new DirectoryAggregate(5, 1, 50));
+
+    // a walk saw one file, two more are written while it runs
+    Tracking tracking = aggregates.startTracking(dir);
+    aggregates.apply(metaFs, new Path(subdir, "file1"), new DirectoryAggregate(1, 0, 10));
+    aggregates.apply(metaFs, new Path(subdir, "file2"), new DirectoryAggregate(1, 0, 20));
+    assertEquals(new DirectoryAggregate(7, 1, 80), aggregates.get(metaFs, dir));
+    assertTrue(aggregates.reconcile(metaFs, dir, new DirectoryAggregate(1, 1, 5), tracking));
+    aggregates.stopTracking(tracking);
+    assertEquals(new DirectoryAggregate(3, 1, 35), aggregates.get(metaFs, dir));
+
+    // nothing is recorded after an unknown delta
+    tracking = aggregates.startTracking(dir);
+    aggregates.apply(metaFs, new Path(subdir, "file3"), null);
+    assertFalse(aggregates.reconcile(metaFs, dir, new DirectoryAggregate(3, 1, 35), tracking));
+    aggregates.stopTracking(tracking);
+    assertNull(aggregates.get(metaFs, dir));
+
+    // concurrent deltas of the same directory are coalesced, none is lost
+    aggregates.put(metaFs, dir, DirectoryAggregate.EMPTY);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> {
+          for (int j = 0; j < 50; j++) {
+            aggregates.apply(metaFs, new Path(subdir, "file"), new DirectoryAggregate(1, 0, 2));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(1, TimeUnit.MINUTES);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(new DirectoryAggregate(400, 0, 800), aggregates.get(metaFs, dir));
+  }
+
+  @Test
+  public void testDirectoryAggregatesBelowMetaRoot() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    _conf.setBoolean("metadata.test.aggregates.enabled", true);
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    assertTrue(metaFs.delete(_metaPath.getParent(), true));
+    Path dir = new Path("metadata://test/aggregates");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    assertTrue(fileSystem.mkdirs(dir));
+
+    assertTrue(metaFs.getXAttrs(_metaPath.getParent())
+                     .isEmpty());
+    assertContentSummary(fileSystem.getContentSummary(new Path("metadata://test/")), 0, 0, 2);
+  }
+
+  @Test
+  public void testManifest() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    _conf.setBoolean("metadata.test.manifest.enabled", true);
+    _conf.setBoolean("metadata.test.manifest.single.writer", true);
+    _conf.setInt("metadata.test.manifest.min.entries", 1);
+    _conf.setLong("metadata.test.manifest.min.age.minutes", 0);
+    _conf.setInt("metadata.test.list.batch.size", 2);
+    Path dir = new Path("metadata://test/manifest");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    for (int i = 0; i < 5; i++) {
+      try (FSDataOutputStream output = fileSystem.create(new Path(dir, "file" + i))) {
+        output.write(new byte[i]);
+      }
+    }
+    Thread.sleep(10);
+    assertEquals(5, fileSystem.compactManifests(dir));
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    assertEquals(1, metaFs.listStatus(new Path(_metaPath, "manifest")).length);
+
+    FileStatus[] listing = fileSystem.listStatus(dir);
+    assertEquals(5, listing.length);
+    for (int i = 0; i < 5; i++) {
+      assertEquals("file" + i, listing[i].getPath()
+                                         .getName());
+      assertEquals(i, listing[i].getLen());
+    }
+    assertEquals(3, fileSystem.getFileStatus(new Path(dir, "file3"))
+                              .getLen());
+    try (FSDataInputStream input = fileSystem.open(new Path(dir, "file4"))) {
+      assertEquals(4, input.read(new byte[10]));
+    }
+    // the listing of a folded file is the file itself
+    FileStatus[] fileListing = fileSystem.listStatus(new Path(dir, "file4"));
+    assertEquals(1, fileListing.length);
+    assertEquals("file4", fileListing[0].getPath()
+                                        .getName());
+    assertEquals(4, fileListing[0].getLen());
+    RemoteIterator<LocatedFileStatus> files = fileSystem.listFiles(new Path(dir, "file4"), true);
+    assertTrue(files.hasNext());
+    LocatedFileStatus file = files.next();
+    assertEquals("file4", file.getPath()
+                              .getName());
+    assertEquals(4, file.getLen());
+    assertFalse(files.hasNext());
+
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "file1"), true)) {
+      output.write(new byte[10]);
+    }
+    assertEquals(10, fileSystem.getFileStatus(new Path(dir, "file1"))
+                               .getLen());
+    assertTrue(fileSystem.delete(new Path(dir, "file1"), false));
+    assertFalse(fileSystem.exists(new Path(dir, "file1")));
+    assertTrue(fileSystem.delete(new Path(dir, "file2"), false));
+    assertFalse(fileSystem.exists(new Path(dir, "file2")));
+    assertTrue(fileSystem.rename(new Path(dir, "file3"), new Path(dir, "moved")));
+    assertFalse(fileSystem.exists(new Path(dir, "file3")));
+    assertEquals(3, fileSystem.getFileStatus(new Path(dir, "moved"))
+                              .getLen());
+    try {
+      fileSystem.create(new Path(dir, "file0"), false)
+                .close();
+      fail();
+    } catch (FileAlreadyExistsException e) {
+    }
+    assertEquals(3, fileSystem.listStatus(dir).length);
+    // meta files and manifest entries stream in batches, each name once
+    List<String> names = new ArrayList<>();
+    RemoteIterator<FileStatus> iterator = fileSystem.listStatusIterator(dir);
+    while (iterator.hasNext()) {
+      names.add(iterator.next()
+                        .getPath()
+                        .getName());
+    }
+    Collections.sort(names);
+    assertEquals(Arrays.asList("file0", "file4", "moved"), names);
+
+    Thread.sleep(10);
+    assertEquals(1, fileSystem.compactManifests(dir));
+    assertEquals(1, metaFs.listStatus(new Path(_metaPath, "manifest")).length);
+    assertTrue(fileSystem.listXAttrs(dir)
+                         .isEmpty());
+    assertEquals(3, fileSystem.listStatus(dir).length);
+
+    // xattrs of a folded file are read from the manifest, the file is written
+    // back before they change
+    Path folded = new Path(dir, "file0");
+    assertTrue(fileSystem.getXAttrs(folded)
+                         .isEmpty());
+    assertTrue(fileSystem.listXAttrs(folded)
+                         .isEmpty());
+    try {
+      fileSystem.getXAttrs(folded, Arrays.asList("user.test", Manifests.LOG_XATTR_NAME));
+      fail();
+    } catch (IOException e) {
+      assertEquals("XAttr " + Manifests.LOG_XATTR_NAME + " is reserved.", e.getMessage());
+    }
+    assertFalse(metaFs.exists(new Path(new Path(_metaPath, "manifest"), "file0")));
+    fileSystem.removeXAttr(folded, "user.test");
+    assertTrue(metaFs.exists(new Path(new Path(_metaPath, "manifest"), "file0")));
+    assertEquals(0, fileSystem.getFileStatus(folded)
+                              .getLen());
+
+    assertTrue(fileSystem.delete(dir, true));
+    fileSystem.waitForDataReclamation();
+    assertNoFiles(_metaPath);
+    // the data replaced by the overwrite of file1 was released with it
+    assertNoFiles(_dataPath);
+  }
+
+  @Test
+  public void testManifestContentSummary() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    _conf.setBoolean("metadata.test.aggregates.enabled", true);
+    _conf.setBoolean("metadata.test.manifest.enabled", true);
+    _conf.setBoolean("metadata.test.manifest.single.writer", true);
+    _conf.setInt("metadata.test.manifest.min.entries", 1);
+    _conf.setLong("metadata.test.manifest.min.age.minutes", 0);
+    Path dir = new Path("metadata://test/manifest");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    for (int i = 0; i < 3; i++) {
+      try (FSDataOutputStream output = fileSystem.create(new Path(dir, "file" + i))) {
+        output.write(new byte[i + 1]);
+      }
+    }
+    Thread.sleep(10);
+    assertEquals(3, fileSystem.compactManifests(dir));
+
+    assertContentSummary(fileSystem.getContentSummary(new Path(dir, "file2")), 3, 1, 0);
+    assertContentSummary(fileSystem.getContentSummary(dir), 6, 3, 1);
+    try {
+      fileSystem.getContentSummary(new Path(dir, "missing"));
+      fail();
+    } catch (FileNotFoundException e) {
+      assertTrue(e.getMessage(), e.getMessage()
+                                  .contains("does not exist"));
+    }
+  }
+
+  @Test
+  public void testManifestOpenStreams() throws Exception {
+    FileSystem.closeAll();
+    _conf.setClass("fs.file.impl", XAttrLocalFileSystem.class, FileSystem.class);
+    _conf.setBoolean("metadata.test.manifest.enabled", true);
+    _conf.setBoolean("metadata.test.manifest.single.writer", true);
+    _conf.setInt("metadata.test.manifest.min.entries", 1);
+    _conf.setLong("metadata.test.manifest.min.age.minutes", 0);
+    _conf.setInt("metadata.test.inline.threshold", 64);
+    _conf.setInt("metadata.test.segments.compact.threshold", 0);
+    Path dir = new Path("metadata://test/manifest");
+    Path created = new Path(dir, "created");
+    Path appended = new Path(dir, "appended");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    try (FSDataOutputStream output = fileSystem.create(appended)) {
+      output.writeLong(0);
+    }
+    FSDataOutputStream createOutput = fileSystem.create(created);
+    createOutput.writeLong(1);
+    FSDataOutputStream appendOutput = fileSystem.append(appended);
+    appendOutput.writeLong(2);
+    Thread.sleep(10);
+
+    // the scheduled compaction passes the root without a scheme, only the
+    // finished entry of the appended file is folded
+    assertEquals(1, fileSystem.compactManifests(new Path("/")));
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    assertFalse(metaFs.exists(new Path(new Path(_metaPath, "manifest"), "appended")));
+    assertTrue(metaFs.exists(new Path(new Path(_metaPath, "manifest"), "created")));
+
+    createOutput.close();
+    appendOutput.close();
+    assertEquals(8, fileSystem.getFileStatus(created)
+                              .getLen());
+    try (FSDataInputStream input = fileSystem.open(created)) {
+      assertEquals(1, input.readLong());
+    }
+    assertEquals(16, fileSystem.getFileStatus(appended)
+                               .getLen());
+    try (FSDataInputStream input = fileSystem.open(appended)) {
+      assertEquals(0, input.readLong());
+      assertEquals(2, input.readLong());
+    }
+  }
+
+  @Test
+  public void testDataPathPrefix() throws Exception {
+    Path unprefixed = new Path("metadata://test/unprefixed");
+    try (FSDataOutputStream output = unprefixed.getFileSystem(_conf)
+                                               .create(unprefixed)) {
+      output.writeLong(1);
+    }
+
+    FileSystem.closeAll();
+    _conf.setInt("metadata.test.data.path.prefix.length", 3);
+    Path path = new Path("metadata://test/prefixed");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) path.getFileSystem(_conf);
+    try (FSDataOutputStream output = fileSystem.create(path)) {
+      output.writeLong(2);
+    }
+    Path dataPath = fileSystem.getDataEntry(_metaPath.getFileSystem(_conf)
+                                                     .getFileStatus(new Path(_metaPath, "prefixed")))
+                              .getDataPath();
+    assertEquals(3, dataPath.getParent()
+                            .getName()
+                            .length());
+    assertEquals(_dataPath, dataPath.getParent()
+                                    .getParent());
+
+    try (FSDataInputStream input = fileSystem.open(unprefixed)) {
+      assertEquals(1, input.readLong());
+    }
+    try (FSDataInputStream input = fileSystem.open(path)) {
+      assertEquals(2, input.readLong());
+    }
+    assertTrue(fileSystem.delete(path, false));
+    assertTrue(fileSystem.delete(unprefixed, false));
+    fileSystem.waitForDataReclamation();
+    assertNoFiles(_dataPath);
+  }
+
+  @Test
+  public void testDataRoots() throws Exception {
+    Path root1 = new Path(_dataPath, "root1");
+    Path root2 = new Path(_dataPath, "root2");
+    Path root3 = new Path(_dataPath, "root3");
+    _conf.setStrings("metadata.test.data.roots", root1 + "=1", root2 + "=3", root3.toString());
+    _conf.set("metadata.test.data.roots.drained", root3.toString());
+    Path dir = new Path("metadata://test/roots");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    assertEquals(3, fileSystem.getDataRoots()
+                              .size());
+    for (int i = 0; i < 40; i++) {
+      try (FSDataOutputStream output = fileSystem.create(new Path(dir, "file" + i))) {
+        output.writeInt(i);
+      }
+    }
+    FileSystem dataFs = _dataPath.getFileSystem(_conf);
+    int count1 = dataFs.listStatus(root1).length;
+    int count2 = dataFs.listStatus(root2).length;
+    assertEquals(40, count1 + count2);
+    assertFalse(dataFs.exists(root3));
+
+    fileSystem.setDataRootDrained(root1, true);
+    fileSystem.setDataRootDrained(root2, true);
+    try {
+      fileSystem.create(new Path(dir, "nowhere"))
+                .close();
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage()
+                                  .contains("all of 3 data roots are drained"));
+    }
+    fileSystem.setDataRootDrained(root3, false);
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "file40"))) {
+      output.writeInt(40);
+    }
+    assertEquals(1, dataFs.listStatus(root3).length);
+    for (int i = 0; i <= 40; i++) {
+      try (FSDataInputStream input = fileSystem.open(new Path(dir, "file" + i))) {
+        assertEquals(i, input.readInt());
+      }
+    }
+    assertEquals(0, fileSystem.createOrphanDataCollector(true)
+                              .collect());
+  }
+
+  @Test
+  public void testDataRootsSelect() throws Exception {
+    Path root1 = new Path("file:/root1");
+    Path root2 = new Path("file:/root2");
+    Path root3 = new Path("file:/root3");
+    DataRoots dataRoots = new DataRoots(
+        Arrays.asList(new DataRoot(root1, 1, false), new DataRoot(root2, 3, false), new DataRoot(root3, 1, true)),
+        TimeUnit.HOURS.toMillis(1));
+    int count1 = 0;
+    int count2 = 0;
+    for (int i = 0; i < 1000; i++) {
+      Path selected = dataRoots.select("name" + i);
+      assertEquals(selected, dataRoots.select("name" + i));
+      if (selected.equals(root1)) {
+        count1++;
+      } else if (selected.equals(root2)) {
+        count2++;
+      }
+    }
+    assertEquals(1000, count1 + count2);
+    assertTrue(count2 > 2 * count1);
+
+    dataRoots.markFailed(new Path(root2, "ab/name"));
+    assertFalse(dataRoots.getRoots()
+                         .get(1)
+                         .isHealthy());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(root1, dataRoots.select("name" + i));
+    }
+    dataRoots.markFailed(new Path(root1, "name"));
+    for (int i = 0; i < 100; i++) {
+      assertNotEquals(root3, dataRoots.select("name" + i));
+    }
+  }
+
+  @Test
+  public void testPacking() throws Exception {
+    _conf.setInt("metadata.test.pack.threshold", 64);
+    _conf.setLong("metadata.test.pack.linger.ms", 500);
+    _conf.setLong("metadata.test.pack.compact.min.age.minutes", 0);
+    _conf.setFloat("metadata.test.pack.compact.min.live.ratio", 1.0f);
+    _conf.setLong("metadata.test.pack.compact.reclaim.delay.minutes", 0);
+    Path dir = new Path("metadata://test/packed");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        Path path = new Path(dir, "small" + i);
+        int length = i * 8;
+        futures.add(executor.submit(() -> {
+          try (FSDataOutputStream output = fileSystem.create(path)) {
+            output.write(new byte[length]);
+            output.writeInt(length);
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "large"))) {
+      output.write(new byte[100]);
+    }
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "synced"))) {
+      output.writeInt(1);
+      output.hsync();
+    }
+
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    Map<Path, Integer> packs = new HashMap<>();
+    for (int i = 0; i < 8; i++) {
+      DataEntry dataEntry = fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "packed/small" + i)));
+      assertTrue(dataEntry.isPacked());
+      packs.merge(dataEntry.getDataPath(), 1, Integer::sum);
+      assertEquals(i * 8 + 4, fileSystem.getFileStatus(new Path(dir, "small" + i))
+                                        .getLen());
+      try (FSDataInputStream input = fileSystem.open(new Path(dir, "small" + i))) {
+        input.skip(i * 8);
+        assertEquals(i * 8, input.readInt());
+      }
+    }
+    assertTrue(packs.size() < 8);
+    assertFalse(fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "packed/large")))
+                          .isPacked());
+    assertFalse(fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "packed/synced")))
+                          .isPacked());
+
+    // keep a single file of a pack shared with other files, so exactly that
+    // pack is sparse once the rest is deleted
+    int kept = -1;
+    Path keptPack = null;
+    for (int i = 0; i < 8; i++) {
+      Path pack = fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "packed/small" + i)))
+                            .getDataPath();
+      if (packs.get(pack) > 1) {
+        kept = i;
+        keptPack = pack;
+      }
+    }
+    for (int i = 0; i < 8; i++) {
+      if (i != kept) {
+        assertTrue(fileSystem.delete(new Path(dir, "small" + i), false));
+      }
+    }
+    fileSystem.waitForDataReclamation();
+    for (Path pack : packs.keySet()) {
+      assertTrue(_dataPath.getFileSystem(_conf)
+                          .exists(pack));
+    }
+    // the sparse pack is rewritten, the packs whose entries were all deleted
+    // are reclaimed
+    assertEquals(packs.size(), fileSystem.createPackCompactor()
+                                         .compact());
+    fileSystem.waitForDataReclamation();
+    for (Path pack : packs.keySet()) {
+      assertFalse(_dataPath.getFileSystem(_conf)
+                           .exists(pack));
+    }
+    assertTrue(packs.containsKey(keptPack));
+    DataEntry dataEntry = fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "packed/small" + kept)));
+    assertFalse(packs.containsKey(dataEntry.getDataPath()));
+    try (FSDataInputStream input = fileSystem.open(new Path(dir, "small" + kept))) {
+      input.skip(kept * 8);
+      assertEquals(kept * 8, input.readInt());
+    }
+
+    // a pack whose only entry is deleted
+    Path single = new Path(dir, "single");
+    try (FSDataOutputStream output = fileSystem.create(single)) {
+      output.writeInt(1);
+    }
+    DataEntry singleEntry = fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "packed/single")));
+    assertTrue(singleEntry.isPacked());
+    assertTrue(fileSystem.delete(single, false));
+    Thread.sleep(10);
+    assertEquals(1, fileSystem.createPackCompactor()
+                              .compact());
+    fileSystem.waitForDataReclamation();
+    assertFalse(_dataPath.getFileSystem(_conf)
+                         .exists(singleEntry.getDataPath()));
+    assertEquals(0, fileSystem.createPackCompactor()
+                              .compact());
+
+    assertTrue(fileSystem.delete(dir, true));
+    fileSystem.waitForDataReclamation();
+    assertNoFiles(_metaPath);
+  }
+
+  @Test
+  public void testInlineContent() throws Exception {
+    _conf.setInt("metadata.test.inline.threshold", 16);
+    Path marker = new Path("metadata://test/_SUCCESS");
+    Path tiny = new Path("metadata://test/tiny");
+    Path large = new Path("metadata://test/large");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) marker.getFileSystem(_conf);
+    fileSystem.create(marker)
+              .close();
+    try (FSDataOutputStream output = fileSystem.create(tiny)) {
+      output.writeLong(42);
+    }
+    try (FSDataOutputStream output = fileSystem.create(large)) {
+      output.write(new byte[100]);
+    }
+
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    assertTrue(fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "tiny")))
+                         .isInline());
+    assertFalse(fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "large")))
+                          .isInline());
+    RemoteIterator<LocatedFileStatus> iterator = _dataPath.getFileSystem(_conf)
+                                                          .listFiles(_dataPath, true);
+    assertTrue(iterator.hasNext());
+    iterator.next();
+    assertFalse(iterator.hasNext());
+
+    assertEquals(0, fileSystem.getFileStatus(marker)
+                              .getLen());
+    assertEquals(8, fileSystem.getFileStatus(tiny)
+                              .getLen());
+    try (FSDataInputStream input = fileSystem.open(marker)) {
+      assertEquals(-1, input.read());
+    }
+    try (FSDataInputStream input = fileSystem.open(tiny)) {
+      assertEquals(42, input.readLong());
+    }
+    try (FSDataInputStream input = fileSystem.open(large)) {
+      assertEquals(100, input.read(new byte[200]));
+    }
+
+    assertTrue(fileSystem.delete(marker, false));
+    assertTrue(fileSystem.delete(tiny, false));
+    assertTrue(fileSystem.delete(large, false));
+    assertNoFiles(_metaPath);
+    assertNoFiles(_dataPath);
+  }
+
+  @Test
+  public void testAppendAndConcat() throws Exception {
+    _conf.setInt("metadata.test.segments.compact.threshold", 0);
+    Path file = new Path("metadata://test/file");
+    Path src1 = new Path("metadata://test/src1");
+    Path src2 = new Path("metadata://test/src2");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) file.getFileSystem(_conf);
+    try (FSDataOutputStream output = fileSystem.create(file)) {
+      output.writeLong(0);
+    }
+    for (int i = 1; i < 3; i++) {
+      try (FSDataOutputStream output = fileSystem.append(file)) {
+        assertEquals(i * 8, output.getPos());
+        output.writeLong(i);
+      }
+    }
+    try (FSDataOutputStream output = fileSystem.create(src1)) {
+      output.writeLong(3);
+    }
+    try (FSDataOutputStream output = fileSystem.create(src2)) {
+      output.writeLong(4);
+      output.writeLong(5);
+    }
+    fileSystem.concat(file, new Path[] { src1, src2 });
+    assertFalse(fileSystem.exists(src1));
+    assertFalse(fileSystem.exists(src2));
+
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    assertEquals(5, fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "file")))
+                              .getAllSegments()
+                              .size());
+    assertEquals(48, fileSystem.getFileStatus(file)
+                               .getLen());
+    assertSegmentedContent(fileSystem, file, 6);
+
+    assertTrue(fileSystem.compactSegments(file));
+    assertFalse(fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "file")))
+                          .hasSegments());
+    assertSegmentedContent(fileSystem, file, 6);
+    fileSystem.waitForDataReclamation();
+    RemoteIterator<LocatedFileStatus> iterator = _dataPath.getFileSystem(_conf)
+                                                          .listFiles(_dataPath, true);
+    assertTrue(iterator.hasNext());
+    iterator.next();
+    assertFalse(iterator.hasNext());
+
+    try (FSDataOutputStream output = fileSystem.append(file)) {
+      output.writeLong(6);
+    }
+    assertSegmentedContent(fileSystem, file, 7);
+
+    // a concat interrupted after releasing a source leaks its data instead
+    // of reclaiming data the target may already own
+    try (FSDataOutputStream output = fileSystem.create(src1)) {
+      output.writeLong(7);
+    }
+    Path metaSrc1 = new Path(_metaPath, "src1");
+    DataEntry srcEntry = fileSystem.getDataEntry(metaFs.getFileStatus(metaSrc1));
+    assertTrue(fileSystem.relocateDataEntry(metaSrc1, srcEntry, srcEntry.toBuilder()
+                                                                        .managed(false)
+                                                                        .build()));
+    assertTrue(fileSystem.delete(src1, false));
+    fileSystem.waitForDataReclamation();
+    assertTrue(_dataPath.getFileSystem(_conf)
+                        .exists(srcEntry.getDataPath()));
+    _dataPath.getFileSystem(_conf)
+             .delete(srcEntry.getDataPath(), false);
+
+    assertTrue(fileSystem.delete(file, false));
+    fileSystem.waitForDataReclamation();
+    assertNoFiles(_metaPath);
+    assertNoFiles(_dataPath);
+  }
+
+  @Test
+  public void testCopy() throws Exception {
+    _conf.set("metadata.test.references.path", new File(ROOT, "references").getCanonicalPath());
+    Path file = new Path("metadata://test/file");
+    Path copy = new Path("metadata://test/copy/file");
+    Path dir = new Path("metadata://test/dir");
+    Path dirCopy = new Path("metadata://test/dir2");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) file.getFileSystem(_conf);
+    try (FSDataOutputStream output = fileSystem.create(file)) {
+      output.writeLong(1);
+    }
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "a"))) {
+      output.writeLong(2);
+    }
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "sub/b"))) {
+      output.writeLong(3);
+    }
+    Configuration noReferences = new Configuration(_conf);
+    noReferences.unset("metadata.test.references.path");
+    try (FileSystem unreferenced = FileSystem.newInstance(file.toUri(), noReferences)) {
+      unreferenced.mkdirs(new Path("metadata://test/nowhere"));
+      ((MetaDataFileSystem) unreferenced).copy(file, new Path("metadata://test/nowhere/file"));
+      fail();
+    } catch (IOException e) {
+    }
+    assertFalse(fileSystem.exists(new Path("metadata://test/nowhere/file")));
+
+    FileSystem metaFs = _metaPath.getFileSystem(_conf);
+    DataEntry fileEntry = fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "file")));
+    fileSystem.copy(file, copy);
+    assertEquals(fileEntry, fileSystem.getDataEntry(metaFs.getFileStatus(new Path(_metaPath, "file"))));
+    fileSystem.setXAttr(dir, "trusted.file.copy", dirCopy.toString()
+                                                         .getBytes(StandardCharsets.UTF_8));
+    try {
+      fileSystem.copy(file, copy);
+      fail();
+    } catch (FileAlreadyExistsException e) {
+    }
+    assertEquals(3, countFiles(_dataPath));
+    // a single marker per copied data object
+    assertEquals(3, countFiles(new Path(new File(ROOT, "references").getCanonicalPath())));
+
+    // removing a copy while the source remains keeps the data
+    Path copy2 = new Path("metadata://test/copy/file2");
+    fileSystem.copy(file, copy2);
+    assertTrue(fileSystem.delete(copy2, false));
+    fileSystem.waitForDataReclamation();
+    assertEquals(3, countFiles(_dataPath));
+    try (FSDataInputStream input = fileSystem.open(file)) {
+      assertEquals(1, input.readLong());
+    }
+
+    assertTrue(fileSystem.delete(file, false));
+    assertTrue(fileSystem.delete(dir, true));
+    fileSystem.waitForDataReclamation();
+    assertEquals(3, countFiles(_dataPath));
+    assertEquals(8, fileSystem.getFileStatus(new Path(dirCopy, "sub/b"))
+                              .getLen());
+    try (FSDataInputStream input = fileSystem.open(copy)) {
+      assertEquals(1, input.readLong());
+    }
+    try (FSDataInputStream input = fileSystem.open(new Path(dirCopy, "a"))) {
+      assertEquals(2, input.readLong());
+    }
+    try (FSDataInputStream input = fileSystem.open(new Path(dirCopy, "sub/b"))) {
+      assertEquals(3, input.readLong());
+    }
+
+    assertTrue(fileSystem.delete(copy, false));
+    assertTrue(fileSystem.delete(dirCopy, true));
+    fileSystem.waitForDataReclamation();
+    assertNoFiles(_dataPath);
+    assertNoFiles(new Path(new File(ROOT, "references").getCanonicalPath()));
+
+    // markers under a data root would be collected as orphaned data
+    Configuration overlapping = new Configuration(_conf);
+    overlapping.set("metadata.test.references.path", new Path(_dataPath, "references").toString());
+    try {
+      FileSystem.newInstance(file.toUri(), overlapping)
+                .close();
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage()
+                                  .contains("overlaps the data root " + _dataPath));
+    }
+  }
+
+  @Test
+  public void testSnapshots() throws Exception {
+    _conf.set("metadata.test.references.path", new File(ROOT, "references").getCanonicalPath());
+    _conf.set("metadata.test.snapshot.path", new File(ROOT, "snapshots").getCanonicalPath());
+    _conf.setLong("metadata.test.orphan.grace.period.minutes", 1);
+    Path dir = new Path("metadata://test/dir");
+    MetaDataFileSystem fileSystem = (MetaDataFileSystem) dir.getFileSystem(_conf);
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "a"))) {
+      output.writeLong(1);
+    }
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "sub/b"))) {
+      output.writeLong(2);
+    }
+    UserGroupInformation other = UserGroupInformation.createUserForTesting("other", new String[] { "other" });
+    other.doAs((PrivilegedExceptionAction<Void>) () -> {
+      try (FileSystem otherFileSystem = FileSystem.newInstance(dir.toUri(), _conf)) {
+        ((MetaDataFileSystem) otherFileSystem).createSnapshot(dir, "s1");
+        fail();
+      } catch (AccessControlException e) {
+      }
+      return null;
+    });
+
+    FileStatus liveStatus = fileSystem.getFileStatus(new Path(dir, "a"));
+    Path snapshotPath = fileSystem.createSnapshot(dir, "s1");
+    assertTrue(snapshotPath.getFileSystem(_conf)
+                           .exists(snapshotPath));
+    try {
+      fileSystem.createSnapshot(dir, "s1");
+      fail();
+    } catch (FileAlreadyExistsException e) {
+    }
+    // the live files are not touched
+    FileStatus snapshottedStatus = fileSystem.getFileStatus(new Path(dir, "a"));
+    assertEquals(liveStatus.getOwner(), snapshottedStatus.getOwner());
+    assertEquals(liveStatus.getModificationTime(), snapshottedStatus.getModificationTime());
+
+    // overwriting a live file keeps the snapshot
+    try (FSDataOutputStream output = fileSystem.create(new Path(dir, "a"), true)) {
+      output.writeLong(10);
+    }
+
+    // the snapshot keeps the data of deleted files
+    assertTrue(fileSystem.delete(dir, true));
+    fileSystem.waitForDataReclamation();
+    FileSystem dataFs = _dataPath.getFileSystem(_conf);
+    RemoteIterator<LocatedFileStatus> iterator = dataFs.listFiles(_dataPath, true);
+    while (iterator.hasNext()) {
+      dataFs.setTimes(iterator.next()
+                              .getPath(),
+          System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1), -1);
+    }
+    assertEquals(0, fileSystem.createOrphanDataCollector(false)
+                              .collect());
+    assertEquals(2, countFiles(_dataPath));
+
+    fileSystem.renameSnapshot(dir, "s1", "s2");
+    fileSystem.restoreSnapshot(dir, "s2", dir);
+    try (FSDataInputStream input = fileSystem.open(new Path(dir, "a"))) {
+      assertEquals(1, input.readLong());
+    }
+    assertEquals(liveStatus.getOwner(), fileSystem.getFileStatus(new Path(dir, "a"))
+                                                  .getOwner());
+    assertEquals(liveStatus.getGroup(), fileSystem.getFileStatus(new Path(dir, "a"))
+                                                  .getGroup());
+    try (FSDataInputStream input = fileSystem.open(new Path(dir, "sub/b"))) {
+      assertEquals(2, input.readLong());
+    }
+
+    fileSystem.deleteSnapshot(dir, "s2");
+    fileSystem.waitForDataReclamation();
+    assertEquals(2, countFiles(_dataPath));
+    assertTrue(fileSystem.delete(dir, true));
+    fileSystem.waitForDataReclamation();
+    assertNoFiles(_dataPath);
+
+    Configuration overlapping = new Configuration(_conf);
+    overlapping.set("metadata.test.snapshot.path", new Path(_metaPath, "snapshots").toString());
+    try {
+      FileSystem.newInstance(dir.toUri(), overlapping)
+                .close();
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage()
+                                  .contains("overlaps the meta path " + _metaPath));
+    }
+  }
+
+  private int countFiles(Path path) throws IOException {
+    int count = 0;
+    RemoteIterator<LocatedFileStatus> iterator = path.getFileSystem(_conf)
+                                                     .listFiles(path, true);
+    while (iterator.hasNext()) {
+      iterator.next();
+      count++;
+    }
+    return count;
+  }
+
+  private void assertSegmentedContent(FileSystem fileSystem, Path path, int count) throws IOException {
+    try (FSDataInputStream input = fileSystem.open(path)) {
+      for (int i = 0; i < count; i++) {
+        assertEquals(i, input.readLong());
+      }
+      assertEquals(-1, input.read());
+      // reads across segment boundaries
+      input.seek(16);
+      assertEquals(2, input.readLong());
+      byte[] buffer = new byte[16];
+      input.readFully(8, buffer);
+      ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+      assertEquals(1, byteBuffer.getLong());
+      assertEquals(2, byteBuffer.getLong());
+    }
+  }
+
+  @Test
+  public void testMetadataStoreMetaPath() throws Exception {
+    _conf.set(META_PATH, "metastore://lsm/meta");
+    _conf.set("metastore.lsm.dir", new File(ROOT, "lsm").getCanonicalPath());
+    _conf.setInt("metastore.lsm.memtable.entries", 4);
+    _conf.set("metadata.test.data.entry.layout", "xattr");
+    _conf.setBoolean("metadata.test.aggregates.enabled", true);
+    Path dir = new Path("metadata://test/dir1");
+    FileSystem fileSystem = dir.getFileSystem(_conf);
+    for (int i = 0; i < 3; i++) {
+      try (FSDataOutputStream output = fileSystem.create(new Path(dir, "file" + i))) {
+        output.writeLong(i);
+      }
+    }
+    assertTrue(fileSystem.rename(new Path(dir, "file0"), new Path(dir, "moved")));
+    assertContentSummary(fileSystem.getContentSummary(dir), 24, 3, 1);
+
+    FileSystem.closeAll();
+    fileSystem = dir.getFileSystem(_conf);
+    FileStatus[] listing = fileSystem.listStatus(dir);
+    assertEquals(3, listing.length);
+    assertEquals("file1", listing[0].getPath()
+                                    .getName());
+    assertEquals("moved", listing[2].getPath()
+                                    .getName());
+    try (FSDataInputStream input = fileSystem.open(new Path(dir, "moved"))) {
+      assertEquals(0, input.readLong());
+    }
+
+    assertTrue(fileSystem.delete(dir, true));
+    ((MetaDataFileSystem) fileSystem).waitForDataReclamation();
+    assertFalse(fileSystem.exists(dir));
+    assertNoFiles(new Path("metastore://lsm/meta"));
+    assertNoFiles(_dataPath);
+  }
+
+  private void assertContentSummary(ContentSummary summary, long length, long fileCount, long directoryCount) {
+    assertEquals(length, summary.getLength());
+    assertEquals(fileCount, summary.getFileCount());
+    assertEquals(directoryCount, summary.getDirectoryCount());
+  }
+
   private void touchFile(Path path) throws IOException {
     FileSystem fileSystem = path.getFileSystem(_conf);
     fileSystem.mkdirs(path.getParent());
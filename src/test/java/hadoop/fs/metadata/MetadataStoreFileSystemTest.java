@@ -0,0 +1,94 @@
+package hadoop.fs.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataStoreFileSystemTest {
+
+  private static final File ROOT = new File("./target/tmp/" + MetadataStoreFileSystemTest.class.getName());
+
+  private Configuration _conf;
+  private FileSystem _fileSystem;
+
+  @Before
+  public void setup() throws Exception {
+    FileSystem.closeAll();
+    FileUtil.fullyDelete(ROOT);
+    _conf = new Configuration();
+    _conf.set("metastore.test.dir", ROOT.getCanonicalPath());
+    _conf.setBoolean("metastore.test.sync", false);
+    _fileSystem = FileSystem.newInstance(new Path("metastore://test/").toUri(), _conf);
+  }
+
+  @After
+  public void teardown() throws Exception {
+    _fileSystem.close();
+  }
+
+  @Test
+  public void testPermissions() throws Exception {
+    Path privateDir = new Path("metastore://test/private");
+    Path sharedDir = new Path("metastore://test/shared");
+    assertTrue(_fileSystem.mkdirs(privateDir));
+    _fileSystem.setPermission(privateDir, new FsPermission((short) 0700));
+    _fileSystem.create(new Path(privateDir, "file"))
+               .close();
+    assertTrue(_fileSystem.mkdirs(sharedDir));
+    _fileSystem.setPermission(sharedDir, new FsPermission((short) 0777));
+
+    UserGroupInformation user = UserGroupInformation.createUserForTesting("user", new String[] { "users" });
+    user.doAs((PrivilegedExceptionAction<Void>) () -> {
+      FileSystem fileSystem = FileSystem.newInstance(privateDir.toUri(), _conf);
+      try {
+        assertDenied(() -> fileSystem.listStatus(privateDir));
+        assertDenied(() -> fileSystem.getFileStatus(new Path(privateDir, "file")));
+        assertDenied(() -> fileSystem.create(new Path(privateDir, "other")));
+        assertDenied(() -> fileSystem.delete(new Path(privateDir, "file"), false));
+        assertDenied(() -> fileSystem.rename(new Path(privateDir, "file"), new Path(sharedDir, "file")));
+        assertDenied(() -> {
+          fileSystem.setPermission(privateDir, new FsPermission((short) 0777));
+          return null;
+        });
+
+        Path file = new Path(sharedDir, "file");
+        fileSystem.create(file)
+                  .close();
+        assertEquals("user", fileSystem.getFileStatus(file)
+                                       .getOwner());
+        fileSystem.setPermission(file, new FsPermission((short) 0600));
+        assertDenied(() -> {
+          fileSystem.setOwner(file, "other", null);
+          return null;
+        });
+      } finally {
+        fileSystem.close();
+      }
+      return null;
+    });
+    assertTrue(_fileSystem.delete(new Path(sharedDir, "file"), false));
+  }
+
+  private void assertDenied(PrivilegedExceptionAction<?> action) throws Exception {
+    try {
+      action.run();
+      fail();
+    } catch (AccessControlException e) {
+    }
+  }
+
+}
@@ -0,0 +1,75 @@
+package hadoop.fs.metadata;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.s3a.S3AFileSystem;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+
+/**
+ * S3A filesystem whose client records multi-object deletes instead of sending
+ * them, used to test the batched reclamation of S3A data paths. It is never
+ * connected, only the client field of S3A is set.
+ */
+public class RecordingS3AFileSystem extends S3AFileSystem {
+
+  private static final List<List<String>> DELETES = new CopyOnWriteArrayList<>();
+
+  private URI _uri;
+
+  @Override
+  public void initialize(URI name, Configuration conf) throws IOException {
+    setConf(conf);
+    _uri = URI.create(name.getScheme() + "://" + name.getAuthority());
+    try {
+      Field field = S3AFileSystem.class.getDeclaredField("s3");
+      field.setAccessible(true);
+      field.set(this, new RecordingS3Client());
+    } catch (ReflectiveOperationException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public URI getUri() {
+    return _uri;
+  }
+
+  /**
+   * Returns the keys of every multi-object delete as bucket/key, one list per
+   * request.
+   */
+  static List<List<String>> getDeletes() {
+    return DELETES;
+  }
+
+  private static class RecordingS3Client extends AmazonS3Client {
+
+    RecordingS3Client() {
+      super(new BasicAWSCredentials("access", "secret"));
+    }
+
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+      List<String> keys = new ArrayList<>();
+      for (KeyVersion keyVersion : request.getKeys()) {
+        keys.add(request.getBucketName() + "/" + keyVersion.getKey());
+      }
+      DELETES.add(keys);
+      return new DeleteObjectsResult(new ArrayList<DeletedObject>());
+    }
+
+  }
+
+}
@@ -0,0 +1,83 @@
+package hadoop.fs.metadata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.XAttrSetFlag;
+
+/**
+ * Local filesystem that keeps xattrs in memory, used to test the xattr data
+ * entry layout.
+ */
+public class XAttrLocalFileSystem extends LocalFileSystem {
+
+  private static final Map<Path, Map<String, byte[]>> XATTRS = new ConcurrentHashMap<>();
+
+  @Override
+  public void setXAttr(Path path, String name, byte[] value) throws IOException {
+    setXAttr(path, name, value, EnumSet.of(XAttrSetFlag.CREATE, XAttrSetFlag.REPLACE));
+  }
+
+  @Override
+  public void setXAttr(Path path, String name, byte[] value, EnumSet<XAttrSetFlag> flag) throws IOException {
+    getFileStatus(path);
+    XATTRS.computeIfAbsent(makeQualified(path), p -> new ConcurrentHashMap<>())
+          .put(name, value);
+  }
+
+  @Override
+  public Map<String, byte[]> getXAttrs(Path path) throws IOException {
+    getFileStatus(path);
+    return new HashMap<>(XATTRS.getOrDefault(makeQualified(path), new HashMap<>()));
+  }
+
+  @Override
+  public List<String> listXAttrs(Path path) throws IOException {
+    return new ArrayList<>(getXAttrs(path).keySet());
+  }
+
+  @Override
+  public void removeXAttr(Path path, String name) throws IOException {
+    getFileStatus(path);
+    Map<String, byte[]> xattrs = XATTRS.get(makeQualified(path));
+    if (xattrs != null) {
+      xattrs.remove(name);
+    }
+  }
+
+  @Override
+  public boolean rename(Path src, Path dst) throws IOException {
+    Path qualifiedSrc = makeQualified(src);
+    Path target = makeQualified(exists(dst) && isDirectory(dst) ? new Path(dst, src.getName()) : dst);
+    if (!super.rename(src, dst)) {
+      return false;
+    }
+    String prefix = qualifiedSrc.toString() + Path.SEPARATOR;
+    for (Path path : new ArrayList<>(XATTRS.keySet())) {
+      if (path.equals(qualifiedSrc)) {
+        XATTRS.put(target, XATTRS.remove(path));
+      } else if (path.toString()
+                     .startsWith(prefix)) {
+        XATTRS.put(new Path(target.toString() + path.toString()
+                                                    .substring(qualifiedSrc.toString()
+                                                                           .length())),
+            XATTRS.remove(path));
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean delete(Path f, boolean recursive) throws IOException {
+    XATTRS.remove(makeQualified(f));
+    return super.delete(f, recursive);
+  }
+
+}